@@ -0,0 +1,20 @@
+CREATE TABLE entities (id integer PRIMARY KEY AUTOINCREMENT, entity_id text NOT NULL UNIQUE);
+INSERT OR IGNORE INTO entities (entity_id) SELECT id FROM accounts;
+INSERT OR IGNORE INTO entities (entity_id) SELECT id FROM chats;
+INSERT OR IGNORE INTO entities (entity_id) SELECT id FROM users;
+INSERT OR IGNORE INTO entities (entity_id) SELECT account_id FROM messages;
+INSERT OR IGNORE INTO entities (entity_id) SELECT chat_id FROM messages;
+INSERT OR IGNORE INTO entities (entity_id) SELECT author_id FROM messages;
+INSERT OR IGNORE INTO entities (entity_id) SELECT recipient_id FROM messages WHERE recipient_id IS NOT NULL;
+CREATE TABLE messages_new (id text PRIMARY KEY, account_id integer NOT NULL, account_message_id text NOT NULL, chat_id integer NOT NULL, author_id integer NOT NULL, recipient_id integer, send_date datetime NOT NULL, send_time integer NOT NULL, title text NOT NULL, body text NOT NULL, read integer NOT NULL, state text NOT NULL, dedup_key integer);
+INSERT INTO messages_new (rowid, id, account_id, account_message_id, chat_id, author_id, recipient_id, send_date, send_time, title, body, read, state, dedup_key) SELECT m.rowid, m.id, (SELECT e.id FROM entities e WHERE e.entity_id = m.account_id), m.account_message_id, (SELECT e.id FROM entities e WHERE e.entity_id = m.chat_id), (SELECT e.id FROM entities e WHERE e.entity_id = m.author_id), (SELECT e.id FROM entities e WHERE e.entity_id = m.recipient_id), m.send_date, m.send_time, m.title, m.body, m.read, m.state, m.dedup_key FROM messages m;
+DROP TABLE messages;
+ALTER TABLE messages_new RENAME TO messages;
+CREATE INDEX messages_chat_id_send_time_index ON messages (chat_id, send_time, state);
+CREATE INDEX messages_read_state_chat_id_index ON messages (read, state, chat_id);
+CREATE INDEX messages_dedup_key_index ON messages (dedup_key);
+CREATE TRIGGER messages_fts_after_insert AFTER INSERT ON messages BEGIN INSERT INTO messages_fts (docid, body) VALUES (new.rowid, new.body); END;
+CREATE TRIGGER messages_fts_after_update AFTER UPDATE OF body ON messages BEGIN UPDATE messages_fts SET body = new.body WHERE docid = new.rowid; END;
+CREATE TRIGGER messages_fts_after_delete AFTER DELETE ON messages BEGIN DELETE FROM messages_fts WHERE docid = old.rowid; END;
+CREATE TRIGGER chats_after_delete AFTER DELETE ON chats BEGIN DELETE FROM messages WHERE chat_id = (SELECT e.id FROM entities e WHERE e.entity_id = old.id); END;
+CREATE TRIGGER users_after_delete AFTER DELETE ON users BEGIN DELETE FROM messages WHERE author_id = (SELECT e.id FROM entities e WHERE e.entity_id = old.id) OR recipient_id = (SELECT e.id FROM entities e WHERE e.entity_id = old.id); END;
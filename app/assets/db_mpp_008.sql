@@ -0,0 +1,6 @@
+ALTER TABLE messages ADD COLUMN body_format integer NOT NULL DEFAULT 0;
+ALTER TABLE messages ADD COLUMN body_data blob;
+DROP TRIGGER messages_fts_after_insert;
+DROP TRIGGER messages_fts_after_update;
+CREATE TRIGGER messages_fts_after_insert AFTER INSERT ON messages WHEN new.body_format = 0 BEGIN INSERT INTO messages_fts (docid, body) VALUES (new.rowid, new.body); END;
+CREATE TRIGGER messages_fts_after_update AFTER UPDATE OF body ON messages WHEN new.body_format = 0 BEGIN UPDATE messages_fts SET body = new.body WHERE docid = new.rowid; END;
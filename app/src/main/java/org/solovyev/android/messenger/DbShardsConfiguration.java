@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.solovyev.android.messenger;
+
+import android.app.Application;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.preference.PreferenceManager;
+
+import javax.annotation.Nonnull;
+
+import org.solovyev.android.messenger.db.DatabaseShardsConfiguration;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+@Singleton
+final class DbShardsConfiguration implements DatabaseShardsConfiguration {
+
+	@Nonnull
+	public static final String DB_NAME = "mpp_shard";
+	public static final int DB_VERSION = 3;
+
+	@Nonnull
+	private final Application context;
+
+	@Inject
+	DbShardsConfiguration(@Nonnull Application context) {
+		this.context = context;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return MessengerPreferences.Db.shardByAccount.getPreference(PreferenceManager.getDefaultSharedPreferences(context));
+	}
+
+	@Nonnull
+	@Override
+	public SQLiteOpenHelper newDatabase(@Nonnull String name) {
+		return new MessengerModule.ShardSQLiteOpenHelper(context, getFileName(name));
+	}
+
+	@Override
+	public void deleteDatabase(@Nonnull String name) {
+		context.deleteDatabase(getFileName(name));
+	}
+
+	@Nonnull
+	private static String getFileName(@Nonnull String name) {
+		return DbConfiguration.DB_NAME + "_" + name;
+	}
+}
@@ -18,14 +18,15 @@ package org.solovyev.android.messenger;
 
 import android.app.Application;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Scopes;
 import com.google.inject.Singleton;
 import org.solovyev.android.TimeLoggingExecutor;
+import org.solovyev.android.db.BatchDbTransaction;
 import org.solovyev.android.db.CommonSQLiteOpenHelper;
 import org.solovyev.android.db.SQLiteOpenHelperConfiguration;
-import org.solovyev.android.http.CachingImageLoader;
 import org.solovyev.android.messenger.accounts.AccountDao;
 import org.solovyev.android.messenger.accounts.AccountService;
 import org.solovyev.android.messenger.accounts.DefaultAccountService;
@@ -38,9 +39,13 @@ import org.solovyev.android.messenger.chats.ChatDao;
 import org.solovyev.android.messenger.chats.ChatService;
 import org.solovyev.android.messenger.chats.DefaultChatService;
 import org.solovyev.android.messenger.chats.SqliteChatDao;
+import org.solovyev.android.messenger.db.DatabaseMaintenance;
+import org.solovyev.android.messenger.db.DatabaseShardsConfiguration;
+import org.solovyev.android.messenger.icons.ImagePipeline;
 import org.solovyev.android.messenger.messages.DefaultMessageService;
 import org.solovyev.android.messenger.messages.MessageDao;
 import org.solovyev.android.messenger.messages.MessageService;
+import org.solovyev.android.messenger.messages.ShardedMessageDao;
 import org.solovyev.android.messenger.messages.SqliteMessageDao;
 import org.solovyev.android.messenger.notifications.DefaultNotificationService;
 import org.solovyev.android.messenger.notifications.NotificationService;
@@ -63,6 +68,11 @@ import org.solovyev.android.wizard.Wizards;
 import org.solovyev.tasks.TaskService;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DecimalFormat;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
 import java.util.concurrent.Executor;
 
 import static org.solovyev.tasks.Tasks.newTaskService;
@@ -85,6 +95,7 @@ public class MessengerModule extends AbstractModule {
 		bind(NotificationService.class).to(DefaultNotificationService.class);
 		bind(SQLiteOpenHelperConfiguration.class).to(DbConfiguration.class);
 		bind(android.database.sqlite.SQLiteOpenHelper.class).to(SQLiteOpenHelper.class);
+		bind(DatabaseShardsConfiguration.class).to(DbShardsConfiguration.class);
 
 		bind(RealmService.class).to(DefaultRealmService.class);
 		bind(AccountConnections.class).to(DefaultAccountConnections.class);
@@ -93,7 +104,7 @@ public class MessengerModule extends AbstractModule {
 
 		bind(AccountConnectionsService.class).to(DefaultAccountConnectionsService.class);
 		bind(Configuration.class).to(DefaultConfiguration.class);
-		bind(org.solovyev.android.http.ImageLoader.class).to(ImageLoader.class);
+		bind(org.solovyev.android.http.ImageLoader.class).to(ImagePipeline.class);
 		bind(NetworkStateService.class).to(NetworkStateServiceImpl.class).in(Scopes.SINGLETON);
 
 		bind(UserDao.class).to(SqliteUserDao.class);
@@ -102,7 +113,7 @@ public class MessengerModule extends AbstractModule {
 		bind(ChatDao.class).to(SqliteChatDao.class);
 		bind(ChatService.class).to(DefaultChatService.class);
 
-		bind(MessageDao.class).to(SqliteMessageDao.class);
+		bind(MessageDao.class).to(ShardedMessageDao.class);
 		bind(MessageService.class).to(DefaultMessageService.class);
 
 		bind(SyncService.class).to(DefaultSyncService.class);
@@ -118,21 +129,108 @@ public class MessengerModule extends AbstractModule {
 		public SQLiteOpenHelper(@Nonnull Application context,
 								@Nonnull SQLiteOpenHelperConfiguration configuration) {
 			super(context, configuration);
+			// WAL allows reads to be done in parallel with write transaction
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+				setWriteAheadLoggingEnabled(true);
+			}
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			DatabaseMaintenance.enableIncrementalVacuum(db);
+			super.onCreate(db);
 		}
 
 		@Override
 		public void onOpen(SQLiteDatabase db) {
 			super.onOpen(db);
 			db.execSQL("PRAGMA foreign_keys=ON");
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+				if (!db.isReadOnly()) {
+					db.enableWriteAheadLogging();
+				}
+			}
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			super.onUpgrade(db, oldVersion, newVersion);
+			if (oldVersion < 5) {
+				// dedup_key column is added in version 5 and must be filled for existing messages
+				new SqliteMessageDao.DedupKeysUpdater().exec(db);
+			}
+			if (oldVersion < 8) {
+				// long bodies are stored compressed since version 8
+				new SqliteMessageDao.LongBodiesCompressor().exec(db);
+			}
+			if (oldVersion < 12) {
+				// archived messages are kept in full-text index since version 12
+				new SqliteMessageDao.ArchiveIndexer().exec(db);
+			}
 		}
 	}
 
-	@Singleton
-	public static class ImageLoader extends CachingImageLoader {
+	/**
+	 * Database of one account (see {@link org.solovyev.android.messenger.db.DatabaseShards}), schema is created and
+	 * upgraded by "db_mpp_shard_*.sql" scripts
+	 */
+	public static class ShardSQLiteOpenHelper extends android.database.sqlite.SQLiteOpenHelper {
+
+		@Nonnull
+		private final Application context;
+
+		public ShardSQLiteOpenHelper(@Nonnull Application context, @Nonnull String name) {
+			super(context, name, null, DbShardsConfiguration.DB_VERSION);
+			this.context = context;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+				setWriteAheadLoggingEnabled(true);
+			}
+		}
 
-		@Inject
-		public ImageLoader(@Nonnull Application context) {
-			super(context, "messenger", App.getUiHandler());
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			DatabaseMaintenance.enableIncrementalVacuum(db);
+			onUpgrade(db, 0, DbShardsConfiguration.DB_VERSION);
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			final DecimalFormat decimalFormat = new DecimalFormat("000");
+			for (int version = oldVersion + 1; version <= newVersion; version++) {
+				final String fileName = "db_" + DbShardsConfiguration.DB_NAME + "_" + decimalFormat.format(version) + ".sql";
+				new BatchDbTransaction(readAsset(fileName), ";\n").batchQuery(db);
+			}
+			if (oldVersion > 0 && oldVersion < 3) {
+				// archived messages are kept in full-text index since version 3
+				new SqliteMessageDao.ArchiveIndexer().exec(db);
+			}
+		}
+
+		@Nonnull
+		private String readAsset(@Nonnull String fileName) {
+			try {
+				final InputStream in = context.getAssets().open(fileName);
+				try {
+					return new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+				} catch (NoSuchElementException e) {
+					return "";
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to read " + fileName, e);
+			}
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			super.onOpen(db);
+			db.execSQL("PRAGMA foreign_keys=ON");
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+				if (!db.isReadOnly()) {
+					db.enableWriteAheadLogging();
+				}
+			}
 		}
 	}
 }
@@ -34,6 +34,23 @@ public interface Dao<E> {
 	@Nonnull
 	Collection<String> readAllIds();
 
+	/**
+	 * Lazy version of {@link #readAll()}: entities are loaded in windows of fixed size while iterating, so iteration
+	 * over all the entities uses constant memory
+	 *
+	 * @see TableIterable
+	 */
+	@Nonnull
+	Iterable<E> iterateAll();
+
+	/**
+	 * Lazy version of {@link #readAllIds()}
+	 *
+	 * @see TableIterable
+	 */
+	@Nonnull
+	Iterable<String> iterateAllIds();
+
 	// return number of updated rows
 	long update(@Nonnull E entity);
 
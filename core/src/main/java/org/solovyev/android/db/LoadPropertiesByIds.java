@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.solovyev.android.properties.AProperty;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.solovyev.android.db.AndroidDbUtils.inClause;
+import static org.solovyev.android.properties.Properties.newProperty;
+
+/**
+ * Query loads properties of several entities at once. Number of ids must not exceed {@link AndroidDbUtils#MAX_IN_COUNT}.
+ * Entities without properties are not contained in the result map.
+ */
+public final class LoadPropertiesByIds implements DbQuery<Map<String, List<AProperty>>> {
+
+	@Nonnull
+	private final String tableName;
+
+	@Nonnull
+	private final String idColumnName;
+
+	@Nonnull
+	private final List<String> ids;
+
+	public LoadPropertiesByIds(@Nonnull String tableName, @Nonnull String idColumnName, @Nonnull List<String> ids) {
+		this.tableName = tableName;
+		this.idColumnName = idColumnName;
+		this.ids = ids;
+	}
+
+	@Nonnull
+	@Override
+	public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+		return db.query(tableName, new String[]{idColumnName, "property_name", "property_value"}, idColumnName + " in " + inClause(ids), ids.toArray(new String[ids.size()]), null, null, null);
+	}
+
+	@Nonnull
+	@Override
+	public Map<String, List<AProperty>> retrieveData(@Nonnull Cursor cursor) {
+		final Map<String, List<AProperty>> result = new HashMap<String, List<AProperty>>();
+
+		if (cursor.moveToFirst()) {
+			while (!cursor.isAfterLast()) {
+				final String id = cursor.getString(0);
+				List<AProperty> properties = result.get(id);
+				if (properties == null) {
+					properties = new ArrayList<AProperty>();
+					result.put(id, properties);
+				}
+				properties.add(newProperty(cursor.getString(1), cursor.getString(2)));
+				cursor.moveToNext();
+			}
+		}
+
+		return result;
+	}
+}
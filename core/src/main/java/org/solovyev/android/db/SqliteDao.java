@@ -82,6 +82,18 @@ public final class SqliteDao<E extends Identifiable> extends AbstractSQLiteHelpe
 		return doDbQuery(getSqliteOpenHelper(), new LoadIds(getContext(), getSqliteOpenHelper()));
 	}
 
+	@Nonnull
+	@Override
+	public Iterable<E> iterateAll() {
+		return new TableIterable<E>(getSqliteOpenHelper(), tableName, "*", mapper.getCursorMapper());
+	}
+
+	@Nonnull
+	@Override
+	public Iterable<String> iterateAllIds() {
+		return new TableIterable<String>(getSqliteOpenHelper(), tableName, idColumnName, StringIdMapper.getInstance());
+	}
+
 	@Override
 	public long update(@Nonnull E entity) {
 		return doDbExec(getSqliteOpenHelper(), new UpdateEntity(entity));
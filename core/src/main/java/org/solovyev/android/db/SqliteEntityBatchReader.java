@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.common.base.Function;
+import org.solovyev.android.properties.AProperty;
+import org.solovyev.common.Converter;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.partition;
+import static org.solovyev.android.db.AndroidDbUtils.MAX_IN_COUNT;
+import static org.solovyev.android.db.AndroidDbUtils.doDbQuery;
+import static org.solovyev.android.db.AndroidDbUtils.inClause;
+
+/**
+ * Reads entities together with their properties by ids: for each {@link AndroidDbUtils#MAX_IN_COUNT} ids only two
+ * queries are done (one for properties and one for rows) instead of two queries per entity.
+ */
+public final class SqliteEntityBatchReader<E> {
+
+	@Nonnull
+	private final SQLiteOpenHelper sqliteOpenHelper;
+
+	@Nonnull
+	private final String tableName;
+
+	@Nonnull
+	private final String idColumnName;
+
+	@Nonnull
+	private final String propertiesTableName;
+
+	@Nonnull
+	private final String propertiesIdColumnName;
+
+	/**
+	 * Creates row mapper which uses preloaded properties (key: entity id) instead of loading them for each row
+	 */
+	@Nonnull
+	private final Function<Map<String, List<AProperty>>, ? extends Converter<Cursor, E>> mapperFactory;
+
+	public SqliteEntityBatchReader(@Nonnull SQLiteOpenHelper sqliteOpenHelper,
+								   @Nonnull String tableName,
+								   @Nonnull String idColumnName,
+								   @Nonnull String propertiesTableName,
+								   @Nonnull String propertiesIdColumnName,
+								   @Nonnull Function<Map<String, List<AProperty>>, ? extends Converter<Cursor, E>> mapperFactory) {
+		this.sqliteOpenHelper = sqliteOpenHelper;
+		this.tableName = tableName;
+		this.idColumnName = idColumnName;
+		this.propertiesTableName = propertiesTableName;
+		this.propertiesIdColumnName = propertiesIdColumnName;
+		this.mapperFactory = mapperFactory;
+	}
+
+	/**
+	 * @return entities with <var>ids</var> which exist in the database, order of entities is not specified
+	 */
+	@Nonnull
+	public List<E> readByIds(@Nonnull Collection<String> ids) {
+		final List<E> result = new ArrayList<E>(ids.size());
+
+		for (List<String> idsChunk : partition(new ArrayList<String>(ids), MAX_IN_COUNT)) {
+			final Map<String, List<AProperty>> properties = doDbQuery(sqliteOpenHelper, new LoadPropertiesByIds(propertiesTableName, propertiesIdColumnName, idsChunk));
+			result.addAll(doDbQuery(sqliteOpenHelper, new LoadByIds(idsChunk, mapperFactory.apply(properties))));
+		}
+
+		return result;
+	}
+
+	private final class LoadByIds implements DbQuery<List<E>> {
+
+		@Nonnull
+		private final List<String> ids;
+
+		@Nonnull
+		private final Converter<Cursor, E> mapper;
+
+		private LoadByIds(@Nonnull List<String> ids, @Nonnull Converter<Cursor, E> mapper) {
+			this.ids = ids;
+			this.mapper = mapper;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.query(tableName, null, idColumnName + " in " + inClause(ids), ids.toArray(new String[ids.size()]), null, null, null);
+		}
+
+		@Nonnull
+		@Override
+		public List<E> retrieveData(@Nonnull Cursor cursor) {
+			return new ListMapper<E>(mapper).convert(cursor);
+		}
+	}
+}
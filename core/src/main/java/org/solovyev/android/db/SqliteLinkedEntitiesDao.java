@@ -31,14 +31,18 @@ import org.solovyev.android.messenger.db.StringIdMapper;
 import javax.annotation.Nonnull;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.solovyev.android.db.AndroidDbUtils.doDbQuery;
 
 public class SqliteLinkedEntitiesDao<E extends Identifiable & Mergeable<E>> extends AbstractSQLiteHelper implements LinkedEntitiesDao<E> {
 
 	@Nonnull
-	private final Dao<E> dao;
+	private final SqliteEntityBatchReader<E> reader;
 
 	@Nonnull
 	private final String tableName;
@@ -62,14 +66,14 @@ public class SqliteLinkedEntitiesDao<E extends Identifiable & Mergeable<E>> exte
 								   @Nonnull String linkedTableName,
 								   @Nonnull String linkedIdColumnName,
 								   @Nonnull String linkedEntityIdColumnName,
-								   @Nonnull Dao<E> dao) {
+								   @Nonnull SqliteEntityBatchReader<E> reader) {
 		super(context, sqliteOpenHelper);
 		this.tableName = tableName;
 		this.idColumnName = idColumnName;
 		this.linkedTableName = linkedTableName;
 		this.linkedIdColumnName = linkedIdColumnName;
 		this.linkedEntityIdColumnName = linkedEntityIdColumnName;
-		this.dao = dao;
+		this.reader = reader;
 	}
 
 	@Nonnull
@@ -77,8 +81,19 @@ public class SqliteLinkedEntitiesDao<E extends Identifiable & Mergeable<E>> exte
 	public MergeDaoResult<E, String> mergeLinkedEntities(@Nonnull String id, @Nonnull Iterable<E> linkedEntities, boolean allowRemoval, boolean allowUpdate) {
 		final MergeDaoResultImpl<E, String> result = new MergeDaoResultImpl<E, String>();
 
+		final Set<String> linkedEntityIds = new HashSet<String>();
 		for (E linkedEntity : linkedEntities) {
-			final E linkedEntityFromDb = dao.read(linkedEntity.getId());
+			linkedEntityIds.add(linkedEntity.getId());
+		}
+
+		// all the entities are loaded with few queries and then are looked up in memory
+		final Map<String, E> linkedEntitiesFromDb = new HashMap<String, E>(linkedEntityIds.size());
+		for (E linkedEntityFromDb : reader.readByIds(linkedEntityIds)) {
+			linkedEntitiesFromDb.put(linkedEntityFromDb.getId(), linkedEntityFromDb);
+		}
+
+		for (E linkedEntity : linkedEntities) {
+			final E linkedEntityFromDb = linkedEntitiesFromDb.get(linkedEntity.getId());
 			if (linkedEntityFromDb == null) {
 				result.addAddedObject(linkedEntity);
 			} else {
@@ -87,6 +102,14 @@ public class SqliteLinkedEntitiesDao<E extends Identifiable & Mergeable<E>> exte
 			}
 		}
 
+		if (allowRemoval) {
+			for (String linkedEntityIdFromDb : readLinkedEntityIds(id)) {
+				if (!linkedEntityIds.contains(linkedEntityIdFromDb)) {
+					result.addRemovedObjectId(linkedEntityIdFromDb);
+				}
+			}
+		}
+
 		return result;
 	}
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.common.collect.AbstractIterator;
+import org.solovyev.common.Converter;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.solovyev.android.db.AndroidDbUtils.doDbQuery;
+
+/**
+ * Iterable over all rows of the table. Rows are loaded and mapped lazily in windows of fixed size ordered by rowid:
+ * each window is a separate query which starts after the last rowid of the previous window. As no cursor is kept
+ * open between windows iteration can be stopped at any moment (nothing must be closed) and memory used doesn't depend
+ * on the number of rows in the table.
+ * <p/>
+ * Rows changed during the iteration might or might not be returned.
+ */
+public class TableIterable<T> implements Iterable<T> {
+
+	public static final int DEFAULT_WINDOW_SIZE = 100;
+
+	@Nonnull
+	private final SQLiteOpenHelper sqliteOpenHelper;
+
+	@Nonnull
+	private final String tableName;
+
+	@Nonnull
+	private final String columns;
+
+	@Nonnull
+	private final Converter<Cursor, ? extends T> mapper;
+
+	private final int windowSize;
+
+	/**
+	 * @param columns    comma separated columns passed to the mapper, e.g. "*" or "id"
+	 * @param mapper     mapper of one row. Note that cursor contains one more column (rowid) after <var>columns</var>
+	 * @param windowSize max number of rows loaded by one query
+	 */
+	public TableIterable(@Nonnull SQLiteOpenHelper sqliteOpenHelper,
+						 @Nonnull String tableName,
+						 @Nonnull String columns,
+						 @Nonnull Converter<Cursor, ? extends T> mapper,
+						 int windowSize) {
+		this.sqliteOpenHelper = sqliteOpenHelper;
+		this.tableName = tableName;
+		this.columns = columns;
+		this.mapper = mapper;
+		this.windowSize = windowSize;
+	}
+
+	public TableIterable(@Nonnull SQLiteOpenHelper sqliteOpenHelper,
+						 @Nonnull String tableName,
+						 @Nonnull String columns,
+						 @Nonnull Converter<Cursor, ? extends T> mapper) {
+		this(sqliteOpenHelper, tableName, columns, mapper, DEFAULT_WINDOW_SIZE);
+	}
+
+	@Nonnull
+	@Override
+	public Iterator<T> iterator() {
+		return new WindowIterator();
+	}
+
+	/**
+	 * Called for each loaded window before its elements are returned, might be used to load additional data for all
+	 * the elements of the window at once
+	 */
+	protected void onWindowLoaded(@Nonnull List<T> window) {
+	}
+
+	private final class WindowIterator extends AbstractIterator<T> {
+
+		@Nonnull
+		private Iterator<T> window = Collections.<T>emptyList().iterator();
+
+		private long lastRowId = Long.MIN_VALUE;
+
+		private boolean lastWindow = false;
+
+		@Override
+		protected T computeNext() {
+			if (!window.hasNext()) {
+				if (lastWindow) {
+					return endOfData();
+				}
+
+				final LoadWindow query = new LoadWindow(lastRowId);
+				final List<T> rows = doDbQuery(sqliteOpenHelper, query);
+				lastWindow = rows.size() < windowSize;
+				lastRowId = query.lastRowId;
+				onWindowLoaded(rows);
+
+				window = rows.iterator();
+				if (!window.hasNext()) {
+					return endOfData();
+				}
+			}
+			return window.next();
+		}
+	}
+
+	private final class LoadWindow implements DbQuery<List<T>> {
+
+		private long lastRowId;
+
+		private LoadWindow(long lastRowId) {
+			this.lastRowId = lastRowId;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select " + columns + ", rowid from " + tableName + " where rowid > ? order by rowid limit " + windowSize, new String[]{String.valueOf(lastRowId)});
+		}
+
+		@Nonnull
+		@Override
+		public List<T> retrieveData(@Nonnull Cursor cursor) {
+			final List<T> result = new ArrayList<T>(windowSize);
+
+			final int rowIdColumn = cursor.getColumnCount() - 1;
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					result.add(mapper.convert(cursor));
+					lastRowId = cursor.getLong(rowIdColumn);
+					cursor.moveToNext();
+				}
+			}
+
+			return result;
+		}
+	}
+}
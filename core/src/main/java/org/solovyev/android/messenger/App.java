@@ -32,6 +32,8 @@ import org.solovyev.android.Threads;
 import org.solovyev.android.messenger.accounts.AccountService;
 import org.solovyev.android.messenger.accounts.connection.AccountConnectionsService;
 import org.solovyev.android.messenger.chats.ChatService;
+import org.solovyev.android.messenger.db.DatabaseMaintenance;
+import org.solovyev.android.messenger.db.DbExecQueue;
 import org.solovyev.android.messenger.messages.MessageService;
 import org.solovyev.android.messenger.messages.UnreadMessagesCounter;
 import org.solovyev.android.messenger.notifications.NotificationService;
@@ -150,6 +152,14 @@ public final class App implements SharedPreferences.OnSharedPreferenceChangeList
 	@Nonnull
 	private Wizards wizards;
 
+	@Inject
+	@Nonnull
+	private DatabaseMaintenance databaseMaintenance;
+
+	@Inject
+	@Nonnull
+	private DbExecQueue execQueue;
+
 	@Nonnull
 	private Handler uiHandler;
 
@@ -236,6 +246,11 @@ public final class App implements SharedPreferences.OnSharedPreferenceChangeList
 		return instance.messageService;
 	}
 
+	@Nonnull
+	public static DatabaseMaintenance getDatabaseMaintenance() {
+		return instance.databaseMaintenance;
+	}
+
 	@Nonnull
 	public static UserService getUserService() {
 		return instance.userService;
@@ -314,6 +329,9 @@ public final class App implements SharedPreferences.OnSharedPreferenceChangeList
 	public static void exit(Activity activity) {
 		getAccountConnectionsService().tryStopAll();
 
+		// queued messages should not be lost if process is killed after exit
+		instance.execQueue.flush();
+
 		stopOngoingNotificationService(instance.application);
 
 		activity.finish();
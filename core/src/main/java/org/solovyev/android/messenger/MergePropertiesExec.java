@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.solovyev.android.db.AbstractObjectDbExec;
+import org.solovyev.android.messenger.entities.Entity;
+import org.solovyev.android.properties.AProperty;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes only the difference between properties stored in the database and new properties of the entity: removed
+ * properties are deleted, changed properties are updated and new properties are inserted, untouched rows are left as is.
+ * Properties with null values are treated as absent.
+ * Result of {@link #exec(SQLiteDatabase)} is the number of written rows (or {@link #SQL_ERROR}).
+ */
+public class MergePropertiesExec extends AbstractObjectDbExec<Entity> {
+
+	@Nonnull
+	private final String tableName;
+
+	@Nonnull
+	private final String idColumnName;
+
+	@Nonnull
+	private final Collection<AProperty> properties;
+
+	/**
+	 * Properties which are currently stored in the database, if null => will be loaded from the database
+	 */
+	@Nullable
+	private final Collection<AProperty> oldProperties;
+
+	public MergePropertiesExec(@Nonnull Entity entity,
+							   @Nonnull String tableName,
+							   @Nonnull String idColumnName,
+							   @Nonnull Collection<AProperty> properties) {
+		this(entity, tableName, idColumnName, properties, null);
+	}
+
+	public MergePropertiesExec(@Nonnull Entity entity,
+							   @Nonnull String tableName,
+							   @Nonnull String idColumnName,
+							   @Nonnull Collection<AProperty> properties,
+							   @Nullable Collection<AProperty> oldProperties) {
+		super(entity);
+		this.tableName = tableName;
+		this.idColumnName = idColumnName;
+		this.properties = properties;
+		this.oldProperties = oldProperties;
+	}
+
+	@Override
+	public long exec(@Nonnull SQLiteDatabase db) {
+		final String id = getNotNullObject().getEntityId();
+
+		final Map<String, String> oldValues = oldProperties != null ? toValues(oldProperties) : loadValues(db, id);
+		final Map<String, String> newValues = toValues(properties);
+
+		long rows = 0;
+
+		for (String name : oldValues.keySet()) {
+			if (!newValues.containsKey(name)) {
+				rows += db.delete(tableName, idColumnName + " = ? and property_name = ?", new String[]{id, name});
+			}
+		}
+
+		for (Map.Entry<String, String> entry : newValues.entrySet()) {
+			final String name = entry.getKey();
+			final String value = entry.getValue();
+			if (!oldValues.containsKey(name)) {
+				final ContentValues values = new ContentValues();
+				values.put(idColumnName, id);
+				values.put("property_name", name);
+				values.put("property_value", value);
+				// replace is used in case if old properties are not in sync with the database
+				if (db.replace(tableName, null, values) == SQL_ERROR) {
+					return SQL_ERROR;
+				}
+				rows++;
+			} else if (!value.equals(oldValues.get(name))) {
+				final ContentValues values = new ContentValues();
+				values.put("property_value", value);
+				rows += db.update(tableName, values, idColumnName + " = ? and property_name = ?", new String[]{id, name});
+			}
+		}
+
+		return rows;
+	}
+
+	@Nonnull
+	private Map<String, String> loadValues(@Nonnull SQLiteDatabase db, @Nonnull String id) {
+		final Map<String, String> result = new HashMap<String, String>();
+
+		final Cursor cursor = db.query(tableName, new String[]{"property_name", "property_value"}, idColumnName + " = ?", new String[]{id}, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				result.put(cursor.getString(0), cursor.getString(1));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return result;
+	}
+
+	@Nonnull
+	private static Map<String, String> toValues(@Nonnull Collection<AProperty> properties) {
+		final Map<String, String> result = new HashMap<String, String>(properties.size());
+		for (AProperty property : properties) {
+			final String value = property.getValue();
+			if (value != null) {
+				result.put(property.getName(), value);
+			}
+		}
+		return result;
+	}
+}
@@ -19,12 +19,16 @@ package org.solovyev.android.messenger;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
 import org.solovyev.android.prefs.BooleanPreference;
 import org.solovyev.android.prefs.IntegerPreference;
 import org.solovyev.android.prefs.Preference;
 import org.solovyev.android.prefs.StringPreference;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import static org.solovyev.android.Android.getAppVersionCode;
 import static org.solovyev.android.messenger.App.getPreferences;
@@ -33,6 +37,9 @@ public final class MessengerPreferences {
 
 	private static final int NO_VERSION = -1;
 
+	@Nonnull
+	private static final DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.basicDateTime();
+
 	public static void setDefaultValues(@Nonnull Context context) {
 		final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
 
@@ -45,6 +52,9 @@ public final class MessengerPreferences {
 			Gui.theme.tryPutDefault(preferences);
 		}
 		startOnBoot.tryPutDefault(preferences);
+		Messages.Archive.maxAgeDays.tryPutDefault(preferences);
+		Messages.Archive.maxMessagesPerChat.tryPutDefault(preferences);
+		Db.shardByAccount.tryPutDefault(preferences);
 
 		final int versionCode = getAppVersionCode(context);
 		final Integer version = MessengerPreferences.version.getPreference(preferences);
@@ -71,6 +81,29 @@ public final class MessengerPreferences {
 		public static Preference<String> salt = StringPreference.of("security.salt", null);
 	}
 
+	public static final class Messages {
+
+		public static final class Archive {
+			public static Preference<Integer> maxAgeDays = IntegerPreference.of("messages.archive.maxAgeDays", 365);
+			public static Preference<Integer> maxMessagesPerChat = IntegerPreference.of("messages.archive.maxMessagesPerChat", 5000);
+			/**
+			 * Date when messages were archived last time, see {@link #getDate(Preference)}
+			 */
+			public static Preference<String> lastArchiveDate = StringPreference.of("messages.archive.lastArchiveDate", null);
+		}
+	}
+
+	public static final class Db {
+		/**
+		 * Messages of each new account are stored in a separate database
+		 */
+		public static Preference<Boolean> shardByAccount = BooleanPreference.of("db.shardByAccount", false);
+		/**
+		 * Date when databases were maintained last time, see {@link #getDate(Preference)}
+		 */
+		public static Preference<String> lastMaintenanceDate = StringPreference.of("db.lastMaintenanceDate", null);
+	}
+
 	public static final class Gui {
 
 		public static Preference<MessengerTheme> theme = StringPreference.ofEnum("gui.theme", MessengerTheme.holo, MessengerTheme.class);
@@ -90,4 +123,17 @@ public final class MessengerPreferences {
 	public static boolean isNewInstallation() {
 		return MessengerPreferences.previousVersion.getPreference(getPreferences()) == NO_VERSION;
 	}
+
+	/**
+	 * @return date stored in <var>preference</var> by {@link #putDate(Preference, DateTime)}, null if not stored
+	 */
+	@Nullable
+	public static DateTime getDate(@Nonnull Preference<String> preference) {
+		final String date = preference.getPreference(getPreferences());
+		return date == null ? null : dateTimeFormatter.parseDateTime(date);
+	}
+
+	public static void putDate(@Nonnull Preference<String> preference, @Nonnull DateTime date) {
+		preference.putPreference(getPreferences(), dateTimeFormatter.print(date));
+	}
 }
@@ -23,6 +23,7 @@ import com.google.common.collect.Iterables;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.solovyev.android.messenger.App;
+import org.solovyev.android.messenger.db.DatabaseShards;
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.realms.Realm;
 import org.solovyev.android.messenger.realms.RealmService;
@@ -80,8 +81,12 @@ public class DefaultAccountService implements AccountService {
 	@Nonnull
 	private SyncService syncService;
 
+	@Inject
+	@Nonnull
+	private DatabaseShards databaseShards;
+
 	@Nonnull
-	private final Object lock;
+	private final PersistenceLock lock;
 
 	@GuardedBy("accounts")
 	@Nonnull
@@ -104,7 +109,8 @@ public class DefaultAccountService implements AccountService {
 		accountDao.init();
 		userService.addListener(new UserEventListener());
 
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			// reset status to enabled for temporary disable realms
 			for (Account account : accountDao.loadAccountsInState(disabled_by_app)) {
 				changeAccountState(account, enabled, false);
@@ -113,6 +119,7 @@ public class DefaultAccountService implements AccountService {
 			// remove all scheduled to remove realms
 			for (Account account : accountDao.loadAccountsInState(removed)) {
 				this.accountDao.deleteById(account.getId());
+				this.databaseShards.deleteDatabase(account.getId());
 				this.accounts.remove(account.getId());
 			}
 
@@ -130,6 +137,8 @@ public class DefaultAccountService implements AccountService {
 					}
 				}
 			}
+		} finally {
+			lock.writeLock().unlock();
 		}
 
 		loadAccounts();
@@ -260,10 +269,13 @@ public class DefaultAccountService implements AccountService {
 
 		try {
 			newConfiguration.applySystemData(account.getConfiguration());
-			synchronized (lock) {
+			lock.writeLock().lock();
+			try {
 				account.setConfiguration(newConfiguration);
 				accountDao.update(account);
 				listeners.fireEvent(configuration_changed.newEvent(account, null));
+			} finally {
+				lock.writeLock().unlock();
 			}
 		} catch (AccountRuntimeException e) {
 			throw new AccountException(e);
@@ -273,7 +285,8 @@ public class DefaultAccountService implements AccountService {
 	private void createOrUpdateAccount(@Nullable Account oldAccount, @Nonnull Account newAccount) throws AccountException, InvalidCredentialsException {
 		assert Thread.holdsLock(accounts);
 
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			try {
 				if (oldAccount != null) {
 					final User oldUser = oldAccount.getUser();
@@ -295,6 +308,8 @@ public class DefaultAccountService implements AccountService {
 			} catch (AccountRuntimeException e) {
 				throw new AccountException(e);
 			}
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
@@ -312,8 +327,11 @@ public class DefaultAccountService implements AccountService {
 
 				synchronized (accounts) {
 					this.accounts.put(account.getId(), result);
-					synchronized (lock) {
+					lock.writeLock().lock();
+					try {
 						this.accountDao.update(result);
+					} finally {
+						lock.writeLock().unlock();
 					}
 				}
 
@@ -336,8 +354,11 @@ public class DefaultAccountService implements AccountService {
 	public void saveAccountSyncData(@Nonnull Account account) {
 		synchronized (accounts) {
 			this.accounts.put(account.getId(), account);
-			synchronized (lock) {
+			lock.writeLock().lock();
+			try {
 				this.accountDao.update(account);
+			} finally {
+				lock.writeLock().unlock();
 			}
 		}
 
@@ -365,8 +386,11 @@ public class DefaultAccountService implements AccountService {
 			accounts.clear();
 		}
 
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			accountDao.deleteAll();
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
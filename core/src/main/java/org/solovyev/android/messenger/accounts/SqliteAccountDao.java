@@ -104,6 +104,18 @@ public class SqliteAccountDao extends AbstractSQLiteHelper implements AccountDao
 		return dao.readAllIds();
 	}
 
+	@Nonnull
+	@Override
+	public Iterable<Account> iterateAll() {
+		return dao.iterateAll();
+	}
+
+	@Nonnull
+	@Override
+	public Iterable<String> iterateAllIds() {
+		return dao.iterateAllIds();
+	}
+
 	@Override
 	public void deleteAll() {
 		dao.deleteAll();
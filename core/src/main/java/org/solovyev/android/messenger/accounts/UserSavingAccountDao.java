@@ -72,6 +72,18 @@ public class UserSavingAccountDao implements AccountDao {
 		return dao.readAllIds();
 	}
 
+	@Override
+	@Nonnull
+	public Iterable<Account> iterateAll() {
+		return dao.iterateAll();
+	}
+
+	@Override
+	@Nonnull
+	public Iterable<String> iterateAllIds() {
+		return dao.iterateAllIds();
+	}
+
 	@Override
 	public void delete(@Nonnull Account entity) {
 		dao.delete(entity);
@@ -16,31 +16,60 @@
 
 package org.solovyev.android.messenger.chats;
 
-import java.util.HashMap;
-import java.util.Map;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import org.solovyev.android.messenger.entities.Entity;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
 
-import org.solovyev.android.messenger.entities.Entity;
-
+/**
+ * Bounded cache of chats: least recently used chats are evicted when total weight of the cached chats (see
+ * {@link ChatWeigher}) exceeds the limit. Evicted chats are just loaded from the database again.
+ */
+@ThreadSafe
 class ChatCache {
 
+	static final long DEFAULT_MAX_WEIGHT = 2000;
+
 	// key: chat id, value: chat
 	@Nonnull
-	private final Map<Entity, Chat> chats = new HashMap<Entity, Chat>();
+	private final Cache<Entity, Chat> chats;
+
+	ChatCache() {
+		this(DEFAULT_MAX_WEIGHT);
+	}
+
+	ChatCache(long maxWeight) {
+		chats = CacheBuilder.newBuilder()
+				.concurrencyLevel(4)
+				.maximumWeight(maxWeight)
+				.weigher(new ChatWeigher())
+				.build();
+	}
 
 	public void put(@Nonnull Chat chat) {
-		synchronized (chats) {
-			chats.put(chat.getEntity(), chat);
-		}
+		chats.put(chat.getEntity(), chat);
 	}
 
 	@Nullable
 	public Chat get(@Nonnull Entity chat) {
-		synchronized (chats) {
-			return chats.get(chat);
-		}
+		return chats.getIfPresent(chat);
+	}
+
+	public void remove(@Nonnull Entity chat) {
+		chats.invalidate(chat);
+	}
+
+	/**
+	 * @return hit, miss and eviction counters of the cache
+	 */
+	@Nonnull
+	public CacheStats getStats() {
+		return chats.stats();
 	}
 
 	public void onEvent(@Nonnull ChatEvent event) {
@@ -50,4 +79,14 @@ class ChatCache {
 				break;
 		}
 	}
+
+	/**
+	 * Memory used by a chat is mostly taken by its properties
+	 */
+	private static final class ChatWeigher implements Weigher<Entity, Chat> {
+		@Override
+		public int weigh(@Nonnull Entity key, @Nonnull Chat chat) {
+			return 1 + chat.getPropertiesCollection().size();
+		}
+	}
 }
@@ -48,6 +48,14 @@ public interface ChatDao extends LinkedEntitiesDao<Chat>, Dao<Chat> {
 	@Nonnull
 	List<User> readParticipants(@Nonnull String chatId);
 
+	/**
+	 * Bulk version of {@link #readParticipants(String)} which doesn't resolve users
+	 *
+	 * @return ids of participants of the chats, key: chat id. Chats without participants are not in the map
+	 */
+	@Nonnull
+	Map<String, List<String>> readParticipantIds(@Nonnull Collection<String> chatIds);
+
 	@Nullable
 	Chat read(@Nonnull String chatId);
 
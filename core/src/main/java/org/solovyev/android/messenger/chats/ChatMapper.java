@@ -18,9 +18,12 @@ package org.solovyev.android.messenger.chats;
 
 import android.database.Cursor;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
@@ -37,24 +40,53 @@ import org.solovyev.common.Converter;
  */
 public class ChatMapper implements Converter<Cursor, Chat> {
 
+	/**
+	 * Formatter is immutable and thread safe => one instance is used for all rows
+	 */
 	@Nonnull
+	private static final DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.basicDateTime();
+
+	@Nonnull
+	private static final EntityMapper entityMapper = EntityMapper.newInstanceFor(0);
+
+	@Nullable
 	private final ChatDao chatDao;
 
+	/**
+	 * Preloaded properties of chats (key: chat id), if null properties are loaded from {@link #chatDao} for each row
+	 */
+	@Nullable
+	private final Map<String, List<AProperty>> properties;
+
 	public ChatMapper(@Nonnull ChatDao chatDao) {
 		this.chatDao = chatDao;
+		this.properties = null;
+	}
+
+	public ChatMapper(@Nonnull Map<String, List<AProperty>> properties) {
+		this.chatDao = null;
+		this.properties = properties;
 	}
 
 	@Nonnull
 	@Override
 	public Chat convert(@Nonnull Cursor c) {
-		final Entity chat = EntityMapper.newInstanceFor(0).convert(c);
+		final Entity chat = entityMapper.convert(c);
 
-		final DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.basicDateTime();
 		final String lastMessagesSyncDateString = c.getString(3);
 		final DateTime lastMessagesSyncDate = lastMessagesSyncDateString == null ? null : dateTimeFormatter.parseDateTime(lastMessagesSyncDateString);
 
-		final List<AProperty> properties = chatDao.readPropertiesById(chat.getEntityId());
+		return Chats.newChat(chat, readProperties(chat.getEntityId()), lastMessagesSyncDate);
+	}
 
-		return Chats.newChat(chat, properties, lastMessagesSyncDate);
+	@Nonnull
+	private List<AProperty> readProperties(@Nonnull String chatId) {
+		if (properties != null) {
+			final List<AProperty> chatProperties = properties.get(chatId);
+			return chatProperties == null ? Collections.<AProperty>emptyList() : chatProperties;
+		} else {
+			assert chatDao != null;
+			return chatDao.readPropertiesById(chatId);
+		}
 	}
 }
\ No newline at end of file
@@ -17,32 +17,49 @@
 package org.solovyev.android.messenger.chats;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
 
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.users.User;
+import org.solovyev.android.messenger.users.UserEvent;
 import org.solovyev.common.collections.multimap.ObjectAddedUpdater;
 import org.solovyev.common.collections.multimap.ObjectRemovedUpdater;
 import org.solovyev.common.collections.multimap.ThreadSafeMultimap;
 import org.solovyev.common.collections.multimap.WholeListUpdater;
 
+import static org.solovyev.android.messenger.entities.Entities.newEntityFromEntityId;
 import static org.solovyev.common.collections.multimap.ThreadSafeMultimap.newThreadSafeMultimap;
 
+/**
+ * Cache of chat participants. Only ids of participants are stored (users are resolved by
+ * {@link org.solovyev.android.messenger.users.UserService}), so changes of users don't make cached participants stale:
+ * participants of a chat are removed from the cache only if the chat or its participants might have been changed.
+ */
+@ThreadSafe
 class ChatParticipants {
 
-	// key: chat id, value: list of participants
+	// key: chat id, value: list of participant ids
 	@Nonnull
-	private final ThreadSafeMultimap<Entity, User> participants = newThreadSafeMultimap();
+	private final ThreadSafeMultimap<Entity, Entity> participants = newThreadSafeMultimap();
 
+	/**
+	 * @return ids of participants of the chat, {@link ThreadSafeMultimap#NO_VALUE} if participants are not cached
+	 */
 	@Nonnull
-	public List<User> get(@Nonnull Entity chat) {
+	public List<Entity> get(@Nonnull Entity chat) {
 		return participants.get(chat);
 	}
 
-	public void put(@Nonnull Entity chat, @Nonnull List<User> participants) {
-		this.participants.update(chat, new WholeListUpdater<User>(participants));
+	public void put(@Nonnull Entity chat, @Nonnull List<Entity> participants) {
+		this.participants.update(chat, new WholeListUpdater<Entity>(participants));
+	}
+
+	public void remove(@Nonnull Entity chat) {
+		participants.remove(chat);
 	}
 
 	public void onEvent(@Nonnull ChatEvent event) {
@@ -50,20 +67,73 @@ class ChatParticipants {
 		final Object data = event.getData();
 
 		switch (event.getType()) {
+			case added:
+			case changed:
+				// participants might have been changed together with the chat
+				remove(chat.getEntity());
+				break;
 			case participant_added:
 				// participant added => need to add to list of cached participants
 				if (data instanceof User) {
 					final User participant = ((User) data);
-					this.participants.update(chat.getEntity(), new ObjectAddedUpdater<User>(participant));
+					this.participants.update(chat.getEntity(), new ObjectAddedUpdater<Entity>(participant.getEntity()));
 				}
 				break;
 			case participant_removed:
 				// participant removed => try to remove from cached participants
 				if (data instanceof User) {
 					final User participant = ((User) data);
-					this.participants.update(chat.getEntity(), new ObjectRemovedUpdater<User>(participant));
+					this.participants.update(chat.getEntity(), new ObjectRemovedUpdater<Entity>(participant.getEntity()));
+				}
+				break;
+		}
+	}
+
+	public void onEvent(@Nonnull UserEvent event) {
+		switch (event.getType()) {
+			case chat_added:
+				remove(event.getDataAsChat().getEntity());
+				break;
+			case chats_added:
+				for (Chat chat : event.getDataAsChats()) {
+					remove(chat.getEntity());
 				}
 				break;
+			case chat_removed:
+				remove(newEntityFromEntityId(event.getDataAsChatId()));
+				break;
+			case contact_removed:
+				// removed user is removed from all its chats
+				participants.update(new ParticipantRemovedUpdater(newEntityFromEntityId(event.getDataAsUserId())));
+				break;
+		}
+	}
+
+	/**
+	 * Removes cached participants of all chats where the participant is
+	 */
+	private static final class ParticipantRemovedUpdater implements ThreadSafeMultimap.MapUpdater<Entity, Entity> {
+
+		@Nonnull
+		private final Entity participant;
+
+		private ParticipantRemovedUpdater(@Nonnull Entity participant) {
+			this.participant = participant;
+		}
+
+		@Nullable
+		@Override
+		public Map<Entity, List<Entity>> update(@Nonnull Map<Entity, List<Entity>> map) {
+			Map<Entity, List<Entity>> result = null;
+			for (Map.Entry<Entity, List<Entity>> entry : map.entrySet()) {
+				if (entry.getValue().contains(participant)) {
+					if (result == null) {
+						result = ThreadSafeMultimap.copy(map);
+					}
+					result.remove(entry.getKey());
+				}
+			}
+			return result;
 		}
 	}
 }
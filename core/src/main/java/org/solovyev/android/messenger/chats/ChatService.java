@@ -130,6 +130,13 @@ public interface ChatService extends JEventListeners<JEventListener<ChatEvent>,
 
 	void saveMessages(@Nonnull Entity accountChat, @Nonnull Collection<? extends Message> messages, boolean updateChatSyncDate);
 
+	/**
+	 * Same as {@link #saveMessages(Entity, Collection, boolean)} but messages are written later together with messages
+	 * queued by other callers (see {@link org.solovyev.android.messenger.db.DbExecQueue}), events are fired after they
+	 * are written. Should be used for messages which come in bursts (e.g. from the connection of an account).
+	 */
+	void queueMessages(@Nonnull Entity accountChat, @Nonnull Collection<? extends Message> messages, boolean updateChatSyncDate);
+
 	void markMessageRead(@Nonnull Chat chat, @Nonnull Message message) throws AccountConnectionException;
 
 	void removeChat(@Nonnull Entity chat);
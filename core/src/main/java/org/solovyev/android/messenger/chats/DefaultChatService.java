@@ -17,6 +17,7 @@
 package org.solovyev.android.messenger.chats;
 
 import android.app.Application;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 import android.widget.ImageView;
 import com.google.common.base.Function;
@@ -27,11 +28,14 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import org.solovyev.android.db.DbExec;
 import org.solovyev.android.list.PrefixFilter;
 import org.solovyev.android.messenger.App;
 import org.solovyev.android.messenger.MergeDaoResult;
 import org.solovyev.android.messenger.accounts.*;
 import org.solovyev.android.messenger.core.R;
+import org.solovyev.android.messenger.db.DatabaseShards;
+import org.solovyev.android.messenger.db.DbExecQueue;
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.messages.*;
 import org.solovyev.android.messenger.users.*;
@@ -47,6 +51,7 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
 
 import static com.google.common.collect.Iterables.*;
 import static com.google.common.collect.Lists.newArrayList;
@@ -113,6 +118,14 @@ public class DefaultChatService implements ChatService {
 	@Nonnull
 	private UnreadMessagesCounter unreadMessagesCounter;
 
+	@Inject
+	@Nonnull
+	private DatabaseShards shards;
+
+	@Inject
+	@Nonnull
+	private DbExecQueue execQueue;
+
 
 	/*
 	**********************************************************************
@@ -135,7 +148,7 @@ public class DefaultChatService implements ChatService {
 	private final ChatCache cache = new ChatCache();
 
 	@Nonnull
-	private final Object lock;
+	private final PersistenceLock lock;
 
 	@Inject
 	public DefaultChatService(@Nonnull PersistenceLock lock, @Nonnull Executor eventExecutor) {
@@ -147,14 +160,18 @@ public class DefaultChatService implements ChatService {
 	@Override
 	public void init() {
 		this.lastMessages = new LastMessages(this, messageService);
+		this.userService.addListener(new UserEventListener());
 	}
 
 	@Nonnull
 	@Override
 	public Chat updateChat(@Nonnull Chat chat) {
 		final boolean changed;
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			changed = chatDao.update(chat) >= 0;
+		} finally {
+			lock.writeLock().unlock();
 		}
 
 		if (changed) {
@@ -171,7 +188,8 @@ public class DefaultChatService implements ChatService {
 		Chat result;
 
 		final Entity accountChat = getPrivateChatId(user1, user2);
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			result = getChatById(accountChat);
 			if (result == null) {
 				// no private chat exists => create one
@@ -190,6 +208,8 @@ public class DefaultChatService implements ChatService {
 
 				result = apiChat.getChat();
 			}
+		} finally {
+			lock.writeLock().unlock();
 		}
 
 		return result;
@@ -261,8 +281,11 @@ public class DefaultChatService implements ChatService {
 	@Nonnull
 	@Override
 	public List<Chat> loadChats(@Nonnull Entity user) {
-		synchronized (lock) {
+		lock.readLock().lock();
+		try {
 			return chatDao.readChatsByUserId(user.getEntityId());
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
@@ -282,8 +305,11 @@ public class DefaultChatService implements ChatService {
 	@Nonnull
 	@Override
 	public Map<Entity, Integer> getUnreadChats() {
-		synchronized (lock) {
+		lock.readLock().lock();
+		try {
 			return chatDao.getUnreadChats();
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
@@ -312,8 +338,11 @@ public class DefaultChatService implements ChatService {
 	public MergeDaoResult<Chat, String> mergeChats(@Nonnull final Entity user, @Nonnull List<? extends AccountChat> chats) {
 		final ChatMergeDaoResult result;
 
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			result = chatDao.mergeChats(user.getEntityId(), prepareChats(chats));
+		} finally {
+			lock.writeLock().unlock();
 		}
 
 		for (final Chat chat : result.getUpdatedObjects()) {
@@ -380,8 +409,11 @@ public class DefaultChatService implements ChatService {
 		Chat result = cache.get(chat);
 
 		if (result == null) {
-			synchronized (lock) {
+			lock.readLock().lock();
+			try {
 				result = chatDao.read(chat.getEntityId());
+			} finally {
+				lock.readLock().unlock();
 			}
 
 			if (result != null) {
@@ -439,7 +471,8 @@ public class DefaultChatService implements ChatService {
 
 		final List<Message> messages = accountChatService.getNewerMessagesForChat(chat.getAccountEntityId());
 
-		saveMessages(chat, messages, true);
+		// newer messages are requested on each notification from the account => they come in bursts
+		queueMessages(chat, messages, true);
 
 		return unmodifiableList(messages);
 
@@ -461,7 +494,50 @@ public class DefaultChatService implements ChatService {
 		}
 	}
 
+	@Override
+	public void queueMessages(@Nonnull Entity chatId, @Nonnull Collection<? extends Message> messages, boolean updateChatSyncDate) {
+		final Chat chat = this.getChatById(chatId);
+
+		if (chat != null) {
+			queueMessages(chat, messages, updateChatSyncDate);
+		} else {
+			Log.e(this.getClass().getSimpleName(), "No chat found - chat id: " + chatId.getEntityId());
+		}
+	}
+
 	private void saveMessages(@Nonnull Chat chat, @Nonnull Collection<? extends Message> messages, boolean updateMessagesSyncDate) {
+		saveParticipants(chat, messages);
+
+		final String accountId = chat.getEntity().getAccountId();
+		// queued messages must be written first
+		execQueue.flush(accountId);
+
+		final MessagesMergeDaoResult result;
+		// messages of different accounts might be merged in parallel
+		final Lock writeLock = shards.getWriteLock(accountId);
+		writeLock.lock();
+		try {
+			result = getMessageDao().mergeMessages(chat.getId(), messages);
+		} finally {
+			writeLock.unlock();
+		}
+
+		onMessagesMerged(chat, result, updateMessagesSyncDate);
+	}
+
+	private void queueMessages(@Nonnull final Chat chat, @Nonnull Collection<? extends Message> messages, final boolean updateMessagesSyncDate) {
+		saveParticipants(chat, messages);
+
+		final MergeMessagesExec exec = new MergeMessagesExec(getMessageDao(), chat.getId(), messages);
+		execQueue.add(chat.getEntity().getAccountId(), exec, new Runnable() {
+			@Override
+			public void run() {
+				onMessagesMerged(chat, exec.getResult(), updateMessagesSyncDate);
+			}
+		});
+	}
+
+	private void saveParticipants(@Nonnull Chat chat, @Nonnull Collection<? extends Message> messages) {
 		final MutableAccountChat accountChat = newEmptyAccountChat(chat, getParticipants(chat.getEntity()));
 
 		boolean added = false;
@@ -476,19 +552,16 @@ public class DefaultChatService implements ChatService {
 		if (added) {
 			saveChat(getAccountByEntity(chat.getEntity()).getUser().getEntity(), accountChat);
 		}
+	}
 
-		final MessagesMergeDaoResult result;
-		synchronized (lock) {
-			result = getMessageDao().mergeMessages(chat.getId(), messages);
-
-			// update sync data
-			if (updateMessagesSyncDate) {
-				chat = chat.updateMessagesSyncDate();
-				updateChat(chat);
-			}
+	private void onMessagesMerged(@Nonnull Chat chat, @Nonnull MessagesMergeDaoResult result, boolean updateMessagesSyncDate) {
+		// update sync data
+		if (updateMessagesSyncDate) {
+			chat = chat.updateMessagesSyncDate();
+			updateChat(chat);
 		}
 
-		final List<ChatEvent> events = new ArrayList<ChatEvent>(messages.size());
+		final List<ChatEvent> events = new ArrayList<ChatEvent>();
 
 		events.add(ChatEventType.messages_added.newEvent(chat, result.getAddedObjects()));
 
@@ -517,8 +590,14 @@ public class DefaultChatService implements ChatService {
 
 		if (account.getAccountChatService().markMessageRead(message)) {
 			final boolean changed;
-			synchronized (lock) {
+			final String accountId = message.getEntity().getAccountId();
+			execQueue.flush(accountId);
+			final Lock writeLock = shards.getWriteLock(accountId);
+			writeLock.lock();
+			try {
 				changed = messageDao.changeReadStatus(message.getId(), true);
+			} finally {
+				writeLock.unlock();
 			}
 
 			if (changed) {
@@ -548,8 +627,14 @@ public class DefaultChatService implements ChatService {
 		message = message.cloneWithNewState(newState);
 
 		final boolean changed;
-		synchronized (lock) {
+		final String accountId = message.getEntity().getAccountId();
+		execQueue.flush(accountId);
+		final Lock writeLock = shards.getWriteLock(accountId);
+		writeLock.lock();
+		try {
 			changed = messageDao.changeMessageState(message.getId(), message.getState());
+		} finally {
+			writeLock.unlock();
 		}
 
 		if (changed) {
@@ -589,8 +674,17 @@ public class DefaultChatService implements ChatService {
 
 		final PrefixFilter<String> chatFilter = new PrefixFilter<String>(query == null ? "" : query);
 
+		final List<Entity> chats = new ArrayList<Entity>(chatIds.size());
 		for (String chatId : chatIds) {
-			final Chat chat = getChatById(newEntityFromEntityId(chatId));
+			chats.add(newEntityFromEntityId(chatId));
+		}
+		// one query instead of two queries per chat
+		lastMessages.preload(chats);
+		// participants are needed for icons and online statuses of the chats
+		loadParticipants(chats);
+
+		for (Entity chatId : chats) {
+			final Chat chat = getChatById(chatId);
 			if (chat != null) {
 				final Message lastMessage = getLastMessage(chat.getEntity());
 				if (lastMessage != null) {
@@ -625,7 +719,20 @@ public class DefaultChatService implements ChatService {
 
 	@Override
 	public void removeChat(@Nonnull Entity chat) {
+		// queued messages of the chat must not be written after it is removed
+		execQueue.flush(chat.getAccountId());
+
 		chatDao.deleteById(chat.getEntityId());
+
+		// messages might be stored in the database of the account where triggers on "chats" table don't exist
+		final Lock writeLock = shards.getWriteLock(chat.getAccountId());
+		writeLock.lock();
+		try {
+			messageDao.deleteChatMessages(chat.getEntityId());
+		} finally {
+			writeLock.unlock();
+		}
+		cache.remove(chat);
 	}
 
 	@Override
@@ -660,7 +767,8 @@ public class DefaultChatService implements ChatService {
 	@Nonnull
 	@Override
 	public List<Message> syncOlderMessagesForChat(@Nonnull Entity chat, @Nonnull Entity user) throws AccountException {
-		final Integer offset = messageService.getMessages(chat).size();
+		// archived messages are still stored locally => they must be skipped by the remote service too
+		final Integer offset = messageService.getMessages(chat).size() + getMessageDao().getArchivedMessagesCount(chat.getEntityId());
 
 		final List<Message> messages = getAccountByEntity(user).getAccountChatService().getOlderMessagesForChat(chat.getAccountEntityId(), offset);
 		saveMessages(chat, messages);
@@ -750,29 +858,65 @@ public class DefaultChatService implements ChatService {
 	@Nonnull
 	@Override
 	public List<User> getParticipants(@Nonnull Entity chat) {
-		List<User> participants = this.participants.get(chat);
+		List<Entity> participantIds = this.participants.get(chat);
 
-		if (participants == ThreadSafeMultimap.NO_VALUE) {
-			synchronized (lock) {
-				participants = chatDao.readParticipants(chat.getEntityId());
-			}
-
-			this.participants.put(chat, participants);
-		} else {
-			participants = toActualUsers(participants);
+		if (participantIds == ThreadSafeMultimap.NO_VALUE) {
+			participantIds = loadParticipants(Collections.singletonList(chat)).get(chat);
 		}
 
-		return participants;
+		final List<User> result = new ArrayList<User>(participantIds.size());
+		for (Entity participantId : participantIds) {
+			result.add(userService.getUserById(participantId));
+		}
+		return result;
 	}
 
+	/**
+	 * Method loads participants of the chats which are not cached yet with one query
+	 *
+	 * @return ids of participants of all the <var>chats</var> (cached or loaded), key: chat
+	 */
 	@Nonnull
-	private List<User> toActualUsers(@Nonnull List<User> users) {
-		return newArrayList(transform(users, new Function<User, User>() {
-			@Override
-			public User apply(User user) {
-				return userService.getUserById(user.getEntity());
+	private Map<Entity, List<Entity>> loadParticipants(@Nonnull Collection<Entity> chats) {
+		final Map<Entity, List<Entity>> result = new HashMap<Entity, List<Entity>>(chats.size());
+
+		final List<Entity> notCachedChats = new ArrayList<Entity>(chats.size());
+		final List<String> chatIds = new ArrayList<String>(chats.size());
+		for (Entity chat : chats) {
+			final List<Entity> chatParticipants = participants.get(chat);
+			if (chatParticipants == ThreadSafeMultimap.NO_VALUE) {
+				notCachedChats.add(chat);
+				chatIds.add(chat.getEntityId());
+			} else {
+				// might be cached by another thread after participants.get() in the caller
+				result.put(chat, chatParticipants);
 			}
-		}));
+		}
+
+		if (!notCachedChats.isEmpty()) {
+			final Map<String, List<String>> participantIds;
+			lock.readLock().lock();
+			try {
+				participantIds = chatDao.readParticipantIds(chatIds);
+			} finally {
+				lock.readLock().unlock();
+			}
+
+			for (Entity chat : notCachedChats) {
+				final List<String> chatParticipantIds = participantIds.get(chat.getEntityId());
+				// new list is created even for chat without participants: empty list from Collections means no value
+				final List<Entity> chatParticipants = new ArrayList<Entity>(chatParticipantIds == null ? 0 : chatParticipantIds.size());
+				if (chatParticipantIds != null) {
+					for (String participantId : chatParticipantIds) {
+						chatParticipants.add(newEntityFromEntityId(participantId));
+					}
+				}
+
+				this.participants.put(chat, chatParticipants);
+				result.put(chat, chatParticipants);
+			}
+		}
+		return result;
 	}
 
 	@Nonnull
@@ -839,4 +983,53 @@ public class DefaultChatService implements ChatService {
 			lastMessages.onEvent(event);
 		}
 	}
+
+	private final class UserEventListener extends AbstractJEventListener<UserEvent> {
+
+		private UserEventListener() {
+			super(UserEvent.class);
+		}
+
+		@Override
+		public void onEvent(@Nonnull UserEvent event) {
+			participants.onEvent(event);
+		}
+	}
+
+	/**
+	 * Merge of messages done by {@link DbExecQueue}: DAO is called inside the transaction of the queue => merges of
+	 * many chats are committed at once
+	 */
+	private static final class MergeMessagesExec implements DbExec {
+
+		@Nonnull
+		private final MessageDao dao;
+
+		@Nonnull
+		private final String chatId;
+
+		@Nonnull
+		private final Collection<? extends Message> messages;
+
+		@Nullable
+		private MessagesMergeDaoResult result;
+
+		private MergeMessagesExec(@Nonnull MessageDao dao, @Nonnull String chatId, @Nonnull Collection<? extends Message> messages) {
+			this.dao = dao;
+			this.chatId = chatId;
+			this.messages = messages;
+		}
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			result = dao.mergeMessages(chatId, messages);
+			return result.getAddedObjects().size() + result.getUpdatedObjects().size();
+		}
+
+		@Nonnull
+		public MessagesMergeDaoResult getResult() {
+			assert result != null;
+			return result;
+		}
+	}
 }
@@ -16,12 +16,16 @@
 
 package org.solovyev.android.messenger.chats;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.messages.Message;
@@ -32,9 +36,15 @@ import static org.solovyev.android.messenger.chats.ChatEventType.last_message_ch
 class LastMessages {
 
 	// key: chat id, value: last message
+	@GuardedBy("lastMessagesCache")
 	@Nonnull
 	private final Map<Entity, Message> lastMessagesCache = new HashMap<Entity, Message>();
 
+	// chats which have no messages: they are not requested from the database again until a message is added
+	@GuardedBy("lastMessagesCache")
+	@Nonnull
+	private final Set<Entity> chatsWithoutMessages = new HashSet<Entity>();
+
 	@Nonnull
 	private final ChatService chatService;
 
@@ -78,6 +88,7 @@ class LastMessages {
 						final Message message = (Message) data;
 						final Message messageFromCache = lastMessagesCache.get(chat.getEntity());
 						if (messageFromCache == null || messageFromCache.equals(message)) {
+							chatsWithoutMessages.remove(chat.getEntity());
 							lastMessagesCache.put(chat.getEntity(), message);
 							changedLastMessages.put(chat, message);
 						}
@@ -98,25 +109,76 @@ class LastMessages {
 		if (message != null) {
 			final Message messageFromCache = lastMessagesCache.get(chat.getEntity());
 			if (messageFromCache == null || message.getSendDate().isAfter(messageFromCache.getSendDate())) {
+				chatsWithoutMessages.remove(chat.getEntity());
 				lastMessagesCache.put(chat.getEntity(), message);
 				changedLastMessages.put(chat, message);
 			}
 		}
 	}
 
-	public Message getLastMessage(Entity chat) {
-		Message result;
+	/**
+	 * Method returns last message of the chat loading it from the database if needed. Note that the database is read
+	 * without holding the cache lock => events are not blocked by I/O
+	 */
+	@Nullable
+	public Message getLastMessage(@Nonnull Entity chat) {
+		synchronized (lastMessagesCache) {
+			final Message result = lastMessagesCache.get(chat);
+			if (result != null || chatsWithoutMessages.contains(chat)) {
+				return result;
+			}
+		}
+
+		final Message result = messageService.getLastMessage(chat.getEntityId());
+		synchronized (lastMessagesCache) {
+			return putIfAbsent(chat, result);
+		}
+	}
 
+	/**
+	 * Method loads last messages of the chats which are not cached yet with one query, should be called before last
+	 * messages of many chats are requested (e.g. for a page of the chat list)
+	 */
+	public void preload(@Nonnull Collection<Entity> chats) {
+		final Map<String, Entity> notCachedChats = new HashMap<String, Entity>();
 		synchronized (lastMessagesCache) {
-			result = lastMessagesCache.get(chat);
-			if (result == null) {
-				result = messageService.getLastMessage(chat.getEntityId());
-				if (result != null) {
-					lastMessagesCache.put(chat, result);
+			for (Entity chat : chats) {
+				if (!lastMessagesCache.containsKey(chat) && !chatsWithoutMessages.contains(chat)) {
+					notCachedChats.put(chat.getEntityId(), chat);
 				}
 			}
 		}
 
-		return result;
+		if (!notCachedChats.isEmpty()) {
+			final Map<String, Message> messages = messageService.getLastMessages(notCachedChats.keySet());
+			synchronized (lastMessagesCache) {
+				for (Map.Entry<String, Entity> entry : notCachedChats.entrySet()) {
+					// chats without messages are not in the map
+					putIfAbsent(entry.getValue(), messages.get(entry.getKey()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Message loaded from the database is not put if another message was cached while the database was read: cached
+	 * message came from an event and is newer
+	 *
+	 * @param message message loaded from the database, null if chat has no messages
+	 * @return message from the cache
+	 */
+	@Nullable
+	private Message putIfAbsent(@Nonnull Entity chat, @Nullable Message message) {
+		final Message messageFromCache = lastMessagesCache.get(chat);
+		if (messageFromCache != null) {
+			return messageFromCache;
+		}
+
+		if (message == null) {
+			chatsWithoutMessages.add(chat);
+		} else {
+			lastMessagesCache.put(chat, message);
+		}
+		return message;
 	}
 }
@@ -32,7 +32,9 @@ import org.solovyev.android.db.*;
 import org.solovyev.android.db.properties.PropertyByIdDbQuery;
 import org.solovyev.android.messenger.LinkedEntitiesDao;
 import org.solovyev.android.messenger.MergeDaoResult;
+import org.solovyev.android.messenger.MergePropertiesExec;
 import org.solovyev.android.messenger.accounts.AccountState;
+import org.solovyev.android.messenger.db.DatabaseShards;
 import org.solovyev.android.messenger.db.StringIdMapper;
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.entities.EntityMapper;
@@ -57,6 +59,9 @@ import static org.solovyev.common.text.Strings.isEmpty;
 @Singleton
 public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 
+	@Nonnull
+	private static final DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.basicDateTime();
+
     /*
 	**********************************************************************
     *
@@ -83,12 +88,26 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 	@Nonnull
 	private final LinkedEntitiesDao<Chat> linkedEntitiesDao;
 
+	/**
+	 * Messages and chat summaries might be stored in the databases of the accounts
+	 */
+	@Nonnull
+	private final DatabaseShards shards;
+
 	@Inject
-	public SqliteChatDao(@Nonnull Application context, @Nonnull SQLiteOpenHelper sqliteOpenHelper) {
+	public SqliteChatDao(@Nonnull Application context, @Nonnull SQLiteOpenHelper sqliteOpenHelper, @Nonnull DatabaseShards shards) {
 		super(context, sqliteOpenHelper);
+		this.shards = shards;
 		final ChatDaoMapper chatDaoMapper = new ChatDaoMapper(this);
 		dao = new SqliteDao<Chat>("chats", "id", chatDaoMapper, context, sqliteOpenHelper);
-		linkedEntitiesDao = new SqliteLinkedEntitiesDao<Chat>("chats", "id", context, sqliteOpenHelper, "user_chats", "user_id", "chat_id", dao);
+		final SqliteEntityBatchReader<Chat> reader = new SqliteEntityBatchReader<Chat>(sqliteOpenHelper, "chats", "id", "chat_properties", "chat_id", new Function<Map<String, List<AProperty>>, ChatMapper>() {
+			@Override
+			public ChatMapper apply(@Nullable Map<String, List<AProperty>> properties) {
+				assert properties != null;
+				return new ChatMapper(properties);
+			}
+		});
+		linkedEntitiesDao = new SqliteLinkedEntitiesDao<Chat>("chats", "id", context, sqliteOpenHelper, "user_chats", "user_id", "chat_id", reader);
 	}
 
 	@Nonnull
@@ -101,7 +120,7 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 	public long update(@Nonnull Chat chat) {
 		final long rows = dao.update(chat);
 		if (rows >= 0) {
-			doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(new DeleteChatProperties(chat), new InsertChatProperties(chat)));
+			doDbExec(getSqliteOpenHelper(), newMergePropertiesExec(chat));
 		}
 
 		return rows;
@@ -111,13 +130,43 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 	public void deleteAll() {
 		doDbExec(getSqliteOpenHelper(), DeleteAllRowsDbExec.newInstance("user_chats"));
 		doDbExec(getSqliteOpenHelper(), DeleteAllRowsDbExec.newInstance("chat_properties"));
+		doDbExec(getSqliteOpenHelper(), DeleteAllRowsDbExec.newInstance("chat_summary"));
 		dao.deleteAll();
+		for (SQLiteOpenHelper database : getAccountDatabases()) {
+			// triggers on "chats" table can't remove messages from other databases
+			doDbExecs(database, Arrays.asList(DeleteAllRowsDbExec.newInstance("messages"), DeleteAllRowsDbExec.newInstance("messages_archive"), DeleteAllRowsDbExec.newInstance("chat_summary")));
+		}
 	}
 
 	@Nonnull
 	@Override
 	public Map<Entity, Integer> getUnreadChats() {
-		return doDbQuery(getSqliteOpenHelper(), new UnreadChatsLoader(getContext(), getSqliteOpenHelper()));
+		if (!shards.isSharded()) {
+			return doDbQuery(getSqliteOpenHelper(), new UnreadChatsLoader(getContext(), getSqliteOpenHelper()));
+		}
+
+		final Map<String, Integer> unreadCounts = new HashMap<String, Integer>();
+		for (SQLiteOpenHelper database : shards.getDatabases()) {
+			unreadCounts.putAll(doDbQuery(database, new UnreadCountsLoader()));
+		}
+
+		// only existing chats are returned
+		final Map<Entity, Integer> result = new HashMap<Entity, Integer>(unreadCounts.size());
+		for (List<String> chatIds : Collections.split(new ArrayList<String>(unreadCounts.keySet()), MAX_IN_COUNT)) {
+			for (Entity chat : doDbQuery(getSqliteOpenHelper(), new ChatEntitiesLoader(chatIds))) {
+				result.put(chat, unreadCounts.get(chat.getEntityId()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return databases of the accounts except the main database
+	 */
+	@Nonnull
+	private List<SQLiteOpenHelper> getAccountDatabases() {
+		final List<SQLiteOpenHelper> databases = shards.getDatabases();
+		return databases.subList(1, databases.size());
 	}
 
 	@Override
@@ -128,7 +177,36 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 	@Nonnull
 	@Override
 	public List<String> readLastChatIds(@Nullable String userId, boolean privateChat, int count) {
-		return doDbQuery(getSqliteOpenHelper(), new LoadLastChatIds(userId, privateChat, count));
+		if (!shards.isSharded()) {
+			return doDbQuery(getSqliteOpenHelper(), new LoadLastChatIds(userId, privateChat, count));
+		}
+
+		// chats are filtered in the main database, send times are read from the databases of the accounts
+		final Set<String> chatIds = new HashSet<String>(doDbQuery(getSqliteOpenHelper(), new LoadChatIds(userId, privateChat)));
+		final List<Map.Entry<String, Long>> lastChats = new ArrayList<Map.Entry<String, Long>>();
+		for (SQLiteOpenHelper database : shards.getDatabases()) {
+			for (Map.Entry<String, Long> entry : doDbQuery(database, new LastSendTimesLoader()).entrySet()) {
+				if (chatIds.contains(entry.getKey())) {
+					lastChats.add(entry);
+				}
+			}
+		}
+
+		java.util.Collections.sort(lastChats, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> lhs, Map.Entry<String, Long> rhs) {
+				return rhs.getValue().compareTo(lhs.getValue());
+			}
+		});
+
+		final List<String> result = new ArrayList<String>(Math.min(count, lastChats.size()));
+		for (Map.Entry<String, Long> lastChat : lastChats) {
+			if (result.size() >= count) {
+				break;
+			}
+			result.add(lastChat.getKey());
+		}
+		return result;
 	}
 
 	@Nonnull
@@ -137,6 +215,18 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 		return dao.readAllIds();
 	}
 
+	@Nonnull
+	@Override
+	public Iterable<Chat> iterateAll() {
+		return dao.iterateAll();
+	}
+
+	@Nonnull
+	@Override
+	public Iterable<String> iterateAllIds() {
+		return dao.iterateAllIds();
+	}
+
 	@Nonnull
 	@Override
 	public List<AProperty> readPropertiesById(@Nonnull String chatId) {
@@ -155,6 +245,16 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 		return doDbQuery(getSqliteOpenHelper(), new LoadChatParticipants(getContext(), chatId, userService, getSqliteOpenHelper()));
 	}
 
+	@Nonnull
+	@Override
+	public Map<String, List<String>> readParticipantIds(@Nonnull Collection<String> chatIds) {
+		final Map<String, List<String>> result = new HashMap<String, List<String>>(chatIds.size());
+		for (List<String> chatIdsChunk : Collections.split(new ArrayList<String>(chatIds), MAX_IN_COUNT)) {
+			result.putAll(doDbQuery(getSqliteOpenHelper(), new LoadParticipantIds(chatIdsChunk)));
+		}
+		return result;
+	}
+
 	@Override
 	public Chat read(@Nonnull String chatId) {
 		return dao.read(chatId);
@@ -211,6 +311,44 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 		}
 	}
 
+	/**
+	 * Loads participant ids of many chats with one query (by "user_chats_chat_id_index")
+	 */
+	private static final class LoadParticipantIds implements DbQuery<Map<String, List<String>>> {
+
+		@Nonnull
+		private final List<String> chatIds;
+
+		private LoadParticipantIds(@Nonnull List<String> chatIds) {
+			this.chatIds = chatIds;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select chat_id, user_id from user_chats where chat_id in " + AndroidDbUtils.inClause(chatIds), chatIds.toArray(new String[chatIds.size()]));
+		}
+
+		@Nonnull
+		@Override
+		public Map<String, List<String>> retrieveData(@Nonnull Cursor cursor) {
+			final Map<String, List<String>> result = new HashMap<String, List<String>>(chatIds.size());
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					final String chatId = cursor.getString(0);
+					List<String> participantIds = result.get(chatId);
+					if (participantIds == null) {
+						participantIds = new ArrayList<String>();
+						result.put(chatId, participantIds);
+					}
+					participantIds.add(cursor.getString(1));
+					cursor.moveToNext();
+				}
+			}
+			return result;
+		}
+	}
+
 	private static final class LoadChatsByUserId extends AbstractDbQuery<List<Chat>> {
 
 		@Nonnull
@@ -251,6 +389,7 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 		final ChatMergeDaoResult result = new ChatMergeDaoResult(mergeLinkedEntities(userId, chats));
 
 		final List<DbExec> execs = new ArrayList<DbExec>();
+		final List<DbExec> messageExecs = new ArrayList<DbExec>();
 
 		for (final Chat addedChat : result.getAddedObjects()) {
 			final AccountChat chat = find(chats, new Predicate<AccountChat>() {
@@ -261,8 +400,9 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 			});
 
 			for (Message message : chat.getMessages()) {
-				execs.add(new SqliteMessageDao.InsertMessage(message));
+				messageExecs.add(new SqliteMessageDao.InsertMessage(message));
 			}
+			messageExecs.add(SqliteMessageDao.ChatSummaryUpdater.forChat(addedChat.getId()));
 			result.addNewMessages(addedChat, chat.getMessages());
 
 			for (User participant : chat.getParticipants()) {
@@ -273,6 +413,12 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 			}
 		}
 
+		final SQLiteOpenHelper database = shards.getDatabaseByEntityId(userId);
+		if (database == getSqliteOpenHelper()) {
+			execs.addAll(messageExecs);
+		} else if (!messageExecs.isEmpty()) {
+			doDbExecs(database, messageExecs);
+		}
 		doDbExecs(getSqliteOpenHelper(), execs);
 
 		return result;
@@ -302,8 +448,7 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 
 		for (Chat updatedChat : result.getUpdatedObjects()) {
 			execs.add(new UpdateChat(updatedChat));
-			execs.add(new DeleteChatProperties(updatedChat));
-			execs.add(new InsertChatProperties(updatedChat));
+			execs.add(newMergePropertiesExec(updatedChat));
 		}
 
 		for (final Chat addedChat : result.getAddedObjects()) {
@@ -387,8 +532,6 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 
 	@Nonnull
 	private static ContentValues toContentValues(@Nonnull Chat chat) {
-		final DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.basicDateTime();
-
 		final DateTime lastMessagesSyncDate = chat.getLastMessagesSyncDate();
 
 		final ContentValues values = new ContentValues();
@@ -401,18 +544,9 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 		return values;
 	}
 
-	private static final class DeleteChatProperties extends AbstractObjectDbExec<Chat> {
-
-		private DeleteChatProperties(@Nonnull Chat chat) {
-			super(chat);
-		}
-
-		@Override
-		public long exec(@Nonnull SQLiteDatabase db) {
-			final Chat chat = getNotNullObject();
-
-			return db.delete("chat_properties", "chat_id = ?", new String[]{String.valueOf(chat.getEntity().getEntityId())});
-		}
+	@Nonnull
+	private static MergePropertiesExec newMergePropertiesExec(@Nonnull Chat chat) {
+		return new MergePropertiesExec(chat.getEntity(), "chat_properties", "chat_id", chat.getPropertiesCollection());
 	}
 
 	private static final class InsertChatProperties extends AbstractObjectDbExec<Chat> {
@@ -472,11 +606,9 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			return db.rawQuery("select c.id, c.account_id, c.account_chat_id, count(*) from chats c, messages m " +
-					"where c.id = m.chat_id " +
-					"and m.read = 0 " +
-					"and m.state = 'received' " +
-					"group by c.id, c.account_id, c.account_chat_id", null);
+			return db.rawQuery("select c.id, c.account_id, c.account_chat_id, cs.unread_count from chat_summary cs, chats c " +
+					"where cs.unread_count > 0 " +
+					"and c.id = cs.chat_id", null);
 		}
 
 		@Nonnull
@@ -498,6 +630,78 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 		}
 	}
 
+	/**
+	 * Unread counts from "chat_summary" table of one database, key: chat id
+	 */
+	private static final class UnreadCountsLoader implements DbQuery<Map<String, Integer>> {
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select cs.chat_id, cs.unread_count from chat_summary cs where cs.unread_count > 0", null);
+		}
+
+		@Nonnull
+		@Override
+		public Map<String, Integer> retrieveData(@Nonnull Cursor cursor) {
+			final Map<String, Integer> result = new HashMap<String, Integer>();
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					result.put(cursor.getString(0), cursor.getInt(1));
+					cursor.moveToNext();
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Send times of last messages from "chat_summary" table of one database, key: chat id
+	 */
+	private static final class LastSendTimesLoader implements DbQuery<Map<String, Long>> {
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select cs.chat_id, cs.last_send_time from chat_summary cs where cs.last_send_time is not null", null);
+		}
+
+		@Nonnull
+		@Override
+		public Map<String, Long> retrieveData(@Nonnull Cursor cursor) {
+			final Map<String, Long> result = new HashMap<String, Long>();
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					result.put(cursor.getString(0), cursor.getLong(1));
+					cursor.moveToNext();
+				}
+			}
+			return result;
+		}
+	}
+
+	private static final class ChatEntitiesLoader implements DbQuery<List<Entity>> {
+
+		@Nonnull
+		private final List<String> chatIds;
+
+		private ChatEntitiesLoader(@Nonnull List<String> chatIds) {
+			this.chatIds = chatIds;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select c.id, c.account_id, c.account_chat_id from chats c where c.id in " + AndroidDbUtils.inClause(chatIds), chatIds.toArray(new String[chatIds.size()]));
+		}
+
+		@Nonnull
+		@Override
+		public List<Entity> retrieveData(@Nonnull Cursor cursor) {
+			return new ListMapper<Entity>(EntityMapper.newInstanceFor(0)).convert(cursor);
+		}
+	}
+
 	private static final class ChatDaoMapper implements SqliteDaoEntityMapper<Chat> {
 
 		@Nonnull
@@ -539,15 +743,52 @@ public class SqliteChatDao extends AbstractSQLiteHelper implements ChatDao {
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			String start = "select c.id, m.send_time from chats c, messages m, user_chats uc where c.id = m.chat_id and uc.chat_id = c.id ";
+			String start = "select cs.chat_id from chat_summary cs where cs.last_send_time is not null ";
+			if (privateChat) {
+				start += "and exists (select * from chat_properties cp where cp.chat_id = cs.chat_id and cp.property_name = 'private' and cp.property_value = 'true') ";
+			}
+			final String end = "order by cs.last_send_time desc limit " + count;
+			if (!isEmpty(userId)) {
+				return db.rawQuery(start + "and cs.chat_id in (select uc.chat_id from user_chats uc where uc.user_id = ?) " + end, new String[]{userId});
+			} else {
+				return db.rawQuery(start + "and cs.chat_id in (select uc.chat_id from user_chats uc, accounts a where uc.user_id = a.user_id and a.state = ?) " + end, new String[]{AccountState.enabled.name()});
+			}
+		}
+
+		@Nonnull
+		@Override
+		public List<String> retrieveData(@Nonnull Cursor cursor) {
+			return new ListMapper<String>(StringIdMapper.getInstance()).convert(cursor);
+		}
+	}
+
+	/**
+	 * Same filter as in {@link LoadLastChatIds} but without "chat_summary" table
+	 */
+	private class LoadChatIds extends AbstractDbQuery<List<String>> {
+
+		@Nullable
+		private final String userId;
+
+		private final boolean privateChat;
+
+		public LoadChatIds(@Nullable String userId, boolean privateChat) {
+			super(SqliteChatDao.this.getContext(), SqliteChatDao.this.getSqliteOpenHelper());
+			this.userId = userId;
+			this.privateChat = privateChat;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			String end = "";
 			if (privateChat) {
-				start += "and exists (select * from chat_properties cp where cp.chat_id = c.id and cp.property_name = 'private' and cp.property_value = 'true') ";
+				end += "and exists (select * from chat_properties cp where cp.chat_id = uc.chat_id and cp.property_name = 'private' and cp.property_value = 'true') ";
 			}
-			final String end = "group by c.id order by m.send_time desc limit " + count;
 			if (!isEmpty(userId)) {
-				return db.rawQuery(start + "and uc.user_id = ? " + end, new String[]{userId});
+				return db.rawQuery("select uc.chat_id from user_chats uc where uc.user_id = ? " + end, new String[]{userId});
 			} else {
-				return db.rawQuery(start + "and uc.user_id in (select a.user_id from accounts a where a.state = ?) " + end, new String[]{AccountState.enabled.name()});
+				return db.rawQuery("select uc.chat_id from user_chats uc, accounts a where uc.user_id = a.user_id and a.state = ? " + end, new String[]{AccountState.enabled.name()});
 			}
 		}
 
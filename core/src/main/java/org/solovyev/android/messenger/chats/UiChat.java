@@ -31,6 +31,7 @@ import javax.annotation.Nullable;
 import static com.google.common.collect.Iterables.any;
 import static org.solovyev.android.messenger.App.getAccountService;
 import static org.solovyev.android.messenger.App.getChatService;
+import static org.solovyev.android.messenger.App.getUserService;
 import static org.solovyev.android.messenger.messages.Messages.getMessageTime;
 import static org.solovyev.android.messenger.messages.Messages.getMessageTitle;
 
@@ -133,7 +134,7 @@ public final class UiChat implements Identifiable, EntityAware {
 		return any(participants, new Predicate<User>() {
 			@Override
 			public boolean apply(User participant) {
-				return participant.isOnline();
+				return getUserService().isOnline(participant);
 			}
 		});
 	}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.db;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.joda.time.DateTime;
+import org.solovyev.android.messenger.App;
+import org.solovyev.android.messenger.MessengerPreferences;
+import org.solovyev.android.messenger.users.PersistenceLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import static android.os.SystemClock.elapsedRealtime;
+import static org.solovyev.android.messenger.App.TAG_TIME;
+
+/**
+ * Periodical maintenance of all databases of {@link DatabaseShards}: statistics of the query planner are refreshed,
+ * free pages are returned to the file system (only by databases created in incremental auto vacuum mode, see
+ * {@link #enableIncrementalVacuum(SQLiteDatabase)}), WAL is checkpointed and integrity of the database is checked.
+ * Steps which modify the database are done under {@link PersistenceLock#writeLock()} => maintenance should be started
+ * only when application is idle (see {@link #isDeviceIdle()}).
+ */
+@Singleton
+@ThreadSafe
+public class DatabaseMaintenance {
+
+	@Nonnull
+	private static final String TAG = App.newTag("DatabaseMaintenance");
+
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+	@Nonnull
+	private final Application context;
+
+	@Nonnull
+	private final DatabaseShards shards;
+
+	@Nonnull
+	private final PersistenceLock lock;
+
+	@Inject
+	public DatabaseMaintenance(@Nonnull Application context, @Nonnull DatabaseShards shards, @Nonnull PersistenceLock lock) {
+		this.context = context;
+		this.shards = shards;
+		this.lock = lock;
+	}
+
+	/**
+	 * Method runs all maintenance steps for each database
+	 *
+	 * @return results of the steps in order of execution
+	 */
+	@Nonnull
+	public synchronized List<StepResult> maintain() {
+		// date is stored in preferences => maintenance is not repeated after each start of the application
+		MessengerPreferences.putDate(MessengerPreferences.Db.lastMaintenanceDate, DateTime.now());
+
+		final List<StepResult> result = new ArrayList<StepResult>();
+		for (SQLiteOpenHelper database : shards.getDatabases()) {
+			final SQLiteDatabase db = database.getWritableDatabase();
+			for (Step step : Step.values()) {
+				try {
+					result.add(runStep(db, step));
+				} catch (RuntimeException e) {
+					// next steps might still succeed
+					Log.e(TAG, "Step " + step + " failed for " + db.getPath(), e);
+				}
+			}
+		}
+		return result;
+	}
+
+	@Nonnull
+	private StepResult runStep(@Nonnull SQLiteDatabase db, @Nonnull Step step) {
+		final long sizeBefore = getFileSize(db);
+		final long start = elapsedRealtime();
+
+		final boolean ok;
+		final Lock writeLock = step.modifiesDatabase ? lock.writeLock() : null;
+		if (writeLock != null) {
+			writeLock.lock();
+		}
+		try {
+			ok = step.run(db);
+		} finally {
+			if (writeLock != null) {
+				writeLock.unlock();
+			}
+		}
+
+		final StepResult result = new StepResult(db.getPath(), step, sizeBefore, getFileSize(db), elapsedRealtime() - start, ok);
+		Log.d(TAG_TIME, result.toString());
+		if (!ok) {
+			Log.e(TAG, result.toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Method must be called for a new database before any table is created: auto vacuum mode of existing database can
+	 * be changed only by full VACUUM which is never done (see {@link Step#vacuum})
+	 */
+	public static void enableIncrementalVacuum(@Nonnull SQLiteDatabase db) {
+		db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+	}
+
+	/**
+	 * @return time when {@link #maintain()} was started last time (in this or previous process), null if it has never
+	 * been started
+	 */
+	@Nullable
+	public DateTime getLastMaintenanceDate() {
+		return MessengerPreferences.getDate(MessengerPreferences.Db.lastMaintenanceDate);
+	}
+
+	/**
+	 * @return true if device is charging and its screen is off, i.e. maintenance will neither drain the battery nor
+	 * block the user
+	 */
+	public boolean isDeviceIdle() {
+		final Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		final boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+		if (!charging) {
+			return false;
+		}
+
+		final PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+		return !powerManager.isScreenOn();
+	}
+
+	/**
+	 * @return size of the database file including its WAL
+	 */
+	private static long getFileSize(@Nonnull SQLiteDatabase db) {
+		final String path = db.getPath();
+		return new File(path).length() + new File(path + "-wal").length();
+	}
+
+	/**
+	 * Method executes pragma and reads all its rows (some pragmas, e.g. incremental_vacuum, do their work while rows
+	 * are stepped)
+	 *
+	 * @return first column of the first row, null if pragma returns nothing
+	 */
+	@Nullable
+	private static String pragma(@Nonnull SQLiteDatabase db, @Nonnull String pragma) {
+		final Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+		try {
+			String result = null;
+			if (cursor.moveToFirst()) {
+				result = cursor.getString(0);
+				// all rows must be stepped
+				while (cursor.moveToNext()) {
+				}
+			}
+			return result;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public static enum Step {
+
+		/**
+		 * Refreshes statistics used by the query planner
+		 */
+		analyze(true) {
+			@Override
+			boolean run(@Nonnull SQLiteDatabase db) {
+				db.execSQL("ANALYZE");
+				return true;
+			}
+		},
+
+		/**
+		 * Returns free pages to the file system if database is in incremental auto vacuum mode (databases are created in
+		 * this mode). Full VACUUM is never done: it may renumber implicit rowids of "messages" table which are used as
+		 * docids of "messages_fts" table
+		 */
+		vacuum(true) {
+			@Override
+			boolean run(@Nonnull SQLiteDatabase db) {
+				if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL) {
+					pragma(db, "incremental_vacuum");
+				}
+				return true;
+			}
+		},
+
+		/**
+		 * Moves content of WAL to the database file and truncates WAL (TRUNCATE mode is treated as PASSIVE by old
+		 * SQLite versions)
+		 */
+		checkpoint(false) {
+			@Override
+			boolean run(@Nonnull SQLiteDatabase db) {
+				if ("wal".equalsIgnoreCase(pragma(db, "journal_mode"))) {
+					pragma(db, "wal_checkpoint(TRUNCATE)");
+				}
+				return true;
+			}
+		},
+
+		/**
+		 * Checks integrity of the database, result is false if database is corrupted
+		 */
+		integrity_check(false) {
+			@Override
+			boolean run(@Nonnull SQLiteDatabase db) {
+				return "ok".equalsIgnoreCase(pragma(db, "quick_check"));
+			}
+		};
+
+		private final boolean modifiesDatabase;
+
+		Step(boolean modifiesDatabase) {
+			this.modifiesDatabase = modifiesDatabase;
+		}
+
+		/**
+		 * @return false if step found a problem
+		 */
+		abstract boolean run(@Nonnull SQLiteDatabase db);
+	}
+
+	public static final class StepResult {
+
+		@Nonnull
+		private final String database;
+
+		@Nonnull
+		private final Step step;
+
+		private final long sizeBefore;
+
+		private final long sizeAfter;
+
+		private final long durationMillis;
+
+		private final boolean ok;
+
+		private StepResult(@Nonnull String database, @Nonnull Step step, long sizeBefore, long sizeAfter, long durationMillis, boolean ok) {
+			this.database = database;
+			this.step = step;
+			this.sizeBefore = sizeBefore;
+			this.sizeAfter = sizeAfter;
+			this.durationMillis = durationMillis;
+			this.ok = ok;
+		}
+
+		@Nonnull
+		public String getDatabase() {
+			return database;
+		}
+
+		@Nonnull
+		public Step getStep() {
+			return step;
+		}
+
+		public long getSizeBefore() {
+			return sizeBefore;
+		}
+
+		public long getSizeAfter() {
+			return sizeAfter;
+		}
+
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+
+		public boolean isOk() {
+			return ok;
+		}
+
+		@Override
+		public String toString() {
+			return "Maintenance step " + step + " of " + database + " took " + durationMillis + " ms, size: " + sizeBefore + " -> " + sizeAfter + " bytes" + (ok ? "" : ", failed");
+		}
+	}
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.solovyev.android.messenger.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.solovyev.android.db.DbExec;
+import org.solovyev.android.db.DbQuery;
+import org.solovyev.android.messenger.entities.Entities;
+import org.solovyev.android.messenger.users.PersistenceLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.solovyev.android.db.AndroidDbUtils.doDbExec;
+import static org.solovyev.android.db.AndroidDbUtils.doDbQuery;
+
+/**
+ * Databases of the message storage ("messages", "message_properties", "messages_archive", "chat_summary" tables and
+ * tables they depend on). If {@link DatabaseShardsConfiguration#isEnabled()} messages of each account are stored in a
+ * separate database, so writes of different accounts don't wait for each other and account removal is just deletion
+ * of the file. Chats and users are always stored in the main database.
+ * <p/>
+ * Database of an account is chosen once and saved in "account_databases" table of the main database: account which
+ * already has messages in the main database keeps using it, other accounts get a new database. Accounts without saved
+ * database (possible only if configuration is disabled) use the main database.
+ */
+@Singleton
+@ThreadSafe
+public class DatabaseShards {
+
+	/**
+	 * Name of the main database in "account_databases" table
+	 */
+	@Nonnull
+	private static final String MAIN_DATABASE = "";
+
+	@Nonnull
+	private final SQLiteOpenHelper mainDatabase;
+
+	@Nonnull
+	private final PersistenceLock lock;
+
+	@Nonnull
+	private final DatabaseShardsConfiguration configuration;
+
+	/**
+	 * Key: account id, value: name of the database, null if not loaded yet
+	 */
+	@GuardedBy("databases")
+	@Nullable
+	private Map<String, String> names;
+
+	/**
+	 * Key: name of the database
+	 */
+	@GuardedBy("databases")
+	@Nonnull
+	private final Map<String, SQLiteOpenHelper> databases = new HashMap<String, SQLiteOpenHelper>();
+
+	@Nonnull
+	private final ConcurrentMap<String, Lock> accountLocks = new ConcurrentHashMap<String, Lock>();
+
+	@Nonnull
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	@Inject
+	public DatabaseShards(@Nonnull SQLiteOpenHelper mainDatabase, @Nonnull PersistenceLock lock, @Nonnull DatabaseShardsConfiguration configuration) {
+		this.mainDatabase = mainDatabase;
+		this.lock = lock;
+		this.configuration = configuration;
+		this.databases.put(MAIN_DATABASE, mainDatabase);
+	}
+
+	public void addListener(@Nonnull Listener listener) {
+		listeners.add(listener);
+	}
+
+	@Nonnull
+	public SQLiteOpenHelper getMainDatabase() {
+		return mainDatabase;
+	}
+
+	/**
+	 * @return database where messages of the account are stored
+	 */
+	@Nonnull
+	public SQLiteOpenHelper getDatabase(@Nonnull String accountId) {
+		synchronized (databases) {
+			return getDatabase0(getName(accountId));
+		}
+	}
+
+	/**
+	 * @param entityId id of any entity of the account (e.g. chat or message id)
+	 * @return database where messages of the account are stored
+	 */
+	@Nonnull
+	public SQLiteOpenHelper getDatabaseByEntityId(@Nonnull String entityId) {
+		return getDatabase(getAccountId(entityId));
+	}
+
+	/**
+	 * @return all databases of the message storage, the main database goes first
+	 */
+	@Nonnull
+	public List<SQLiteOpenHelper> getDatabases() {
+		synchronized (databases) {
+			final List<SQLiteOpenHelper> result = new ArrayList<SQLiteOpenHelper>();
+			result.add(mainDatabase);
+			for (String name : getNames().values()) {
+				if (!name.equals(MAIN_DATABASE)) {
+					result.add(getDatabase0(name));
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @return true if there is at least one database except the main one
+	 */
+	public boolean isSharded() {
+		synchronized (databases) {
+			for (String name : getNames().values()) {
+				if (!name.equals(MAIN_DATABASE)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Method removes database of the account (if account has its own database). Should be called after account is
+	 * removed.
+	 */
+	public void deleteDatabase(@Nonnull String accountId) {
+		synchronized (databases) {
+			final String name = getNames().remove(accountId);
+			if (name != null) {
+				doDbExec(mainDatabase, new DeleteAccountDatabase(accountId));
+				if (!name.equals(MAIN_DATABASE)) {
+					final SQLiteOpenHelper database = databases.remove(name);
+					if (database != null) {
+						database.close();
+					}
+					configuration.deleteDatabase(name);
+					if (database != null) {
+						for (Listener listener : listeners) {
+							listener.onDatabaseDeleted(database);
+						}
+					}
+				}
+			}
+		}
+		accountLocks.remove(accountId);
+	}
+
+	/**
+	 * Lock which should be held while messages of the account are modified. For an account with its own database
+	 * lock only excludes writers of the same account (and holders of {@link PersistenceLock#writeLock()}), otherwise
+	 * it is {@link PersistenceLock#writeLock()}.
+	 * <p/>
+	 * Note that account lock contains {@link PersistenceLock#readLock()} => {@link PersistenceLock#writeLock()} can't
+	 * be acquired while it is held.
+	 */
+	@Nonnull
+	public Lock getWriteLock(@Nonnull String accountId) {
+		if (getDatabase(accountId) == mainDatabase) {
+			return lock.writeLock();
+		}
+
+		Lock accountLock = accountLocks.get(accountId);
+		if (accountLock == null) {
+			accountLock = new AccountLock(new ReentrantLock());
+			final Lock oldLock = accountLocks.putIfAbsent(accountId, accountLock);
+			if (oldLock != null) {
+				accountLock = oldLock;
+			}
+		}
+		return accountLock;
+	}
+
+	@Nonnull
+	public static String getAccountId(@Nonnull String entityId) {
+		final int index = entityId.indexOf(Entities.DELIMITER);
+		if (index < 0) {
+			throw new IllegalArgumentException("Entity id must contain account id: " + entityId);
+		}
+		return entityId.substring(0, index);
+	}
+
+	@GuardedBy("databases")
+	@Nonnull
+	private Map<String, String> getNames() {
+		if (names == null) {
+			names = doDbQuery(mainDatabase, new LoadAccountDatabases());
+		}
+		return names;
+	}
+
+	@GuardedBy("databases")
+	@Nonnull
+	private String getName(@Nonnull String accountId) {
+		final Map<String, String> names = getNames();
+		String name = names.get(accountId);
+		if (name == null) {
+			if (!configuration.isEnabled()) {
+				// nothing is saved => account will get its own database if configuration is enabled later
+				return MAIN_DATABASE;
+			}
+
+			final RegisterAccountDatabase exec = new RegisterAccountDatabase(accountId);
+			doDbExec(mainDatabase, exec);
+			name = exec.name;
+			names.put(accountId, name);
+		}
+		return name;
+	}
+
+	@GuardedBy("databases")
+	@Nonnull
+	private SQLiteOpenHelper getDatabase0(@Nonnull String name) {
+		SQLiteOpenHelper database = databases.get(name);
+		if (database == null) {
+			database = configuration.newDatabase(name);
+			databases.put(name, database);
+		}
+		return database;
+	}
+
+	/**
+	 * Holds {@link PersistenceLock#readLock()} (so that writers of all accounts are excluded by
+	 * {@link PersistenceLock#writeLock()}) and lock of the account
+	 */
+	private final class AccountLock implements Lock {
+
+		@Nonnull
+		private final Lock accountLock;
+
+		private AccountLock(@Nonnull Lock accountLock) {
+			this.accountLock = accountLock;
+		}
+
+		@Override
+		public void lock() {
+			lock.readLock().lock();
+			try {
+				accountLock.lock();
+			} catch (RuntimeException e) {
+				lock.readLock().unlock();
+				throw e;
+			}
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			lock.readLock().lockInterruptibly();
+			try {
+				accountLock.lockInterruptibly();
+			} catch (InterruptedException e) {
+				lock.readLock().unlock();
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean tryLock() {
+			if (lock.readLock().tryLock()) {
+				if (accountLock.tryLock()) {
+					return true;
+				}
+				lock.readLock().unlock();
+			}
+			return false;
+		}
+
+		@Override
+		public boolean tryLock(long time, @Nonnull TimeUnit unit) throws InterruptedException {
+			final long deadline = System.nanoTime() + unit.toNanos(time);
+			if (lock.readLock().tryLock(time, unit)) {
+				try {
+					if (accountLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+						return true;
+					}
+				} catch (InterruptedException e) {
+					lock.readLock().unlock();
+					throw e;
+				}
+				lock.readLock().unlock();
+			}
+			return false;
+		}
+
+		@Override
+		public void unlock() {
+			accountLock.unlock();
+			lock.readLock().unlock();
+		}
+
+		/**
+		 * Condition is bound to the lock of the account: while waiting for the condition only the lock of the account
+		 * is released, {@link PersistenceLock#readLock()} stays held.
+		 */
+		@Nonnull
+		@Override
+		public Condition newCondition() {
+			return accountLock.newCondition();
+		}
+	}
+
+	public static interface Listener {
+
+		/**
+		 * Called after <var>database</var> of an account has been closed and deleted (see {@link #deleteDatabase(String)})
+		 */
+		void onDatabaseDeleted(@Nonnull SQLiteOpenHelper database);
+	}
+
+	private static final class LoadAccountDatabases implements DbQuery<Map<String, String>> {
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select account_id, name from account_databases", null);
+		}
+
+		@Nonnull
+		@Override
+		public Map<String, String> retrieveData(@Nonnull Cursor cursor) {
+			final Map<String, String> result = new HashMap<String, String>();
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					result.put(cursor.getString(0), cursor.getString(1));
+					cursor.moveToNext();
+				}
+			}
+			return result;
+		}
+	}
+
+	private static final class RegisterAccountDatabase implements DbExec {
+
+		@Nonnull
+		private final String accountId;
+
+		@Nonnull
+		private String name = MAIN_DATABASE;
+
+		private RegisterAccountDatabase(@Nonnull String accountId) {
+			this.accountId = accountId;
+		}
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			final String prefix = accountId + Entities.DELIMITER;
+			final long legacyRows = DatabaseUtils.longForQuery(db, "select " +
+					"(select count(*) from messages m, entities e where m.account_id = e.id and e.entity_id = ?) + " +
+					"(select count(*) from messages_archive ma, entities e where ma.chat_id = e.id and substr(e.entity_id, 1, ?) = ?)",
+					new String[]{accountId, String.valueOf(prefix.length()), prefix});
+			if (legacyRows == 0) {
+				// entities are never removed => row id is unique name of the database
+				name = "account_" + EntityDictionary.getRowId(db, accountId);
+			}
+
+			final ContentValues values = new ContentValues();
+			values.put("account_id", accountId);
+			values.put("name", name);
+			return db.insertWithOnConflict("account_databases", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+		}
+	}
+
+	private static final class DeleteAccountDatabase implements DbExec {
+
+		@Nonnull
+		private final String accountId;
+
+		private DeleteAccountDatabase(@Nonnull String accountId) {
+			this.accountId = accountId;
+		}
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			return db.delete("account_databases", "account_id = ?", new String[]{accountId});
+		}
+	}
+}
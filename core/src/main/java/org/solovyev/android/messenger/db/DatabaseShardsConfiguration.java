@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.solovyev.android.messenger.db;
+
+import android.database.sqlite.SQLiteOpenHelper;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Configuration of {@link DatabaseShards}
+ */
+public interface DatabaseShardsConfiguration {
+
+	/**
+	 * @return true if messages of each account should be stored in a separate database
+	 */
+	boolean isEnabled();
+
+	/**
+	 * @param name name of the account database (unique among account databases)
+	 * @return helper of the account database with the schema of the message storage
+	 */
+	@Nonnull
+	SQLiteOpenHelper newDatabase(@Nonnull String name);
+
+	/**
+	 * Method removes the file of the account database
+	 */
+	void deleteDatabase(@Nonnull String name);
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.db;
+
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.solovyev.android.db.DbExec;
+import org.solovyev.android.messenger.App;
+import org.solovyev.android.messenger.users.PersistenceLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+
+import static android.os.SystemClock.elapsedRealtime;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.solovyev.android.db.AndroidDbUtils.doDbExec;
+import static org.solovyev.android.db.AndroidDbUtils.doDbExecs;
+
+/**
+ * Write-behind queue of {@link DbExec}s which modify the message storage: execs added by different callers for the
+ * same account are executed in one transaction in the database of the account (see {@link DatabaseShards}), so a
+ * burst of incoming messages costs one commit instead of one per message. Queue is flushed in background when either
+ * {@link #maxBatchSize} execs are collected or {@link #flushDelayMillis} ms passed after the first exec was added.
+ * <p/>
+ * Execs are executed under {@link DatabaseShards#getWriteLock(String)} of the account. Exec is free to use DAOs of the
+ * same database: on Android queries and nested transactions of the thread which holds the transaction are done in that
+ * transaction.
+ * <p/>
+ * {@link #flush()} is a barrier: after it returns all execs added before the call are committed => it must be called
+ * before messages are read if queued writes must be seen and before messages are modified synchronously (so writes are
+ * not reordered). As flush acquires the write lock it must not be called while {@link PersistenceLock#readLock()} (or
+ * the lock of an account) is held.
+ */
+@Singleton
+@ThreadSafe
+public class DbExecQueue {
+
+	private static final int MAX_BATCH_SIZE = 100;
+	private static final long FLUSH_DELAY_MILLIS = 100;
+
+	@Nonnull
+	private static final String TAG = "DbExecQueue";
+
+	@Nonnull
+	private final DatabaseShards shards;
+
+	private final int maxBatchSize;
+
+	private final long flushDelayMillis;
+
+	/**
+	 * Key: account id
+	 */
+	@GuardedBy("pending")
+	@Nonnull
+	private final Map<String, List<QueuedExec>> pending = new LinkedHashMap<String, List<QueuedExec>>();
+
+	@GuardedBy("pending")
+	private int pendingCount;
+
+	/**
+	 * Ids of the accounts whose execs have been taken from the queue but not committed yet (one entry per flush)
+	 */
+	@GuardedBy("pending")
+	@Nonnull
+	private final List<String> flushingAccountIds = new ArrayList<String>();
+
+	@Nonnull
+	private final ScheduledExecutorService executor = newSingleThreadScheduledExecutor(new FlushThreadFactory());
+
+	@Nonnull
+	private final Runnable flushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+
+			synchronized (pending) {
+				if (pendingCount > 0) {
+					// execs added while other accounts were flushed
+					executor.schedule(this, flushDelayMillis, MILLISECONDS);
+				}
+			}
+		}
+	};
+
+	@Inject
+	public DbExecQueue(@Nonnull DatabaseShards shards) {
+		this(shards, MAX_BATCH_SIZE, FLUSH_DELAY_MILLIS);
+	}
+
+	DbExecQueue(@Nonnull DatabaseShards shards, int maxBatchSize, long flushDelayMillis) {
+		this.shards = shards;
+		this.maxBatchSize = maxBatchSize;
+		this.flushDelayMillis = flushDelayMillis;
+	}
+
+	/**
+	 * @param accountId   account whose messages are modified by <var>exec</var>
+	 * @param exec        exec to be executed later
+	 * @param onCommitted called (in the thread which executed <var>exec</var>) after the transaction with
+	 *                    <var>exec</var> is committed. Not called if <var>exec</var> has failed
+	 */
+	public void add(@Nonnull String accountId, @Nonnull DbExec exec, @Nullable Runnable onCommitted) {
+		synchronized (pending) {
+			List<QueuedExec> execs = pending.get(accountId);
+			if (execs == null) {
+				execs = new ArrayList<QueuedExec>();
+				pending.put(accountId, execs);
+			}
+			execs.add(new QueuedExec(exec, onCommitted));
+			pendingCount++;
+
+			if (pendingCount == maxBatchSize) {
+				// batch is full => flush now
+				executor.execute(flushRunnable);
+			} else if (pendingCount == 1) {
+				// first exec in the batch => flush after delay
+				executor.schedule(flushRunnable, flushDelayMillis, MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Flush barrier for all accounts, see {@link #flush(String)}
+	 */
+	public void flush() {
+		final Set<String> accountIds;
+		synchronized (pending) {
+			if (pendingCount == 0 && flushingAccountIds.isEmpty()) {
+				return;
+			}
+			accountIds = new LinkedHashSet<String>(pending.keySet());
+			accountIds.addAll(flushingAccountIds);
+		}
+
+		for (String accountId : accountIds) {
+			flush(accountId);
+		}
+	}
+
+	/**
+	 * Flush barrier: method executes pending execs of the account in one transaction. After method returns all the
+	 * execs of the account added before the call are committed (or failed).
+	 */
+	public void flush(@Nonnull String accountId) {
+		synchronized (pending) {
+			if (!pending.containsKey(accountId) && !flushingAccountIds.contains(accountId)) {
+				return;
+			}
+		}
+
+		// execs are taken and committed under the write lock => if another thread is executing execs of the account
+		// we will get the lock only after they are committed
+		final List<QueuedExec> execs;
+		final Lock writeLock = shards.getWriteLock(accountId);
+		writeLock.lock();
+		try {
+			synchronized (pending) {
+				execs = pending.remove(accountId);
+				if (execs == null) {
+					return;
+				}
+				pendingCount -= execs.size();
+				flushingAccountIds.add(accountId);
+			}
+
+			try {
+				execute(shards.getDatabase(accountId), execs);
+			} finally {
+				synchronized (pending) {
+					flushingAccountIds.remove(accountId);
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+
+		for (QueuedExec exec : execs) {
+			if (exec.committed && exec.onCommitted != null) {
+				exec.onCommitted.run();
+			}
+		}
+	}
+
+	private void execute(@Nonnull SQLiteOpenHelper db, @Nonnull List<QueuedExec> execs) {
+		final long start = elapsedRealtime();
+
+		final List<DbExec> dbExecs = new ArrayList<DbExec>(execs.size());
+		for (QueuedExec exec : execs) {
+			dbExecs.add(exec.exec);
+		}
+
+		try {
+			doDbExecs(db, dbExecs);
+			for (QueuedExec exec : execs) {
+				exec.committed = true;
+			}
+		} catch (RuntimeException e) {
+			// one failed exec must not roll back execs of other callers => each exec in its own transaction
+			Log.w(TAG, "Unable to execute " + execs.size() + " queued execs in one transaction", e);
+			for (QueuedExec exec : execs) {
+				try {
+					doDbExec(db, exec.exec);
+					exec.committed = true;
+				} catch (RuntimeException execException) {
+					Log.e(TAG, execException.getMessage(), execException);
+				}
+			}
+		}
+
+		Log.d(App.TAG_TIME, "Flush of " + execs.size() + " queued execs took " + (elapsedRealtime() - start) + " ms");
+	}
+
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pendingCount;
+		}
+	}
+
+	private static final class QueuedExec {
+
+		@Nonnull
+		private final DbExec exec;
+
+		@Nullable
+		private final Runnable onCommitted;
+
+		private boolean committed;
+
+		private QueuedExec(@Nonnull DbExec exec, @Nullable Runnable onCommitted) {
+			this.exec = exec;
+			this.onCommitted = onCommitted;
+		}
+	}
+
+	/**
+	 * Queued execs are flushed on exit (see {@link App#exit(android.app.Activity)}) => flush thread must not keep the
+	 * process alive
+	 */
+	private static final class FlushThreadFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(@Nonnull Runnable r) {
+			final Thread thread = new Thread(r, TAG);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
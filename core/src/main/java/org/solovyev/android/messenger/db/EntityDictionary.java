@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.solovyev.android.db.DbQuery;
+import org.solovyev.android.messenger.entities.Entity;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.solovyev.android.db.AndroidDbUtils.doDbQuery;
+import static org.solovyev.android.messenger.entities.Entities.newEntityFromEntityId;
+
+/**
+ * Dictionary of entity ids stored in "entities" table. Tables with many rows (e.g. "messages") reference entities
+ * by integer row id from this table instead of repeating long text ids in each row.
+ * <p/>
+ * Rows are never removed from the dictionary => row id of an entity never changes and once read it is cached in memory.
+ */
+@Singleton
+@ThreadSafe
+public class EntityDictionary {
+
+	/**
+	 * Subquery which returns row id of entity id passed as parameter, e.g. "chat_id = " + ROW_ID
+	 */
+	@Nonnull
+	public static final String ROW_ID = "(select e.id from entities e where e.entity_id = ?)";
+
+	@Nonnull
+	private final SQLiteOpenHelper sqliteOpenHelper;
+
+	@GuardedBy("entityIds")
+	@Nonnull
+	private final Map<Long, String> entityIds = new HashMap<Long, String>();
+
+	@GuardedBy("entityIds")
+	@Nonnull
+	private final Map<Long, Entity> entities = new HashMap<Long, Entity>();
+
+	@Inject
+	public EntityDictionary(@Nonnull SQLiteOpenHelper sqliteOpenHelper) {
+		this.sqliteOpenHelper = sqliteOpenHelper;
+	}
+
+	@Nonnull
+	public String getEntityId(long rowId) {
+		synchronized (entityIds) {
+			final String entityId = entityIds.get(rowId);
+			if (entityId != null) {
+				return entityId;
+			}
+		}
+
+		final String entityId = doDbQuery(sqliteOpenHelper, new LoadEntityId(rowId));
+		if (entityId == null) {
+			throw new IllegalStateException("No entity with row id " + rowId);
+		}
+
+		synchronized (entityIds) {
+			entityIds.put(rowId, entityId);
+		}
+		return entityId;
+	}
+
+	/**
+	 * @return entity which id is stored in the dictionary with <var>rowId</var>, same instance is returned for the same
+	 * row id
+	 */
+	@Nonnull
+	public Entity getEntity(long rowId) {
+		synchronized (entityIds) {
+			final Entity entity = entities.get(rowId);
+			if (entity != null) {
+				return entity;
+			}
+		}
+
+		final Entity entity = newEntityFromEntityId(getEntityId(rowId));
+		synchronized (entityIds) {
+			entities.put(rowId, entity);
+		}
+		return entity;
+	}
+
+	/**
+	 * Method returns row id of <var>entityId</var> adding it to the dictionary if needed. Must be called in the
+	 * transaction which writes the returned row id.
+	 */
+	public static long getRowId(@Nonnull SQLiteDatabase db, @Nonnull String entityId) {
+		final ContentValues values = new ContentValues();
+		values.put("entity_id", entityId);
+		db.insertWithOnConflict("entities", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+		return DatabaseUtils.longForQuery(db, "select id from entities where entity_id = ?", new String[]{entityId});
+	}
+
+	/**
+	 * Row ids of entities written in one transaction: each entity is looked up only once
+	 */
+	public static final class RowIds {
+
+		@Nonnull
+		private final SQLiteDatabase db;
+
+		@Nonnull
+		private final Map<String, Long> rowIds = new HashMap<String, Long>();
+
+		public RowIds(@Nonnull SQLiteDatabase db) {
+			this.db = db;
+		}
+
+		public long get(@Nonnull String entityId) {
+			Long rowId = rowIds.get(entityId);
+			if (rowId == null) {
+				rowId = getRowId(db, entityId);
+				rowIds.put(entityId, rowId);
+			}
+			return rowId;
+		}
+	}
+
+	private static final class LoadEntityId implements DbQuery<String> {
+
+		private final long rowId;
+
+		private LoadEntityId(long rowId) {
+			this.rowId = rowId;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select entity_id from entities where id = ?", new String[]{String.valueOf(rowId)});
+		}
+
+		@Nullable
+		@Override
+		public String retrieveData(@Nonnull Cursor cursor) {
+			if (cursor.moveToFirst()) {
+				return cursor.getString(0);
+			} else {
+				return null;
+			}
+		}
+	}
+}
@@ -28,7 +28,10 @@ import javax.annotation.Nonnull;
  */
 public class EntityMapper implements Converter<Cursor, Entity> {
 
-	private int cursorPosition;
+	/**
+	 * Mapper is immutable => same instance might be used for any number of rows and cursors
+	 */
+	private final int cursorPosition;
 
 	private EntityMapper(int cursorPosition) {
 		this.cursorPosition = cursorPosition;
@@ -0,0 +1,684 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.icons;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.solovyev.android.http.ImageLoader;
+import org.solovyev.android.http.OnImageLoadedListener;
+import org.solovyev.android.messenger.App;
+import org.solovyev.android.messenger.core.R;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Image loader shared by all realms. Supported images:
+ * <ul>
+ * <li>http(s) urls, downloaded images are kept in the disk cache</li>
+ * <li>contact uris (see {@link ContactsContract.Contacts#CONTENT_URI}), photo is loaded from the contacts provider</li>
+ * <li>any other uri which might be opened by {@link ContentResolver#openInputStream(Uri)}</li>
+ * </ul>
+ * Images are down-sampled to the size of the target view and kept in the memory cache limited by the number of bytes
+ * used by bitmaps. Concurrent requests of the same image are served by one load, request is cancelled if the
+ * view it was made for is reused for another image before loading starts. Requests made for views are loaded
+ * before prefetch requests, most recent first (i.e. currently visible rows are loaded first).
+ */
+@Singleton
+@ThreadSafe
+public class ImagePipeline implements ImageLoader {
+
+    /*
+	**********************************************************************
+    *
+    *                           CONSTANTS
+    *
+    **********************************************************************
+    */
+
+	private static final String TAG = App.newTag("Images");
+
+	private static final String DIR_NAME = "images";
+
+	private static final int THREAD_COUNT = 3;
+
+	// part of the max heap which might be used by decoded images
+	private static final int MEMORY_PART = 8;
+
+	private static final long MAX_DISK_BYTES = 20 * 1024 * 1024;
+
+	private static final int TIMEOUT_MILLIS = 15000;
+
+	private static final int PRIORITY_PREFETCH = 0;
+	private static final int PRIORITY_VIEW = 1;
+
+    /*
+	**********************************************************************
+    *
+    *                           FIELDS
+    *
+    **********************************************************************
+    */
+
+	@Nonnull
+	private final ContentResolver contentResolver;
+
+	@Nonnull
+	private final File dir;
+
+	private final int defaultSize;
+
+	private final long maxDiskBytes;
+
+	@Nonnull
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	@Nonnull
+	private final Cache<String, Bitmap> bitmaps;
+
+	/**
+	 * Requests which are queued or being loaded, key: memory cache key
+	 */
+	@Nonnull
+	private final ConcurrentMap<String, Request> requests = new ConcurrentHashMap<String, Request>();
+
+	/**
+	 * Last requested key for each view
+	 */
+	@Nonnull
+	private final Map<ImageView, String> views = Collections.synchronizedMap(new WeakHashMap<ImageView, String>());
+
+	@Nonnull
+	private final AtomicLong counter = new AtomicLong();
+
+	@Nonnull
+	private final ThreadPoolExecutor executor;
+
+	@Nonnull
+	private final Object diskLock = new Object();
+
+	@Inject
+	public ImagePipeline(@Nonnull Application application) {
+		this(application, new File(application.getCacheDir(), DIR_NAME), THREAD_COUNT, MAX_DISK_BYTES);
+	}
+
+	ImagePipeline(@Nonnull Application application, @Nonnull File dir, int threadCount, long maxDiskBytes) {
+		this.contentResolver = application.getContentResolver();
+		this.dir = dir;
+		this.maxDiskBytes = maxDiskBytes;
+		this.defaultSize = application.getResources().getDimensionPixelSize(R.dimen.mpp_list_item_icon_size);
+		this.bitmaps = CacheBuilder.newBuilder()
+				.maximumWeight(Runtime.getRuntime().maxMemory() / MEMORY_PART)
+				.weigher(new BitmapWeigher())
+				.build();
+		// queue is unbounded => only core threads are used
+		this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new LoaderThreadFactory());
+	}
+
+	@Override
+	public void loadImage(@Nonnull String url, @Nonnull ImageView imageView, @Nullable Integer defaultImageId) {
+		final int size = getTargetSize(imageView);
+		final String key = newKey(url, size);
+
+		final String oldKey = views.put(imageView, key);
+		if (oldKey != null && !oldKey.equals(key)) {
+			// view is reused => previous image is not needed anymore
+			tryCancel(oldKey);
+		}
+
+		final Bitmap bitmap = bitmaps.getIfPresent(key);
+		if (bitmap != null) {
+			views.remove(imageView);
+			imageView.setImageBitmap(bitmap);
+		} else {
+			if (defaultImageId != null) {
+				imageView.setImageResource(defaultImageId);
+			}
+			submit(url, size, new ViewTarget(imageView, key), PRIORITY_VIEW);
+		}
+	}
+
+	@Override
+	public void loadImage(@Nonnull String url, @Nonnull OnImageLoadedListener imageLoadedListener) {
+		final Bitmap bitmap = bitmaps.getIfPresent(newKey(url, defaultSize));
+		if (bitmap != null) {
+			imageLoadedListener.onImageLoaded(bitmap);
+		} else {
+			imageLoadedListener.setDefaultImage();
+			submit(url, defaultSize, new ListenerTarget(imageLoadedListener), PRIORITY_VIEW);
+		}
+	}
+
+	@Override
+	public void loadImage(@Nonnull String url) {
+		if (bitmaps.getIfPresent(newKey(url, defaultSize)) == null) {
+			submit(url, defaultSize, PrefetchTarget.instance, PRIORITY_PREFETCH);
+		}
+	}
+
+	/**
+	 * Method cancels loading of the image for <var>imageView</var> (if nobody else waits for the same image)
+	 */
+	public void cancel(@Nonnull ImageView imageView) {
+		final String key = views.remove(imageView);
+		if (key != null) {
+			tryCancel(key);
+		}
+	}
+
+	private void submit(@Nonnull String url, int size, @Nonnull Target target, int priority) {
+		final String key = newKey(url, size);
+		while (true) {
+			final Request newRequest = new Request(url, size, key, priority, counter.incrementAndGet());
+			newRequest.addTarget(target);
+
+			final Request request = requests.putIfAbsent(key, newRequest);
+			if (request == null) {
+				executor.execute(newRequest);
+				return;
+			} else if (request.addTarget(target)) {
+				// same image is already requested => no new load
+				if (priority == PRIORITY_VIEW) {
+					request.promote(counter.incrementAndGet());
+				}
+				return;
+			} else {
+				// request has just finished => start new one
+				requests.remove(key, request);
+			}
+		}
+	}
+
+	private void tryCancel(@Nonnull String key) {
+		final Request request = requests.get(key);
+		if (request != null && request.cancelIfNotNeeded()) {
+			requests.remove(key, request);
+		}
+	}
+
+	@Nullable
+	private Bitmap load(@Nonnull Request request) {
+		Bitmap result = bitmaps.getIfPresent(request.key);
+		if (result == null) {
+			try {
+				final byte[] bytes = loadBytes(request.url);
+				if (bytes != null) {
+					result = decode(bytes, request.size);
+					if (result != null) {
+						bitmaps.put(request.key, result);
+					}
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to load " + request.url + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Method loads encoded image, called on the loader thread
+	 */
+	@Nullable
+	byte[] loadBytes(@Nonnull String url) throws IOException {
+		return isHttp(url) ? loadFromDisk(url) : loadFromProvider(url);
+	}
+
+	@Nullable
+	private byte[] loadFromDisk(@Nonnull String url) throws IOException {
+		final File file = new File(dir, Hashing.md5().hashString(url, Charsets.UTF_8).toString());
+		if (!file.exists()) {
+			download(url, file);
+		} else {
+			// last modified date is used for eviction
+			file.setLastModified(System.currentTimeMillis());
+		}
+		return readFile(file);
+	}
+
+	@Nullable
+	private byte[] loadFromProvider(@Nonnull String url) throws IOException {
+		final Uri uri = Uri.parse(url);
+		final InputStream in;
+		if (url.startsWith(ContactsContract.Contacts.CONTENT_URI.toString())) {
+			in = ContactsContract.Contacts.openContactPhotoInputStream(contentResolver, uri);
+		} else {
+			in = contentResolver.openInputStream(uri);
+		}
+
+		if (in == null) {
+			return null;
+		}
+
+		try {
+			return ByteStreams.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void download(@Nonnull String url, @Nonnull File file) throws IOException {
+		final File tmpFile = new File(dir, file.getName() + ".tmp" + Thread.currentThread().getId());
+		synchronized (diskLock) {
+			if (!dir.exists() && !dir.mkdirs()) {
+				throw new IOException("Unable to create " + dir);
+			}
+		}
+
+		final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		try {
+			connection.setConnectTimeout(TIMEOUT_MILLIS);
+			connection.setReadTimeout(TIMEOUT_MILLIS);
+			connection.setInstanceFollowRedirects(true);
+
+			final InputStream in = connection.getInputStream();
+			try {
+				final OutputStream out = new FileOutputStream(tmpFile);
+				try {
+					ByteStreams.copy(in, out);
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+
+			// image is written to temporary file first => readers never see partially written file
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Unable to rename " + tmpFile + " to " + file);
+			}
+		} finally {
+			connection.disconnect();
+			tmpFile.delete();
+		}
+
+		trimDisk();
+	}
+
+	/**
+	 * Method removes least recently used files if disk cache is too big
+	 */
+	void trimDisk() {
+		synchronized (diskLock) {
+			final File[] files = dir.listFiles();
+			if (files == null) {
+				return;
+			}
+
+			long size = 0;
+			for (File file : files) {
+				size += file.length();
+			}
+
+			if (size > maxDiskBytes) {
+				final List<File> sortedFiles = new ArrayList<File>(files.length);
+				Collections.addAll(sortedFiles, files);
+				Collections.sort(sortedFiles, LastModifiedComparator.instance);
+				for (File file : sortedFiles) {
+					if (size <= maxDiskBytes) {
+						break;
+					}
+
+					final long length = file.length();
+					if (file.delete()) {
+						size -= length;
+					}
+				}
+			}
+		}
+	}
+
+	@Nullable
+	private static byte[] readFile(@Nonnull File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+
+		final InputStream in = new FileInputStream(file);
+		try {
+			return ByteStreams.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Method decodes image with the biggest power of 2 sample size which still keeps both dimensions not less than
+	 * <var>size</var>
+	 */
+	@Nullable
+	private static Bitmap decode(@Nonnull byte[] bytes, int size) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+
+		int sampleSize = 1;
+		if (options.outWidth > 0 && options.outHeight > 0) {
+			while (options.outWidth / (sampleSize * 2) >= size && options.outHeight / (sampleSize * 2) >= size) {
+				sampleSize *= 2;
+			}
+		}
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+	}
+
+	private int getTargetSize(@Nonnull ImageView imageView) {
+		int width = imageView.getWidth();
+		int height = imageView.getHeight();
+		if (width <= 0 || height <= 0) {
+			// view is not laid out yet
+			final ViewGroup.LayoutParams params = imageView.getLayoutParams();
+			if (params != null) {
+				width = params.width;
+				height = params.height;
+			}
+		}
+
+		final int size = Math.max(width, height);
+		return size > 0 ? size : defaultSize;
+	}
+
+	private static boolean isHttp(@Nonnull String url) {
+		return url.startsWith("http://") || url.startsWith("https://");
+	}
+
+	@Nonnull
+	private static String newKey(@Nonnull String url, int size) {
+		return url + "#" + size;
+	}
+
+    /*
+    **********************************************************************
+    *
+    *                           STATIC/INNER CLASSES
+    *
+    **********************************************************************
+    */
+
+	private final class Request implements Runnable, Comparable<Request> {
+
+		@Nonnull
+		private final String url;
+
+		private final int size;
+
+		@Nonnull
+		private final String key;
+
+		// both fields are changed only when request is not in the queue
+		private volatile int priority;
+		private volatile long order;
+
+		@GuardedBy("this")
+		@Nonnull
+		private final List<Target> targets = new ArrayList<Target>(1);
+
+		@GuardedBy("this")
+		private boolean done;
+
+		private Request(@Nonnull String url, int size, @Nonnull String key, int priority, long order) {
+			this.url = url;
+			this.size = size;
+			this.key = key;
+			this.priority = priority;
+			this.order = order;
+		}
+
+		/**
+		 * @return false if request is already finished and <var>target</var> will not be notified
+		 */
+		private synchronized boolean addTarget(@Nonnull Target target) {
+			if (done) {
+				return false;
+			}
+			targets.add(target);
+			return true;
+		}
+
+		/**
+		 * Method moves queued request to the head of its priority (or to higher priority)
+		 */
+		private synchronized void promote(long order) {
+			if (!done && executor.getQueue().remove(this)) {
+				this.priority = PRIORITY_VIEW;
+				this.order = order;
+				executor.execute(this);
+			}
+		}
+
+		/**
+		 * @return true if request has been removed from the queue
+		 */
+		private synchronized boolean cancelIfNotNeeded() {
+			if (!done && !isNeeded() && executor.getQueue().remove(this)) {
+				done = true;
+				return true;
+			}
+			return false;
+		}
+
+		@GuardedBy("this")
+		private boolean isNeeded() {
+			for (Target target : targets) {
+				if (target.isNeeded()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void run() {
+			final boolean needed;
+			synchronized (this) {
+				needed = isNeeded();
+				if (!needed) {
+					done = true;
+				}
+			}
+
+			final Bitmap bitmap = needed ? load(this) : null;
+
+			final List<Target> targets;
+			synchronized (this) {
+				done = true;
+				targets = new ArrayList<Target>(this.targets);
+			}
+			requests.remove(key, this);
+
+			if (needed) {
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						for (Target target : targets) {
+							target.onLoaded(bitmap);
+						}
+					}
+				});
+			}
+		}
+
+		@Override
+		public int compareTo(@Nonnull Request that) {
+			// higher priority first, then most recent first
+			if (this.priority != that.priority) {
+				return this.priority > that.priority ? -1 : 1;
+			}
+			final long thisOrder = this.order;
+			final long thatOrder = that.order;
+			return thisOrder > thatOrder ? -1 : (thisOrder == thatOrder ? 0 : 1);
+		}
+	}
+
+	private static interface Target {
+
+		boolean isNeeded();
+
+		/**
+		 * Called on the main thread
+		 */
+		void onLoaded(@Nullable Bitmap bitmap);
+	}
+
+	private final class ViewTarget implements Target {
+
+		@Nonnull
+		private final WeakReference<ImageView> imageViewRef;
+
+		@Nonnull
+		private final String key;
+
+		private ViewTarget(@Nonnull ImageView imageView, @Nonnull String key) {
+			this.imageViewRef = new WeakReference<ImageView>(imageView);
+			this.key = key;
+		}
+
+		@Override
+		public boolean isNeeded() {
+			final ImageView imageView = imageViewRef.get();
+			return imageView != null && key.equals(views.get(imageView));
+		}
+
+		@Override
+		public void onLoaded(@Nullable Bitmap bitmap) {
+			final ImageView imageView = imageViewRef.get();
+			if (imageView != null && bitmap != null) {
+				synchronized (views) {
+					if (key.equals(views.get(imageView))) {
+						views.remove(imageView);
+						imageView.setImageBitmap(bitmap);
+					}
+				}
+			}
+		}
+	}
+
+	private static final class ListenerTarget implements Target {
+
+		@Nonnull
+		private final OnImageLoadedListener listener;
+
+		private ListenerTarget(@Nonnull OnImageLoadedListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public boolean isNeeded() {
+			return true;
+		}
+
+		@Override
+		public void onLoaded(@Nullable Bitmap bitmap) {
+			listener.onImageLoaded(bitmap);
+		}
+	}
+
+	private static final class PrefetchTarget implements Target {
+
+		@Nonnull
+		private static final Target instance = new PrefetchTarget();
+
+		@Override
+		public boolean isNeeded() {
+			return true;
+		}
+
+		@Override
+		public void onLoaded(@Nullable Bitmap bitmap) {
+		}
+	}
+
+	private static final class BitmapWeigher implements Weigher<String, Bitmap> {
+		@Override
+		public int weigh(String key, Bitmap bitmap) {
+			// Bitmap#getByteCount is not available before API 12
+			return bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	}
+
+	private static final class LastModifiedComparator implements Comparator<File> {
+
+		@Nonnull
+		private static final LastModifiedComparator instance = new LastModifiedComparator();
+
+		@Override
+		public int compare(File lhs, File rhs) {
+			final long lhsModified = lhs.lastModified();
+			final long rhsModified = rhs.lastModified();
+			return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+		}
+	}
+
+	private static final class LoaderThreadFactory implements ThreadFactory {
+
+		@Nonnull
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(@Nonnull Runnable r) {
+			final Thread thread = new Thread(r, "Image loader #" + count.getAndIncrement());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
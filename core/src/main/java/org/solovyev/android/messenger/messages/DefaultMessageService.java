@@ -16,15 +16,19 @@
 
 package org.solovyev.android.messenger.messages;
 
+import android.util.Log;
 import android.widget.ImageView;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.joda.time.DateTime;
 import org.solovyev.android.http.ImageLoader;
+import org.solovyev.android.messenger.MessengerPreferences;
 import org.solovyev.android.messenger.accounts.*;
 import org.solovyev.android.messenger.chats.AccountChatService;
 import org.solovyev.android.messenger.chats.Chat;
 import org.solovyev.android.messenger.chats.ChatService;
+import org.solovyev.android.messenger.db.DatabaseShards;
+import org.solovyev.android.messenger.db.DbExecQueue;
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.users.PersistenceLock;
 import org.solovyev.android.messenger.users.UserService;
@@ -32,9 +36,14 @@ import org.solovyev.android.messenger.users.UserService;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
+import static android.os.SystemClock.elapsedRealtime;
 import static java.util.Arrays.asList;
+import static org.solovyev.android.messenger.App.TAG_TIME;
 import static org.solovyev.android.messenger.accounts.AccountService.NO_ACCOUNT_ID;
 import static org.solovyev.android.messenger.messages.Messages.copySentMessage;
 
@@ -70,6 +79,18 @@ public class DefaultMessageService implements MessageService {
 	@Nonnull
 	private MessageDao dao;
 
+	@Inject
+	@Nonnull
+	private DatabaseShards shards;
+
+	/**
+	 * Messages might be queued by {@link ChatService#queueMessages(Entity, Collection, boolean)} => queue is flushed
+	 * before messages are read (and before they are archived)
+	 */
+	@Inject
+	@Nonnull
+	private DbExecQueue execQueue;
+
 	@Nonnull
 	private final PersistenceLock lock;
 
@@ -85,20 +106,104 @@ public class DefaultMessageService implements MessageService {
 	@Nonnull
 	@Override
 	public List<Message> getMessages(@Nonnull Entity chat) {
+		execQueue.flush(chat.getAccountId());
 		return dao.readMessages(chat.getEntityId());
 	}
 
+	@Nonnull
+	@Override
+	public List<Message> getNewestMessages(@Nonnull Entity chat, int limit) {
+		execQueue.flush(chat.getAccountId());
+		return dao.readMessagesBefore(chat.getEntityId(), null, limit);
+	}
+
+	@Nonnull
+	@Override
+	public List<Message> getMessagesBefore(@Nonnull Entity chat, @Nonnull DateTime sendTime, int limit) {
+		execQueue.flush(chat.getAccountId());
+		return dao.readMessagesBefore(chat.getEntityId(), sendTime, limit);
+	}
+
+	@Nonnull
+	@Override
+	public List<Message> getMessagesAfter(@Nonnull Entity chat, @Nonnull DateTime sendTime, int limit) {
+		execQueue.flush(chat.getAccountId());
+		return dao.readMessagesAfter(chat.getEntityId(), sendTime, limit);
+	}
+
+	@Override
+	public int archiveMessages(@Nonnull MessageRetentionPolicy policy) {
+		// date is stored in preferences => archiving is not repeated after each start of the application
+		MessengerPreferences.putDate(MessengerPreferences.Messages.Archive.lastArchiveDate, DateTime.now());
+		final long start = elapsedRealtime();
+
+		execQueue.flush();
+
+		final List<String> chatIds;
+		lock.readLock().lock();
+		try {
+			chatIds = dao.readChatIds();
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		int result = 0;
+		for (String chatId : chatIds) {
+			// lock is released after each chat so other operations are not blocked for long
+			final Lock writeLock = shards.getWriteLock(DatabaseShards.getAccountId(chatId));
+			writeLock.lock();
+			try {
+				result += dao.archiveMessages(chatId, policy);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		Log.d(TAG_TIME, "Archiving of " + result + " messages took " + (elapsedRealtime() - start) + " ms");
+		return result;
+	}
+
+	@Nullable
+	@Override
+	public DateTime getLastArchiveDate() {
+		return MessengerPreferences.getDate(MessengerPreferences.Messages.Archive.lastArchiveDate);
+	}
+
+	@Nonnull
+	@Override
+	public List<MessageSearchHit> searchMessages(@Nonnull String query, int limit, int offset) {
+		execQueue.flush();
+		return dao.searchMessages(query, limit, offset);
+	}
+
 	@Nullable
 	@Override
 	public Message getSameMessage(@Nonnull String body, @Nonnull DateTime sendTime, @Nonnull Entity author, @Nonnull Entity recipient) {
-		synchronized (lock) {
+		execQueue.flush(author.getAccountId());
+		lock.readLock().lock();
+		try {
 			return dao.readSameMessage(body, sendTime, author, recipient);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Nonnull
+	@Override
+	public <M extends Message> List<M> getMergedMessages(@Nonnull Collection<M> messages) {
+		execQueue.flush();
+		lock.readLock().lock();
+		try {
+			return dao.readMergedMessages(messages);
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
 	@Nullable
 	@Override
 	public Message getMessage(@Nonnull String messageId) {
+		execQueue.flush(DatabaseShards.getAccountId(messageId));
 		return dao.read(messageId);
 	}
 
@@ -133,15 +238,35 @@ public class DefaultMessageService implements MessageService {
 	@Nullable
 	@Override
 	public Message getLastMessage(@Nonnull String chatId) {
-		synchronized (lock) {
+		execQueue.flush(DatabaseShards.getAccountId(chatId));
+		lock.readLock().lock();
+		try {
 			return this.dao.readLastMessage(chatId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Nonnull
+	@Override
+	public Map<String, Message> getLastMessages(@Nonnull Collection<String> chatIds) {
+		execQueue.flush();
+		lock.readLock().lock();
+		try {
+			return this.dao.readLastMessages(chatIds);
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
 	@Override
 	public int getUnreadMessagesCount() {
-		synchronized (lock) {
+		execQueue.flush();
+		lock.readLock().lock();
+		try {
 			return this.dao.getUnreadMessagesCount();
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
@@ -0,0 +1,772 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.messages;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import org.joda.time.DateTime;
+import org.solovyev.android.db.DbExec;
+import org.solovyev.android.db.DbQuery;
+import org.solovyev.android.db.LoadPropertiesByIds;
+import org.solovyev.android.messenger.entities.Entity;
+import org.solovyev.android.properties.AProperty;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Lists.partition;
+import static org.solovyev.android.db.AndroidDbUtils.MAX_IN_COUNT;
+import static org.solovyev.android.db.AndroidDbUtils.doDbExec;
+import static org.solovyev.android.db.AndroidDbUtils.doDbQuery;
+import static org.solovyev.android.db.AndroidDbUtils.inClause;
+import static org.solovyev.android.messenger.db.EntityDictionary.ROW_ID;
+import static org.solovyev.android.messenger.entities.Entities.newEntity;
+import static org.solovyev.android.messenger.entities.Entities.newEntityFromEntityId;
+import static org.solovyev.android.messenger.messages.MessageState.removed;
+import static org.solovyev.android.messenger.messages.Messages.newMessage;
+import static org.solovyev.android.properties.Properties.newProperty;
+
+/**
+ * Archive of old messages. Archived messages are moved from "messages" table to "messages_archive" table in blocks:
+ * each block contains messages of one chat sent in some period of time which are serialized and compressed with
+ * deflate. Messages sent at the same time are always stored in one block.
+ * <p/>
+ * Archived messages (except removed) stay in the full-text index: each of them has a row in "messages_archive_index"
+ * table which maps message id to the block and which negated id is the docid of the message in "messages_fts" table
+ * (docids of not archived messages are positive row ids of "messages" table).
+ */
+final class MessageArchive {
+
+	/**
+	 * Min number of messages in one block (block might contain more messages if they were sent at the same time)
+	 */
+	static final int BLOCK_SIZE = 200;
+
+	private static final int FORMAT_VERSION = 1;
+
+	@Nonnull
+	static final Comparator<Message> OLDEST_FIRST = new Comparator<Message>() {
+		@Override
+		public int compare(@Nonnull Message m1, @Nonnull Message m2) {
+			final long t1 = getSendTime(m1);
+			final long t2 = getSendTime(m2);
+			return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+		}
+	};
+
+	@Nonnull
+	static final Comparator<Message> NEWEST_FIRST = Collections.reverseOrder(OLDEST_FIRST);
+
+	@Nonnull
+	private final SQLiteOpenHelper sqliteOpenHelper;
+
+	@Nonnull
+	private final MessageMapper mapper;
+
+	MessageArchive(@Nonnull SQLiteOpenHelper sqliteOpenHelper, @Nonnull MessageMapper mapper) {
+		this.sqliteOpenHelper = sqliteOpenHelper;
+		this.mapper = mapper;
+	}
+
+	/**
+	 * @return number of archived messages
+	 */
+	int archiveMessages(@Nonnull String chatId, @Nonnull MessageRetentionPolicy policy, long now) {
+		return (int) doDbExec(sqliteOpenHelper, new ArchiveMessages(chatId, policy, now));
+	}
+
+	int getMessagesCount(@Nonnull String chatId) {
+		return doDbQuery(sqliteOpenHelper, new CountMessages(chatId));
+	}
+
+	/**
+	 * Method loads page of archived messages sent before <var>time</var> but not before <var>minTime</var>, see
+	 * {@link MessageDao#readMessagesBefore(String, DateTime, int)}
+	 *
+	 * @return messages ordered by send time (newest first)
+	 */
+	@Nonnull
+	List<Message> readMessagesBefore(@Nonnull String chatId, long time, long minTime, int limit) {
+		return doDbQuery(sqliteOpenHelper, new LoadMessagesPage(chatId, time, minTime, limit, true));
+	}
+
+	/**
+	 * Method loads page of archived messages sent after <var>time</var> but not after <var>maxTime</var>, see
+	 * {@link MessageDao#readMessagesAfter(String, DateTime, int)}
+	 *
+	 * @return messages ordered by send time (oldest first)
+	 */
+	@Nonnull
+	List<Message> readMessagesAfter(@Nonnull String chatId, long time, long maxTime, int limit) {
+		return doDbQuery(sqliteOpenHelper, new LoadMessagesPage(chatId, time, maxTime, limit, false));
+	}
+
+	/**
+	 * @return archived message with <var>messageId</var> or null if message is not archived (or removed)
+	 */
+	@Nullable
+	Message read(@Nonnull String messageId) {
+		final String where = "a.id = (select i.archive_id from messages_archive_index i where i.message_id = ?)";
+		final Map<String, Message> messages = doDbQuery(sqliteOpenHelper, new LoadArchivedMessages(where, new String[]{messageId}, Collections.singleton(messageId)));
+		return messages.get(messageId);
+	}
+
+	/**
+	 * @param archiveIds ids of the blocks where messages are stored
+	 * @param messageIds ids of the messages to be loaded
+	 * @return archived messages, key: message id
+	 */
+	@Nonnull
+	Map<String, Message> readMessages(@Nonnull Collection<Long> archiveIds, @Nonnull Set<String> messageIds) {
+		final Map<String, Message> result = new HashMap<String, Message>();
+		for (List<Long> archiveIdsChunk : partition(new ArrayList<Long>(archiveIds), MAX_IN_COUNT)) {
+			final List<String> selectionArgs = new ArrayList<String>(archiveIdsChunk.size());
+			for (Long archiveId : archiveIdsChunk) {
+				selectionArgs.add(String.valueOf(archiveId));
+			}
+			final String where = "a.id in " + inClause(selectionArgs);
+			result.putAll(doDbQuery(sqliteOpenHelper, new LoadArchivedMessages(where, selectionArgs.toArray(new String[selectionArgs.size()]), messageIds)));
+		}
+		return result;
+	}
+
+	/**
+	 * @return ids of archived messages (except removed) from <var>messageIds</var>
+	 */
+	@Nonnull
+	Set<String> readArchivedIds(@Nonnull Collection<String> messageIds) {
+		final Set<String> result = new HashSet<String>();
+		for (List<String> messageIdsChunk : partition(new ArrayList<String>(messageIds), MAX_IN_COUNT)) {
+			result.addAll(doDbQuery(sqliteOpenHelper, new LoadArchivedIds(messageIdsChunk)));
+		}
+		return result;
+	}
+
+	/**
+	 * Method loads archived messages (except removed) sent less than <var>maxDistance</var> ms before or after any of
+	 * <var>sendTimes</var>. Only blocks overlapping these periods are decoded.
+	 */
+	@Nonnull
+	List<Message> readMessagesNear(@Nonnull Collection<Long> sendTimes, long maxDistance) {
+		if (sendTimes.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		final List<Long> times = new ArrayList<Long>(new TreeSet<Long>(sendTimes));
+		final List<Long> archiveIds = doDbQuery(sqliteOpenHelper, new LoadBlocksNear(times, maxDistance));
+
+		final List<Message> result = new ArrayList<Message>();
+		for (List<Long> archiveIdsChunk : partition(archiveIds, MAX_IN_COUNT)) {
+			final List<String> selectionArgs = new ArrayList<String>(archiveIdsChunk.size());
+			for (Long archiveId : archiveIdsChunk) {
+				selectionArgs.add(String.valueOf(archiveId));
+			}
+			final String where = "a.id in " + inClause(selectionArgs);
+			for (Message message : doDbQuery(sqliteOpenHelper, new LoadArchivedMessages(where, selectionArgs.toArray(new String[selectionArgs.size()]), null)).values()) {
+				if (isNear(times, getSendTime(message), maxDistance)) {
+					result.add(message);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param times sorted times
+	 * @return true if there is a time in <var>times</var> within (<var>from</var> - <var>maxDistance</var>,
+	 * <var>to</var> + <var>maxDistance</var>)
+	 */
+	private static boolean isNear(@Nonnull List<Long> times, long from, long to, long maxDistance) {
+		int i = Collections.binarySearch(times, from - maxDistance);
+		// first time greater than from - maxDistance
+		i = i >= 0 ? i + 1 : -i - 1;
+		return i < times.size() && times.get(i) < to + maxDistance;
+	}
+
+	private static boolean isNear(@Nonnull List<Long> times, long time, long maxDistance) {
+		return isNear(times, time, time, maxDistance);
+	}
+
+	/**
+	 * Method adds archived <var>messages</var> of the block to the full-text index. Must be called in the same
+	 * transaction as the block is written.
+	 */
+	static void index(@Nonnull SQLiteDatabase db, long archiveId, @Nonnull List<? extends Message> messages) {
+		final ContentValues values = new ContentValues();
+		for (Message message : messages) {
+			if (message.getState() != removed) {
+				values.clear();
+				values.put("message_id", message.getId());
+				values.put("archive_id", archiveId);
+				values.put("send_time", getSendTime(message));
+				final long indexId = db.insertOrThrow("messages_archive_index", null, values);
+
+				values.clear();
+				values.put("docid", -indexId);
+				values.put("body", message.getBody());
+				db.insertOrThrow("messages_fts", null, values);
+			}
+		}
+	}
+
+	/**
+	 * @param messages messages ordered as they should be in the page
+	 * @return first <var>limit</var> messages plus all messages sent at the same time as the last of them
+	 */
+	@Nonnull
+	static List<Message> newPage(@Nonnull List<Message> messages, int limit) {
+		if (limit <= 0 || messages.size() <= limit) {
+			return messages;
+		}
+
+		int size = limit;
+		final long lastTime = getSendTime(messages.get(limit - 1));
+		while (size < messages.size() && getSendTime(messages.get(size)) == lastTime) {
+			size++;
+		}
+		return new ArrayList<Message>(messages.subList(0, size));
+	}
+
+	private static long getSendTime(@Nonnull Message message) {
+		return message.getSendDate().getMillis();
+	}
+
+	/*
+	**********************************************************************
+	*
+	*                           SERIALIZATION
+	*
+	**********************************************************************
+	*/
+
+	@Nonnull
+	static byte[] encode(@Nonnull List<? extends Message> messages) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(messages.size());
+			for (Message message : messages) {
+				final Entity entity = message.getEntity();
+				writeString(out, entity.getEntityId());
+				writeString(out, entity.getAccountId());
+				writeString(out, entity.getAccountEntityId());
+				writeString(out, message.getAuthor().getEntityId());
+				final Entity recipient = message.getRecipient();
+				writeString(out, recipient == null ? null : recipient.getEntityId());
+				out.writeLong(getSendTime(message));
+				writeString(out, message.getTitle());
+				writeString(out, message.getBody());
+				out.writeBoolean(message.isRead());
+				writeString(out, message.getState().name());
+
+				final List<AProperty> properties = new ArrayList<AProperty>(message.getProperties().getPropertiesCollection());
+				out.writeInt(properties.size());
+				for (AProperty property : properties) {
+					writeString(out, property.getName());
+					writeString(out, property.getValue());
+				}
+			}
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// in-memory streams
+			throw new AssertionError(e);
+		}
+	}
+
+	@Nonnull
+	static List<Message> decode(@Nonnull Entity chat, @Nonnull byte[] data) {
+		try {
+			final DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+			final int version = in.readByte();
+			if (version != FORMAT_VERSION) {
+				throw new IllegalStateException("Unsupported version of archived messages: " + version);
+			}
+
+			final int count = in.readInt();
+			final List<Message> result = new ArrayList<Message>(count);
+			for (int i = 0; i < count; i++) {
+				final String id = readString(in);
+				final String accountId = readString(in);
+				final String accountMessageId = readString(in);
+				final MutableMessage message = newMessage(newEntity(accountId, accountMessageId, id));
+				message.setChat(chat);
+				message.setAuthor(newEntityFromEntityId(readString(in)));
+				final String recipientId = readString(in);
+				if (recipientId != null) {
+					message.setRecipient(newEntityFromEntityId(recipientId));
+				}
+				message.setSendDate(new DateTime(in.readLong()));
+				message.setTitle(readString(in));
+				message.setBody(readString(in));
+				message.setRead(in.readBoolean());
+				message.setState(MessageState.valueOf(readString(in)));
+
+				final int propertiesCount = in.readInt();
+				final List<AProperty> properties = new ArrayList<AProperty>(propertiesCount);
+				for (int j = 0; j < propertiesCount; j++) {
+					properties.add(newProperty(readString(in), readString(in)));
+				}
+				message.setProperties(properties);
+				result.add(message);
+			}
+			return result;
+		} catch (IOException e) {
+			throw new IllegalStateException("Archived messages are corrupted", e);
+		}
+	}
+
+	private static void writeString(@Nonnull DataOutputStream out, @Nullable String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			// DataOutputStream#writeUTF is limited by 64Kb
+			final byte[] bytes = s.getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	@Nullable
+	private static String readString(@Nonnull DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			return null;
+		} else {
+			final byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, UTF_8);
+		}
+	}
+
+	/*
+	**********************************************************************
+	*
+	*                           QUERIES
+	*
+	**********************************************************************
+	*/
+
+	@Nullable
+	private static Long queryLong(@Nonnull SQLiteDatabase db, @Nonnull String sql, @Nonnull String... selectionArgs) {
+		final Cursor cursor = db.rawQuery(sql, selectionArgs);
+		try {
+			if (cursor.moveToFirst() && !cursor.isNull(0)) {
+				return cursor.getLong(0);
+			} else {
+				return null;
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private final class ArchiveMessages implements DbExec {
+
+		@Nonnull
+		private final String chatId;
+
+		@Nonnull
+		private final MessageRetentionPolicy policy;
+
+		private final long now;
+
+		private ArchiveMessages(@Nonnull String chatId, @Nonnull MessageRetentionPolicy policy, long now) {
+			this.chatId = chatId;
+			this.policy = policy;
+			this.now = now;
+		}
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			final Long chatRowId = queryLong(db, "select id from entities where entity_id = ?", chatId);
+			if (chatRowId == null) {
+				return 0;
+			}
+			final String chat = String.valueOf(chatRowId);
+
+			final long archiveTime = getArchiveTime(db, chat);
+			if (archiveTime == Long.MIN_VALUE) {
+				return 0;
+			}
+
+			long result = 0;
+			while (true) {
+				// messages are archived from the oldest, block ends at the time of BLOCK_SIZE-th message
+				final Long blockEndTime = queryLong(db, "select send_time from messages where chat_id = ? and send_time < ? order by send_time limit 1 offset " + (BLOCK_SIZE - 1), chat, String.valueOf(archiveTime));
+				final int archived = archiveBlock(db, chatRowId, blockEndTime != null ? blockEndTime : archiveTime - 1);
+				result += archived;
+				if (archived == 0 || blockEndTime == null) {
+					break;
+				}
+			}
+
+			if (result > 0) {
+				SqliteMessageDao.ChatSummaryUpdater.forChat(chatId).exec(db);
+			}
+			return result;
+		}
+
+		/**
+		 * @return send time before which (exclusively) messages of the chat should be archived
+		 */
+		private long getArchiveTime(@Nonnull SQLiteDatabase db, @Nonnull String chat) {
+			final Long minCountTime = getNthNewestSendTime(db, chat, MessageRetentionPolicy.MIN_MESSAGES_PER_CHAT);
+			if (minCountTime == null) {
+				// too few messages in the chat
+				return Long.MIN_VALUE;
+			}
+
+			long result = now - policy.getMaxAgeMillis();
+
+			final Long maxCountTime = getNthNewestSendTime(db, chat, policy.getMaxMessagesPerChat());
+			if (maxCountTime != null) {
+				result = Math.max(result, maxCountTime);
+			}
+
+			result = Math.min(result, minCountTime);
+
+			final Long unreadTime = queryLong(db, "select min(send_time) from messages where chat_id = ? and read = 0", chat);
+			if (unreadTime != null) {
+				result = Math.min(result, unreadTime);
+			}
+			return result;
+		}
+
+		@Nullable
+		private Long getNthNewestSendTime(@Nonnull SQLiteDatabase db, @Nonnull String chat, int n) {
+			return queryLong(db, "select send_time from messages where chat_id = ? order by send_time desc limit 1 offset " + (n - 1), chat);
+		}
+
+		private int archiveBlock(@Nonnull SQLiteDatabase db, long chatRowId, long maxTime) {
+			final String[] selectionArgs = {String.valueOf(chatRowId), String.valueOf(maxTime)};
+
+			final List<MutableMessage> messages = new ArrayList<MutableMessage>();
+			final Cursor cursor = db.query("messages", null, "chat_id = ? and send_time <= ?", selectionArgs, null, null, "send_time");
+			try {
+				if (cursor.moveToFirst()) {
+					while (!cursor.isAfterLast()) {
+						messages.add(mapper.convertWithoutProperties(cursor));
+						cursor.moveToNext();
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+
+			if (messages.isEmpty()) {
+				return 0;
+			}
+
+			readProperties(db, messages);
+
+			final ContentValues values = new ContentValues();
+			values.put("chat_id", chatRowId);
+			values.put("min_send_time", getSendTime(messages.get(0)));
+			values.put("max_send_time", getSendTime(messages.get(messages.size() - 1)));
+			values.put("count", messages.size());
+			values.put("data", encode(messages));
+			final long archiveId = db.insertOrThrow("messages_archive", null, values);
+			index(db, archiveId, messages);
+
+			// properties are removed by foreign key
+			db.delete("messages", "chat_id = ? and send_time <= ?", selectionArgs);
+			return messages.size();
+		}
+
+		private void readProperties(@Nonnull SQLiteDatabase db, @Nonnull List<MutableMessage> messages) {
+			for (List<MutableMessage> messagesChunk : partition(messages, MAX_IN_COUNT)) {
+				final List<String> messageIds = new ArrayList<String>(messagesChunk.size());
+				for (MutableMessage message : messagesChunk) {
+					messageIds.add(message.getId());
+				}
+
+				final LoadPropertiesByIds query = new LoadPropertiesByIds("message_properties", "message_id", messageIds);
+				final Map<String, List<AProperty>> properties;
+				final Cursor cursor = query.createCursor(db);
+				try {
+					properties = query.retrieveData(cursor);
+				} finally {
+					cursor.close();
+				}
+
+				for (MutableMessage message : messagesChunk) {
+					final List<AProperty> messageProperties = properties.get(message.getId());
+					if (messageProperties != null) {
+						message.setProperties(messageProperties);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds messages of the blocks archived before "messages_archive_index" table was created to the full-text index
+	 */
+	static final class IndexArchive implements DbExec {
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			long result = 0;
+
+			final Cursor cursor = db.rawQuery("select a.id, e.entity_id, a.data from messages_archive a, entities e where e.id = a.chat_id", null);
+			try {
+				if (cursor.moveToFirst()) {
+					while (!cursor.isAfterLast()) {
+						final List<Message> messages = decode(newEntityFromEntityId(cursor.getString(1)), cursor.getBlob(2));
+						index(db, cursor.getLong(0), messages);
+						result += messages.size();
+						cursor.moveToNext();
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Loads blocks satisfying the condition and returns messages with requested ids (all messages if ids are null) from
+	 * them
+	 */
+	private static final class LoadArchivedMessages implements DbQuery<Map<String, Message>> {
+
+		@Nonnull
+		private final String where;
+
+		@Nonnull
+		private final String[] selectionArgs;
+
+		@Nullable
+		private final Set<String> messageIds;
+
+		private LoadArchivedMessages(@Nonnull String where, @Nonnull String[] selectionArgs, @Nullable Set<String> messageIds) {
+			this.where = where;
+			this.selectionArgs = selectionArgs;
+			this.messageIds = messageIds;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select e.entity_id, a.data from messages_archive a, entities e where e.id = a.chat_id and " + where, selectionArgs);
+		}
+
+		@Nonnull
+		@Override
+		public Map<String, Message> retrieveData(@Nonnull Cursor cursor) {
+			final Map<String, Message> result = new HashMap<String, Message>();
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					for (Message message : decode(newEntityFromEntityId(cursor.getString(0)), cursor.getBlob(1))) {
+						if (message.getState() != removed && (messageIds == null || messageIds.contains(message.getId()))) {
+							result.put(message.getId(), message);
+						}
+					}
+					cursor.moveToNext();
+				}
+			}
+			return result;
+		}
+	}
+
+	private static final class LoadArchivedIds implements DbQuery<List<String>> {
+
+		@Nonnull
+		private final List<String> messageIds;
+
+		private LoadArchivedIds(@Nonnull List<String> messageIds) {
+			this.messageIds = messageIds;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select message_id from messages_archive_index where message_id in " + inClause(messageIds), messageIds.toArray(new String[messageIds.size()]));
+		}
+
+		@Nonnull
+		@Override
+		public List<String> retrieveData(@Nonnull Cursor cursor) {
+			final List<String> result = new ArrayList<String>(cursor.getCount());
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					result.add(cursor.getString(0));
+					cursor.moveToNext();
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Loads ids of the blocks which period overlaps the period around any of <var>times</var>, see
+	 * {@link #readMessagesNear(Collection, long)}
+	 */
+	private static final class LoadBlocksNear implements DbQuery<List<Long>> {
+
+		@Nonnull
+		private final List<Long> times;
+
+		private final long maxDistance;
+
+		private LoadBlocksNear(@Nonnull List<Long> times, long maxDistance) {
+			this.times = times;
+			this.maxDistance = maxDistance;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			final String minTime = String.valueOf(times.get(0) - maxDistance);
+			final String maxTime = String.valueOf(times.get(times.size() - 1) + maxDistance);
+			return db.rawQuery("select id, min_send_time, max_send_time from messages_archive where min_send_time < ? and max_send_time > ?", new String[]{maxTime, minTime});
+		}
+
+		@Nonnull
+		@Override
+		public List<Long> retrieveData(@Nonnull Cursor cursor) {
+			final List<Long> result = new ArrayList<Long>();
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					if (isNear(times, cursor.getLong(1), cursor.getLong(2), maxDistance)) {
+						result.add(cursor.getLong(0));
+					}
+					cursor.moveToNext();
+				}
+			}
+			return result;
+		}
+	}
+
+	private static final class CountMessages implements DbQuery<Integer> {
+
+		@Nonnull
+		private final String chatId;
+
+		private CountMessages(@Nonnull String chatId) {
+			this.chatId = chatId;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select sum(count) from messages_archive where chat_id = " + ROW_ID, new String[]{chatId});
+		}
+
+		@Nonnull
+		@Override
+		public Integer retrieveData(@Nonnull Cursor cursor) {
+			return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		}
+	}
+
+	/**
+	 * Loads blocks overlapping the requested period one by one (starting from the nearest to <var>time</var>) until
+	 * the page is complete
+	 */
+	private static final class LoadMessagesPage implements DbQuery<List<Message>> {
+
+		@Nonnull
+		private final String chatId;
+
+		private final long time;
+
+		private final long boundTime;
+
+		private final int limit;
+
+		private final boolean before;
+
+		private LoadMessagesPage(@Nonnull String chatId, long time, long boundTime, int limit, boolean before) {
+			this.chatId = chatId;
+			this.time = time;
+			this.boundTime = boundTime;
+			this.limit = limit;
+			this.before = before;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			final String[] selectionArgs = {chatId, String.valueOf(time), String.valueOf(boundTime)};
+			if (before) {
+				return db.rawQuery("select data, max_send_time from messages_archive where chat_id = " + ROW_ID + " and min_send_time < ? and max_send_time >= ? order by max_send_time desc", selectionArgs);
+			} else {
+				return db.rawQuery("select data, min_send_time from messages_archive where chat_id = " + ROW_ID + " and max_send_time > ? and min_send_time <= ? order by min_send_time asc", selectionArgs);
+			}
+		}
+
+		@Nonnull
+		@Override
+		public List<Message> retrieveData(@Nonnull Cursor cursor) {
+			final Comparator<Message> order = before ? NEWEST_FIRST : OLDEST_FIRST;
+			final Entity chat = newEntityFromEntityId(chatId);
+
+			List<Message> result = new ArrayList<Message>();
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					if (limit > 0 && result.size() >= limit) {
+						// blocks are ordered by the nearest send time => if the nearest send time of the block is
+						// farther than the last message of the page the rest blocks can't change the page
+						final long blockTime = cursor.getLong(1);
+						final long lastTime = getSendTime(result.get(limit - 1));
+						if (before ? blockTime < lastTime : blockTime > lastTime) {
+							break;
+						}
+					}
+
+					for (Message message : decode(chat, cursor.getBlob(0))) {
+						final long sendTime = getSendTime(message);
+						final boolean inPeriod = before ? sendTime < time && sendTime >= boundTime : sendTime > time && sendTime <= boundTime;
+						if (inPeriod && message.getState() != removed) {
+							result.add(message);
+						}
+					}
+					Collections.sort(result, order);
+					result = newPage(result, limit);
+
+					cursor.moveToNext();
+				}
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.solovyev.android.messenger.messages;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Storage format of message bodies: long bodies are stored deflated in "body_data" column ("body" column is empty then),
+ * format is stored in "body_format" column.
+ * <p/>
+ * Note that full-text index of compressed bodies is written by DAO (as triggers can't decompress them).
+ */
+final class MessageBodies {
+
+	static final int FORMAT_TEXT = 0;
+	static final int FORMAT_DEFLATE = 1;
+
+	/**
+	 * Bodies shorter than this (in UTF-8 bytes) are stored as text: compression of short texts saves too little (or
+	 * nothing at all)
+	 */
+	static final int COMPRESSION_THRESHOLD = 512;
+
+	private MessageBodies() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * @return compressed body or null if body should be stored as text
+	 */
+	@Nullable
+	static byte[] compress(@Nonnull String body) {
+		if (body.length() * 3 < COMPRESSION_THRESHOLD) {
+			// even if all characters take 3 bytes body is too short
+			return null;
+		}
+
+		final byte[] bytes = body.getBytes(UTF_8);
+		if (bytes.length < COMPRESSION_THRESHOLD) {
+			return null;
+		}
+
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+			final byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+				if (out.size() >= bytes.length) {
+					// incompressible body
+					return null;
+				}
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Nonnull
+	static String decompress(@Nonnull byte[] data) {
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+			final byte[] buffer = new byte[1024];
+			while (!inflater.finished()) {
+				final int length = inflater.inflate(buffer);
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalStateException("Compressed body is truncated");
+				}
+				out.write(buffer, 0, length);
+			}
+			return new String(out.toByteArray(), UTF_8);
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Compressed body is corrupted", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
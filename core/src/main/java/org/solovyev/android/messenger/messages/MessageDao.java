@@ -25,6 +25,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface MessageDao extends Dao<Message> {
 
@@ -34,6 +35,67 @@ public interface MessageDao extends Dao<Message> {
 	@Nonnull
 	List<Message> readMessages(@Nonnull String chatId);
 
+	/**
+	 * Method loads page of messages of a chat sent before <var>sendTime</var> (exclusively). Page contains
+	 * <var>limit</var> newest messages satisfying the condition plus all other messages which have been sent at the
+	 * same time as the oldest of them, so the next page can be loaded using the oldest send time of this page.
+	 *
+	 * @param chatId   id of a chat
+	 * @param sendTime upper bound of send time (exclusive), null for the newest messages of the chat
+	 * @param limit    max number of messages sent at different times in the page
+	 * @return messages ordered by send time (oldest first)
+	 */
+	@Nonnull
+	List<Message> readMessagesBefore(@Nonnull String chatId, @Nullable DateTime sendTime, int limit);
+
+	/**
+	 * Same as {@link #readMessagesBefore(String, DateTime, int)} but loads messages sent after <var>sendTime</var>
+	 * (exclusively)
+	 *
+	 * @param chatId   id of a chat
+	 * @param sendTime lower bound of send time (exclusive)
+	 * @param limit    max number of messages sent at different times in the page
+	 * @return messages ordered by send time (oldest first)
+	 */
+	@Nonnull
+	List<Message> readMessagesAfter(@Nonnull String chatId, @Nonnull DateTime sendTime, int limit);
+
+	/**
+	 * Method moves old messages of a chat to the archive. Archived messages are still returned by
+	 * {@link #readMessagesBefore(String, DateTime, int)}, {@link #readMessagesAfter(String, DateTime, int)},
+	 * {@link #read(String)}, {@link #searchMessages(String, int, int)},
+	 * {@link #readSameMessage(String, DateTime, Entity, Entity)} and {@link #readMergedMessages(Collection)} but not by
+	 * other methods of this DAO. Archived messages are not changed by {@link #mergeMessages(String, Collection)}.
+	 *
+	 * @param chatId id of a chat
+	 * @param policy policy which defines messages to be archived
+	 * @return number of archived messages
+	 */
+	int archiveMessages(@Nonnull String chatId, @Nonnull MessageRetentionPolicy policy);
+
+	int getArchivedMessagesCount(@Nonnull String chatId);
+
+	/**
+	 * @return ids of chats which have not archived messages
+	 */
+	@Nonnull
+	List<String> readChatIds();
+
+	/**
+	 * Method searches messages (including archived) by words of their bodies using full-text index. Each word of
+	 * <var>query</var> is matched as a prefix, message must contain all the words. Removed messages are not returned.
+	 *
+	 * @param query  text entered by user
+	 * @param limit  max number of hits to be returned
+	 * @param offset number of hits to be skipped
+	 * @return hits ordered by send time (newest first)
+	 */
+	@Nonnull
+	List<MessageSearchHit> searchMessages(@Nonnull String query, int limit, int offset);
+
+	/**
+	 * Method inserts new and updates existing messages. Archived messages are neither inserted again nor updated.
+	 */
 	@Nonnull
 	MessagesMergeDaoResult mergeMessages(@Nonnull String chatId, @Nonnull Collection<? extends Message> messages);
 
@@ -46,6 +108,14 @@ public interface MessageDao extends Dao<Message> {
 	@Nullable
 	Message readLastMessage(@Nonnull String chatId);
 
+	/**
+	 * Bulk version of {@link #readLastMessage(String)}
+	 *
+	 * @return last messages of the chats, key: chat id. Chats without messages are not in the map
+	 */
+	@Nonnull
+	Map<String, Message> readLastMessages(@Nonnull Collection<String> chatIds);
+
 	/**
 	 * @return total number of unread messages in the application
 	 */
@@ -57,9 +127,33 @@ public interface MessageDao extends Dao<Message> {
 
 	void deleteAll();
 
+	/**
+	 * Method removes all messages (including archived) of the chat. Must be called when chat is removed: in the main
+	 * database triggers on "chats" table do the same, but databases of the accounts have no such table.
+	 */
+	void deleteChatMessages(@Nonnull String chatId);
+
+	/**
+	 * Method removes messages sent by or to the user. Must be called when user is removed: in the main database
+	 * triggers on "users" table do the same, but databases of the accounts have no such table.
+	 */
+	void deleteUserMessages(@Nonnull String userId);
+
 	@Nonnull
 	List<AProperty> readPropertiesById(@Nonnull String messageId);
 
+	/**
+	 * @return message (might be archived) with the same body, author and recipient sent within a minute from
+	 * <var>sendTime</var>
+	 */
 	@Nullable
 	Message readSameMessage(@Nonnull String body, @Nonnull DateTime sendTime, @Nonnull Entity author, @Nonnull Entity recipient);
+
+	/**
+	 * Batch version of {@link #readSameMessage(String, DateTime, Entity, Entity)}
+	 *
+	 * @return messages from <var>messages</var> for which the same message is already stored
+	 */
+	@Nonnull
+	<M extends Message> List<M> readMergedMessages(@Nonnull Collection<M> messages);
 }
@@ -76,6 +76,12 @@ final class MessageImpl extends AbstractIdentifiable implements MutableMessage {
 	@Nonnull
 	private String body = "";
 
+	/**
+	 * If not null => body is not decompressed yet
+	 */
+	@Nullable
+	private volatile byte[] compressedBody;
+
 	@Nonnull
 	private MessageState state = MessageState.created;
 
@@ -156,6 +162,11 @@ final class MessageImpl extends AbstractIdentifiable implements MutableMessage {
 
 	@Nonnull
 	public String getBody() {
+		final byte[] compressedBody = this.compressedBody;
+		if (compressedBody != null) {
+			body = MessageBodies.decompress(compressedBody);
+			this.compressedBody = null;
+		}
 		return body;
 	}
 
@@ -247,7 +258,7 @@ final class MessageImpl extends AbstractIdentifiable implements MutableMessage {
 				clone.state = that.getState();
 			}
 
-			clone.body = that.getBody();
+			clone.setBody(that.getBody());
 			if (!isEmpty(that.getTitle())) {
 				clone.title = that.getTitle();
 			}
@@ -277,6 +288,13 @@ final class MessageImpl extends AbstractIdentifiable implements MutableMessage {
 	@Override
 	public void setBody(@Nonnull String body) {
 		this.body = body;
+		this.compressedBody = null;
+	}
+
+	@Override
+	public void setCompressedBody(@Nonnull byte[] compressedBody) {
+		this.body = "";
+		this.compressedBody = compressedBody;
 	}
 
 	@Nullable
@@ -349,7 +367,7 @@ final class MessageImpl extends AbstractIdentifiable implements MutableMessage {
 		return "Message{" +
 				"id=" + getEntity() +
 				", chat=" + chat +
-				", body='" + body + '\'' +
+				", body='" + getBody() + '\'' +
 				", recipient=" + recipient +
 				", author=" + author +
 				", sendDate=" + sendDate +
@@ -18,19 +18,15 @@ package org.solovyev.android.messenger.messages;
 
 import android.database.Cursor;
 
-import java.util.List;
-
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
+import org.joda.time.DateTime;
+import org.solovyev.android.messenger.db.EntityDictionary;
 import org.solovyev.android.messenger.entities.Entity;
-import org.solovyev.android.messenger.entities.EntityMapper;
-import org.solovyev.android.messenger.users.UserService;
-import org.solovyev.android.properties.AProperty;
 import org.solovyev.common.Converter;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
-import static org.solovyev.android.messenger.entities.Entities.newEntityFromEntityId;
+import static org.solovyev.android.messenger.entities.Entities.newEntity;
 import static org.solovyev.android.messenger.messages.Messages.newMessage;
 
 public class MessageMapper implements Converter<Cursor, Message> {
@@ -38,35 +34,109 @@ public class MessageMapper implements Converter<Cursor, Message> {
 	@Nonnull
 	private final MessageDao dao;
 
-	public MessageMapper(@Nonnull MessageDao dao) {
+	/**
+	 * Account, chat, author and recipient are stored as row ids of {@link EntityDictionary}
+	 */
+	@Nonnull
+	private final EntityDictionary entityDictionary;
+
+	/**
+	 * Column indices of the last mapped cursor: they are resolved once per cursor, not for each row. Cursors might be
+	 * mapped from different threads => indices are checked against the cursor before use
+	 */
+	@Nullable
+	private volatile Columns columns;
+
+	public MessageMapper(@Nonnull MessageDao dao, @Nonnull EntityDictionary entityDictionary) {
 		this.dao = dao;
+		this.entityDictionary = entityDictionary;
 	}
 
 	@Nonnull
 	@Override
 	public Message convert(@Nonnull Cursor cursor) {
-		final Entity entity = EntityMapper.newInstanceFor(0).convert(cursor);
+		final MutableMessage message = convertWithoutProperties(cursor);
+		message.setProperties(dao.readPropertiesById(message.getId()));
+		return message;
+	}
+
+	/**
+	 * Same as {@link #convert(Cursor)} but doesn't load properties of a message (so no additional query is done)
+	 */
+	@Nonnull
+	MutableMessage convertWithoutProperties(@Nonnull Cursor cursor) {
+		final Columns c = getColumns(cursor);
+
+		final String accountId = entityDictionary.getEntityId(cursor.getLong(c.accountId));
+		final Entity entity = newEntity(accountId, cursor.getString(c.accountMessageId), cursor.getString(c.id));
 
 		final MutableMessage message = newMessage(entity);
-		message.setChat(newEntityFromEntityId(cursor.getString(3)));
-		message.setAuthor(newEntityFromEntityId(cursor.getString(4)));
-		if (!cursor.isNull(5)) {
-			final String recipientId = cursor.getString(5);
-			message.setRecipient(newEntityFromEntityId(recipientId));
+		message.setChat(entityDictionary.getEntity(cursor.getLong(c.chatId)));
+		message.setAuthor(entityDictionary.getEntity(cursor.getLong(c.authorId)));
+		if (!cursor.isNull(c.recipientId)) {
+			message.setRecipient(entityDictionary.getEntity(cursor.getLong(c.recipientId)));
+		}
+		message.setState(MessageState.valueOf(cursor.getString(c.state)));
+		message.setSendDate(new DateTime(cursor.getLong(c.sendTime)));
+		message.setTitle(cursor.getString(c.title));
+		if (cursor.getInt(c.bodyFormat) == MessageBodies.FORMAT_DEFLATE) {
+			// body is decompressed only if it is requested
+			message.setCompressedBody(cursor.getBlob(c.bodyData));
+		} else {
+			message.setBody(cursor.getString(c.body));
 		}
-		message.setState(MessageState.valueOf(cursor.getString(11)));
-		final DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.basicDateTime();
+		message.setRead(cursor.getInt(c.read) == 1);
 
-		message.setSendDate(dateTimeFormatter.parseDateTime(cursor.getString(6)));
-		final Long sendTime = cursor.getLong(7);
-		message.setTitle(cursor.getString(8));
-		message.setBody(cursor.getString(9));
+		return message;
+	}
 
-		final boolean read = cursor.getInt(10) == 1;
-		message.setRead(read);
+	@Nonnull
+	private Columns getColumns(@Nonnull Cursor cursor) {
+		Columns result = columns;
+		if (result == null || result.cursor != cursor) {
+			result = new Columns(cursor);
+			columns = result;
+		}
+		return result;
+	}
 
-		message.setProperties(dao.readPropertiesById(entity.getEntityId()));
+	/**
+	 * Indices of columns of "messages" table in the cursor
+	 */
+	private static final class Columns {
 
-		return message;
+		@Nonnull
+		private final Cursor cursor;
+
+		private final int id;
+		private final int accountId;
+		private final int accountMessageId;
+		private final int chatId;
+		private final int authorId;
+		private final int recipientId;
+		private final int sendTime;
+		private final int title;
+		private final int body;
+		private final int read;
+		private final int state;
+		private final int bodyFormat;
+		private final int bodyData;
+
+		private Columns(@Nonnull Cursor cursor) {
+			this.cursor = cursor;
+			this.id = cursor.getColumnIndexOrThrow("id");
+			this.accountId = cursor.getColumnIndexOrThrow("account_id");
+			this.accountMessageId = cursor.getColumnIndexOrThrow("account_message_id");
+			this.chatId = cursor.getColumnIndexOrThrow("chat_id");
+			this.authorId = cursor.getColumnIndexOrThrow("author_id");
+			this.recipientId = cursor.getColumnIndexOrThrow("recipient_id");
+			this.sendTime = cursor.getColumnIndexOrThrow("send_time");
+			this.title = cursor.getColumnIndexOrThrow("title");
+			this.body = cursor.getColumnIndexOrThrow("body");
+			this.read = cursor.getColumnIndexOrThrow("read");
+			this.state = cursor.getColumnIndexOrThrow("state");
+			this.bodyFormat = cursor.getColumnIndexOrThrow("body_format");
+			this.bodyData = cursor.getColumnIndexOrThrow("body_data");
+		}
 	}
 }
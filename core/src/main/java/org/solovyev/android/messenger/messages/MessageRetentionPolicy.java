@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.messages;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+/**
+ * Defines which messages are moved to the archive: messages older than {@link #getMaxAgeMillis()} and messages
+ * beyond {@link #getMaxMessagesPerChat()} newest messages of a chat. Unread messages (and all messages sent after them)
+ * and {@link #MIN_MESSAGES_PER_CHAT} newest messages of a chat are never archived.
+ */
+@Immutable
+public final class MessageRetentionPolicy {
+
+	public static final int MIN_MESSAGES_PER_CHAT = 50;
+
+	private final long maxAgeMillis;
+
+	private final int maxMessagesPerChat;
+
+	private MessageRetentionPolicy(long maxAgeMillis, int maxMessagesPerChat) {
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxMessagesPerChat = Math.max(maxMessagesPerChat, MIN_MESSAGES_PER_CHAT);
+	}
+
+	@Nonnull
+	public static MessageRetentionPolicy newRetentionPolicy(int maxAgeDays, int maxMessagesPerChat) {
+		return new MessageRetentionPolicy(DAYS.toMillis(maxAgeDays), maxMessagesPerChat);
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public int getMaxMessagesPerChat() {
+		return maxMessagesPerChat;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageRetentionPolicy{" +
+				"maxAgeMillis=" + maxAgeMillis +
+				", maxMessagesPerChat=" + maxMessagesPerChat +
+				'}';
+	}
+}
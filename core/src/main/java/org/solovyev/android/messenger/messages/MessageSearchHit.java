@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.messages;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Message found by full-text search together with positions of matched terms in its body
+ */
+public final class MessageSearchHit {
+
+	@Nonnull
+	private final Message message;
+
+	@Nonnull
+	private final List<Match> matches;
+
+	MessageSearchHit(@Nonnull Message message, @Nonnull List<Match> matches) {
+		this.message = message;
+		this.matches = unmodifiableList(matches);
+	}
+
+	@Nonnull
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return matched terms ordered by their position in message body
+	 */
+	@Nonnull
+	public List<Match> getMatches() {
+		return matches;
+	}
+
+	/**
+	 * Matched term in message body, offsets are in characters of {@link Message#getBody()}
+	 */
+	public static final class Match {
+
+		private final int start;
+
+		private final int end;
+
+		Match(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * @return index of first character of matched term
+		 */
+		public int getStart() {
+			return start;
+		}
+
+		/**
+		 * @return index after last character of matched term
+		 */
+		public int getEnd() {
+			return end;
+		}
+
+		@Override
+		public String toString() {
+			return "Match{start=" + start + ", end=" + end + '}';
+		}
+	}
+}
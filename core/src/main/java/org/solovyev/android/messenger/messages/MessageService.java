@@ -25,7 +25,9 @@ import org.solovyev.android.messenger.entities.Entity;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Implementation of this class must provide thread safeness
@@ -38,9 +40,59 @@ public interface MessageService {
 	@Nonnull
 	List<Message> getMessages(@Nonnull Entity chat);
 
+	/**
+	 * @return last <var>limit</var> messages of a chat ordered by send time (oldest first)
+	 * @see MessageDao#readMessagesBefore(String, DateTime, int)
+	 */
+	@Nonnull
+	List<Message> getNewestMessages(@Nonnull Entity chat, int limit);
+
+	/**
+	 * @return messages of a chat sent before <var>sendTime</var> ordered by send time (oldest first)
+	 * @see MessageDao#readMessagesBefore(String, DateTime, int)
+	 */
+	@Nonnull
+	List<Message> getMessagesBefore(@Nonnull Entity chat, @Nonnull DateTime sendTime, int limit);
+
+	/**
+	 * @return messages of a chat sent after <var>sendTime</var> ordered by send time (oldest first)
+	 * @see MessageDao#readMessagesAfter(String, DateTime, int)
+	 */
+	@Nonnull
+	List<Message> getMessagesAfter(@Nonnull Entity chat, @Nonnull DateTime sendTime, int limit);
+
+	/**
+	 * Method moves old messages of all chats to the archive
+	 *
+	 * @return number of archived messages
+	 * @see MessageDao#archiveMessages(String, MessageRetentionPolicy)
+	 */
+	int archiveMessages(@Nonnull MessageRetentionPolicy policy);
+
+	/**
+	 * @return time when {@link #archiveMessages(MessageRetentionPolicy)} was started last time (in this or previous
+	 * process), null if it has never been started
+	 */
+	@Nullable
+	DateTime getLastArchiveDate();
+
+	/**
+	 * @return messages of all chats containing words from <var>query</var>, newest first
+	 * @see MessageDao#searchMessages(String, int, int)
+	 */
+	@Nonnull
+	List<MessageSearchHit> searchMessages(@Nonnull String query, int limit, int offset);
+
 	@Nullable
 	Message getSameMessage(@Nonnull String body, @Nonnull DateTime sendTime, @Nonnull Entity author, @Nonnull Entity recipient);
 
+	/**
+	 * @return messages from <var>messages</var> for which the same message is already stored
+	 * @see MessageDao#readMergedMessages(Collection)
+	 */
+	@Nonnull
+	<M extends Message> List<M> getMergedMessages(@Nonnull Collection<M> messages);
+
 	@Nullable
 	Message getMessage(@Nonnull String messageId);
 
@@ -52,6 +104,12 @@ public interface MessageService {
 	@Nullable
 	Message getLastMessage(@Nonnull String chatId);
 
+	/**
+	 * @return last messages of the chats loaded with one query, key: chat id. Chats without messages are not in the map
+	 */
+	@Nonnull
+	Map<String, Message> getLastMessages(@Nonnull Collection<String> chatIds);
+
 	/**
 	 * @return total number of unread messages in the application
 	 */
@@ -168,6 +168,35 @@ public class MessagesAdapter extends BaseListItemAdapter<MessageListItem> {
 		addAll(listItems);
 	}
 
+	/**
+	 * Method adds messages loaded from the storage which are older than the messages shown in the list
+	 *
+	 * @param messages older messages
+	 */
+	void addOlderMessages(@Nonnull List<Message> messages) {
+		addAll(transform(messages, new Function<Message, MessageListItem>() {
+			@Override
+			public MessageListItem apply(Message message) {
+				return newMessageListItem(message);
+			}
+		}));
+	}
+
+	/**
+	 * @return send date of the oldest message shown in the list, null if list is empty
+	 */
+	@Nullable
+	DateTime getOldestMessageSendDate() {
+		DateTime result = null;
+		for (MessageListItem listItem : getAllElements()) {
+			final DateTime sendDate = listItem.getMessage().getSendDate();
+			if (result == null || sendDate.isBefore(result)) {
+				result = sendDate;
+			}
+		}
+		return result;
+	}
+
 	private void removeTypingListItem(@Nonnull Message message) {
 		if (message.isIncoming()) {
 			final MessageListItem typingListItem = userTypingListItems.remove(message.getAuthor());
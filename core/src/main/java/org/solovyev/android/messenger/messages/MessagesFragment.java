@@ -32,6 +32,7 @@ import android.widget.TextView;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
 import com.google.inject.Inject;
+import org.joda.time.DateTime;
 import org.solovyev.android.Activities;
 import org.solovyev.android.fragments.MultiPaneFragmentDef;
 import org.solovyev.android.menu.AMenuItem;
@@ -98,6 +99,9 @@ public final class MessagesFragment extends BaseAsyncListFragment<Message, Messa
 	@Nonnull
 	private static final String ARG_CHAT = "chat";
 
+	// number of messages loaded from the storage at once
+	private static final int MESSAGES_PAGE_SIZE = 50;
+
 
     /*
 	**********************************************************************
@@ -137,6 +141,12 @@ public final class MessagesFragment extends BaseAsyncListFragment<Message, Messa
 
 	private EditText messageBody;
 
+	/**
+	 * True while older messages are loaded from the storage or synced with the account. Accessed only from the main
+	 * thread
+	 */
+	private boolean loadingOlderMessages;
+
 	public MessagesFragment() {
 		super(TAG, R.string.mpp_chat, false, false);
 	}
@@ -379,27 +389,59 @@ public final class MessagesFragment extends BaseAsyncListFragment<Message, Messa
 	public void onTopReached() {
 		super.onTopReached();
 
-		syncOlderMessages();
+		loadOlderMessages();
+	}
+
+	/**
+	 * Method loads previous page of messages from the storage. If there is nothing to load messages are requested from
+	 * the account, see {@link #syncOlderMessages()}
+	 */
+	private void loadOlderMessages() {
+		if (loadingOlderMessages) {
+			// top is reached several times while previous page is loaded
+			return;
+		}
+
+		final DateTime oldestSendDate = getAdapter().getOldestMessageSendDate();
+		if (oldestSendDate == null) {
+			syncOlderMessages();
+		} else {
+			final ListView lv = getListViewById();
+			final FragmentActivity activity = getActivity();
+			if (lv != null && activity != null) {
+				final Integer transcriptMode = disableTranscriptMode(lv);
+				loadingOlderMessages = true;
+				new OlderMessagesAsyncLoader(activity, lv, transcriptMode).executeInParallel(oldestSendDate);
+			}
+		}
+	}
+
+	@Nonnull
+	private Integer disableTranscriptMode(@Nonnull ListView lv) {
+		final Integer transcriptMode = lv.getTranscriptMode();
+		lv.setTranscriptMode(ListView.TRANSCRIPT_MODE_DISABLED);
+
+		final PublicPullToRefreshListView pullToRefreshListView = getPullToRefreshListView();
+		if (pullToRefreshListView != null) {
+			pullToRefreshListView.setRefreshingInternal(false);
+		}
+		return transcriptMode;
 	}
 
 	private void syncOlderMessages() {
 		final ListView lv = getListViewById();
 		final FragmentActivity activity = getActivity();
 		if (lv != null && activity != null) {
-			final Integer transcriptMode = lv.getTranscriptMode();
-			lv.setTranscriptMode(ListView.TRANSCRIPT_MODE_DISABLED);
-
-			final PublicPullToRefreshListView pullToRefreshListView = getPullToRefreshListView();
-			if (pullToRefreshListView != null) {
-				pullToRefreshListView.setRefreshingInternal(false);
-			}
+			final Integer transcriptMode = disableTranscriptMode(lv);
 
+			loadingOlderMessages = true;
 			new SyncMessagesForChatAsyncTask(this, activity) {
 				@Override
 				protected void onSuccessPostExecute(@Nonnull Input result) {
 					try {
 						super.onSuccessPostExecute(result);
 					} finally {
+						loadingOlderMessages = false;
 						setTranscriptMode(lv, transcriptMode);
 					}
 				}
@@ -409,6 +451,7 @@ public final class MessagesFragment extends BaseAsyncListFragment<Message, Messa
 					try {
 						super.onFailurePostExecute(e);
 					} finally {
+						loadingOlderMessages = false;
 						setTranscriptMode(lv, transcriptMode);
 					}
 				}
@@ -508,7 +551,7 @@ public final class MessagesFragment extends BaseAsyncListFragment<Message, Messa
 		@Nonnull
 		@Override
 		protected List<Message> getElements(@Nonnull Context context) {
-			return App.getMessageService().getMessages(chat.getEntity());
+			return App.getMessageService().getNewestMessages(chat.getEntity(), MESSAGES_PAGE_SIZE);
 		}
 
 		@Nonnull
@@ -518,6 +561,54 @@ public final class MessagesFragment extends BaseAsyncListFragment<Message, Messa
 		}
 	}
 
+	private class OlderMessagesAsyncLoader extends MessengerAsyncTask<DateTime, Void, List<Message>> {
+
+		@Nonnull
+		private final ListView lv;
+
+		@Nonnull
+		private final Integer transcriptMode;
+
+		private OlderMessagesAsyncLoader(@Nonnull Context context, @Nonnull ListView lv, @Nonnull Integer transcriptMode) {
+			super(context);
+			this.lv = lv;
+			this.transcriptMode = transcriptMode;
+		}
+
+		@Override
+		protected List<Message> doWork(@Nonnull List<DateTime> sendDates) {
+			assert sendDates.size() == 1;
+			return App.getMessageService().getMessagesBefore(chat.getEntity(), sendDates.get(0), MESSAGES_PAGE_SIZE);
+		}
+
+		@Override
+		protected void onSuccessPostExecute(@Nullable List<Message> messages) {
+			setTranscriptMode(lv, transcriptMode);
+			loadingOlderMessages = false;
+			if (messages == null || messages.isEmpty()) {
+				// nothing is stored locally => ask account
+				syncOlderMessages();
+			} else {
+				getAdapter().addOlderMessages(messages);
+
+				final PublicPullToRefreshListView pullToRefreshListView = getPullToRefreshListView();
+				if (pullToRefreshListView != null) {
+					pullToRefreshListView.onRefreshComplete();
+				}
+			}
+		}
+
+		@Override
+		protected void onFailurePostExecute(@Nonnull Exception e) {
+			try {
+				super.onFailurePostExecute(e);
+			} finally {
+				loadingOlderMessages = false;
+				setTranscriptMode(lv, transcriptMode);
+			}
+		}
+	}
+
 
 	/*
 	**********************************************************************
@@ -43,6 +43,12 @@ public interface MutableMessage extends Message {
 
 	void setBody(@Nonnull String body);
 
+	/**
+	 * Sets body compressed by {@link MessageBodies#compress(String)}: body is decompressed only when it is requested
+	 * first time
+	 */
+	void setCompressedBody(@Nonnull byte[] compressedBody);
+
 	void setRecipient(@Nullable Entity recipient);
 
 	void setState(@Nonnull MessageState state);
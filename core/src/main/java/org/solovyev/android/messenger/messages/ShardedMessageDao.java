@@ -0,0 +1,404 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.solovyev.android.messenger.messages;
+
+import android.app.Application;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.joda.time.DateTime;
+import org.solovyev.android.messenger.chats.ChatService;
+import org.solovyev.android.messenger.db.DatabaseShards;
+import org.solovyev.android.messenger.db.EntityDictionary;
+import org.solovyev.android.messenger.entities.Entity;
+import org.solovyev.android.messenger.users.UserService;
+import org.solovyev.android.properties.AProperty;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Iterables.transform;
+
+/**
+ * Message DAO which routes each call to the database of the account (see {@link DatabaseShards}): calls for a chat or
+ * a message go to the database of the account which owns it, calls which are not bound to an account (e.g. search or
+ * total unread count) are done in all the databases and their results are merged.
+ */
+@Singleton
+@ThreadSafe
+public class ShardedMessageDao implements MessageDao {
+
+	@Nonnull
+	private static final Comparator<MessageSearchHit> NEWEST_HIT_FIRST = new Comparator<MessageSearchHit>() {
+		@Override
+		public int compare(@Nonnull MessageSearchHit h1, @Nonnull MessageSearchHit h2) {
+			return MessageArchive.NEWEST_FIRST.compare(h1.getMessage(), h2.getMessage());
+		}
+	};
+
+    /*
+	**********************************************************************
+    *
+    *                           AUTO INJECTED FIELDS
+    *
+    **********************************************************************
+    */
+
+	@Inject
+	@Nonnull
+	private ChatService chatService;
+
+	@Inject
+	@Nonnull
+	private UserService userService;
+
+	/*
+	**********************************************************************
+	*
+	*                           FIELDS
+	*
+	**********************************************************************
+	*/
+
+	@Nonnull
+	private final Application context;
+
+	@Nonnull
+	private final SqliteMessageDao mainDao;
+
+	@Nonnull
+	private final DatabaseShards shards;
+
+	@GuardedBy("daos")
+	@Nonnull
+	private final Map<SQLiteOpenHelper, SqliteMessageDao> daos = new HashMap<SQLiteOpenHelper, SqliteMessageDao>();
+
+	@Inject
+	public ShardedMessageDao(@Nonnull Application context, @Nonnull SqliteMessageDao mainDao, @Nonnull DatabaseShards shards) {
+		this.context = context;
+		this.mainDao = mainDao;
+		this.shards = shards;
+		this.daos.put(shards.getMainDatabase(), mainDao);
+		this.shards.addListener(new DatabaseShards.Listener() {
+			@Override
+			public void onDatabaseDeleted(@Nonnull SQLiteOpenHelper database) {
+				synchronized (daos) {
+					daos.remove(database);
+				}
+			}
+		});
+	}
+
+	@Nonnull
+	private SqliteMessageDao getDao(@Nonnull SQLiteOpenHelper database) {
+		synchronized (daos) {
+			SqliteMessageDao dao = daos.get(database);
+			if (dao == null) {
+				dao = new SqliteMessageDao(context, database, new EntityDictionary(database));
+				dao.setChatService(chatService);
+				dao.setUserService(userService);
+				daos.put(database, dao);
+			}
+			return dao;
+		}
+	}
+
+	/**
+	 * @param entityId id of chat or message
+	 */
+	@Nonnull
+	private SqliteMessageDao getDaoByEntityId(@Nonnull String entityId) {
+		return getDao(shards.getDatabaseByEntityId(entityId));
+	}
+
+	@Nonnull
+	private SqliteMessageDao getDao(@Nonnull Message message) {
+		return getDao(shards.getDatabase(message.getEntity().getAccountId()));
+	}
+
+	@Nonnull
+	private List<SqliteMessageDao> getDaos() {
+		if (!shards.isSharded()) {
+			return Collections.singletonList(mainDao);
+		}
+
+		final List<SqliteMessageDao> result = new ArrayList<SqliteMessageDao>();
+		for (SQLiteOpenHelper database : shards.getDatabases()) {
+			result.add(getDao(database));
+		}
+		return result;
+	}
+
+	@Override
+	public long create(@Nonnull Message message) {
+		return getDao(message).create(message);
+	}
+
+	@Nullable
+	@Override
+	public Message read(@Nonnull String messageId) {
+		return getDaoByEntityId(messageId).read(messageId);
+	}
+
+	@Nonnull
+	@Override
+	public Collection<Message> readAll() {
+		final List<Message> result = new ArrayList<Message>();
+		for (SqliteMessageDao dao : getDaos()) {
+			result.addAll(dao.readAll());
+		}
+		return result;
+	}
+
+	@Nonnull
+	@Override
+	public Collection<String> readAllIds() {
+		final List<String> result = new ArrayList<String>();
+		for (SqliteMessageDao dao : getDaos()) {
+			result.addAll(dao.readAllIds());
+		}
+		return result;
+	}
+
+	@Nonnull
+	@Override
+	public Iterable<Message> iterateAll() {
+		return Iterables.concat(transform(getDaos(), new Function<SqliteMessageDao, Iterable<Message>>() {
+			@Override
+			public Iterable<Message> apply(@Nullable SqliteMessageDao dao) {
+				assert dao != null;
+				return dao.iterateAll();
+			}
+		}));
+	}
+
+	@Nonnull
+	@Override
+	public Iterable<String> iterateAllIds() {
+		return Iterables.concat(transform(getDaos(), new Function<SqliteMessageDao, Iterable<String>>() {
+			@Override
+			public Iterable<String> apply(@Nullable SqliteMessageDao dao) {
+				assert dao != null;
+				return dao.iterateAllIds();
+			}
+		}));
+	}
+
+	@Override
+	public long update(@Nonnull Message message) {
+		return getDao(message).update(message);
+	}
+
+	@Override
+	public void delete(@Nonnull Message message) {
+		getDao(message).delete(message);
+	}
+
+	@Override
+	public void deleteById(@Nonnull String id) {
+		getDaoByEntityId(id).deleteById(id);
+	}
+
+	@Nonnull
+	@Override
+	public List<Message> readMessages(@Nonnull String chatId) {
+		return getDaoByEntityId(chatId).readMessages(chatId);
+	}
+
+	@Nonnull
+	@Override
+	public List<Message> readMessagesBefore(@Nonnull String chatId, @Nullable DateTime sendTime, int limit) {
+		return getDaoByEntityId(chatId).readMessagesBefore(chatId, sendTime, limit);
+	}
+
+	@Nonnull
+	@Override
+	public List<Message> readMessagesAfter(@Nonnull String chatId, @Nonnull DateTime sendTime, int limit) {
+		return getDaoByEntityId(chatId).readMessagesAfter(chatId, sendTime, limit);
+	}
+
+	@Override
+	public int archiveMessages(@Nonnull String chatId, @Nonnull MessageRetentionPolicy policy) {
+		return getDaoByEntityId(chatId).archiveMessages(chatId, policy);
+	}
+
+	@Override
+	public int getArchivedMessagesCount(@Nonnull String chatId) {
+		return getDaoByEntityId(chatId).getArchivedMessagesCount(chatId);
+	}
+
+	@Nonnull
+	@Override
+	public List<String> readChatIds() {
+		final Set<String> result = new LinkedHashSet<String>();
+		for (SqliteMessageDao dao : getDaos()) {
+			result.addAll(dao.readChatIds());
+		}
+		return new ArrayList<String>(result);
+	}
+
+	@Nonnull
+	@Override
+	public List<MessageSearchHit> searchMessages(@Nonnull String query, int limit, int offset) {
+		final List<SqliteMessageDao> daos = getDaos();
+		if (daos.size() == 1) {
+			return daos.get(0).searchMessages(query, limit, offset);
+		}
+
+		// each database might contain all the hits of the requested page
+		final int databaseLimit = (int) Math.min((long) limit + offset, Integer.MAX_VALUE);
+		final List<MessageSearchHit> hits = new ArrayList<MessageSearchHit>();
+		for (SqliteMessageDao dao : daos) {
+			hits.addAll(dao.searchMessages(query, databaseLimit, 0));
+		}
+		Collections.sort(hits, NEWEST_HIT_FIRST);
+
+		if (offset >= hits.size()) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<MessageSearchHit>(hits.subList(offset, Math.min(hits.size(), databaseLimit)));
+	}
+
+	@Nonnull
+	@Override
+	public MessagesMergeDaoResult mergeMessages(@Nonnull String chatId, @Nonnull Collection<? extends Message> messages) {
+		return getDaoByEntityId(chatId).mergeMessages(chatId, messages);
+	}
+
+	@Nonnull
+	@Override
+	public List<String> readMessageIds(@Nonnull String chatId) {
+		return getDaoByEntityId(chatId).readMessageIds(chatId);
+	}
+
+	@Nonnull
+	@Override
+	public String getOldestMessageForChat(@Nonnull String chatId) {
+		return getDaoByEntityId(chatId).getOldestMessageForChat(chatId);
+	}
+
+	@Nullable
+	@Override
+	public Message readLastMessage(@Nonnull String chatId) {
+		return getDaoByEntityId(chatId).readLastMessage(chatId);
+	}
+
+	@Nonnull
+	@Override
+	public Map<String, Message> readLastMessages(@Nonnull Collection<String> chatIds) {
+		final Map<SqliteMessageDao, List<String>> chatIdsByDao = new LinkedHashMap<SqliteMessageDao, List<String>>();
+		for (String chatId : chatIds) {
+			final SqliteMessageDao dao = getDaoByEntityId(chatId);
+			List<String> daoChatIds = chatIdsByDao.get(dao);
+			if (daoChatIds == null) {
+				daoChatIds = new ArrayList<String>();
+				chatIdsByDao.put(dao, daoChatIds);
+			}
+			daoChatIds.add(chatId);
+		}
+
+		final Map<String, Message> result = new HashMap<String, Message>(chatIds.size());
+		for (Map.Entry<SqliteMessageDao, List<String>> entry : chatIdsByDao.entrySet()) {
+			result.putAll(entry.getKey().readLastMessages(entry.getValue()));
+		}
+		return result;
+	}
+
+	@Override
+	public int getUnreadMessagesCount() {
+		int result = 0;
+		for (SqliteMessageDao dao : getDaos()) {
+			result += dao.getUnreadMessagesCount();
+		}
+		return result;
+	}
+
+	@Override
+	public boolean changeReadStatus(@Nonnull String messageId, boolean read) {
+		return getDaoByEntityId(messageId).changeReadStatus(messageId, read);
+	}
+
+	@Override
+	public boolean changeMessageState(@Nonnull String messageId, @Nonnull MessageState state) {
+		return getDaoByEntityId(messageId).changeMessageState(messageId, state);
+	}
+
+	@Override
+	public void deleteAll() {
+		for (SqliteMessageDao dao : getDaos()) {
+			dao.deleteAll();
+		}
+	}
+
+	@Override
+	public void deleteChatMessages(@Nonnull String chatId) {
+		getDaoByEntityId(chatId).deleteChatMessages(chatId);
+	}
+
+	@Override
+	public void deleteUserMessages(@Nonnull String userId) {
+		getDaoByEntityId(userId).deleteUserMessages(userId);
+	}
+
+	@Nonnull
+	@Override
+	public List<AProperty> readPropertiesById(@Nonnull String messageId) {
+		return getDaoByEntityId(messageId).readPropertiesById(messageId);
+	}
+
+	@Nullable
+	@Override
+	public Message readSameMessage(@Nonnull String body, @Nonnull DateTime sendTime, @Nonnull Entity author, @Nonnull Entity recipient) {
+		return getDao(shards.getDatabase(author.getAccountId())).readSameMessage(body, sendTime, author, recipient);
+	}
+
+	@Nonnull
+	@Override
+	public <M extends Message> List<M> readMergedMessages(@Nonnull Collection<M> messages) {
+		final Map<SqliteMessageDao, List<M>> messagesByDao = new LinkedHashMap<SqliteMessageDao, List<M>>();
+		for (M message : messages) {
+			final SqliteMessageDao dao = getDao(message);
+			List<M> daoMessages = messagesByDao.get(dao);
+			if (daoMessages == null) {
+				daoMessages = new ArrayList<M>();
+				messagesByDao.put(dao, daoMessages);
+			}
+			daoMessages.add(message);
+		}
+
+		final List<M> result = new ArrayList<M>();
+		for (Map.Entry<SqliteMessageDao, List<M>> entry : messagesByDao.entrySet()) {
+			result.addAll(entry.getKey().readMergedMessages(entry.getValue()));
+		}
+		return result;
+	}
+}
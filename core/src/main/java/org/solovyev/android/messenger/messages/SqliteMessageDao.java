@@ -20,16 +20,22 @@ import android.app.Application;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
 import com.google.inject.Inject;
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.solovyev.android.db.*;
 import org.solovyev.android.db.properties.PropertyByIdDbQuery;
+import org.solovyev.android.messenger.MergePropertiesExec;
 import org.solovyev.android.messenger.chats.Chat;
 import org.solovyev.android.messenger.chats.ChatService;
+import org.solovyev.android.messenger.db.EntityDictionary;
 import org.solovyev.android.messenger.db.StringIdMapper;
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.users.UserService;
@@ -43,17 +49,42 @@ import javax.inject.Singleton;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import static android.os.SystemClock.elapsedRealtime;
+import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.collect.Iterables.getFirst;
+import static com.google.common.collect.Lists.partition;
 import static org.solovyev.android.db.AndroidDbUtils.*;
+import static org.solovyev.android.messenger.App.TAG_TIME;
+import static org.solovyev.android.messenger.db.EntityDictionary.ROW_ID;
 import static org.solovyev.android.messenger.entities.Entities.newEntityFromEntityId;
+import static org.solovyev.android.messenger.messages.MessageState.received;
 import static org.solovyev.android.messenger.messages.MessageState.removed;
 
 
 @Singleton
 public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao {
 
+	/**
+	 * Messages with same body, author and recipient sent within this period are considered the same
+	 */
+	private static final long SAME_MESSAGE_MILLIS = 60000L;
+
+	/**
+	 * Same message might be in previous, current or next bucket
+	 */
+	private static final int SAME_MESSAGE_BUCKETS = 3;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
     /*
 	**********************************************************************
     *
@@ -79,15 +110,16 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 	*/
 
 	@Nonnull
-	private final Dao<Message> dao;
+	private final MessageMapper mapper;
 
 	@Nonnull
-	private final MessageMapper mapper = new MessageMapper(SqliteMessageDao.this);
+	private final MessageArchive archive;
 
 	@Inject
-	public SqliteMessageDao(@Nonnull Application context, @Nonnull SQLiteOpenHelper sqliteOpenHelper) {
+	public SqliteMessageDao(@Nonnull Application context, @Nonnull SQLiteOpenHelper sqliteOpenHelper, @Nonnull EntityDictionary entityDictionary) {
 		super(context, sqliteOpenHelper);
-		this.dao = new SqliteDao<Message>("messages", "id", new MessageDaoMapper(), context, sqliteOpenHelper);
+		this.mapper = new MessageMapper(this, entityDictionary);
+		this.archive = new MessageArchive(sqliteOpenHelper, mapper);
 	}
 
 	@Nonnull
@@ -98,49 +130,74 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 
 	@Override
 	public long create(@Nonnull Message message) {
-		final long result = dao.create(message);
-		if (result != DbExec.SQL_ERROR) {
-			doDbExec(getSqliteOpenHelper(), new InsertProperties(message));
-		}
-		return result;
+		final MessageWrite write = new MessageWrite(message.getId(), new InsertMessage(message), new InsertProperties(message));
+		doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(write));
+		return write.getResult();
 	}
 
 	@Nullable
 	@Override
 	public Message read(@Nonnull String messageId) {
-		return dao.read(messageId);
+		final Message message = getFirst(doDbQuery(getSqliteOpenHelper(), new LoadMessage(getContext(), messageId, getSqliteOpenHelper())), null);
+		return message != null ? message : archive.read(messageId);
 	}
 
 	@Nonnull
 	@Override
 	public Collection<Message> readAll() {
-		return dao.readAll();
+		return doDbQuery(getSqliteOpenHelper(), new LoadMessage(getContext(), null, getSqliteOpenHelper()));
 	}
 
 	@Nonnull
 	@Override
 	public Collection<String> readAllIds() {
-		return dao.readAllIds();
+		return doDbQuery(getSqliteOpenHelper(), new LoadMessageIds());
+	}
+
+	@Nonnull
+	@Override
+	public Iterable<Message> iterateAll() {
+		final TableIterable<MutableMessage> messages = new TableIterable<MutableMessage>(getSqliteOpenHelper(), "messages", "*", new Converter<Cursor, MutableMessage>() {
+			@Nonnull
+			@Override
+			public MutableMessage convert(@Nonnull Cursor cursor) {
+				return mapper.convertWithoutProperties(cursor);
+			}
+		}) {
+			@Override
+			protected void onWindowLoaded(@Nonnull List<MutableMessage> window) {
+				// one query for properties of all messages in the window
+				readProperties(window);
+			}
+		};
+		return Iterables.<Message>unmodifiableIterable(messages);
+	}
+
+	@Nonnull
+	@Override
+	public Iterable<String> iterateAllIds() {
+		return new TableIterable<String>(getSqliteOpenHelper(), "messages", "id", StringIdMapper.getInstance());
 	}
 
 	@Override
 	public long update(@Nonnull Message message) {
-		final long rows = dao.update(message);
-		if (rows > 0) {
-			// message exists => can remove/insert properties
-			doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(new DeleteProperties(message), new InsertProperties(message)));
-		}
-		return rows;
+		// properties are merged only if message exists
+		final MessageWrite write = new MessageWrite(message.getId(), new UpdateMessage(message), newMergePropertiesExec(message, null));
+		doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(write));
+		return write.getResult();
 	}
 
 	@Override
 	public void delete(@Nonnull Message message) {
-		dao.delete(message);
+		doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(new MessageWrite(message.getId(), new DeleteMessage(message.getId()))));
 	}
 
 	@Override
 	public void deleteById(@Nonnull String id) {
-		dao.deleteById(id);
+		final Message message = read(id);
+		if (message != null) {
+			delete(message);
+		}
 	}
 
 	@Nonnull
@@ -149,6 +206,173 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		return doDbQuery(getSqliteOpenHelper(), new LoadMessages(getContext(), chatId, getSqliteOpenHelper()));
 	}
 
+	@Nonnull
+	@Override
+	public List<Message> readMessagesBefore(@Nonnull String chatId, @Nullable DateTime sendTime, int limit) {
+		final long time = sendTime == null ? Long.MAX_VALUE : sendTime.getMillis();
+		List<Message> messages = readMessagesPage(chatId, "send_time < ?", time, "send_time desc", limit);
+
+		// if the page is full only archived messages sent within the page can get into it
+		final long minTime = isFullPage(messages, limit) ? messages.get(messages.size() - 1).getSendDate().getMillis() : Long.MIN_VALUE;
+		final List<Message> archivedMessages = archive.readMessagesBefore(chatId, time, minTime, limit);
+		if (!archivedMessages.isEmpty()) {
+			messages.addAll(archivedMessages);
+			Collections.sort(messages, MessageArchive.NEWEST_FIRST);
+			messages = MessageArchive.newPage(messages, limit);
+		}
+
+		Collections.reverse(messages);
+		return messages;
+	}
+
+	@Nonnull
+	@Override
+	public List<Message> readMessagesAfter(@Nonnull String chatId, @Nonnull DateTime sendTime, int limit) {
+		final long time = sendTime.getMillis();
+		List<Message> messages = readMessagesPage(chatId, "send_time > ?", time, "send_time asc", limit);
+
+		final long maxTime = isFullPage(messages, limit) ? messages.get(messages.size() - 1).getSendDate().getMillis() : Long.MAX_VALUE;
+		final List<Message> archivedMessages = archive.readMessagesAfter(chatId, time, maxTime, limit);
+		if (!archivedMessages.isEmpty()) {
+			messages.addAll(archivedMessages);
+			Collections.sort(messages, MessageArchive.OLDEST_FIRST);
+			messages = MessageArchive.newPage(messages, limit);
+		}
+
+		return messages;
+	}
+
+	private static boolean isFullPage(@Nonnull List<Message> messages, int limit) {
+		return limit > 0 && messages.size() >= limit;
+	}
+
+	@Override
+	public int archiveMessages(@Nonnull String chatId, @Nonnull MessageRetentionPolicy policy) {
+		return archive.archiveMessages(chatId, policy, System.currentTimeMillis());
+	}
+
+	@Override
+	public int getArchivedMessagesCount(@Nonnull String chatId) {
+		return archive.getMessagesCount(chatId);
+	}
+
+	@Nonnull
+	@Override
+	public List<String> readChatIds() {
+		return doDbQuery(getSqliteOpenHelper(), new LoadChatIds());
+	}
+
+	@Nonnull
+	@Override
+	public List<MessageSearchHit> searchMessages(@Nonnull String query, int limit, int offset) {
+		final String ftsQuery = toFtsQuery(query);
+		if (ftsQuery.length() == 0) {
+			return Collections.emptyList();
+		}
+
+		final long start = elapsedRealtime();
+		final List<FoundMessage> foundMessages = doDbQuery(getSqliteOpenHelper(), new SearchMessages(ftsQuery, limit, offset));
+
+		final List<String> messageIds = new ArrayList<String>();
+		final Set<Long> archiveIds = new HashSet<Long>();
+		final Set<String> archivedMessageIds = new HashSet<String>();
+		for (FoundMessage foundMessage : foundMessages) {
+			if (foundMessage.archiveId == null) {
+				messageIds.add(foundMessage.id);
+			} else {
+				archiveIds.add(foundMessage.archiveId);
+				archivedMessageIds.add(foundMessage.id);
+			}
+		}
+
+		final Map<String, Message> messages = new HashMap<String, Message>(foundMessages.size());
+		for (List<String> messageIdsChunk : partition(messageIds, MAX_IN_COUNT)) {
+			final List<MutableMessage> messagesChunk = doDbQuery(getSqliteOpenHelper(), new LoadMessagesByIds(messageIdsChunk));
+			readProperties(messagesChunk);
+			for (MutableMessage message : messagesChunk) {
+				messages.put(message.getId(), message);
+			}
+		}
+		if (!archiveIds.isEmpty()) {
+			messages.putAll(archive.readMessages(archiveIds, archivedMessageIds));
+		}
+
+		final List<MessageSearchHit> result = new ArrayList<MessageSearchHit>(foundMessages.size());
+		for (FoundMessage foundMessage : foundMessages) {
+			final Message message = messages.get(foundMessage.id);
+			if (message != null) {
+				result.add(new MessageSearchHit(message, toMatches(message.getBody(), foundMessage.offsets)));
+			}
+		}
+		Log.d(TAG_TIME, "Search of '" + query + "' found " + result.size() + " messages in " + (elapsedRealtime() - start) + " ms");
+		return result;
+	}
+
+	/**
+	 * Converts user's input to the FTS query: each word is searched as prefix, all words must be present in message.
+	 * Quotes are removed from the input so it can't break the query syntax.
+	 */
+	@Nonnull
+	static String toFtsQuery(@Nonnull String query) {
+		final StringBuilder result = new StringBuilder();
+		for (String word : query.replace('"', ' ').trim().split("\\s+")) {
+			if (word.length() > 0) {
+				if (result.length() > 0) {
+					result.append(' ');
+				}
+				result.append('"').append(word).append("*\"");
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Converts result of FTS offsets() function to the list of matches. offsets() returns space separated list of
+	 * integers, four integers per match: column, term, byte offset and size in bytes. Bytes are counted in UTF-8.
+	 */
+	@Nonnull
+	static List<MessageSearchHit.Match> toMatches(@Nonnull String body, @Nonnull String offsets) {
+		final List<MessageSearchHit.Match> result = new ArrayList<MessageSearchHit.Match>();
+
+		final String[] values = offsets.trim().split(" ");
+		if (values.length >= 4) {
+			final byte[] bytes = body.getBytes(UTF_8);
+			for (int i = 0; i + 3 < values.length; i += 4) {
+				final int byteStart = Integer.parseInt(values[i + 2]);
+				final int byteEnd = byteStart + Integer.parseInt(values[i + 3]);
+				if (byteEnd <= bytes.length) {
+					final int start = new String(bytes, 0, byteStart, UTF_8).length();
+					final int end = start + new String(bytes, byteStart, byteEnd - byteStart, UTF_8).length();
+					result.add(new MessageSearchHit.Match(start, end));
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@Nonnull
+	private List<Message> readMessagesPage(@Nonnull String chatId, @Nonnull String timeCondition, long time, @Nonnull String orderBy, int limit) {
+		final List<Message> messages = new ArrayList<Message>(doDbQuery(getSqliteOpenHelper(), new LoadMessagesPage(chatId, timeCondition, time, orderBy, String.valueOf(limit))));
+		if (limit > 0 && messages.size() >= limit) {
+			// messages sent at the same time as the last message in the page must be in the same page as next page is
+			// loaded using strict inequality
+			final long lastTime = messages.get(messages.size() - 1).getSendDate().getMillis();
+
+			final Set<String> messageIds = new HashSet<String>();
+			for (Message message : messages) {
+				messageIds.add(message.getId());
+			}
+
+			for (Message message : doDbQuery(getSqliteOpenHelper(), new LoadMessagesPage(chatId, "send_time = ?", lastTime, orderBy, null))) {
+				if (messageIds.add(message.getId())) {
+					messages.add(message);
+				}
+			}
+		}
+		return messages;
+	}
+
 	@Nonnull
 	@Override
 	public String getOldestMessageForChat(@Nonnull String chatId) {
@@ -167,6 +391,20 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		}
 	}
 
+	@Nonnull
+	@Override
+	public Map<String, Message> readLastMessages(@Nonnull Collection<String> chatIds) {
+		final Map<String, Message> result = new HashMap<String, Message>(chatIds.size());
+		for (List<String> chatIdsChunk : partition(new ArrayList<String>(chatIds), MAX_IN_COUNT)) {
+			final List<MutableMessage> messages = doDbQuery(getSqliteOpenHelper(), new LoadLastMessages(chatIdsChunk));
+			readProperties(messages);
+			for (MutableMessage message : messages) {
+				result.put(message.getChat().getEntityId(), message);
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public int getUnreadMessagesCount() {
 		return doDbQuery(getSqliteOpenHelper(), new UnreadMessagesCountLoader(getContext(), getSqliteOpenHelper()));
@@ -186,7 +424,17 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 
 	@Override
 	public void deleteAll() {
-		doDbExec(getSqliteOpenHelper(), DeleteAllRowsDbExec.newInstance("messages"));
+		doDbExecs(getSqliteOpenHelper(), Arrays.asList(DeleteAllRowsDbExec.newInstance("messages"), DeleteAllRowsDbExec.newInstance("messages_archive"), DeleteAllRowsDbExec.newInstance("chat_summary")));
+	}
+
+	@Override
+	public void deleteChatMessages(@Nonnull String chatId) {
+		doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(new DeleteChatMessages(chatId)));
+	}
+
+	@Override
+	public void deleteUserMessages(@Nonnull String userId) {
+		doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(new DeleteUserMessages(userId)));
 	}
 
 	@Nonnull
@@ -198,19 +446,98 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 	@Nullable
 	@Override
 	public Message readSameMessage(@Nonnull String body, @Nonnull DateTime sendTime, @Nonnull Entity author, @Nonnull Entity recipient) {
-		return getFirst(doDbQuery(getSqliteOpenHelper(), new LoadSameMessage(body, sendTime, author, recipient)), null);
+		final Message result = getFirst(doDbQuery(getSqliteOpenHelper(), new LoadSameMessage(body, sendTime, author, recipient)), null);
+		if (result != null) {
+			return result;
+		}
+
+		// same message might be already archived
+		for (Message archivedMessage : archive.readMessagesNear(Collections.singleton(sendTime.getMillis()), SAME_MESSAGE_MILLIS)) {
+			if (newMessageKey(archivedMessage).isSame(body, sendTime.getMillis(), author, recipient)) {
+				return archivedMessage;
+			}
+		}
+		return null;
+	}
+
+	@Nonnull
+	@Override
+	public <M extends Message> List<M> readMergedMessages(@Nonnull Collection<M> messages) {
+		final List<M> result = new ArrayList<M>();
+
+		final List<M> checkedMessages = new ArrayList<M>(messages.size());
+		for (M message : messages) {
+			// same as in readSameMessage: message without recipient has no same message
+			if (message.getRecipient() != null) {
+				checkedMessages.add(message);
+			}
+		}
+
+		final List<M> notFoundMessages = new ArrayList<M>();
+
+		// each message is looked up in several time buckets
+		for (List<M> chunk : partition(checkedMessages, MAX_IN_COUNT / SAME_MESSAGE_BUCKETS)) {
+			final Set<String> dedupKeys = new HashSet<String>();
+			for (M message : chunk) {
+				for (long dedupKey : getDedupKeys(message)) {
+					dedupKeys.add(String.valueOf(dedupKey));
+				}
+			}
+
+			final Multimap<Long, MessageKey> storedKeys = doDbQuery(getSqliteOpenHelper(), new LoadMessageKeys(new ArrayList<String>(dedupKeys)));
+			for (M message : chunk) {
+				if (hasSameMessage(message, storedKeys)) {
+					result.add(message);
+				} else {
+					notFoundMessages.add(message);
+				}
+			}
+		}
+
+		if (!notFoundMessages.isEmpty()) {
+			// same messages might be already archived
+			final List<Long> sendTimes = new ArrayList<Long>(notFoundMessages.size());
+			for (M message : notFoundMessages) {
+				sendTimes.add(message.getSendDate().getMillis());
+			}
+
+			final List<MessageKey> archivedKeys = new ArrayList<MessageKey>();
+			for (Message archivedMessage : archive.readMessagesNear(sendTimes, SAME_MESSAGE_MILLIS)) {
+				archivedKeys.add(newMessageKey(archivedMessage));
+			}
+
+			for (M message : notFoundMessages) {
+				for (MessageKey archivedKey : archivedKeys) {
+					if (archivedKey.isSame(message)) {
+						result.add(message);
+						break;
+					}
+				}
+			}
+		}
+
+		return result;
 	}
 
 	@Nonnull
 	@Override
 	public MessagesMergeDaoResult mergeMessages(@Nonnull String chatId, @Nonnull Collection<? extends Message> messages) {
+		final long start = elapsedRealtime();
 		final MessagesMergeDaoResult result = new MessagesMergeDaoResult();
 
 		final Chat chat = getChatService().getChatById(newEntityFromEntityId(chatId));
 
 		if (chat != null) {
+			final Map<String, Message> messagesFromDb = readMessagesByIds(messages);
+			final Set<String> archivedIds = readArchivedIds(messages, messagesFromDb);
 			for (Message message : messages) {
-				final Message messageFromDb = read(message.getId());
+				if (archivedIds.contains(message.getId())) {
+					// archived messages are read-only: message must not be inserted again as then it is shown twice
+					// and can't be archived (archive index is unique by message id)
+					continue;
+				}
+
+				final Message messageFromDb = messagesFromDb.get(message.getId());
 				if (messageFromDb == null) {
 					result.addAddedMessage(message);
 				} else {
@@ -224,25 +551,80 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 				}
 			}
 
-			final List<DbExec> execs = new ArrayList<DbExec>();
-
+			final Set<String> chatIds = new HashSet<String>();
+			chatIds.add(chatId);
 			for (Message updatedMessage : result.getUpdatedObjects()) {
-				execs.add(new UpdateMessage(updatedMessage));
-				execs.add(new DeleteProperties(updatedMessage));
-				execs.add(new InsertProperties(updatedMessage));
+				chatIds.add(updatedMessage.getChat().getEntityId());
 			}
-
 			for (Message addedMessage : result.getAddedObjects()) {
-				execs.add(new InsertMessage(addedMessage));
-				execs.add(new InsertProperties(addedMessage));
+				chatIds.add(addedMessage.getChat().getEntityId());
 			}
 
-			doDbExecs(getSqliteOpenHelper(), execs);
+			doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(new MergeMessages(result.getUpdatedObjects(), messagesFromDb, result.getAddedObjects(), chatIds)));
+		}
+
+		Log.d(TAG_TIME, "Merge of " + messages.size() + " messages (added: " + result.getAddedObjects().size() + ", updated: " + result.getUpdatedObjects().size() + ") in chat " + chatId + " took " + (elapsedRealtime() - start) + " ms");
+		return result;
+	}
+
+	/**
+	 * Method loads messages (with their properties) in chunks of {@link AndroidDbUtils#MAX_IN_COUNT} elements
+	 *
+	 * @param messages messages to be loaded
+	 * @return map of messages found in the storage, key: message id
+	 */
+	@Nonnull
+	private Map<String, Message> readMessagesByIds(@Nonnull Collection<? extends Message> messages) {
+		final List<String> messageIds = new ArrayList<String>(messages.size());
+		for (Message message : messages) {
+			messageIds.add(message.getId());
 		}
 
+		final Map<String, Message> result = new HashMap<String, Message>(messageIds.size());
+		for (List<String> messageIdsChunk : partition(messageIds, MAX_IN_COUNT)) {
+			final List<MutableMessage> messagesChunk = doDbQuery(getSqliteOpenHelper(), new LoadMessagesByIds(messageIdsChunk));
+			readProperties(messagesChunk);
+			for (MutableMessage message : messagesChunk) {
+				result.put(message.getId(), message);
+			}
+		}
 		return result;
 	}
 
+	/**
+	 * @return ids of archived messages among <var>messages</var> not found in "messages" table
+	 */
+	@Nonnull
+	private Set<String> readArchivedIds(@Nonnull Collection<? extends Message> messages, @Nonnull Map<String, Message> messagesFromDb) {
+		final List<String> messageIds = new ArrayList<String>();
+		for (Message message : messages) {
+			if (!messagesFromDb.containsKey(message.getId())) {
+				messageIds.add(message.getId());
+			}
+		}
+		return messageIds.isEmpty() ? Collections.<String>emptySet() : archive.readArchivedIds(messageIds);
+	}
+
+	/**
+	 * Method loads properties of <var>messages</var> with one query per {@link AndroidDbUtils#MAX_IN_COUNT} messages
+	 */
+	private void readProperties(@Nonnull List<MutableMessage> messages) {
+		for (List<MutableMessage> messagesChunk : partition(messages, MAX_IN_COUNT)) {
+			final List<String> messageIds = new ArrayList<String>(messagesChunk.size());
+			for (MutableMessage message : messagesChunk) {
+				messageIds.add(message.getId());
+			}
+
+			final Map<String, List<AProperty>> properties = doDbQuery(getSqliteOpenHelper(), new LoadPropertiesByIds("message_properties", "message_id", messageIds));
+			for (MutableMessage message : messagesChunk) {
+				final List<AProperty> messageProperties = properties.get(message.getId());
+				if (messageProperties != null) {
+					message.setProperties(messageProperties);
+				}
+			}
+		}
+	}
+
 	@Nonnull
 	private ChatService getChatService() {
 		return this.chatService;
@@ -277,7 +659,7 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			return db.query("messages", null, "chat_id = ?", new String[]{chatId}, null, null, null);
+			return db.query("messages", null, "chat_id = " + ROW_ID, new String[]{chatId}, null, null, null);
 		}
 
 		@Nonnull
@@ -297,9 +679,13 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		public long exec(@Nonnull SQLiteDatabase db) {
 			final Message message = getNotNullObject();
 
-			final ContentValues values = toContentValues(message);
+			final ContentValues values = toContentValues(message, new EntityDictionary.RowIds(db));
 
-			return db.insert("messages", null, values);
+			final long rowId = db.insert("messages", null, values);
+			if (rowId != SQL_ERROR && isCompressed(values)) {
+				indexCompressedBody(db, rowId, message.getBody());
+			}
+			return rowId;
 		}
 	}
 
@@ -313,27 +699,122 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		public long exec(@Nonnull SQLiteDatabase db) {
 			final Message message = getNotNullObject();
 
-			final ContentValues values = toContentValues(message);
+			final ContentValues values = toContentValues(message, new EntityDictionary.RowIds(db));
+
+			final long rows = db.update("messages", values, "id = ?", new String[]{message.getId()});
+			if (rows > 0 && isCompressed(values)) {
+				indexCompressedBody(db, readRowId(db, message.getId()), message.getBody());
+			}
+			return rows;
+		}
+	}
+
+	private static final class DeleteChatMessages implements DbExec {
+
+		@Nonnull
+		private final String chatId;
+
+		private DeleteChatMessages(@Nonnull String chatId) {
+			this.chatId = chatId;
+		}
 
-			return db.update("messages", values, "id = ?", new String[]{String.valueOf(message.getEntity().getEntityId())});
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			final String[] args = new String[]{chatId};
+			db.delete("messages_archive", "chat_id = " + ROW_ID, args);
+			db.delete("chat_summary", "chat_id = ?", args);
+			return db.delete("messages", "chat_id = " + ROW_ID, args);
 		}
 	}
 
-	private class MessageDaoMapper implements SqliteDaoEntityMapper<Message> {
+	/**
+	 * Removes messages of the user and recalculates summaries of the chats they were removed from
+	 */
+	private static final class DeleteUserMessages implements DbExec {
 
 		@Nonnull
+		private final String userId;
+
+		private DeleteUserMessages(@Nonnull String userId) {
+			this.userId = userId;
+		}
+
 		@Override
-		public ContentValues toContentValues(@Nonnull Message message) {
-			return SqliteMessageDao.toContentValues(message);
+		public long exec(@Nonnull SQLiteDatabase db) {
+			final String where = "author_id = " + ROW_ID + " or recipient_id = " + ROW_ID;
+			final String[] args = new String[]{userId, userId};
+
+			final List<String> chatIds = new ArrayList<String>();
+			final Cursor cursor = db.rawQuery("select e.entity_id from entities e where e.id in (select distinct chat_id from messages where " + where + ")", args);
+			try {
+				chatIds.addAll(new ListMapper<String>(StringIdMapper.getInstance()).convert(cursor));
+			} finally {
+				cursor.close();
+			}
+
+			final long rows = db.delete("messages", where, args);
+			for (String chatId : chatIds) {
+				ChatSummaryUpdater.forChat(chatId).exec(db);
+			}
+			return rows;
 		}
+	}
+
+	private static final class DeleteMessage implements DbExec {
 
 		@Nonnull
+		private final String messageId;
+
+		private DeleteMessage(@Nonnull String messageId) {
+			this.messageId = messageId;
+		}
+
 		@Override
-		public Converter<Cursor, Message> getCursorMapper() {
-			return mapper;
+		public long exec(@Nonnull SQLiteDatabase db) {
+			return db.delete("messages", "id = ?", new String[]{messageId});
 		}
 	}
 
+	/**
+	 * Write of one message: <var>followingExecs</var> (e.g. properties) and update of the chat summary are executed in
+	 * the same transaction and only if the message has been written
+	 */
+	private static final class MessageWrite implements DbExec {
+
+		@Nonnull
+		private final String messageId;
+
+		@Nonnull
+		private final DbExec messageExec;
+
+		@Nonnull
+		private final List<DbExec> followingExecs;
+
+		private long result = SQL_ERROR;
+
+		private MessageWrite(@Nonnull String messageId, @Nonnull DbExec messageExec, @Nonnull DbExec... followingExecs) {
+			this.messageId = messageId;
+			this.messageExec = messageExec;
+			this.followingExecs = Arrays.asList(followingExecs);
+		}
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			final SummarizedMessage before = SummarizedMessage.read(db, messageId);
+			result = messageExec.exec(db);
+			if (result > 0) {
+				for (DbExec followingExec : followingExecs) {
+					followingExec.exec(db);
+				}
+				ChatSummaryDelta.apply(db, before, SummarizedMessage.read(db, messageId));
+			}
+			return result;
+		}
+
+		public long getResult() {
+			return result;
+		}
+	}
 
 	private final class LoadMessages extends AbstractDbQuery<List<Message>> {
 
@@ -350,7 +831,7 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			return db.query("messages", null, "chat_id = ? and state <> ?", new String[]{chatId, removed.name()}, null, null, null);
+			return db.query("messages", null, "chat_id = " + ROW_ID + " and state <> ?", new String[]{chatId, removed.name()}, null, null, null);
 		}
 
 		@Nonnull
@@ -360,13 +841,83 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		}
 	}
 
-	private final class LoadMessage extends AbstractDbQuery<List<Message>> {
+	private static final class LoadMessageIds implements DbQuery<List<String>> {
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.query("messages", new String[]{"id"}, null, null, null, null, null);
+		}
+
+		@Nonnull
+		@Override
+		public List<String> retrieveData(@Nonnull Cursor cursor) {
+			return new ListMapper<String>(StringIdMapper.getInstance()).convert(cursor);
+		}
+	}
+
+	private static final class LoadChatIds implements DbQuery<List<String>> {
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select e.entity_id from entities e where e.id in (select distinct chat_id from messages)", null);
+		}
+
+		@Nonnull
+		@Override
+		public List<String> retrieveData(@Nonnull Cursor cursor) {
+			return new ListMapper<String>(StringIdMapper.getInstance()).convert(cursor);
+		}
+	}
+
+	private final class LoadMessagesPage implements DbQuery<List<Message>> {
+
+		@Nonnull
+		private final String chatId;
+
+		@Nonnull
+		private final String timeCondition;
+
+		private final long time;
+
+		@Nonnull
+		private final String orderBy;
+
+		@Nullable
+		private final String limit;
+
+		private LoadMessagesPage(@Nonnull String chatId, @Nonnull String timeCondition, long time, @Nonnull String orderBy, @Nullable String limit) {
+			this.chatId = chatId;
+			this.timeCondition = timeCondition;
+			this.time = time;
+			this.orderBy = orderBy;
+			this.limit = limit;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.query("messages", null, "chat_id = " + ROW_ID + " and state <> ? and " + timeCondition, new String[]{chatId, removed.name(), String.valueOf(time)}, null, null, orderBy, limit);
+		}
 
 		@Nonnull
+		@Override
+		public List<Message> retrieveData(@Nonnull Cursor cursor) {
+			return new ListMapper<Message>(mapper).convert(cursor);
+		}
+	}
+
+	/**
+	 * Loads message with <var>messageId</var> or all messages if <var>messageId</var> is null
+	 */
+	private final class LoadMessage extends AbstractDbQuery<List<Message>> {
+
+		@Nullable
 		private final String messageId;
 
 		private LoadMessage(@Nonnull Context context,
-							@Nonnull String messageId,
+							@Nullable String messageId,
 							@Nonnull SQLiteOpenHelper sqliteOpenHelper) {
 			super(context, sqliteOpenHelper);
 			this.messageId = messageId;
@@ -375,7 +926,11 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			return db.query("messages", null, "id = ? ", new String[]{String.valueOf(messageId)}, null, null, null);
+			if (messageId != null) {
+				return db.query("messages", null, "id = ? ", new String[]{messageId}, null, null, null);
+			} else {
+				return db.query("messages", null, null, null, null, null, null);
+			}
 		}
 
 		@Nonnull
@@ -398,7 +953,7 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			return db.rawQuery("select id from messages where chat_id = ? and state <> ? order by send_time asc", new String[]{chatId, removed.name()});
+			return db.rawQuery("select id from messages where chat_id = " + ROW_ID + " and state <> ? order by send_time asc limit 1", new String[]{chatId, removed.name()});
 		}
 
 		@Nonnull
@@ -425,7 +980,7 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			return db.rawQuery("select id from messages where chat_id = ? and state <> ? order by send_time desc", new String[]{chatId, removed.name()});
+			return db.rawQuery("select id from messages where chat_id = " + ROW_ID + " and state <> ? order by send_time desc limit 1", new String[]{chatId, removed.name()});
 		}
 
 		@Nonnull
@@ -439,30 +994,415 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		}
 	}
 
+	/**
+	 * Loads last message of each chat with one query: last message is found by "messages_chat_id_send_time_index" for
+	 * each chat separately
+	 */
+	private final class LoadLastMessages implements DbQuery<List<MutableMessage>> {
+
+		@Nonnull
+		private final List<String> chatIds;
+
+		private LoadLastMessages(@Nonnull List<String> chatIds) {
+			this.chatIds = chatIds;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select * from messages where rowid in " +
+					"(select (select m.rowid from messages m where m.chat_id = e.id and m.state <> '" + removed.name() + "' order by m.send_time desc limit 1) " +
+					"from entities e where e.entity_id in " + inClause(chatIds) + ")", chatIds.toArray(new String[chatIds.size()]));
+		}
+
+		@Nonnull
+		@Override
+		public List<MutableMessage> retrieveData(@Nonnull Cursor cursor) {
+			final List<MutableMessage> result = new ArrayList<MutableMessage>(cursor.getCount());
+
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					result.add(mapper.convertWithoutProperties(cursor));
+					cursor.moveToNext();
+				}
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Merges messages using precompiled statements. Note that columns are bound in the same order for insert and
+	 * update statements: message id is the last.
+	 */
+	private static final class MergeMessages implements DbExec {
+
+		@Nonnull
+		private static final String INSERT_MESSAGE = "insert into messages (account_id, account_message_id, chat_id, author_id, recipient_id, send_time, title, body, read, state, dedup_key, body_format, body_data, id) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+		@Nonnull
+		private static final String UPDATE_MESSAGE = "update messages set account_id = ?, account_message_id = ?, chat_id = ?, author_id = ?, recipient_id = ?, send_time = ?, title = ?, body = ?, read = ?, state = ?, dedup_key = ?, body_format = ?, body_data = ? where id = ?";
+
+		@Nonnull
+		private final Collection<Message> updatedMessages;
+
+		/**
+		 * Messages stored in the database before the merge, key: message id
+		 */
+		@Nonnull
+		private final Map<String, Message> oldMessages;
+
+		@Nonnull
+		private final Collection<Message> addedMessages;
+
+		@Nonnull
+		private final Collection<String> chatIds;
+
+		private MergeMessages(@Nonnull Collection<Message> updatedMessages, @Nonnull Map<String, Message> oldMessages, @Nonnull Collection<Message> addedMessages, @Nonnull Collection<String> chatIds) {
+			this.updatedMessages = updatedMessages;
+			this.oldMessages = oldMessages;
+			this.addedMessages = addedMessages;
+			this.chatIds = chatIds;
+		}
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			long result = 0;
+
+			final SQLiteStatement insertMessage = db.compileStatement(INSERT_MESSAGE);
+			final SQLiteStatement updateMessage = db.compileStatement(UPDATE_MESSAGE);
+			final SQLiteStatement insertProperty = db.compileStatement("insert into message_properties (message_id, property_name, property_value) values (?, ?, ?)");
+			final EntityDictionary.RowIds rowIds = new EntityDictionary.RowIds(db);
+			try {
+				for (Message message : updatedMessages) {
+					final boolean compressed = bindMessage(updateMessage, message, rowIds);
+					updateMessage.execute();
+					if (compressed) {
+						indexCompressedBody(db, readRowId(db, message.getId()), message.getBody());
+					}
+
+					if (newMergePropertiesExec(message, oldMessages.get(message.getId())).exec(db) == SQL_ERROR) {
+						result = SQL_ERROR;
+					}
+				}
+
+				for (Message message : addedMessages) {
+					final boolean compressed = bindMessage(insertMessage, message, rowIds);
+					final long rowId = insertMessage.executeInsert();
+					if (rowId == SQL_ERROR) {
+						result = SQL_ERROR;
+					} else if (compressed) {
+						indexCompressedBody(db, rowId, message.getBody());
+					}
+
+					if (insertProperties(insertProperty, message) == SQL_ERROR) {
+						result = SQL_ERROR;
+					}
+				}
+			} finally {
+				insertMessage.close();
+				updateMessage.close();
+				insertProperty.close();
+			}
+
+			for (String chatId : chatIds) {
+				ChatSummaryUpdater.forChat(chatId).exec(db);
+			}
+
+			return result;
+		}
+
+		private static long insertProperties(@Nonnull SQLiteStatement insertProperty, @Nonnull Message message) {
+			long result = 0;
+
+			for (AProperty property : message.getProperties().getPropertiesCollection()) {
+				final String value = property.getValue();
+				if (value != null) {
+					insertProperty.bindString(1, message.getEntity().getEntityId());
+					insertProperty.bindString(2, property.getName());
+					insertProperty.bindString(3, value);
+					if (insertProperty.executeInsert() == SQL_ERROR) {
+						result = SQL_ERROR;
+					}
+				}
+			}
+
+			return result;
+		}
+
+		/**
+		 * @return true if body of the message is bound compressed
+		 */
+		private static boolean bindMessage(@Nonnull SQLiteStatement statement, @Nonnull Message message, @Nonnull EntityDictionary.RowIds rowIds) {
+			final Entity entity = message.getEntity();
+			statement.bindLong(1, rowIds.get(entity.getAccountId()));
+			statement.bindString(2, entity.getAccountEntityId());
+			statement.bindLong(3, rowIds.get(message.getChat().getEntityId()));
+			statement.bindLong(4, rowIds.get(message.getAuthor().getEntityId()));
+			final Entity recipient = message.getRecipient();
+			if (recipient == null) {
+				statement.bindNull(5);
+			} else {
+				statement.bindLong(5, rowIds.get(recipient.getEntityId()));
+			}
+			statement.bindLong(6, message.getSendDate().getMillis());
+			bindNullable(statement, 7, message.getTitle());
+			final byte[] compressedBody = MessageBodies.compress(message.getBody());
+			if (compressedBody == null) {
+				statement.bindString(8, message.getBody());
+			} else {
+				statement.bindString(8, "");
+			}
+			statement.bindLong(9, message.isRead() ? 1 : 0);
+			statement.bindString(10, message.getState().name());
+			statement.bindLong(11, getDedupKey(message));
+			if (compressedBody == null) {
+				statement.bindLong(12, MessageBodies.FORMAT_TEXT);
+				statement.bindNull(13);
+			} else {
+				statement.bindLong(12, MessageBodies.FORMAT_DEFLATE);
+				statement.bindBlob(13, compressedBody);
+			}
+			statement.bindString(14, entity.getEntityId());
+			return compressedBody != null;
+		}
+
+		private static void bindNullable(@Nonnull SQLiteStatement statement, int index, @Nullable String value) {
+			if (value == null) {
+				statement.bindNull(index);
+			} else {
+				statement.bindString(index, value);
+			}
+		}
+	}
+
+	private final class LoadMessagesByIds implements DbQuery<List<MutableMessage>> {
+
+		@Nonnull
+		private final List<String> messageIds;
+
+		private LoadMessagesByIds(@Nonnull List<String> messageIds) {
+			this.messageIds = messageIds;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.query("messages", null, "id in " + inClause(messageIds), messageIds.toArray(new String[messageIds.size()]), null, null, null);
+		}
+
+		@Nonnull
+		@Override
+		public List<MutableMessage> retrieveData(@Nonnull Cursor cursor) {
+			final List<MutableMessage> result = new ArrayList<MutableMessage>(cursor.getCount());
+
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					result.add(mapper.convertWithoutProperties(cursor));
+					cursor.moveToNext();
+				}
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Message found by full-text search: either stored in "messages" table or archived (see {@link MessageArchive})
+	 */
+	private static final class FoundMessage {
+
+		@Nonnull
+		private final String id;
+
+		// null if message is not archived
+		@Nullable
+		private final Long archiveId;
+
+		@Nonnull
+		private final String offsets;
+
+		private FoundMessage(@Nonnull String id, @Nullable Long archiveId, @Nonnull String offsets) {
+			this.id = id;
+			this.archiveId = archiveId;
+			this.offsets = offsets;
+		}
+	}
+
+	/**
+	 * Loads messages (including archived) matching FTS query, newest first, together with result of FTS offsets()
+	 * function for each of them
+	 */
+	private static final class SearchMessages implements DbQuery<List<FoundMessage>> {
+
+		@Nonnull
+		private final String ftsQuery;
+
+		private final int limit;
+
+		private final int offset;
+
+		private SearchMessages(@Nonnull String ftsQuery, int limit, int offset) {
+			this.ftsQuery = ftsQuery;
+			this.limit = limit;
+			this.offset = offset;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			// docids of archived messages are negated ids of "messages_archive_index" table
+			return db.rawQuery("select m.id, null as archive_id, m.send_time as send_time, offsets(messages_fts) from messages_fts, messages m where messages_fts match ? and m.rowid = messages_fts.docid and m.state <> ? " +
+					"union all " +
+					"select a.message_id, a.archive_id, a.send_time, offsets(messages_fts) from messages_fts, messages_archive_index a where messages_fts match ? and a.id = -messages_fts.docid " +
+					"order by send_time desc limit " + limit + " offset " + offset, new String[]{ftsQuery, removed.name(), ftsQuery});
+		}
+
+		@Nonnull
+		@Override
+		public List<FoundMessage> retrieveData(@Nonnull Cursor cursor) {
+			final List<FoundMessage> result = new ArrayList<FoundMessage>(cursor.getCount());
+
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					final Long archiveId = cursor.isNull(1) ? null : cursor.getLong(1);
+					result.add(new FoundMessage(cursor.getString(0), archiveId, cursor.getString(3)));
+					cursor.moveToNext();
+				}
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * @param message    message which properties should be saved
+	 * @param oldMessage message as it is stored in the database, if null => properties will be loaded from the database
+	 * @return exec which writes only changed properties
+	 */
 	@Nonnull
-	private static ContentValues toContentValues(@Nonnull Message message) {
-		final DateTimeFormatter dateTimeFormatter = ISODateTimeFormat.basicDateTime();
+	private static MergePropertiesExec newMergePropertiesExec(@Nonnull Message message, @Nullable Message oldMessage) {
+		final Collection<AProperty> oldProperties = oldMessage == null ? null : oldMessage.getProperties().getPropertiesCollection();
+		return new MergePropertiesExec(message.getEntity(), "message_properties", "message_id", message.getProperties().getPropertiesCollection(), oldProperties);
+	}
+
+	/**
+	 * @return hash of normalized body, author, recipient and send time bucket of the message. Hashes might collide and
+	 * same messages might be in adjacent buckets => dedup key only narrows down the search of the same message
+	 */
+	private static long getDedupKey(@Nonnull Message message) {
+		final Entity recipient = message.getRecipient();
+		return getDedupKey(message.getBody(), message.getAuthor().getEntityId(), recipient == null ? null : recipient.getEntityId(), getSameMessageBucket(message.getSendDate().getMillis()));
+	}
+
+	/**
+	 * @return dedup keys of all buckets where the same message might be stored
+	 */
+	@Nonnull
+	private static long[] getDedupKeys(@Nonnull String body, long sendTime, @Nonnull String authorId, @Nonnull String recipientId) {
+		final long bucket = getSameMessageBucket(sendTime);
+		final long[] result = new long[SAME_MESSAGE_BUCKETS];
+		for (int i = 0; i < SAME_MESSAGE_BUCKETS; i++) {
+			result[i] = getDedupKey(body, authorId, recipientId, bucket - 1 + i);
+		}
+		return result;
+	}
+
+	@Nonnull
+	private static long[] getDedupKeys(@Nonnull Message message) {
+		return getDedupKeys(message.getBody(), message.getSendDate().getMillis(), message.getAuthor().getEntityId(), message.getRecipient().getEntityId());
+	}
+
+	private static boolean hasSameMessage(@Nonnull Message message, @Nonnull Multimap<Long, MessageKey> storedKeys) {
+		for (long dedupKey : getDedupKeys(message)) {
+			for (MessageKey storedKey : storedKeys.get(dedupKey)) {
+				if (storedKey.isSame(message)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static long getSameMessageBucket(long sendTime) {
+		return sendTime / SAME_MESSAGE_MILLIS;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of all the arguments
+	 */
+	private static long getDedupKey(@Nonnull String body, @Nonnull String authorId, @Nullable String recipientId, long bucket) {
+		long result = FNV_OFFSET_BASIS;
+		result = hash(result, body.trim());
+		result = hash(result, authorId);
+		result = hash(result, recipientId == null ? "" : recipientId);
+		result = hash(result, String.valueOf(bucket));
+		return result;
+	}
 
+	private static long hash(long hash, @Nonnull String s) {
+		for (int i = 0; i < s.length(); i++) {
+			hash ^= s.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		// separator
+		hash *= FNV_PRIME;
+		return hash;
+	}
+
+	@Nonnull
+	private static ContentValues toContentValues(@Nonnull Message message, @Nonnull EntityDictionary.RowIds rowIds) {
 		final ContentValues values = new ContentValues();
 
 		final Entity entity = message.getEntity();
 		values.put("id", entity.getEntityId());
-		values.put("account_id", entity.getAccountId());
+		values.put("account_id", rowIds.get(entity.getAccountId()));
 		values.put("account_message_id", entity.getAccountEntityId());
 
-		values.put("chat_id", message.getChat().getEntityId());
-		values.put("author_id", message.getAuthor().getEntityId());
+		values.put("chat_id", rowIds.get(message.getChat().getEntityId()));
+		values.put("author_id", rowIds.get(message.getAuthor().getEntityId()));
 		final Entity recipient = message.getRecipient();
-		values.put("recipient_id", recipient == null ? null : recipient.getEntityId());
-		values.put("send_date", dateTimeFormatter.print(message.getSendDate()));
+		values.put("recipient_id", recipient == null ? null : rowIds.get(recipient.getEntityId()));
 		values.put("send_time", message.getSendDate().getMillis());
 		values.put("title", message.getTitle());
-		values.put("body", message.getBody());
+		final byte[] compressedBody = MessageBodies.compress(message.getBody());
+		if (compressedBody == null) {
+			values.put("body", message.getBody());
+			values.put("body_format", MessageBodies.FORMAT_TEXT);
+			values.putNull("body_data");
+		} else {
+			values.put("body", "");
+			values.put("body_format", MessageBodies.FORMAT_DEFLATE);
+			values.put("body_data", compressedBody);
+		}
 		values.put("read", message.isRead() ? 1 : 0);
 		values.put("state", message.getState().name());
+		values.put("dedup_key", getDedupKey(message));
 		return values;
 	}
 
+	private static boolean isCompressed(@Nonnull ContentValues values) {
+		return values.getAsInteger("body_format") != MessageBodies.FORMAT_TEXT;
+	}
+
+	private static long readRowId(@Nonnull SQLiteDatabase db, @Nonnull String messageId) {
+		return DatabaseUtils.longForQuery(db, "select rowid from messages where id = ?", new String[]{messageId});
+	}
+
+	/**
+	 * Full-text index is updated by triggers only for bodies stored as text => compressed bodies must be indexed here.
+	 * Must be called in the same transaction as the message is written.
+	 */
+	private static void indexCompressedBody(@Nonnull SQLiteDatabase db, long rowId, @Nonnull String body) {
+		final String[] whereArgs = {String.valueOf(rowId)};
+		db.delete("messages_fts", "docid = ?", whereArgs);
+
+		final ContentValues values = new ContentValues();
+		values.put("docid", rowId);
+		values.put("body", body);
+		db.insert("messages_fts", null, values);
+	}
+
 	private static class UnreadMessagesCountLoader extends AbstractDbQuery<Integer> {
 
 		private UnreadMessagesCountLoader(@Nonnull Context context, @Nonnull SQLiteOpenHelper sqliteOpenHelper) {
@@ -472,7 +1412,7 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			return db.rawQuery("select count(*) from messages where read = 0 and and state <> ?", new String[]{removed.name()});
+			return db.rawQuery("select count(*) from messages where read = 0 and state <> ?", new String[]{removed.name()});
 		}
 
 		@Nonnull
@@ -503,7 +1443,12 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 			final ContentValues values = new ContentValues();
 			final int newReadValue = read ? 1 : 0;
 			values.put("read", newReadValue);
-			return db.update("messages", values, "id = ? and read <> ?", new String[]{messageId, String.valueOf(newReadValue)});
+			final SummarizedMessage before = SummarizedMessage.read(db, messageId);
+			final long rows = db.update("messages", values, "id = ? and read <> ?", new String[]{messageId, String.valueOf(newReadValue)});
+			if (rows > 0) {
+				ChatSummaryDelta.apply(db, before, SummarizedMessage.read(db, messageId));
+			}
+			return rows;
 		}
 	}
 
@@ -524,28 +1469,172 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		public long exec(@Nonnull SQLiteDatabase db) {
 			final ContentValues values = new ContentValues();
 			values.put("state", state.name());
-			return db.update("messages", values, "id = ?", new String[]{messageId});
+			final SummarizedMessage before = SummarizedMessage.read(db, messageId);
+			final long rows = db.update("messages", values, "id = ?", new String[]{messageId});
+			if (rows > 0) {
+				ChatSummaryDelta.apply(db, before, SummarizedMessage.read(db, messageId));
+			}
+			return rows;
 		}
 	}
 
-	private static final class LoadPropertiesDbQuery extends PropertyByIdDbQuery {
+	/**
+	 * Recalculates row of denormalized "chat_summary" table for a chat. Should be executed in the same transaction
+	 * as changes of messages of the chat. All subqueries are served by the indexes on "messages" table, but counts are
+	 * proportional to the size of the chat => recalculation is used only when many messages of the chat are changed
+	 * (merge, archiving) or to repair the summary. Changes of one message are applied by {@link ChatSummaryDelta}.
+	 * <p/>
+	 * Only tables of the message storage are used => updater works both in the main database and in the account
+	 * databases (see {@link org.solovyev.android.messenger.db.DatabaseShards}). No row is created for a chat which never
+	 * had messages.
+	 */
+	public static final class ChatSummaryUpdater implements DbExec {
 
-		public LoadPropertiesDbQuery(@Nonnull String messageId, @Nonnull Context context, @Nonnull SQLiteOpenHelper sqliteOpenHelper) {
-			super(context, sqliteOpenHelper, "message_properties", "message_id", messageId);
-		}
-	}
+		@Nonnull
+		private static final String SQL = "insert or replace into chat_summary (chat_id, last_message_id, last_send_time, unread_count, message_count) " +
+				"select e.entity_id, " +
+				"(select m.id from messages m where m.chat_id = e.id and m.state <> '" + removed.name() + "' order by m.send_time desc limit 1), " +
+				"(select max(m.send_time) from messages m where m.chat_id = e.id and m.state <> '" + removed.name() + "'), " +
+				"(select count(*) from messages m where m.chat_id = e.id and m.read = 0 and m.state = '" + received.name() + "'), " +
+				"(select count(*) from messages m where m.chat_id = e.id and m.state <> '" + removed.name() + "') " +
+				"from entities e where ";
 
-	private static final class DeleteProperties extends AbstractObjectDbExec<Message> {
+		@Nonnull
+		private final String where;
 
-		private DeleteProperties(@Nonnull Message message) {
-			super(message);
+		@Nonnull
+		private final String id;
+
+		private ChatSummaryUpdater(@Nonnull String where, @Nonnull String id) {
+			this.where = where;
+			this.id = id;
+		}
+
+		@Nonnull
+		public static ChatSummaryUpdater forChat(@Nonnull String chatId) {
+			return new ChatSummaryUpdater("e.entity_id = ?", chatId);
 		}
 
 		@Override
 		public long exec(@Nonnull SQLiteDatabase db) {
-			final Message message = getNotNullObject();
+			db.execSQL(SQL + where, new Object[]{id});
+			return 1;
+		}
+	}
+
+	/**
+	 * State of the message which matters for "chat_summary"
+	 */
+	private static final class SummarizedMessage {
+
+		@Nonnull
+		private final String id;
+
+		private final long chatRowId;
+
+		private final long sendTime;
+
+		private final boolean unread;
+
+		// removed messages are not counted
+		private final boolean counted;
 
-			return db.delete("message_properties", "message_id = ?", new String[]{String.valueOf(message.getEntity().getEntityId())});
+		private SummarizedMessage(@Nonnull String id, long chatRowId, long sendTime, boolean unread, boolean counted) {
+			this.id = id;
+			this.chatRowId = chatRowId;
+			this.sendTime = sendTime;
+			this.unread = unread;
+			this.counted = counted;
+		}
+
+		@Nullable
+		private static SummarizedMessage read(@Nonnull SQLiteDatabase db, @Nonnull String messageId) {
+			final Cursor cursor = db.rawQuery("select chat_id, send_time, read, state from messages where id = ?", new String[]{messageId});
+			try {
+				if (cursor.moveToFirst()) {
+					final String state = cursor.getString(3);
+					final boolean unread = cursor.getInt(2) == 0 && received.name().equals(state);
+					return new SummarizedMessage(messageId, cursor.getLong(0), cursor.getLong(1), unread, !removed.name().equals(state));
+				} else {
+					return null;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		private int getUnreadCount() {
+			return unread ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Applies change of one message to "chat_summary": counters are changed by +/-1 and last message of the chat is
+	 * looked up (with index) only if current last message might have been removed from the chat. Must be executed in the
+	 * same transaction as the change of the message.
+	 */
+	private static final class ChatSummaryDelta {
+
+		@Nonnull
+		private static final String CHAT_ID = "chat_id = (select e.entity_id from entities e where e.id = ?)";
+
+		private ChatSummaryDelta() {
+			throw new AssertionError();
+		}
+
+		/**
+		 * @param before state of the message before the change, null if message has been created
+		 * @param after  state of the message after the change, null if message has been deleted
+		 */
+		static void apply(@Nonnull SQLiteDatabase db, @Nullable SummarizedMessage before, @Nullable SummarizedMessage after) {
+			final boolean countedBefore = before != null && before.counted;
+			final boolean countedAfter = after != null && after.counted;
+
+			if (countedBefore && countedAfter && before.chatRowId == after.chatRowId) {
+				changeCounters(db, after.chatRowId, 0, after.getUnreadCount() - before.getUnreadCount());
+				if (after.sendTime < before.sendTime) {
+					// message might not be the last one anymore
+					updateLastMessage(db, after.chatRowId);
+				} else if (after.sendTime > before.sendTime) {
+					setLastMessageIfNewer(db, after);
+				}
+			} else {
+				if (countedBefore) {
+					changeCounters(db, before.chatRowId, -1, -before.getUnreadCount());
+					updateLastMessage(db, before.chatRowId);
+				}
+
+				if (countedAfter) {
+					// first message of the chat => no row yet
+					db.execSQL("insert or ignore into chat_summary (chat_id, unread_count, message_count) select e.entity_id, 0, 0 from entities e where e.id = ?", new Object[]{after.chatRowId});
+					changeCounters(db, after.chatRowId, 1, after.getUnreadCount());
+					setLastMessageIfNewer(db, after);
+				}
+			}
+		}
+
+		private static void changeCounters(@Nonnull SQLiteDatabase db, long chatRowId, int messagesDelta, int unreadDelta) {
+			if (messagesDelta != 0 || unreadDelta != 0) {
+				db.execSQL("update chat_summary set message_count = message_count + ?, unread_count = unread_count + ? where " + CHAT_ID, new Object[]{messagesDelta, unreadDelta, chatRowId});
+			}
+		}
+
+		private static void setLastMessageIfNewer(@Nonnull SQLiteDatabase db, @Nonnull SummarizedMessage message) {
+			db.execSQL("update chat_summary set last_message_id = ?, last_send_time = ? where " + CHAT_ID + " and (last_send_time is null or last_send_time <= ?)", new Object[]{message.id, message.sendTime, message.chatRowId, message.sendTime});
+		}
+
+		private static void updateLastMessage(@Nonnull SQLiteDatabase db, long chatRowId) {
+			db.execSQL("update chat_summary set " +
+					"last_message_id = (select m.id from messages m where m.chat_id = ? and m.state <> '" + removed.name() + "' order by m.send_time desc limit 1), " +
+					"last_send_time = (select max(m.send_time) from messages m where m.chat_id = ? and m.state <> '" + removed.name() + "') " +
+					"where " + CHAT_ID, new Object[]{chatRowId, chatRowId, chatRowId});
+		}
+	}
+
+	private static final class LoadPropertiesDbQuery extends PropertyByIdDbQuery {
+
+		public LoadPropertiesDbQuery(@Nonnull String messageId, @Nonnull Context context, @Nonnull SQLiteOpenHelper sqliteOpenHelper) {
+			super(context, sqliteOpenHelper, "message_properties", "message_id", messageId);
 		}
 	}
 
@@ -603,14 +1692,188 @@ public class SqliteMessageDao extends AbstractSQLiteHelper implements MessageDao
 		@Nonnull
 		@Override
 		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
-			final String sendTime = String.valueOf(this.sendTime.getMillis());
-			return db.query("messages", null, "body = ? and author_id = ? and recipient_id = ? and abs(send_time - ?) < 60000", new String[]{body, author.getEntityId(), recipient.getEntityId(), sendTime}, null, null, null);
+			final long sendTime = this.sendTime.getMillis();
+
+			final List<String> selectionArgs = new ArrayList<String>();
+			for (long dedupKey : getDedupKeys(body, sendTime, author.getEntityId(), recipient.getEntityId())) {
+				selectionArgs.add(String.valueOf(dedupKey));
+			}
+			final String selection = "dedup_key in " + inClause(selectionArgs) + " and (body = ? or body_format <> " + MessageBodies.FORMAT_TEXT + ") and author_id = " + ROW_ID + " and recipient_id = " + ROW_ID + " and abs(send_time - ?) < " + SAME_MESSAGE_MILLIS;
+			selectionArgs.addAll(Arrays.asList(body, author.getEntityId(), recipient.getEntityId(), String.valueOf(sendTime)));
+			return db.query("messages", null, selection, selectionArgs.toArray(new String[selectionArgs.size()]), null, null, null);
 		}
 
 		@Nonnull
 		@Override
 		public List<Message> retrieveData(@Nonnull Cursor cursor) {
-			return new ListMapper<Message>(mapper).convert(cursor);
+			final List<Message> result = new ArrayList<Message>();
+			for (Message message : new ListMapper<Message>(mapper).convert(cursor)) {
+				// compressed bodies can't be compared in SQL
+				if (message.getBody().equals(body)) {
+					result.add(message);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Loads keys of messages which dedup key is in <var>dedupKeys</var>, result is indexed by dedup key
+	 */
+	private static final class LoadMessageKeys implements DbQuery<Multimap<Long, MessageKey>> {
+
+		@Nonnull
+		private final List<String> dedupKeys;
+
+		private LoadMessageKeys(@Nonnull List<String> dedupKeys) {
+			this.dedupKeys = dedupKeys;
+		}
+
+		@Nonnull
+		@Override
+		public Cursor createCursor(@Nonnull SQLiteDatabase db) {
+			return db.rawQuery("select m.dedup_key, m.body, a.entity_id, r.entity_id, m.send_time, m.body_format, m.body_data from messages m join entities a on a.id = m.author_id left join entities r on r.id = m.recipient_id where m.dedup_key in " + inClause(dedupKeys), dedupKeys.toArray(new String[dedupKeys.size()]));
+		}
+
+		@Nonnull
+		@Override
+		public Multimap<Long, MessageKey> retrieveData(@Nonnull Cursor cursor) {
+			final Multimap<Long, MessageKey> result = ArrayListMultimap.create();
+
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					final String body = cursor.getInt(5) == MessageBodies.FORMAT_DEFLATE ? MessageBodies.decompress(cursor.getBlob(6)) : cursor.getString(1);
+					result.put(cursor.getLong(0), new MessageKey(body, cursor.getString(2), cursor.getString(3), cursor.getLong(4)));
+					cursor.moveToNext();
+				}
+			}
+
+			return result;
+		}
+	}
+
+	@Nonnull
+	private static MessageKey newMessageKey(@Nonnull Message message) {
+		final Entity recipient = message.getRecipient();
+		return new MessageKey(message.getBody(), message.getAuthor().getEntityId(), recipient == null ? null : recipient.getEntityId(), message.getSendDate().getMillis());
+	}
+
+	/**
+	 * Fields of stored message which are compared in {@link #readSameMessage(String, DateTime, Entity, Entity)}
+	 */
+	private static final class MessageKey {
+
+		@Nonnull
+		private final String body;
+
+		@Nonnull
+		private final String authorId;
+
+		@Nullable
+		private final String recipientId;
+
+		private final long sendTime;
+
+		private MessageKey(@Nonnull String body, @Nonnull String authorId, @Nullable String recipientId, long sendTime) {
+			this.body = body;
+			this.authorId = authorId;
+			this.recipientId = recipientId;
+			this.sendTime = sendTime;
+		}
+
+		private boolean isSame(@Nonnull Message message) {
+			final Entity recipient = message.getRecipient();
+			return recipient != null && isSame(message.getBody(), message.getSendDate().getMillis(), message.getAuthor(), recipient);
+		}
+
+		private boolean isSame(@Nonnull String body, long sendTime, @Nonnull Entity author, @Nonnull Entity recipient) {
+			return recipient.getEntityId().equals(recipientId)
+					&& author.getEntityId().equals(authorId)
+					&& body.equals(this.body)
+					&& Math.abs(sendTime - this.sendTime) < SAME_MESSAGE_MILLIS;
+		}
+	}
+
+	/**
+	 * Compresses long bodies of messages stored before body_format column was added. Full-text index is not changed as
+	 * the text of bodies stays the same.
+	 */
+	public static final class LongBodiesCompressor implements DbExec {
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			long result = 0;
+
+			final Cursor cursor = db.rawQuery("select id, body from messages where body_format = ? and length(body) * 3 >= ?", new String[]{String.valueOf(MessageBodies.FORMAT_TEXT), String.valueOf(MessageBodies.COMPRESSION_THRESHOLD)});
+			final SQLiteStatement updateBody = db.compileStatement("update messages set body = '', body_format = ?, body_data = ? where id = ?");
+			try {
+				if (cursor.moveToFirst()) {
+					while (!cursor.isAfterLast()) {
+						final byte[] compressedBody = MessageBodies.compress(cursor.getString(1));
+						if (compressedBody != null) {
+							updateBody.bindLong(1, MessageBodies.FORMAT_DEFLATE);
+							updateBody.bindBlob(2, compressedBody);
+							updateBody.bindString(3, cursor.getString(0));
+							updateBody.execute();
+							result++;
+						}
+						cursor.moveToNext();
+					}
+				}
+			} finally {
+				updateBody.close();
+				cursor.close();
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Adds messages archived before "messages_archive_index" table was created to the full-text index
+	 */
+	public static final class ArchiveIndexer implements DbExec {
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			return new MessageArchive.IndexArchive().exec(db);
+		}
+	}
+
+	/**
+	 * Calculates dedup keys of messages stored before dedup_key column was added (keys can't be calculated in SQL script)
+	 */
+	public static final class DedupKeysUpdater implements DbExec {
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			final Map<String, Long> dedupKeys = new HashMap<String, Long>();
+
+			final Cursor cursor = db.rawQuery("select m.id, m.body, a.entity_id, r.entity_id, m.send_time from messages m join entities a on a.id = m.author_id left join entities r on r.id = m.recipient_id where m.dedup_key is null", null);
+			try {
+				if (cursor.moveToFirst()) {
+					while (!cursor.isAfterLast()) {
+						final long bucket = getSameMessageBucket(cursor.getLong(4));
+						dedupKeys.put(cursor.getString(0), getDedupKey(cursor.getString(1), cursor.getString(2), cursor.getString(3), bucket));
+						cursor.moveToNext();
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+
+			final SQLiteStatement updateDedupKey = db.compileStatement("update messages set dedup_key = ? where id = ?");
+			try {
+				for (Map.Entry<String, Long> entry : dedupKeys.entrySet()) {
+					updateDedupKey.bindLong(1, entry.getValue());
+					updateDedupKey.bindString(2, entry.getKey());
+					updateDedupKey.execute();
+				}
+			} finally {
+				updateDedupKey.close();
+			}
+
+			return dedupKeys.size();
 		}
 	}
-}
+}
\ No newline at end of file
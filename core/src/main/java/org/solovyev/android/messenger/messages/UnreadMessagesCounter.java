@@ -90,7 +90,7 @@ public final class UnreadMessagesCounter {
     */
 
 	@Nonnull
-	private final Object lock;
+	private final PersistenceLock lock;
 
 	@Nonnull
 	private final AtomicInteger counter = new AtomicInteger(0);
@@ -118,11 +118,19 @@ public final class UnreadMessagesCounter {
 	}
 
 	private void updateCounters() {
-		synchronized (lock) {
+		final Map<Entity, Integer> unreadChats;
+		lock.readLock().lock();
+		try {
+			unreadChats = chatService.getUnreadChats();
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		synchronized (counter) {
 			countersByChats.clear();
 			counter.set(0);
 
-			for (Map.Entry<Entity, Integer> entry : chatService.getUnreadChats().entrySet()) {
+			for (Map.Entry<Entity, Integer> entry : unreadChats.entrySet()) {
 				final Integer unreadInChat = entry.getValue();
 				if (unreadInChat > 0) {
 					final Entity chat = entry.getKey();
@@ -133,9 +141,9 @@ public final class UnreadMessagesCounter {
 					}
 				}
 			}
-
-			fireCounterChanged(false);
 		}
+
+		fireCounterChanged(false);
 	}
 
 	private void onMessageRead(@Nonnull Chat chat) {
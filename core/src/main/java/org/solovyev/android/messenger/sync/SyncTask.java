@@ -16,17 +16,21 @@
 
 package org.solovyev.android.messenger.sync;
 
+import android.content.SharedPreferences;
 import android.util.Log;
 import org.joda.time.DateTime;
 import org.solovyev.android.messenger.App;
+import org.solovyev.android.messenger.MessengerPreferences;
 import org.solovyev.android.messenger.accounts.Account;
 import org.solovyev.android.messenger.accounts.AccountException;
 import org.solovyev.android.messenger.accounts.AccountService;
 import org.solovyev.android.messenger.accounts.UnsupportedAccountException;
+import org.solovyev.android.messenger.db.DatabaseMaintenance;
 
 import javax.annotation.Nonnull;
 
 import static org.solovyev.android.messenger.App.*;
+import static org.solovyev.android.messenger.messages.MessageRetentionPolicy.newRetentionPolicy;
 
 public enum SyncTask {
 
@@ -106,6 +110,57 @@ public enum SyncTask {
 		protected void doTask0(@Nonnull SyncData syncData) throws AccountException {
 			getChatService().syncMessages(getAccountService().getAccountById(syncData.getAccountId()));
 		}
+	},
+
+	messages_archive {
+		@Override
+		public boolean isTime(@Nonnull SyncData syncData) {
+			boolean result = false;
+
+			// archive is common for all accounts => last archive date is not stored in account's sync data
+			final DateTime lastArchiveDate = getMessageService().getLastArchiveDate();
+			if (lastArchiveDate == null || lastArchiveDate.plusDays(1).isBefore(DateTime.now())) {
+				result = true;
+			}
+
+			return result;
+		}
+
+		@Override
+		protected void doTask0(@Nonnull SyncData syncData) {
+			final SharedPreferences preferences = getPreferences();
+			final Integer maxAgeDays = MessengerPreferences.Messages.Archive.maxAgeDays.getPreference(preferences);
+			final Integer maxMessagesPerChat = MessengerPreferences.Messages.Archive.maxMessagesPerChat.getPreference(preferences);
+			getMessageService().archiveMessages(newRetentionPolicy(maxAgeDays, maxMessagesPerChat));
+		}
+	},
+
+	/**
+	 * Goes after {@link #messages_archive} so that space freed by archiving is reclaimed
+	 */
+	db_maintenance {
+		@Override
+		public boolean isTime(@Nonnull SyncData syncData) {
+			boolean result = false;
+
+			// maintenance is common for all accounts => last maintenance date is not stored in account's sync data
+			final DatabaseMaintenance maintenance = getDatabaseMaintenance();
+			final DateTime lastMaintenanceDate = maintenance.getLastMaintenanceDate();
+			if (lastMaintenanceDate == null || lastMaintenanceDate.plusDays(1).isBefore(DateTime.now())) {
+				result = maintenance.isDeviceIdle();
+			}
+
+			return result;
+		}
+
+		@Override
+		protected void doTask0(@Nonnull SyncData syncData) {
+			final DatabaseMaintenance maintenance = getDatabaseMaintenance();
+			// forced synchronization (e.g. after account is created) must not start maintenance while user is active
+			if (maintenance.isDeviceIdle()) {
+				maintenance.maintain();
+			}
+		}
 	};
 
 	private static final String TAG = newTag("SyncTask");
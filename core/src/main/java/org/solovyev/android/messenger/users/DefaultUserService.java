@@ -21,17 +21,21 @@ import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import org.solovyev.android.messenger.EntityAwareByIdFinder;
 import org.solovyev.android.messenger.MergeDaoResult;
 import org.solovyev.android.messenger.accounts.Account;
+import org.solovyev.android.messenger.accounts.AccountEvent;
 import org.solovyev.android.messenger.accounts.AccountException;
 import org.solovyev.android.messenger.accounts.AccountService;
+import org.solovyev.android.messenger.accounts.AccountState;
 import org.solovyev.android.messenger.accounts.UnsupportedAccountException;
 import org.solovyev.android.messenger.chats.AccountChat;
 import org.solovyev.android.messenger.chats.Chat;
 import org.solovyev.android.messenger.chats.ChatService;
+import org.solovyev.android.messenger.db.DatabaseShards;
+import org.solovyev.android.messenger.db.DbExecQueue;
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.messages.Message;
+import org.solovyev.android.messenger.messages.MessageDao;
 import org.solovyev.android.messenger.messages.UnreadMessagesCounter;
 import org.solovyev.common.collections.multimap.ThreadSafeMultimap;
 import org.solovyev.common.listeners.AbstractJEventListener;
@@ -42,7 +46,9 @@ import org.solovyev.common.listeners.Listeners;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
 
 import static com.google.common.collect.Iterables.*;
 import static com.google.common.collect.Lists.newArrayList;
@@ -86,6 +92,22 @@ public class DefaultUserService implements UserService {
 	@Nonnull
 	private UnreadMessagesCounter unreadMessagesCounter;
 
+	@Inject
+	@Nonnull
+	private PresenceRegistry presences;
+
+	@Inject
+	@Nonnull
+	private MessageDao messageDao;
+
+	@Inject
+	@Nonnull
+	private DatabaseShards shards;
+
+	@Inject
+	@Nonnull
+	private DbExecQueue execQueue;
+
     /*
 	**********************************************************************
     *
@@ -98,7 +120,7 @@ public class DefaultUserService implements UserService {
 	 * Lock for all operations with persistence state. Should guarantee that all operations done over DAOs are thread safe and not corrupt data.
 	 */
 	@Nonnull
-	private final Object lock;
+	private final PersistenceLock lock;
 
 	@Nonnull
 	private final JEventListeners<JEventListener<? extends UserEvent>, UserEvent> listeners;
@@ -112,6 +134,9 @@ public class DefaultUserService implements UserService {
 	@Nonnull
 	private final UserCache cache = new UserCache();
 
+	@Nonnull
+	private final UnknownUsers unknownUsers = new UnknownUsers();
+
 	@Nonnull
 	private UserIconsService iconsService;
 
@@ -126,6 +151,7 @@ public class DefaultUserService implements UserService {
 	public void init() {
 		chats.init();
 		iconsService = new DefaultUserIconsService(this, accountService);
+		accountService.addListener(new AccountEventListener());
 	}
 
 	@Override
@@ -148,27 +174,40 @@ public class DefaultUserService implements UserService {
 
 	@Nonnull
 	@Override
-	public User getUserById(@Nonnull Entity user, boolean tryFindInAccount, boolean createFakeUser) {
+	public User getUserById(@Nonnull final Entity user, boolean tryFindInAccount, boolean createFakeUser) {
 		boolean saved = true;
 
 		User result = cache.get(user);
 
-		if (result == null) {
+		if (result != null) {
+			// cached user might be put with outdated status (e.g. by user event)
+			result = presences.apply(result);
+		} else {
 
-			synchronized (lock) {
+			lock.readLock().lock();
+			try {
 				result = userDao.read(user.getEntityId());
+			} finally {
+				lock.readLock().unlock();
 			}
 
 			if (result == null) {
 				saved = false;
+			} else {
+				result = presences.apply(result);
 			}
 
 			if (result == null) {
 				if (tryFindInAccount) {
 					if (!isUiThread()) {
 						try {
-							final Account account = getAccountByEntity(user);
-							result = account.getAccountUserService().getUserById(user.getAccountEntityId());
+							result = unknownUsers.fetch(user, new Callable<User>() {
+								@Override
+								public User call() throws AccountException {
+									final Account account = getAccountByEntity(user);
+									return account.getAccountUserService().getUserById(user.getAccountEntityId());
+								}
+							});
 						} catch (AccountException e) {
 							// unable to load from realm => just return empty user
 							Log.e(TAG, e.getMessage(), e);
@@ -220,7 +259,8 @@ public class DefaultUserService implements UserService {
 	}
 
 	private void saveUser(@Nonnull User newUser, @Nullable Account account) {
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			final User userFromDb = userDao.read(newUser.getEntity().getEntityId());
 			if (userFromDb == null) {
 				if (account != null) {
@@ -235,6 +275,8 @@ public class DefaultUserService implements UserService {
 				userDao.update(newUser);
 				listeners.fireEvent(changed.newEvent(newUser));
 			}
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
@@ -243,8 +285,23 @@ public class DefaultUserService implements UserService {
 		final Account account = accountService.getAccountByEntity(user.getEntity());
 		final User accountUser = account.getUser();
 		if (!accountUser.equals(user)) {
-			synchronized (lock) {
+			// queued messages of the user must not be written after the user is removed
+			execQueue.flush(account.getId());
+
+			lock.writeLock().lock();
+			try {
 				userDao.delete(user);
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			// messages might be stored in the database of the account where triggers on "users" table don't exist
+			final Lock writeLock = shards.getWriteLock(account.getId());
+			writeLock.lock();
+			try {
+				messageDao.deleteUserMessages(user.getId());
+			} finally {
+				writeLock.unlock();
 			}
 			listeners.fireEvent(contact_removed.newEvent(accountUser, user.getId()));
 
@@ -260,8 +317,11 @@ public class DefaultUserService implements UserService {
 		List<Chat> result = chats.getChats(user);
 
 		if (result == ThreadSafeMultimap.NO_VALUE) {
-			synchronized (lock) {
+			lock.readLock().lock();
+			try {
 				result = chatService.loadChats(user);
+			} finally {
+				lock.readLock().unlock();
 			}
 			chats.update(user, result);
 		}
@@ -271,8 +331,11 @@ public class DefaultUserService implements UserService {
 
 	@Override
 	public void updateUser(@Nonnull User user) {
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			userDao.update(user);
+		} finally {
+			lock.writeLock().unlock();
 		}
 
 		listeners.fireEvent(changed.newEvent(user));
@@ -292,10 +355,17 @@ public class DefaultUserService implements UserService {
 		List<User> result = contacts.getContacts(user);
 
 		if (result == ThreadSafeMultimap.NO_VALUE) {
-			synchronized (lock) {
+			lock.readLock().lock();
+			try {
 				result = userDao.readContacts(user.getEntityId());
+			} finally {
+				lock.readLock().unlock();
 			}
+			result = presences.apply(result);
 			contacts.update(user, result);
+		} else {
+			// cached contacts might be put with outdated statuses (e.g. by user events)
+			result = presences.apply(result);
 		}
 
 		return result;
@@ -307,17 +377,20 @@ public class DefaultUserService implements UserService {
 		return newArrayList(filter(getContacts(user), new Predicate<User>() {
 			@Override
 			public boolean apply(@javax.annotation.Nullable User contact) {
-				return contact != null && contact.isOnline();
+				return contact != null && presences.isOnline(contact);
 			}
 		}));
 	}
 
+	@Override
+	public boolean isOnline(@Nonnull User user) {
+		return presences.isOnline(user);
+	}
+
 	@Override
 	public void onContactPresenceChanged(@Nonnull User user, @Nonnull final User contact, final boolean available) {
 		final User newContact = contact.cloneWithNewStatus(available);
-		synchronized (lock) {
-			userDao.updateOnlineStatus(newContact);
-		}
+		presences.update(newContact);
 
 		listeners.fireEvent(contacts_presence_changed.newEvent(user, asList(newContact)));
 	}
@@ -460,8 +533,11 @@ public class DefaultUserService implements UserService {
 		final User user = account.getUser();
 
 		final MergeDaoResult<User, String> result;
-		synchronized (lock) {
+		lock.writeLock().lock();
+		try {
 			result = userDao.mergeLinkedEntities(user.getId(), contacts, allowRemoval, allowUpdate);
+		} finally {
+			lock.writeLock().unlock();
 		}
 
 		// update sync data
@@ -522,24 +598,23 @@ public class DefaultUserService implements UserService {
 
 		final User user = account.getUser();
 
-		final List<User> offlineContacts = new ArrayList<User>();
+		final Set<String> onlineContactIds = new HashSet<String>(contacts.size());
+		for (User contact : contacts) {
+			onlineContactIds.add(contact.getId());
+		}
 
-		synchronized (lock) {
-			for (User contact : contacts) {
-				userDao.updateOnlineStatus(contact);
-			}
+		final List<User> offlineContacts = new ArrayList<User>();
 
-			final List<User> oldContacts = getOnlineContacts(user.getEntity());
-			for (User oldContact : oldContacts) {
-				if (!any(contacts, new EntityAwareByIdFinder(oldContact.getId()))) {
-					// contact was online, but now is not => update database
-					final User offlineContact = oldContact.cloneWithNewStatus(false);
-					userDao.updateOnlineStatus(offlineContact);
-					offlineContacts.add(offlineContact);
-				}
+		for (User oldContact : getOnlineContacts(user.getEntity())) {
+			if (!onlineContactIds.contains(oldContact.getId())) {
+				// contact was online, but now is not
+				offlineContacts.add(oldContact.cloneWithNewStatus(false));
 			}
 		}
 
+		presences.update(contacts);
+		presences.update(offlineContacts);
+
 		listeners.fireEvent(contacts_presence_changed.newEvent(user, contacts));
 		listeners.fireEvent(contacts_presence_changed.newEvent(user, offlineContacts));
 	}
@@ -612,8 +687,31 @@ public class DefaultUserService implements UserService {
 		@Override
 		public void onEvent(@Nonnull UserEvent event) {
 			cache.onEvent(event);
+			unknownUsers.onEvent(event);
 			contacts.onEvent(event);
 			chats.onEvent(event);
+			if (event.getType() == contact_removed) {
+				presences.remove(event.getDataAsUserId());
+			}
+		}
+	}
+
+	private final class AccountEventListener extends AbstractJEventListener<AccountEvent> {
+
+		private AccountEventListener() {
+			super(AccountEvent.class);
+		}
+
+		@Override
+		public void onEvent(@Nonnull AccountEvent event) {
+			switch (event.getType()) {
+				case state_changed:
+					final Account account = event.getAccount();
+					if (account.getState() == AccountState.removed) {
+						presences.removeAccount(account.getId());
+					}
+					break;
+			}
 		}
 	}
 }
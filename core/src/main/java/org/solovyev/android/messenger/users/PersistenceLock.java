@@ -18,9 +18,87 @@ package org.solovyev.android.messenger.users;
 
 import com.google.inject.Singleton;
 
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lock for all operations with persistence state. Operations which only read from the storage should hold
+ * {@link #readLock()} (they can be done in parallel), operations which modify the storage (including read-modify-write
+ * sequences) should hold {@link #writeLock()}.
+ * Note that read lock can't be upgraded to write lock: thread holding read lock must not try to acquire write lock
+ * (but thread holding write lock can acquire read lock).
+ */
 @Singleton
 public final class PersistenceLock {
 
+	@Nonnull
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	@Nonnull
+	private final Lock writeLock = new WriteLock();
+
 	public PersistenceLock() {
 	}
+
+	@Nonnull
+	public Lock readLock() {
+		return lock.readLock();
+	}
+
+	@Nonnull
+	public Lock writeLock() {
+		return writeLock;
+	}
+
+	/**
+	 * Write lock which fails instead of deadlock if current thread holds read lock
+	 */
+	private final class WriteLock implements Lock {
+
+		@Nonnull
+		private final Lock delegate = lock.writeLock();
+
+		private void checkNotUpgrade() {
+			if (lock.getReadHoldCount() > 0 && !lock.isWriteLockedByCurrentThread()) {
+				throw new IllegalStateException("Read lock can't be upgraded to write lock");
+			}
+		}
+
+		@Override
+		public void lock() {
+			checkNotUpgrade();
+			delegate.lock();
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			checkNotUpgrade();
+			delegate.lockInterruptibly();
+		}
+
+		@Override
+		public boolean tryLock() {
+			return delegate.tryLock();
+		}
+
+		@Override
+		public boolean tryLock(long time, @Nonnull TimeUnit unit) throws InterruptedException {
+			checkNotUpgrade();
+			return delegate.tryLock(time, unit);
+		}
+
+		@Override
+		public void unlock() {
+			delegate.unlock();
+		}
+
+		@Nonnull
+		@Override
+		public Condition newCondition() {
+			return delegate.newCondition();
+		}
+	}
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.users;
+
+import android.util.Log;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.solovyev.android.messenger.App;
+import org.solovyev.android.messenger.entities.Entity;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import static android.os.SystemClock.elapsedRealtime;
+import static java.util.Arrays.asList;
+import static org.solovyev.android.messenger.entities.Entities.newEntityFromEntityId;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * In-memory registry of users' presence. Presence changes too often to be written to the database on each change =>
+ * changes are kept here and only snapshots of them are written periodically (status of user changed several times
+ * between snapshots is written once).
+ * <p/>
+ * As stored status might be outdated users loaded from the database should be passed through {@link #apply(User)}.
+ */
+@Singleton
+@ThreadSafe
+public class PresenceRegistry {
+
+	private static final long SNAPSHOT_DELAY_MILLIS = 30 * 1000L;
+
+	@Nonnull
+	private static final String TAG = "PresenceRegistry";
+
+	@Nonnull
+	private final UserDao userDao;
+
+	@Nonnull
+	private final PersistenceLock lock;
+
+	private final long snapshotDelayMillis;
+
+	// key: user entity, value: current presence
+	@Nonnull
+	private final ConcurrentMap<Entity, Boolean> presences = new ConcurrentHashMap<Entity, Boolean>();
+
+	// users which presence has been changed after the last snapshot
+	@GuardedBy("changedUsers")
+	@Nonnull
+	private final Map<Entity, User> changedUsers = new HashMap<Entity, User>();
+
+	/**
+	 * Held while snapshot is written => snapshots are written in the same order as they are taken
+	 */
+	@Nonnull
+	private final Object snapshotLock = new Object();
+
+	@Nonnull
+	private final ScheduledExecutorService executor = newSingleThreadScheduledExecutor(new SnapshotThreadFactory());
+
+	@Nonnull
+	private final Runnable snapshotRunnable = new Runnable() {
+		@Override
+		public void run() {
+			saveSnapshot();
+		}
+	};
+
+	@Inject
+	public PresenceRegistry(@Nonnull UserDao userDao, @Nonnull PersistenceLock lock) {
+		this(userDao, lock, SNAPSHOT_DELAY_MILLIS);
+	}
+
+	PresenceRegistry(@Nonnull UserDao userDao, @Nonnull PersistenceLock lock, long snapshotDelayMillis) {
+		this.userDao = userDao;
+		this.lock = lock;
+		this.snapshotDelayMillis = snapshotDelayMillis;
+	}
+
+	public void update(@Nonnull User user) {
+		update(asList(user));
+	}
+
+	/**
+	 * Method updates presence of <var>users</var> in memory, new statuses will be written with the next snapshot
+	 */
+	public void update(@Nonnull Collection<User> users) {
+		synchronized (changedUsers) {
+			final boolean scheduled = !changedUsers.isEmpty();
+			for (User user : users) {
+				presences.put(user.getEntity(), user.isOnline());
+				changedUsers.put(user.getEntity(), user);
+			}
+			if (!scheduled && !changedUsers.isEmpty()) {
+				executor.schedule(snapshotRunnable, snapshotDelayMillis, MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Method forgets presence of the removed user
+	 */
+	public void remove(@Nonnull String userId) {
+		final Entity user = newEntityFromEntityId(userId);
+		synchronized (changedUsers) {
+			presences.remove(user);
+			changedUsers.remove(user);
+		}
+	}
+
+	/**
+	 * Method forgets presences of all users of the removed account
+	 */
+	public void removeAccount(@Nonnull String accountId) {
+		synchronized (changedUsers) {
+			removeAccount(presences.keySet().iterator(), accountId);
+			removeAccount(changedUsers.keySet().iterator(), accountId);
+		}
+	}
+
+	private static void removeAccount(@Nonnull Iterator<Entity> users, @Nonnull String accountId) {
+		while (users.hasNext()) {
+			if (users.next().getAccountId().equals(accountId)) {
+				users.remove();
+			}
+		}
+	}
+
+	public boolean isOnline(@Nonnull User user) {
+		final Boolean online = presences.get(user.getEntity());
+		return online != null ? online : user.isOnline();
+	}
+
+	/**
+	 * @return <var>user</var> with the current presence (same instance if its status is up to date)
+	 */
+	@Nonnull
+	public User apply(@Nonnull User user) {
+		final Boolean online = presences.get(user.getEntity());
+		return online != null && online != user.isOnline() ? user.cloneWithNewStatus(online) : user;
+	}
+
+	@Nonnull
+	public List<User> apply(@Nonnull List<User> users) {
+		final List<User> result = new ArrayList<User>(users.size());
+		for (User user : users) {
+			result.add(apply(user));
+		}
+		return result;
+	}
+
+	/**
+	 * Method writes statuses changed after the last snapshot to the database. Must not be called by the thread which
+	 * holds read lock of {@link PersistenceLock}.
+	 */
+	public void saveSnapshot() {
+		synchronized (snapshotLock) {
+			final List<User> users;
+			synchronized (changedUsers) {
+				if (changedUsers.isEmpty()) {
+					return;
+				}
+				users = new ArrayList<User>(changedUsers.values());
+				changedUsers.clear();
+			}
+
+			final long start = elapsedRealtime();
+			lock.writeLock().lock();
+			try {
+				userDao.updateOnlineStatuses(users);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Unable to save presence of " + users.size() + " users", e);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			Log.d(App.TAG_TIME, "Snapshot of presence of " + users.size() + " users took " + (elapsedRealtime() - start) + " ms");
+		}
+	}
+
+	/**
+	 * Presence is received again after restart => unsaved snapshot might be lost and the thread must not prevent the
+	 * process from exiting
+	 */
+	private static final class SnapshotThreadFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(@Nonnull Runnable r) {
+			final Thread thread = new Thread(r, "Presence snapshot thread");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
@@ -22,6 +22,8 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import com.google.common.base.Function;
 import com.google.inject.Inject;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
@@ -30,6 +32,7 @@ import org.solovyev.android.db.*;
 import org.solovyev.android.db.properties.PropertyByIdDbQuery;
 import org.solovyev.android.messenger.LinkedEntitiesDao;
 import org.solovyev.android.messenger.MergeDaoResult;
+import org.solovyev.android.messenger.MergePropertiesExec;
 import org.solovyev.android.messenger.ReplacePropertyExec;
 import org.solovyev.android.properties.AProperty;
 import org.solovyev.common.Converter;
@@ -40,9 +43,9 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.inject.Singleton;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import static org.solovyev.android.db.AndroidDbUtils.*;
 import static org.solovyev.android.messenger.users.Users.newOnlineProperty;
@@ -71,7 +74,14 @@ public final class SqliteUserDao extends AbstractSQLiteHelper implements UserDao
 		super(context, sqliteOpenHelper);
 		final UserDaoMapper userDaoMapper = new UserDaoMapper(this);
 		dao = new SqliteDao<User>("users", "id", userDaoMapper, context, sqliteOpenHelper);
-		linkedEntitiesDao = new SqliteLinkedEntitiesDao<User>("users", "id", context, sqliteOpenHelper, "user_contacts", "user_id", "contact_id", dao);
+		final SqliteEntityBatchReader<User> reader = new SqliteEntityBatchReader<User>(sqliteOpenHelper, "users", "id", "user_properties", "user_id", new Function<Map<String, List<AProperty>>, UserMapper>() {
+			@Override
+			public UserMapper apply(@Nullable Map<String, List<AProperty>> properties) {
+				assert properties != null;
+				return new UserMapper(properties);
+			}
+		});
+		linkedEntitiesDao = new SqliteLinkedEntitiesDao<User>("users", "id", context, sqliteOpenHelper, "user_contacts", "user_id", "contact_id", reader);
 	}
 
 	@Override
@@ -115,8 +125,8 @@ public final class SqliteUserDao extends AbstractSQLiteHelper implements UserDao
 	public long update(@Nonnull User user) {
 		final long rows = dao.update(user);
 		if (rows > 0) {
-			// user exists => can remove/insert properties
-			doDbExecs(getSqliteOpenHelper(), Arrays.<DbExec>asList(new DeleteProperties(user), new InsertProperties(user)));
+			// user exists => can merge properties
+			doDbExec(getSqliteOpenHelper(), newMergePropertiesExec(user));
 		}
 		return rows;
 	}
@@ -137,6 +147,18 @@ public final class SqliteUserDao extends AbstractSQLiteHelper implements UserDao
 		return dao.readAllIds();
 	}
 
+	@Nonnull
+	@Override
+	public Iterable<User> iterateAll() {
+		return dao.iterateAll();
+	}
+
+	@Nonnull
+	@Override
+	public Iterable<String> iterateAllIds() {
+		return dao.iterateAllIds();
+	}
+
 	@Override
 	public void deleteAll() {
 		doDbExec(getSqliteOpenHelper(), DeleteAllRowsDbExec.newInstance("user_contacts"));
@@ -170,8 +192,7 @@ public final class SqliteUserDao extends AbstractSQLiteHelper implements UserDao
 
 		for (User updatedContact : result.getUpdatedObjects()) {
 			execs.add(new UpdateUser(updatedContact));
-			execs.add(new DeleteProperties(updatedContact));
-			execs.add(new InsertProperties(updatedContact));
+			execs.add(newMergePropertiesExec(updatedContact));
 		}
 
 		for (User addedContact : result.getAddedObjects()) {
@@ -190,6 +211,11 @@ public final class SqliteUserDao extends AbstractSQLiteHelper implements UserDao
 		doDbExec(getSqliteOpenHelper(), newReplacePropertyExec(user, newOnlineProperty(user.isOnline())));
 	}
 
+	@Override
+	public void updateOnlineStatuses(@Nonnull Collection<User> contacts) {
+		doDbExec(getSqliteOpenHelper(), new UpdateOnlineStatuses(contacts));
+	}
+
 	@Nonnull
 	private ReplacePropertyExec newReplacePropertyExec(@Nonnull User user,
 													   @Nonnull AProperty property) {
@@ -227,6 +253,33 @@ public final class SqliteUserDao extends AbstractSQLiteHelper implements UserDao
 		}
 	}
 
+	private static final class UpdateOnlineStatuses implements DbExec {
+
+		@Nonnull
+		private final Collection<User> contacts;
+
+		private UpdateOnlineStatuses(@Nonnull Collection<User> contacts) {
+			this.contacts = contacts;
+		}
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			// users might be removed after their status was changed => only existing users are updated
+			final SQLiteStatement replaceProperty = db.compileStatement("insert or replace into user_properties (user_id, property_name, property_value) select id, ?, ? from users where id = ?");
+			try {
+				for (User contact : contacts) {
+					replaceProperty.bindString(1, User.PROPERTY_ONLINE);
+					replaceProperty.bindString(2, String.valueOf(contact.isOnline()));
+					replaceProperty.bindString(3, contact.getEntity().getEntityId());
+					replaceProperty.execute();
+				}
+			} finally {
+				replaceProperty.close();
+			}
+			return contacts.size();
+		}
+	}
+
 	private static final class RemoveContacts implements DbExec {
 
 		@Nonnull
@@ -324,18 +377,9 @@ public final class SqliteUserDao extends AbstractSQLiteHelper implements UserDao
 		}
 	}
 
-	private static final class DeleteProperties extends AbstractObjectDbExec<User> {
-
-		private DeleteProperties(@Nonnull User user) {
-			super(user);
-		}
-
-		@Override
-		public long exec(@Nonnull SQLiteDatabase db) {
-			final User user = getNotNullObject();
-
-			return db.delete("user_properties", "user_id = ?", new String[]{String.valueOf(user.getEntity().getEntityId())});
-		}
+	@Nonnull
+	private static MergePropertiesExec newMergePropertiesExec(@Nonnull User user) {
+		return new MergePropertiesExec(user.getEntity(), "user_properties", "user_id", user.getPropertiesCollection());
 	}
 
 	private static final class InsertProperties extends AbstractObjectDbExec<User> {
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.users;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.solovyev.android.messenger.accounts.AccountException;
+import org.solovyev.android.messenger.entities.Entity;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guards remote lookups of users which are not stored locally (e.g. authors of messages in group chats or unknown
+ * SMS senders):
+ * <ul>
+ * <li>users which were not found remotely are remembered for {@link #DEFAULT_TTL_MILLIS} ms and not looked up again</li>
+ * <li>concurrent lookups of the same user share one remote fetch</li>
+ * </ul>
+ * Failed fetches (e.g. if there is no connection) are not remembered.
+ */
+@ThreadSafe
+class UnknownUsers {
+
+	static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private static final int MAX_SIZE = 1000;
+
+	// key: user entity, value: always true
+	@Nonnull
+	private final Cache<Entity, Boolean> missingUsers;
+
+	// key: user entity, value: fetch in progress
+	@Nonnull
+	private final ConcurrentMap<Entity, FutureTask<User>> fetches = new ConcurrentHashMap<Entity, FutureTask<User>>();
+
+	@Nonnull
+	private final AtomicLong fetchesCount = new AtomicLong();
+
+	@Nonnull
+	private final AtomicLong suppressedFetchesCount = new AtomicLong();
+
+	UnknownUsers() {
+		this(DEFAULT_TTL_MILLIS);
+	}
+
+	UnknownUsers(long ttlMillis) {
+		missingUsers = CacheBuilder.newBuilder()
+				.concurrencyLevel(4)
+				.maximumSize(MAX_SIZE)
+				.expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	/**
+	 * Method fetches user using <var>fetcher</var> unless user was recently not found or is being fetched by another
+	 * thread (then result of that fetch is returned)
+	 *
+	 * @return fetched user, null if user doesn't exist remotely
+	 * @throws AccountException if fetch failed
+	 */
+	@Nullable
+	public User fetch(@Nonnull Entity user, @Nonnull Callable<User> fetcher) throws AccountException {
+		if (missingUsers.getIfPresent(user) != null) {
+			suppressedFetchesCount.incrementAndGet();
+			return null;
+		}
+
+		final FutureTask<User> fetch = new FutureTask<User>(fetcher);
+		final FutureTask<User> runningFetch = fetches.putIfAbsent(user, fetch);
+		if (runningFetch != null) {
+			suppressedFetchesCount.incrementAndGet();
+			return getResult(runningFetch);
+		}
+
+		try {
+			fetchesCount.incrementAndGet();
+			fetch.run();
+			final User result = getResult(fetch);
+			if (result == null) {
+				missingUsers.put(user, true);
+			}
+			return result;
+		} finally {
+			fetches.remove(user, fetch);
+		}
+	}
+
+	@Nullable
+	private static User getResult(@Nonnull FutureTask<User> fetch) throws AccountException {
+		try {
+			return fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof AccountException) {
+				throw (AccountException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	/**
+	 * @return number of remote fetches done
+	 */
+	public long getFetchesCount() {
+		return fetchesCount.get();
+	}
+
+	/**
+	 * @return number of remote fetches which were not done because user was recently not found or was being fetched
+	 */
+	public long getSuppressedFetchesCount() {
+		return suppressedFetchesCount.get();
+	}
+
+	private void remove(@Nonnull List<User> users) {
+		for (User user : users) {
+			missingUsers.invalidate(user.getEntity());
+		}
+	}
+
+	public void onEvent(@Nonnull UserEvent event) {
+		switch (event.getType()) {
+			case added:
+			case changed:
+				missingUsers.invalidate(event.getUser().getEntity());
+				break;
+			case contacts_added:
+			case contacts_changed:
+				remove(event.getDataAsUsers());
+				break;
+		}
+	}
+}
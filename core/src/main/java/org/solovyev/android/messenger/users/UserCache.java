@@ -16,45 +16,71 @@
 
 package org.solovyev.android.messenger.users;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
 import org.solovyev.android.messenger.entities.Entity;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import static org.solovyev.android.messenger.entities.Entities.newEntityFromEntityId;
+
+/**
+ * Bounded cache of users: least recently used users are evicted when total weight of the cached users (see
+ * {@link UserWeigher}) exceeds the limit. Evicted users are just loaded from the database again.
+ */
 @ThreadSafe
 class UserCache {
 
+	static final long DEFAULT_MAX_WEIGHT = 5000;
+
 	// key: user entity, value: user object
-	@GuardedBy("users")
 	@Nonnull
-	private final Map<Entity, User> users = new HashMap<Entity, User>();
+	private final Cache<Entity, User> users;
+
+	UserCache() {
+		this(DEFAULT_MAX_WEIGHT);
+	}
+
+	UserCache(long maxWeight) {
+		users = CacheBuilder.newBuilder()
+				.concurrencyLevel(4)
+				.maximumWeight(maxWeight)
+				.weigher(new UserWeigher())
+				.build();
+	}
 
 	@Nullable
 	public User get(@Nonnull Entity key) {
-		synchronized (users) {
-			return users.get(key);
-		}
+		return users.getIfPresent(key);
 	}
 
 	public void put(@Nonnull User user) {
-		synchronized (users) {
-			users.put(user.getEntity(), user);
-		}
+		users.put(user.getEntity(), user);
 	}
 
 	private void put(@Nonnull List<User> users) {
-		synchronized (this.users) {
-			for (User user : users) {
-				this.users.put(user.getEntity(), user);
-			}
+		for (User user : users) {
+			this.users.put(user.getEntity(), user);
 		}
 	}
 
+	public void remove(@Nonnull Entity key) {
+		users.invalidate(key);
+	}
+
+	/**
+	 * @return hit, miss and eviction counters of the cache
+	 */
+	@Nonnull
+	public CacheStats getStats() {
+		return users.stats();
+	}
+
 	public void onEvent(@Nonnull UserEvent event) {
 		final User user = event.getUser();
 		switch (event.getType()) {
@@ -65,6 +91,19 @@ class UserCache {
 			case contacts_presence_changed:
 				put(event.getDataAsUsers());
 				break;
+			case contact_removed:
+				remove(newEntityFromEntityId(event.getDataAsUserId()));
+				break;
+		}
+	}
+
+	/**
+	 * Memory used by a user is mostly taken by its properties
+	 */
+	private static final class UserWeigher implements Weigher<Entity, User> {
+		@Override
+		public int weigh(@Nonnull Entity key, @Nonnull User user) {
+			return 1 + user.getPropertiesCollection().size();
 		}
 	}
 }
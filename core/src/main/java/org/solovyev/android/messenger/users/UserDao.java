@@ -128,4 +128,12 @@ public interface UserDao extends LinkedEntitiesDao<User>, Dao<User> {
 													 boolean allowUpdate);
 
 	void updateOnlineStatus(@Nonnull User contact);
+
+	/**
+	 * Method saves online statuses of all <var>contacts</var> in one transaction. Statuses of users which don't exist in
+	 * the database are ignored.
+	 *
+	 * @param contacts contacts which statuses should be saved
+	 */
+	void updateOnlineStatuses(@Nonnull Collection<User> contacts);
 }
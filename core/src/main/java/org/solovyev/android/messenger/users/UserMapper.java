@@ -24,25 +24,52 @@ import org.solovyev.android.properties.AProperty;
 import org.solovyev.common.Converter;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static org.solovyev.android.messenger.users.Users.newUser;
 
 public class UserMapper implements Converter<Cursor, User> {
 
 	@Nonnull
+	private static final EntityMapper entityMapper = EntityMapper.newInstanceFor(0);
+
+	@Nullable
 	private final UserDao dao;
 
+	/**
+	 * Preloaded properties of users (key: user id), if null properties are loaded from {@link #dao} for each row
+	 */
+	@Nullable
+	private final Map<String, List<AProperty>> properties;
+
 	public UserMapper(@Nonnull UserDao dao) {
 		this.dao = dao;
+		this.properties = null;
+	}
+
+	public UserMapper(@Nonnull Map<String, List<AProperty>> properties) {
+		this.dao = null;
+		this.properties = properties;
 	}
 
 	@Nonnull
 	@Override
 	public User convert(@Nonnull Cursor c) {
-		final Entity entity = EntityMapper.newInstanceFor(0).convert(c);
-		final List<AProperty> properties = dao.readPropertiesById(entity.getEntityId());
+		final Entity entity = entityMapper.convert(c);
+		return newUser(entity, readProperties(entity.getEntityId()));
+	}
 
-		return newUser(entity, properties);
+	@Nonnull
+	private List<AProperty> readProperties(@Nonnull String userId) {
+		if (properties != null) {
+			final List<AProperty> userProperties = properties.get(userId);
+			return userProperties == null ? Collections.<AProperty>emptyList() : userProperties;
+		} else {
+			assert dao != null;
+			return dao.readPropertiesById(userId);
+		}
 	}
 }
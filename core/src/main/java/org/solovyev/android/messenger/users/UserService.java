@@ -122,6 +122,12 @@ public interface UserService {
 	@Nonnull
 	List<User> getOnlineContacts(@Nonnull Entity user);
 
+	/**
+	 * @param user user
+	 * @return current presence of <var>user</var> (presence might be changed after <var>user</var> object was loaded)
+	 */
+	boolean isOnline(@Nonnull User user);
+
 	/**
 	 * Call this method when presence of user's contact has been changed.
 	 *
@@ -19,11 +19,9 @@ package org.solovyev.android.messenger;
 import android.app.Application;
 import android.content.Context;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.os.Handler;
 import com.google.inject.*;
 import com.google.inject.util.Modules;
 import org.solovyev.android.db.SQLiteOpenHelperConfiguration;
-import org.solovyev.android.http.CachingImageLoader;
 import org.solovyev.android.messenger.accounts.AccountDao;
 import org.solovyev.android.messenger.accounts.AccountService;
 import org.solovyev.android.messenger.accounts.DefaultAccountService;
@@ -36,10 +34,12 @@ import org.solovyev.android.messenger.chats.ChatDao;
 import org.solovyev.android.messenger.chats.ChatService;
 import org.solovyev.android.messenger.chats.DefaultChatService;
 import org.solovyev.android.messenger.chats.SqliteChatDao;
+import org.solovyev.android.messenger.db.DatabaseShardsConfiguration;
+import org.solovyev.android.messenger.icons.ImagePipeline;
 import org.solovyev.android.messenger.messages.DefaultMessageService;
 import org.solovyev.android.messenger.messages.MessageDao;
 import org.solovyev.android.messenger.messages.MessageService;
-import org.solovyev.android.messenger.messages.SqliteMessageDao;
+import org.solovyev.android.messenger.messages.ShardedMessageDao;
 import org.solovyev.android.messenger.notifications.DefaultNotificationService;
 import org.solovyev.android.messenger.notifications.NotificationService;
 import org.solovyev.android.messenger.realms.DefaultRealmService;
@@ -88,6 +88,7 @@ public abstract class AbstractTestModule extends AbstractModule {
 		});
 		bind(SQLiteOpenHelperConfiguration.class).to(TestMessengerDbConfiguration.class);
 		bind(SQLiteOpenHelper.class).to(TestSQLiteOpenHelper.class);
+		bind(DatabaseShardsConfiguration.class).to(getDatabaseShardsConfigurationClass());
 
 		bind(Wizards.class).to(MessengerWizards.class);
 		bind(MessengerSecurityService.class).to(TestSecurityService.class);
@@ -103,7 +104,7 @@ public abstract class AbstractTestModule extends AbstractModule {
 		bind(NotificationService.class).to(DefaultNotificationService.class);
 		bind(ExceptionHandler.class).to(DefaultExceptionHandler.class);
 		bind(Configuration.class).to(getConfigurationClass());
-		bind(org.solovyev.android.http.ImageLoader.class).to(ImageLoader.class);
+		bind(org.solovyev.android.http.ImageLoader.class).to(ImagePipeline.class);
 		bind(NetworkStateService.class).to(NetworkStateServiceImpl.class).in(Scopes.SINGLETON);
 
 		bind(UserDao.class).to(SqliteUserDao.class);
@@ -112,7 +113,7 @@ public abstract class AbstractTestModule extends AbstractModule {
 		bind(ChatDao.class).to(SqliteChatDao.class);
 		bind(ChatService.class).to(DefaultChatService.class);
 
-		bind(MessageDao.class).to(SqliteMessageDao.class);
+		bind(MessageDao.class).to(ShardedMessageDao.class);
 		bind(MessageService.class).to(DefaultMessageService.class);
 
 		bind(SyncService.class).toInstance(mock(SyncService.class));
@@ -128,6 +129,11 @@ public abstract class AbstractTestModule extends AbstractModule {
 	@Nonnull
 	protected abstract Class<? extends Configuration> getConfigurationClass();
 
+	@Nonnull
+	protected Class<? extends DatabaseShardsConfiguration> getDatabaseShardsConfigurationClass() {
+		return TestDatabaseShardsConfiguration.class;
+	}
+
 	public void addBinding(Class<?> type, Object object) {
 		bindings.put(type, object);
 	}
@@ -144,13 +150,4 @@ public abstract class AbstractTestModule extends AbstractModule {
 	public void tearDown() {
 		RoboGuice.util.reset();
 	}
-
-	@Singleton
-	public static class ImageLoader extends CachingImageLoader {
-
-		@Inject
-		public ImageLoader(@Nonnull Application context) {
-			super(context, "messenger", new Handler());
-		}
-	}
 }
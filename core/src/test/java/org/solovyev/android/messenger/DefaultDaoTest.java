@@ -30,10 +30,12 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import static com.google.common.collect.Iterables.any;
 import static com.google.common.collect.Iterables.find;
+import static com.google.common.collect.Lists.newArrayList;
 import static org.junit.Assert.*;
 
 public abstract class DefaultDaoTest<E> extends DefaultMessengerTest {
@@ -137,6 +139,20 @@ public abstract class DefaultDaoTest<E> extends DefaultMessengerTest {
 		}
 	}
 
+	@Test
+	public void testIterateAllShouldLoadAllEntities() throws Exception {
+		populateEntities(dao);
+		assertEntitiesSame(dao.readAll(), newArrayList(dao.iterateAll()));
+	}
+
+	@Test
+	public void testIterateAllIdsShouldLoadAllIds() throws Exception {
+		populateEntities(dao);
+		final List<String> ids = newArrayList(dao.iterateAllIds());
+		assertEquals(dao.readAllIds().size(), ids.size());
+		assertEquals(new HashSet<String>(dao.readAllIds()), new HashSet<String>(ids));
+	}
+
 	@Nonnull
 	protected abstract String getId(E entity);
 
@@ -30,6 +30,7 @@ import org.solovyev.common.equals.CollectionEqualizer;
 import org.solovyev.common.equals.Equalizer;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
 import static java.util.Collections.shuffle;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -97,8 +98,7 @@ public abstract class DefaultLinkedEntitiesDaoTest<E extends Identifiable> exten
 
 		assertEntitiesSame(entitiesFromDb, result.getUpdatedObjects());
 		assertEntitiesSame(addedEntities, result.getAddedObjects());
-		// removal now is not supported
-		// assertEquals(removedEntityIds, result.getRemovedObjectIds());
+		assertEquals(newHashSet(removedEntityIds), newHashSet(result.getRemovedObjectIds()));
 	}
 
 	@Nonnull
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.inject.Inject;
+import org.junit.Before;
+import org.junit.Test;
+import org.solovyev.android.messenger.users.User;
+import org.solovyev.android.messenger.users.UserDao;
+import org.solovyev.android.properties.AProperty;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.solovyev.android.properties.Properties.newProperty;
+
+/**
+ * Counts rows written by property updates: only changed properties must be written
+ */
+public class MergePropertiesExecTest extends DefaultMessengerTest {
+
+	@Inject
+	@Nonnull
+	private SQLiteOpenHelper sqliteOpenHelper;
+
+	@Inject
+	@Nonnull
+	private UserDao userDao;
+
+	@Nonnull
+	private SQLiteDatabase db;
+
+	@Nonnull
+	private User user;
+
+	@Override
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		db = sqliteOpenHelper.getWritableDatabase();
+		user = getAccountData1().getContacts().get(0);
+	}
+
+	@Test
+	public void testShouldWriteNothingIfPropertiesAreNotChanged() throws Exception {
+		final List<AProperty> properties = userDao.readPropertiesById(user.getId());
+		assertEquals(0, merge(properties));
+	}
+
+	@Test
+	public void testShouldWriteOnlyChangedProperty() throws Exception {
+		final List<AProperty> properties = userDao.readPropertiesById(user.getId());
+		final int naiveRows = 2 * properties.size();
+
+		final List<AProperty> newProperties = replace(properties, User.PROPERTY_PHONE, "new_phone");
+		final long rows = merge(newProperties);
+		assertEquals(1, rows);
+		// delete/insert of all properties would write each property twice
+		assertTrue(rows < naiveRows);
+		assertEquals("new_phone", getPropertyValue(User.PROPERTY_PHONE));
+	}
+
+	@Test
+	public void testShouldDeleteRemovedAndInsertAddedProperties() throws Exception {
+		final List<AProperty> properties = new ArrayList<AProperty>(userDao.readPropertiesById(user.getId()));
+		final List<AProperty> newProperties = replace(properties, User.PROPERTY_PHONE, null);
+		newProperties.add(newProperty("test_property", "test_value"));
+
+		assertEquals(2, merge(newProperties));
+		assertNull(getPropertyValue(User.PROPERTY_PHONE));
+		assertEquals("test_value", getPropertyValue("test_property"));
+	}
+
+	private long merge(@Nonnull List<AProperty> properties) {
+		return new MergePropertiesExec(user.getEntity(), "user_properties", "user_id", properties).exec(db);
+	}
+
+	@Nonnull
+	private static List<AProperty> replace(@Nonnull List<AProperty> properties, @Nonnull String name, String value) {
+		final List<AProperty> result = new ArrayList<AProperty>(properties.size());
+		for (AProperty property : properties) {
+			if (property.getName().equals(name)) {
+				if (value != null) {
+					result.add(newProperty(name, value));
+				}
+			} else {
+				result.add(property);
+			}
+		}
+		return result;
+	}
+
+	private String getPropertyValue(@Nonnull String name) {
+		for (AProperty property : userDao.readPropertiesById(user.getId())) {
+			if (property.getName().equals(name)) {
+				return property.getValue();
+			}
+		}
+		return null;
+	}
+}
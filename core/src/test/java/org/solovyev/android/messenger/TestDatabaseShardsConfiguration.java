@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.solovyev.android.messenger;
+
+import android.app.Application;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.solovyev.android.messenger.db.DatabaseShardsConfiguration;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Messages of all accounts are stored in the main database, see {@link #isEnabled()}
+ */
+@Singleton
+public class TestDatabaseShardsConfiguration implements DatabaseShardsConfiguration {
+
+	private static final int VERSION = 3;
+
+	@Nonnull
+	private final Application application;
+
+	@Inject
+	public TestDatabaseShardsConfiguration(@Nonnull Application application) {
+		this.application = application;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return false;
+	}
+
+	@Nonnull
+	@Override
+	public SQLiteOpenHelper newDatabase(@Nonnull String name) {
+		return new TestSQLiteOpenHelper(application, getFileName(name), "test_shard", VERSION);
+	}
+
+	@Override
+	public void deleteDatabase(@Nonnull String name) {
+		application.deleteDatabase(getFileName(name));
+	}
+
+	@Nonnull
+	private static String getFileName(@Nonnull String name) {
+		return "test_" + name;
+	}
+}
@@ -24,10 +24,12 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.solovyev.android.db.BatchDbTransaction;
 import org.solovyev.android.db.SQLiteOpenHelperConfiguration;
+import org.solovyev.android.messenger.db.DatabaseMaintenance;
 
 import javax.annotation.Nonnull;
 import java.text.DecimalFormat;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * User: serso
@@ -42,23 +44,37 @@ public class TestSQLiteOpenHelper extends SQLiteOpenHelper {
 	@Nonnull
 	protected final Context context;
 
+	/**
+	 * Scripts "db_" + scriptsName + "_" + version + ".sql" create the schema
+	 */
 	@Nonnull
-	private String databaseName;
+	private String scriptsName;
 
 	private int version;
 
 	private boolean finished = false;
 
+	@Nonnull
+	private final AtomicInteger databaseRequests = new AtomicInteger();
+
 	@Inject
 	public TestSQLiteOpenHelper(@Nonnull Context context, @Nonnull SQLiteOpenHelperConfiguration configuration) {
 		super(context.getApplicationContext(), configuration.getName(), configuration.getCursorFactory(), configuration.getVersion());
 		this.context = context.getApplicationContext();
-		this.databaseName = configuration.getName();
+		this.scriptsName = configuration.getName();
 		this.version = configuration.getVersion();
 	}
 
+	public TestSQLiteOpenHelper(@Nonnull Context context, @Nonnull String databaseName, @Nonnull String scriptsName, int version) {
+		super(context.getApplicationContext(), databaseName, null, version);
+		this.context = context.getApplicationContext();
+		this.scriptsName = scriptsName;
+		this.version = version;
+	}
+
 	@Override
 	public void onCreate(@Nonnull SQLiteDatabase db) {
+		DatabaseMaintenance.enableIncrementalVacuum(db);
 		onUpgrade(db, 0, this.version);
 	}
 
@@ -73,7 +89,7 @@ public class TestSQLiteOpenHelper extends SQLiteOpenHelper {
 				// prepare version based postfix
 				final String fileVersionPostfix = decimalFormat.format(version);
 
-				final String fileName = "db_" + databaseName + "_" + fileVersionPostfix + ".sql";
+				final String fileName = "db_" + scriptsName + "_" + fileVersionPostfix + ".sql";
 
 				Log.d(TAG, "Reading " + fileName + "...");
 
@@ -90,6 +106,26 @@ public class TestSQLiteOpenHelper extends SQLiteOpenHelper {
 		}
 	}
 
+	@Override
+	public SQLiteDatabase getReadableDatabase() {
+		databaseRequests.incrementAndGet();
+		return super.getReadableDatabase();
+	}
+
+	@Override
+	public SQLiteDatabase getWritableDatabase() {
+		databaseRequests.incrementAndGet();
+		return super.getWritableDatabase();
+	}
+
+	/**
+	 * @return number of times the database was requested: each query or transaction done through this helper requests
+	 * it at least once
+	 */
+	public int getDatabaseRequestsCount() {
+		return databaseRequests.get();
+	}
+
 	@Override
 	public void onOpen(SQLiteDatabase db) {
 		super.onOpen(db);
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.chats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.solovyev.android.messenger.chats.Chats.newEmptyChat;
+
+public class ChatCacheTest {
+
+	@Test
+	public void testShouldUpdateChatOnChatChangedEvent() throws Exception {
+		final ChatCache cache = new ChatCache();
+		final Chat chat = newEmptyChat("test:test");
+		cache.put(chat);
+
+		final Chat expected = newEmptyChat("test:test");
+		cache.onEvent(ChatEventType.changed.newEvent(expected));
+
+		assertSame(expected, cache.get(expected.getEntity()));
+	}
+
+	@Test
+	public void testShouldCountHitsAndMisses() throws Exception {
+		final ChatCache cache = new ChatCache();
+		final Chat chat = newEmptyChat("test:test");
+
+		assertNull(cache.get(chat.getEntity()));
+		cache.put(chat);
+		assertSame(chat, cache.get(chat.getEntity()));
+		cache.remove(chat.getEntity());
+		assertNull(cache.get(chat.getEntity()));
+
+		assertEquals(1, cache.getStats().hitCount());
+		assertEquals(2, cache.getStats().missCount());
+	}
+}
@@ -16,6 +16,8 @@
 
 package org.solovyev.android.messenger.chats;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
 import com.google.inject.Inject;
@@ -25,14 +27,20 @@ import org.solovyev.android.messenger.DefaultDaoTest;
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.messages.Message;
 import org.solovyev.android.messenger.messages.MessageDao;
+import org.solovyev.android.messenger.messages.MessageState;
+import org.solovyev.android.messenger.messages.SqliteMessageDao;
+import org.solovyev.android.messenger.users.User;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import static com.google.common.collect.Sets.newHashSet;
 import static org.junit.Assert.*;
+import static org.solovyev.android.db.AndroidDbUtils.doDbExec;
 import static org.solovyev.android.messenger.chats.Chats.newPrivateChat;
 
 public class ChatDaoTest extends DefaultDaoTest<Chat> {
@@ -45,6 +53,10 @@ public class ChatDaoTest extends DefaultDaoTest<Chat> {
 	@Nonnull
 	private MessageDao messageDao;
 
+	@Inject
+	@Nonnull
+	private SQLiteOpenHelper sqliteOpenHelper;
+
 	@Nonnull
 	@Override
 	protected Dao<Chat> getDao() {
@@ -195,4 +207,93 @@ public class ChatDaoTest extends DefaultDaoTest<Chat> {
 		}
 
 	}
+
+	@Test
+	public void testUnreadChatsShouldBeUpdatedIfMessageIsRead() throws Exception {
+		final Map.Entry<Entity, Integer> unreadChat = dao.getUnreadChats().entrySet().iterator().next();
+		final String chatId = unreadChat.getKey().getEntityId();
+
+		Message unreadMessage = null;
+		for (Message message : messageDao.readMessages(chatId)) {
+			if (!message.isRead() && message.getState() == MessageState.received) {
+				unreadMessage = message;
+				break;
+			}
+		}
+		assertNotNull(unreadMessage);
+
+		assertTrue(messageDao.changeReadStatus(unreadMessage.getId(), true));
+
+		final Integer expected = unreadChat.getValue() - 1;
+		final Integer actual = dao.getUnreadChats().get(unreadChat.getKey());
+		if (expected == 0) {
+			assertNull(actual);
+		} else {
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testLastChatsShouldBeUpdatedIfMessageIsRemoved() throws Exception {
+		final List<String> chatIds = dao.readLastChatIds(null, false, Integer.MAX_VALUE);
+		final String lastChatId = chatIds.get(0);
+		for (Message message : messageDao.readMessages(lastChatId)) {
+			messageDao.changeMessageState(message.getId(), MessageState.removed);
+		}
+
+		assertFalse(dao.readLastChatIds(null, false, Integer.MAX_VALUE).contains(lastChatId));
+	}
+
+	@Test
+	public void testParticipantIdsShouldBeReadInBulk() throws Exception {
+		final Map<String, AccountChat> chats = getAllChats();
+		final Map<String, List<String>> participantIds = dao.readParticipantIds(chats.keySet());
+
+		for (String chatId : chats.keySet()) {
+			final List<String> expected = new ArrayList<String>();
+			for (User participant : dao.readParticipants(chatId)) {
+				expected.add(participant.getId());
+			}
+
+			final List<String> actual = participantIds.get(chatId);
+			if (expected.isEmpty()) {
+				assertNull(actual);
+			} else {
+				assertNotNull(actual);
+				assertEquals(newHashSet(expected), newHashSet(actual));
+			}
+		}
+	}
+
+	@Test
+	public void testChatSummaryChangedMessageByMessageShouldMatchRecalculatedSummary() throws Exception {
+		final String chatId = getAccountData1().getChats().get(0).getChat().getId();
+		final List<Message> messages = messageDao.readMessages(chatId);
+		assertTrue(messages.size() >= 3);
+
+		final Message first = messages.get(0);
+		messageDao.changeReadStatus(first.getId(), !first.isRead());
+		messageDao.delete(messages.get(1));
+		// last message is removed => summary must point to another message
+		messageDao.changeMessageState(messages.get(messages.size() - 1).getId(), MessageState.removed);
+
+		final List<String> summary = readChatSummary(chatId);
+		doDbExec(sqliteOpenHelper, SqliteMessageDao.ChatSummaryUpdater.forChat(chatId));
+		assertEquals(readChatSummary(chatId), summary);
+	}
+
+	@Nonnull
+	private List<String> readChatSummary(@Nonnull String chatId) {
+		final Cursor cursor = sqliteOpenHelper.getReadableDatabase().rawQuery("select last_message_id, last_send_time, unread_count, message_count from chat_summary where chat_id = ?", new String[]{chatId});
+		try {
+			assertTrue(cursor.moveToFirst());
+			final List<String> result = new ArrayList<String>();
+			for (int i = 0; i < cursor.getColumnCount(); i++) {
+				result.add(cursor.getString(i));
+			}
+			return result;
+		} finally {
+			cursor.close();
+		}
+	}
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.db;
+
+import com.google.inject.Inject;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.solovyev.android.messenger.DefaultMessengerTest;
+import org.solovyev.android.messenger.chats.Chat;
+import org.solovyev.android.messenger.chats.ChatDao;
+import org.solovyev.android.messenger.entities.Entities;
+import org.solovyev.android.messenger.messages.Message;
+import org.solovyev.android.messenger.messages.MessageDao;
+import org.solovyev.android.messenger.messages.MessageSearchHit;
+import org.solovyev.android.messenger.messages.Messages;
+import org.solovyev.android.messenger.messages.MutableMessage;
+
+import javax.annotation.Nonnull;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class DatabaseMaintenanceTest extends DefaultMessengerTest {
+
+	@Inject
+	@Nonnull
+	private DatabaseMaintenance maintenance;
+
+	@Inject
+	@Nonnull
+	private MessageDao messageDao;
+
+	@Inject
+	@Nonnull
+	private ChatDao chatDao;
+
+	@Test
+	public void testAllStepsShouldBeDone() throws Exception {
+		final List<DatabaseMaintenance.StepResult> results = maintenance.maintain();
+
+		final Set<DatabaseMaintenance.Step> steps = EnumSet.noneOf(DatabaseMaintenance.Step.class);
+		for (DatabaseMaintenance.StepResult result : results) {
+			assertTrue(result.isOk());
+			assertTrue(result.getDurationMillis() >= 0);
+			steps.add(result.getStep());
+		}
+		assertEquals(EnumSet.allOf(DatabaseMaintenance.Step.class), steps);
+		assertNotNull(maintenance.getLastMaintenanceDate());
+	}
+
+	@Test
+	public void testDataShouldSurviveVacuum() throws Exception {
+		final int chatsCount = chatDao.readAllIds().size();
+		assertTrue(chatsCount > 0);
+		assertFalse(messageDao.readAllIds().isEmpty());
+
+		// frees pages of messages
+		messageDao.deleteAll();
+		for (DatabaseMaintenance.StepResult result : maintenance.maintain()) {
+			assertTrue(result.isOk());
+		}
+
+		assertTrue(messageDao.readAllIds().isEmpty());
+		assertEquals(chatsCount, chatDao.readAllIds().size());
+	}
+
+	@Test
+	public void testMessagesShouldBeFoundAfterMaintenance() throws Exception {
+		final AccountData ad = getAccountData1();
+		final Chat chat = ad.getChats().get(0).getChat();
+		final List<Message> messages = messageDao.readMessages(chat.getId());
+		assertTrue(messages.size() > 1);
+
+		final MutableMessage message = Messages.newMessage(Entities.generateEntity(ad.getAccount()));
+		message.setAuthor(ad.getAccount().getUser().getEntity());
+		message.setRecipient(ad.getContacts().get(0).getEntity());
+		message.setSendDate(DateTime.now());
+		message.setBody("maintenance survivor");
+		message.setChat(chat.getEntity());
+		messageDao.mergeMessages(chat.getId(), asList(message));
+
+		// frees pages of messages inserted before the new one
+		for (Message removed : messages) {
+			messageDao.delete(removed);
+		}
+		for (DatabaseMaintenance.StepResult result : maintenance.maintain()) {
+			assertTrue(result.isOk());
+		}
+
+		// full-text index refers to messages by their rowids => they must not be changed by maintenance
+		final List<MessageSearchHit> hits = messageDao.searchMessages("survivor", 10, 0);
+		assertEquals(1, hits.size());
+		assertEquals(message.getId(), hits.get(0).getMessage().getId());
+	}
+}
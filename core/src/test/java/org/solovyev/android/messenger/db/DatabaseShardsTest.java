@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.solovyev.android.messenger.db;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.inject.Inject;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.solovyev.android.messenger.AbstractTestModule;
+import org.solovyev.android.messenger.DefaultMessengerTest;
+import org.solovyev.android.messenger.DefaultTestModule;
+import org.solovyev.android.messenger.TestDatabaseShardsConfiguration;
+import org.solovyev.android.messenger.chats.AccountChat;
+import org.solovyev.android.messenger.chats.ChatDao;
+import org.solovyev.android.messenger.chats.ChatService;
+import org.solovyev.android.messenger.entities.Entity;
+import org.solovyev.android.messenger.messages.Message;
+import org.solovyev.android.messenger.messages.MessageDao;
+import org.solovyev.android.messenger.users.User;
+import org.solovyev.android.messenger.users.UserService;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DatabaseShardsTest extends DefaultMessengerTest {
+
+	@Inject
+	@Nonnull
+	private DatabaseShards shards;
+
+	@Inject
+	@Nonnull
+	private SQLiteOpenHelper sqliteOpenHelper;
+
+	@Inject
+	@Nonnull
+	private MessageDao messageDao;
+
+	@Inject
+	@Nonnull
+	private ChatDao chatDao;
+
+	@Inject
+	@Nonnull
+	private ChatService chatService;
+
+	@Inject
+	@Nonnull
+	private UserService userService;
+
+	@Nonnull
+	@Override
+	protected AbstractTestModule newModule(@Nonnull Application application) {
+		return new DefaultTestModule(application) {
+			@Nonnull
+			@Override
+			protected Class<? extends DatabaseShardsConfiguration> getDatabaseShardsConfigurationClass() {
+				return EnabledConfiguration.class;
+			}
+		};
+	}
+
+	@Test
+	public void testMessagesShouldBeStoredInDatabaseOfAccount() throws Exception {
+		final SQLiteOpenHelper database1 = shards.getDatabase(getAccount1().getId());
+		final SQLiteOpenHelper database2 = shards.getDatabase(getAccount2().getId());
+		assertNotSame(sqliteOpenHelper, database1);
+		assertNotSame(database1, database2);
+
+		assertEquals(0, countMessages(sqliteOpenHelper));
+		assertEquals(countMessages(getAccountData1()), countMessages(database1));
+		assertEquals(countMessages(getAccountData2()), countMessages(database2));
+
+		final AccountChat chat = getAccountData2().getChats().get(0);
+		assertEquals(chat.getMessages().size(), messageDao.readMessages(chat.getChat().getId()).size());
+		final Message message = chat.getMessages().get(0);
+		assertNotNull(messageDao.read(message.getId()));
+	}
+
+	@Test
+	public void testUnreadChatsShouldBeMergedFromAllDatabases() throws Exception {
+		final Map<String, Integer> expected = new HashMap<String, Integer>();
+		int unreadMessages = 0;
+		for (AccountData accountData : getAccountDataList()) {
+			for (AccountChat chat : accountData.getChats()) {
+				int chatUnreadMessages = 0;
+				for (Message message : chat.getMessages()) {
+					if (!message.isRead()) {
+						chatUnreadMessages++;
+					}
+				}
+				if (chatUnreadMessages > 0) {
+					expected.put(chat.getChat().getId(), chatUnreadMessages);
+				}
+				unreadMessages += chatUnreadMessages;
+			}
+		}
+
+		final Map<Entity, Integer> unreadChats = chatDao.getUnreadChats();
+		assertEquals(expected.size(), unreadChats.size());
+		for (Map.Entry<Entity, Integer> entry : unreadChats.entrySet()) {
+			assertEquals(expected.get(entry.getKey().getEntityId()), entry.getValue());
+		}
+		assertEquals(unreadMessages, messageDao.getUnreadMessagesCount());
+	}
+
+	@Test
+	public void testLastChatsShouldBeMergedFromAllDatabases() throws Exception {
+		final Map<String, DateTime> lastSendDates = new HashMap<String, DateTime>();
+		for (AccountData accountData : getAccountDataList()) {
+			for (AccountChat chat : accountData.getChats()) {
+				DateTime lastSendDate = null;
+				for (Message message : chat.getMessages()) {
+					if (lastSendDate == null || lastSendDate.isBefore(message.getSendDate())) {
+						lastSendDate = message.getSendDate();
+					}
+				}
+				lastSendDates.put(chat.getChat().getId(), lastSendDate);
+			}
+		}
+
+		final List<String> chatIds = chatDao.readLastChatIds(null, false, Integer.MAX_VALUE);
+		assertEquals(lastSendDates.size(), chatIds.size());
+		for (int i = 1; i < chatIds.size(); i++) {
+			assertFalse(lastSendDates.get(chatIds.get(i - 1)).isBefore(lastSendDates.get(chatIds.get(i))));
+		}
+
+		assertEquals(chatIds.subList(0, 10), chatDao.readLastChatIds(null, false, 10));
+	}
+
+	@Test
+	public void testDatabaseShouldBeRemovedWithAccount() throws Exception {
+		final SQLiteOpenHelper database = shards.getDatabase(getAccount1().getId());
+		assertTrue(shards.getDatabases().contains(database));
+
+		shards.deleteDatabase(getAccount1().getId());
+		assertFalse(shards.getDatabases().contains(database));
+	}
+
+	@Test
+	public void testMessagesShouldBeRemovedWithChat() throws Exception {
+		final SQLiteOpenHelper database = shards.getDatabase(getAccount1().getId());
+		final int messages = countMessages(database);
+
+		final AccountChat chat = getAccountData1().getChats().get(0);
+		chatService.removeChat(chat.getChat().getEntity());
+
+		assertEquals(messages - chat.getMessages().size(), countMessages(database));
+		assertTrue(messageDao.readMessages(chat.getChat().getId()).isEmpty());
+	}
+
+	@Test
+	public void testMessagesShouldBeRemovedWithUser() throws Exception {
+		final SQLiteOpenHelper database = shards.getDatabase(getAccount2().getId());
+		final int messages = countMessages(database);
+
+		final User contact = getAccountData2().getContacts().get(0);
+		final AccountChat chat = getAccountData2().getChats().get(0);
+		userService.removeUser(contact);
+
+		// all messages of the contact are in the private chat
+		assertEquals(messages - chat.getMessages().size(), countMessages(database));
+	}
+
+	private static int countMessages(@Nonnull AccountData accountData) {
+		int result = 0;
+		for (AccountChat chat : accountData.getChats()) {
+			result += chat.getMessages().size();
+		}
+		return result;
+	}
+
+	private static int countMessages(@Nonnull SQLiteOpenHelper database) {
+		final Cursor cursor = database.getReadableDatabase().rawQuery("select count(*) from messages", null);
+		try {
+			cursor.moveToFirst();
+			return cursor.getInt(0);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public static final class EnabledConfiguration extends TestDatabaseShardsConfiguration {
+
+		@Inject
+		public EnabledConfiguration(@Nonnull Application application) {
+			super(application);
+		}
+
+		@Override
+		public boolean isEnabled() {
+			return true;
+		}
+	}
+}
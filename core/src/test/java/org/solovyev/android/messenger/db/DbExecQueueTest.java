@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import com.google.inject.Inject;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.solovyev.android.db.DbExec;
+import org.solovyev.android.messenger.DefaultMessengerTest;
+import org.solovyev.android.messenger.chats.Chat;
+import org.solovyev.android.messenger.chats.ChatService;
+import org.solovyev.android.messenger.entities.Entities;
+import org.solovyev.android.messenger.messages.Message;
+import org.solovyev.android.messenger.messages.MessageDao;
+import org.solovyev.android.messenger.messages.MessageService;
+import org.solovyev.android.messenger.messages.Messages;
+import org.solovyev.android.messenger.messages.MutableMessage;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DbExecQueueTest extends DefaultMessengerTest {
+
+	@Inject
+	@Nonnull
+	private DatabaseShards shards;
+
+	@Inject
+	@Nonnull
+	private MessageDao messageDao;
+
+	@Inject
+	@Nonnull
+	private ChatService chatService;
+
+	@Inject
+	@Nonnull
+	private MessageService messageService;
+
+	@Test
+	public void testExecsShouldBeWrittenOnFlush() throws Exception {
+		// no automatic flush during the test
+		final DbExecQueue queue = new DbExecQueue(shards, Integer.MAX_VALUE, 60 * 60 * 1000L);
+
+		final Chat chat = getAccountData1().getChats().get(0).getChat();
+		final int before = messageDao.readMessages(chat.getId()).size();
+
+		final AtomicInteger committed = new AtomicInteger();
+		final List<Message> messages = new ArrayList<Message>();
+		for (int i = 0; i < 10; i++) {
+			final Message message = newMessage(chat);
+			messages.add(message);
+			queue.add(getAccount1().getId(), new MergeExec(chat, message), new Runnable() {
+				@Override
+				public void run() {
+					committed.incrementAndGet();
+				}
+			});
+		}
+		assertEquals(messages.size(), queue.getPendingCount());
+		assertEquals(before, messageDao.readMessages(chat.getId()).size());
+		assertEquals(0, committed.get());
+
+		queue.flush();
+		assertEquals(0, queue.getPendingCount());
+		assertEquals(before + messages.size(), messageDao.readMessages(chat.getId()).size());
+		assertEquals(messages.size(), committed.get());
+	}
+
+	@Test
+	public void testFailedExecShouldNotRollBackOtherExecs() throws Exception {
+		final DbExecQueue queue = new DbExecQueue(shards, Integer.MAX_VALUE, 60 * 60 * 1000L);
+
+		final Chat chat = getAccountData1().getChats().get(0).getChat();
+		final Message first = newMessage(chat);
+		final Message second = newMessage(chat);
+
+		final AtomicInteger committed = new AtomicInteger();
+		final Runnable onCommitted = new Runnable() {
+			@Override
+			public void run() {
+				committed.incrementAndGet();
+			}
+		};
+		queue.add(getAccount1().getId(), new MergeExec(chat, first), onCommitted);
+		queue.add(getAccount1().getId(), new DbExec() {
+			@Override
+			public long exec(@Nonnull SQLiteDatabase db) {
+				throw new IllegalStateException();
+			}
+		}, onCommitted);
+		queue.add(getAccount1().getId(), new MergeExec(chat, second), onCommitted);
+		queue.flush();
+
+		assertEquals(2, committed.get());
+		final List<String> messageIds = messageDao.readMessageIds(chat.getId());
+		assertTrue(messageIds.contains(first.getId()));
+		assertTrue(messageIds.contains(second.getId()));
+	}
+
+	@Test
+	public void testQueuedMessagesShouldBeRead() throws Exception {
+		final Chat chat = getAccountData2().getChats().get(0).getChat();
+		final Message message = newMessage(chat);
+
+		chatService.queueMessages(chat.getEntity(), asList(message), false);
+
+		// service flushes the queue before messages are read
+		final Message actual = messageService.getMessage(message.getId());
+		assertEquals(message, actual);
+		assertTrue(messageService.getMessages(chat.getEntity()).contains(message));
+	}
+
+	@Nonnull
+	private MutableMessage newMessage(@Nonnull Chat chat) {
+		final AccountData ad = chat.getEntity().getAccountId().equals(getAccount1().getId()) ? getAccountData1() : getAccountData2();
+		final MutableMessage message = Messages.newMessage(Entities.generateEntity(ad.getAccount()));
+		message.setAuthor(ad.getAccount().getUser().getEntity());
+		message.setRecipient(ad.getContacts().get(0).getEntity());
+		message.setSendDate(DateTime.now());
+		message.setBody("queued");
+		message.setChat(chat.getEntity());
+		return message;
+	}
+
+	private final class MergeExec implements DbExec {
+
+		@Nonnull
+		private final Chat chat;
+
+		@Nonnull
+		private final Message message;
+
+		private MergeExec(@Nonnull Chat chat, @Nonnull Message message) {
+			this.chat = chat;
+			this.message = message;
+		}
+
+		@Override
+		public long exec(@Nonnull SQLiteDatabase db) {
+			return messageDao.mergeMessages(chat.getId(), asList(message)).getAddedObjects().size();
+		}
+	}
+}
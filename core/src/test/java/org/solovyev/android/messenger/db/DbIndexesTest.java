@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.inject.Inject;
+import org.junit.Before;
+import org.junit.Test;
+import org.solovyev.android.messenger.DefaultMessengerTest;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.fail;
+import static org.solovyev.android.messenger.messages.MessageState.received;
+import static org.solovyev.android.messenger.messages.MessageState.removed;
+
+/**
+ * Checks that hot queries of DAOs are served by indexes and don't scan whole tables
+ */
+public class DbIndexesTest extends DefaultMessengerTest {
+
+	@Nonnull
+	private static final String MESSAGES_CHAT_ID_SEND_TIME_INDEX = "messages_chat_id_send_time_index";
+
+	@Nonnull
+	private static final String MESSAGES_READ_STATE_CHAT_ID_INDEX = "messages_read_state_chat_id_index";
+
+	@Nonnull
+	private static final String USER_CHATS_CHAT_ID_INDEX = "user_chats_chat_id_index";
+
+	@Nonnull
+	private static final String CHAT_SUMMARY_UNREAD_COUNT_INDEX = "chat_summary_unread_count_index";
+
+	@Inject
+	@Nonnull
+	private SQLiteOpenHelper sqliteOpenHelper;
+
+	@Nonnull
+	private SQLiteDatabase db;
+
+	@Override
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		db = sqliteOpenHelper.getReadableDatabase();
+	}
+
+	@Test
+	public void testMessagesOfChatShouldBeLoadedByIndex() throws Exception {
+		assertUsesIndex(MESSAGES_CHAT_ID_SEND_TIME_INDEX, "select * from messages where chat_id = ? and state <> ?", "chat", removed.name());
+	}
+
+	@Test
+	public void testLastAndOldestMessagesShouldBeLoadedByIndex() throws Exception {
+		assertUsesIndex(MESSAGES_CHAT_ID_SEND_TIME_INDEX, "select id from messages where chat_id = ? and state <> ? order by send_time desc limit 1", "chat", removed.name());
+		assertUsesIndex(MESSAGES_CHAT_ID_SEND_TIME_INDEX, "select id from messages where chat_id = ? and state <> ? order by send_time asc limit 1", "chat", removed.name());
+		assertNoTempSorting("select id from messages where chat_id = ? and state <> ? order by send_time desc limit 1", "chat", removed.name());
+	}
+
+	@Test
+	public void testUnreadMessagesShouldBeCountedByIndex() throws Exception {
+		assertUsesIndex(MESSAGES_READ_STATE_CHAT_ID_INDEX, "select count(*) from messages where read = 0 and state <> ?", removed.name());
+		assertUsesIndex(MESSAGES_READ_STATE_CHAT_ID_INDEX, "select count(*) from messages m where m.chat_id = ? and m.read = 0 and m.state = ?", "chat", received.name());
+	}
+
+	@Test
+	public void testLastChatsShouldNotScanMessages() throws Exception {
+		assertNotUsesTable("messages", "select cs.chat_id from chat_summary cs where cs.last_send_time is not null " +
+				"and cs.chat_id in (select uc.chat_id from user_chats uc where uc.user_id = ?) " +
+				"order by cs.last_send_time desc limit 20", "user");
+	}
+
+	@Test
+	public void testUnreadChatsShouldBeLoadedByIndex() throws Exception {
+		assertUsesIndex(CHAT_SUMMARY_UNREAD_COUNT_INDEX, "select c.id, c.account_id, c.account_chat_id, cs.unread_count from chat_summary cs, chats c " +
+				"where cs.unread_count > 0 " +
+				"and c.id = cs.chat_id");
+	}
+
+	@Test
+	public void testParticipantsShouldBeLoadedByIndex() throws Exception {
+		assertUsesIndex(USER_CHATS_CHAT_ID_INDEX, "select * from user_chats where chat_id = ?", "chat");
+	}
+
+	private void assertUsesIndex(@Nonnull String index, @Nonnull String sql, @Nonnull String... args) {
+		final List<String> plan = explain(sql, args);
+		for (String step : plan) {
+			if (step.contains(index)) {
+				return;
+			}
+		}
+		fail("Index " + index + " is not used in " + plan);
+	}
+
+	private void assertNotUsesTable(@Nonnull String table, @Nonnull String sql, @Nonnull String... args) {
+		final List<String> plan = explain(sql, args);
+		for (String step : plan) {
+			if (step.contains(table)) {
+				fail("Table " + table + " is used in " + plan);
+			}
+		}
+	}
+
+	private void assertNoTempSorting(@Nonnull String sql, @Nonnull String... args) {
+		final List<String> plan = explain(sql, args);
+		for (String step : plan) {
+			if (step.contains("TEMP B-TREE")) {
+				fail("Temporary sorting is used in " + plan);
+			}
+		}
+	}
+
+	@Nonnull
+	private List<String> explain(@Nonnull String sql, @Nonnull String... args) {
+		final List<String> result = new ArrayList<String>();
+
+		final Cursor cursor = db.rawQuery("explain query plan " + sql, args);
+		try {
+			final int detailColumn = cursor.getColumnIndex("detail");
+			while (cursor.moveToNext()) {
+				result.add(cursor.getString(detailColumn));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return result;
+	}
+}
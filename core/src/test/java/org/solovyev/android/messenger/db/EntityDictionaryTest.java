@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.db;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.inject.Inject;
+import org.junit.Test;
+import org.solovyev.android.messenger.DefaultMessengerTest;
+import org.solovyev.android.messenger.chats.Chat;
+import org.solovyev.android.messenger.entities.Entity;
+import org.solovyev.android.messenger.messages.Message;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class EntityDictionaryTest extends DefaultMessengerTest {
+
+	@Inject
+	@Nonnull
+	private SQLiteOpenHelper sqliteOpenHelper;
+
+	@Inject
+	@Nonnull
+	private EntityDictionary entityDictionary;
+
+	@Test
+	public void testRowIdShouldNotChange() throws Exception {
+		final SQLiteDatabase db = sqliteOpenHelper.getWritableDatabase();
+		final Entity user = getAccountData1().getContacts().get(0).getEntity();
+
+		final long rowId = EntityDictionary.getRowId(db, user.getEntityId());
+		assertEquals(rowId, EntityDictionary.getRowId(db, user.getEntityId()));
+		assertEquals(user.getEntityId(), entityDictionary.getEntityId(rowId));
+	}
+
+	@Test
+	public void testSameEntityShouldBeReturnedForSameRowId() throws Exception {
+		final SQLiteDatabase db = sqliteOpenHelper.getWritableDatabase();
+		final Chat chat = getAccountData1().getChats().get(0).getChat();
+
+		final long rowId = EntityDictionary.getRowId(db, chat.getId());
+		final Entity entity = entityDictionary.getEntity(rowId);
+		assertEquals(chat.getEntity(), entity);
+		assertSame(entity, entityDictionary.getEntity(rowId));
+	}
+
+	@Test
+	public void testMessagesShouldReferenceEntitiesByRowId() throws Exception {
+		final Message message = getAccountData1().getChats().get(0).getMessages().get(0);
+		final SQLiteDatabase db = sqliteOpenHelper.getReadableDatabase();
+
+		final long authorRowId = DatabaseUtils.longForQuery(db, "select author_id from messages where id = ?", new String[]{message.getId()});
+		assertEquals(message.getAuthor().getEntityId(), entityDictionary.getEntityId(authorRowId));
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.icons;
+
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+import org.junit.Test;
+import org.solovyev.android.http.OnImageLoadedListener;
+import org.solovyev.android.messenger.DefaultMessengerTest;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImagePipelineTest extends DefaultMessengerTest {
+
+	private static final long TIMEOUT_SECONDS = 10;
+
+	// loading of this image occupies the only loader thread until it is released => other requests wait in the queue
+	@Nonnull
+	private static final String BLOCKER = "test://blocker";
+
+	// prefetch request which is loaded after all view requests
+	@Nonnull
+	private static final String LAST = "test://last";
+
+	@Test
+	public void testSameImageShouldBeLoadedOnce() throws Exception {
+		final TestImagePipeline pipeline = newBlockedPipeline();
+
+		final ImageView imageView = new ImageView(getApplication());
+		pipeline.loadImage("test://image");
+		pipeline.loadImage("test://image", new TestListener());
+		pipeline.loadImage("test://image", imageView, null);
+		pipeline.loadImage("test://image");
+		pipeline.loadImage(LAST);
+
+		pipeline.releaseAndAwait(3);
+		assertEquals(Arrays.asList(BLOCKER, "test://image", LAST), pipeline.getLoads());
+	}
+
+	@Test
+	public void testRequestShouldBeCancelledIfViewIsRebound() throws Exception {
+		final TestImagePipeline pipeline = newBlockedPipeline();
+
+		final ImageView imageView = new ImageView(getApplication());
+		pipeline.loadImage("test://old", imageView, null);
+		pipeline.loadImage("test://new", imageView, null);
+		pipeline.loadImage(LAST);
+
+		pipeline.releaseAndAwait(3);
+		assertEquals(Arrays.asList(BLOCKER, "test://new", LAST), pipeline.getLoads());
+	}
+
+	@Test
+	public void testViewRequestsShouldBeLoadedBeforePrefetches() throws Exception {
+		final TestImagePipeline pipeline = newBlockedPipeline();
+
+		final ImageView imageView1 = new ImageView(getApplication());
+		final ImageView imageView2 = new ImageView(getApplication());
+		final ImageView imageView3 = new ImageView(getApplication());
+		pipeline.loadImage("test://prefetch_1");
+		pipeline.loadImage("test://prefetch_2");
+		pipeline.loadImage("test://view_1", imageView1, null);
+		pipeline.loadImage("test://view_2", imageView2, null);
+		pipeline.loadImage("test://prefetch_3");
+		// prefetched image is requested for view => request is promoted
+		pipeline.loadImage("test://prefetch_1", imageView3, null);
+
+		pipeline.releaseAndAwait(6);
+		// most recent first
+		assertEquals(Arrays.asList(BLOCKER, "test://prefetch_1", "test://view_2", "test://view_1", "test://prefetch_3", "test://prefetch_2"), pipeline.getLoads());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedFilesShouldBeEvictedFromDisk() throws Exception {
+		final File dir = new File(getApplication().getCacheDir(), "test_images");
+		final ImagePipeline pipeline = new ImagePipeline(getApplication(), dir, 1, 250);
+
+		final File first = newFile(dir, "first", 1000);
+		final File second = newFile(dir, "second", 2000);
+		final File third = newFile(dir, "third", 3000);
+		pipeline.trimDisk();
+		assertFalse(first.exists());
+		assertTrue(second.exists());
+		assertTrue(third.exists());
+
+		// second file is used
+		assertTrue(second.setLastModified(4000));
+		final File fourth = newFile(dir, "fourth", 5000);
+		pipeline.trimDisk();
+		assertTrue(second.exists());
+		assertFalse(third.exists());
+		assertTrue(fourth.exists());
+
+		// nothing to evict
+		pipeline.trimDisk();
+		assertTrue(second.exists());
+		assertTrue(fourth.exists());
+	}
+
+	@Nonnull
+	private static File newFile(@Nonnull File dir, @Nonnull String name, long lastModified) throws IOException {
+		assertTrue(dir.exists() || dir.mkdirs());
+		final File file = new File(dir, name);
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[100]);
+		} finally {
+			out.close();
+		}
+		assertTrue(file.setLastModified(lastModified));
+		return file;
+	}
+
+	/**
+	 * @return pipeline with one loader thread which is busy with loading of {@link #BLOCKER}
+	 */
+	@Nonnull
+	private TestImagePipeline newBlockedPipeline() throws InterruptedException {
+		final TestImagePipeline pipeline = new TestImagePipeline();
+		pipeline.loadImage(BLOCKER);
+		assertTrue(pipeline.blockerStarted.await(TIMEOUT_SECONDS, SECONDS));
+		return pipeline;
+	}
+
+	private final class TestImagePipeline extends ImagePipeline {
+
+		@Nonnull
+		private final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+
+		@Nonnull
+		private final CountDownLatch blockerStarted = new CountDownLatch(1);
+
+		@Nonnull
+		private final CountDownLatch blockerReleased = new CountDownLatch(1);
+
+		@Nonnull
+		private final Semaphore loaded = new Semaphore(0);
+
+		private TestImagePipeline() {
+			super(getApplication(), new File(getApplication().getCacheDir(), "test_images"), 1, Long.MAX_VALUE);
+		}
+
+		@Nullable
+		@Override
+		byte[] loadBytes(@Nonnull String url) throws IOException {
+			loads.add(url);
+			if (BLOCKER.equals(url)) {
+				blockerStarted.countDown();
+				try {
+					blockerReleased.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			loaded.release();
+			return null;
+		}
+
+		private void releaseAndAwait(int loads) throws InterruptedException {
+			blockerReleased.countDown();
+			assertTrue(loaded.tryAcquire(loads, TIMEOUT_SECONDS, SECONDS));
+		}
+
+		@Nonnull
+		private List<String> getLoads() {
+			synchronized (loads) {
+				return new ArrayList<String>(loads);
+			}
+		}
+	}
+
+	private static final class TestListener implements OnImageLoadedListener {
+
+		@Override
+		public void onImageLoaded(@Nullable Bitmap image) {
+		}
+
+		@Override
+		public void setDefaultImage() {
+		}
+	}
+}
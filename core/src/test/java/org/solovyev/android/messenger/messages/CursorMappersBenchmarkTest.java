@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.messages;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.inject.Inject;
+import org.junit.Test;
+import org.solovyev.android.messenger.DefaultMessengerTest;
+import org.solovyev.android.messenger.chats.ChatMapper;
+import org.solovyev.android.messenger.db.EntityDictionary;
+import org.solovyev.android.messenger.entities.EntityMapper;
+import org.solovyev.android.messenger.users.UserMapper;
+import org.solovyev.android.properties.AProperty;
+import org.solovyev.common.Converter;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Maps all rows of the test database with cursor mappers several times: each row must be mapped to non null object
+ * and mapping of one row must not take longer than {@link #MAX_MILLIS_PER_ROW} (coarse bound which catches only
+ * pathological regressions, e.g. query per row).
+ */
+public class CursorMappersBenchmarkTest extends DefaultMessengerTest {
+
+	private static final int WARM_UP_RUNS = 20;
+	private static final int RUNS = 100;
+	private static final long MAX_MILLIS_PER_ROW = 5;
+
+	@Inject
+	@Nonnull
+	private SQLiteOpenHelper sqliteOpenHelper;
+
+	@Inject
+	@Nonnull
+	private MessageDao messageDao;
+
+	@Inject
+	@Nonnull
+	private EntityDictionary entityDictionary;
+
+	@Test
+	public void testMessageMapper() throws Exception {
+		final MessageMapper mapper = new MessageMapper(messageDao, entityDictionary);
+		benchmark("messages", "select * from messages", new Converter<Cursor, Object>() {
+			@Nonnull
+			@Override
+			public Object convert(@Nonnull Cursor cursor) {
+				final Message message = mapper.convertWithoutProperties(cursor);
+				assertEquals(cursor.getString(cursor.getColumnIndexOrThrow("id")), message.getId());
+				assertNotNull(message.getChat());
+				assertNotNull(message.getAuthor());
+				return message;
+			}
+		});
+	}
+
+	@Test
+	public void testChatMapper() throws Exception {
+		benchmark("chats", "select * from chats", new ChatMapper(Collections.<String, List<AProperty>>emptyMap()));
+	}
+
+	@Test
+	public void testUserMapper() throws Exception {
+		benchmark("users", "select * from users", new UserMapper(Collections.<String, List<AProperty>>emptyMap()));
+	}
+
+	@Test
+	public void testEntityMapper() throws Exception {
+		benchmark("users", "select id, account_id, account_user_id from users", EntityMapper.newInstanceFor(0));
+	}
+
+	private void benchmark(@Nonnull String table, @Nonnull String query, @Nonnull Converter<Cursor, ?> mapper) {
+		final SQLiteDatabase db = sqliteOpenHelper.getReadableDatabase();
+		final int rowsInTable = count(db, table);
+		assertTrue(rowsInTable > 0);
+
+		for (int i = 0; i < WARM_UP_RUNS; i++) {
+			assertEquals(rowsInTable, mapAll(db, query, mapper));
+		}
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			assertEquals(rowsInTable, mapAll(db, query, mapper));
+		}
+		final long nanos = System.nanoTime() - start;
+
+		final long rows = (long) rowsInTable * RUNS;
+		assertTrue(MILLISECONDS.convert(nanos / rows, NANOSECONDS) < MAX_MILLIS_PER_ROW);
+	}
+
+	private static int count(@Nonnull SQLiteDatabase db, @Nonnull String table) {
+		final Cursor cursor = db.rawQuery("select count(*) from " + table, null);
+		try {
+			assertTrue(cursor.moveToFirst());
+			return cursor.getInt(0);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static int mapAll(@Nonnull SQLiteDatabase db, @Nonnull String query, @Nonnull Converter<Cursor, ?> mapper) {
+		int result = 0;
+
+		final Cursor cursor = db.rawQuery(query, null);
+		try {
+			if (cursor.moveToFirst()) {
+				while (!cursor.isAfterLast()) {
+					assertNotNull(mapper.convert(cursor));
+					result++;
+					cursor.moveToNext();
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return result;
+	}
+}
@@ -16,10 +16,13 @@
 
 package org.solovyev.android.messenger.messages;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
 import com.google.inject.Inject;
 import org.joda.time.DateTime;
 import org.junit.Test;
 import org.solovyev.android.db.Dao;
+import org.solovyev.android.db.TableIterable;
 import org.solovyev.android.messenger.DefaultDaoTest;
 import org.solovyev.android.messenger.PropertiesEqualizer;
 import org.solovyev.android.messenger.accounts.Account;
@@ -27,6 +30,7 @@ import org.solovyev.android.messenger.chats.AccountChat;
 import org.solovyev.android.messenger.chats.Chat;
 import org.solovyev.android.messenger.chats.ChatService;
 import org.solovyev.android.messenger.chats.SqliteChatDao;
+import org.solovyev.android.messenger.db.StringIdMapper;
 import org.solovyev.common.Objects;
 import org.solovyev.common.equals.Equalizer;
 
@@ -34,9 +38,15 @@ import javax.annotation.Nonnull;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
+import static org.solovyev.android.db.AndroidDbUtils.MAX_IN_COUNT;
+import static org.solovyev.android.messenger.messages.MessageRetentionPolicy.MIN_MESSAGES_PER_CHAT;
+import static org.solovyev.android.messenger.messages.MessageRetentionPolicy.newRetentionPolicy;
 import static org.solovyev.android.messenger.messages.MessagesMock.newMockMessage;
 
 public class MessageDaoTest extends DefaultDaoTest<Message> {
@@ -51,6 +61,10 @@ public class MessageDaoTest extends DefaultDaoTest<Message> {
 	@Nonnull
 	private SqliteChatDao chatDao;
 
+	@Inject
+	@Nonnull
+	private SQLiteOpenHelper sqliteOpenHelper;
+
 	@Inject
 	@Nonnull
 	private ChatService chatService;
@@ -80,6 +94,201 @@ public class MessageDaoTest extends DefaultDaoTest<Message> {
 		checkLastMessage(chat, now.plusDays(4));
 	}
 
+	@Test
+	public void testLastMessagesShouldBeReadInBulk() throws Exception {
+		final List<String> chatIds = new ArrayList<String>();
+		for (AccountData ad : getAccountDataList()) {
+			for (AccountChat chat : ad.getChats()) {
+				chatIds.add(chat.getChat().getId());
+			}
+		}
+		// chat without messages
+		chatIds.add(getAccount1().getId() + ":no_messages");
+
+		final Map<String, Message> lastMessages = dao.readLastMessages(chatIds);
+		assertEquals(chatIds.size() - 1, lastMessages.size());
+		for (String chatId : chatIds) {
+			final Message expected = dao.readLastMessage(chatId);
+			if (expected == null) {
+				assertFalse(lastMessages.containsKey(chatId));
+			} else {
+				assertEquals(expected.getId(), lastMessages.get(chatId).getId());
+				assertEquals(expected.getProperties().getPropertiesCollection().size(), lastMessages.get(chatId).getProperties().getPropertiesCollection().size());
+			}
+		}
+	}
+
+	@Test
+	public void testShouldReadAllMessagesPageByPage() throws Exception {
+		final Account account = getAccount1();
+		final org.solovyev.android.messenger.entities.Entity from = account.getUser().getEntity();
+		final org.solovyev.android.messenger.entities.Entity to = getContactForAccount(account, 0).getEntity();
+
+		final Chat chat = chatService.getOrCreatePrivateChat(from, to);
+		final List<Message> messages = new ArrayList<Message>();
+		final DateTime now = DateTime.now();
+		for (int i = 0; i < 25; i++) {
+			// several messages are sent at the same time
+			messages.add(newMockMessage(now.minusMinutes(i / 3), from, to, account, chat.getId()));
+		}
+		dao.mergeMessages(chat.getId(), messages);
+
+		final Set<String> expected = new HashSet<String>(dao.readMessageIds(chat.getId()));
+		final Set<String> actual = new HashSet<String>();
+
+		List<Message> page = dao.readMessagesBefore(chat.getId(), null, 4);
+		while (!page.isEmpty()) {
+			assertTrue(page.size() >= 4 || actual.size() + page.size() == expected.size());
+
+			DateTime previousSendDate = null;
+			for (Message message : page) {
+				assertTrue(actual.add(message.getId()));
+				if (previousSendDate != null) {
+					assertFalse(message.getSendDate().isBefore(previousSendDate));
+				}
+				previousSendDate = message.getSendDate();
+			}
+
+			page = dao.readMessagesBefore(chat.getId(), page.get(0).getSendDate(), 4);
+		}
+
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testShouldReadMessagesAfterSendTime() throws Exception {
+		final AccountData ad = getAccountData1();
+		final AccountChat chat = ad.getChats().get(0);
+		final String chatId = chat.getChat().getId();
+
+		final List<Message> newest = dao.readMessagesBefore(chatId, null, 3);
+		final List<Message> older = dao.readMessagesBefore(chatId, newest.get(0).getSendDate(), 3);
+		assertFalse(older.isEmpty());
+
+		final List<Message> after = dao.readMessagesAfter(chatId, older.get(older.size() - 1).getSendDate(), 3);
+		assertEquals(newest.size(), after.size());
+		for (int i = 0; i < newest.size(); i++) {
+			assertEquals(newest.get(i).getId(), after.get(i).getId());
+		}
+	}
+
+	@Test
+	public void testShouldUpdateMessagesOnSecondMerge() throws Exception {
+		final Account account = getAccount1();
+		final org.solovyev.android.messenger.entities.Entity from = account.getUser().getEntity();
+		final org.solovyev.android.messenger.entities.Entity to = getContactForAccount(account, 0).getEntity();
+
+		final Chat chat = chatService.getOrCreatePrivateChat(from, to);
+		final List<Message> messages = new ArrayList<Message>();
+		final DateTime now = DateTime.now();
+		// more than one chunk of ids should be loaded
+		final int count = MAX_IN_COUNT + 10;
+		for (int i = 0; i < count; i++) {
+			messages.add(newMockMessage(now.minusMinutes(i), from, to, account, chat.getId()));
+		}
+
+		MessagesMergeDaoResult result = dao.mergeMessages(chat.getId(), messages);
+		assertEquals(count, result.getAddedObjects().size());
+		assertTrue(result.getUpdatedObjects().isEmpty());
+
+		result = dao.mergeMessages(chat.getId(), messages);
+		assertTrue(result.getAddedObjects().isEmpty());
+		assertEquals(count, result.getUpdatedObjects().size());
+		assertEquals(count, dao.readMessageIds(chat.getId()).size());
+	}
+
+	@Test
+	public void testShouldSearchMessagesByWords() throws Exception {
+		final AccountData ad = getAccountData1();
+		final String chatId = ad.getChats().get(0).getChat().getId();
+
+		final DateTime now = DateTime.now();
+		final MutableMessage older = newMessageWithProperties(ad);
+		older.setBody("\u041f\u0440\u0438\u0432\u0435\u0442, quick brown fox");
+		older.setSendDate(now);
+		final MutableMessage newer = newMessageWithProperties(ad);
+		newer.setBody("quick search");
+		newer.setSendDate(now.plusMinutes(1));
+		dao.mergeMessages(chatId, Arrays.asList(older, newer));
+
+		List<MessageSearchHit> hits = dao.searchMessages("qui", 10, 0);
+		assertEquals(2, hits.size());
+		assertEquals(newer.getId(), hits.get(0).getMessage().getId());
+		assertEquals(older.getId(), hits.get(1).getMessage().getId());
+		assertEquals("test", hits.get(0).getMessage().getProperties().getPropertyValue("property_1"));
+
+		hits = dao.searchMessages("qui", 10, 1);
+		assertEquals(1, hits.size());
+		assertEquals(older.getId(), hits.get(0).getMessage().getId());
+
+		hits = dao.searchMessages("quick \"fox", 10, 0);
+		assertEquals(1, hits.size());
+		final List<MessageSearchHit.Match> matches = hits.get(0).getMatches();
+		assertEquals(2, matches.size());
+		assertEquals("quick", older.getBody().substring(matches.get(0).getStart(), matches.get(0).getEnd()));
+		assertEquals("fox", older.getBody().substring(matches.get(1).getStart(), matches.get(1).getEnd()));
+
+		newer.setBody("nothing");
+		dao.mergeMessages(chatId, Arrays.asList(newer));
+		assertTrue(dao.searchMessages("search", 10, 0).isEmpty());
+
+		dao.delete(older);
+		assertTrue(dao.searchMessages("fox", 10, 0).isEmpty());
+		assertTrue(dao.searchMessages(" \" ", 10, 0).isEmpty());
+	}
+
+	@Test
+	public void testShouldStoreLongBodiesCompressed() throws Exception {
+		final AccountData ad = getAccountData1();
+		final String chatId = ad.getChats().get(0).getChat().getId();
+
+		final StringBuilder longBody = new StringBuilder();
+		while (longBody.length() < 2 * MessageBodies.COMPRESSION_THRESHOLD) {
+			longBody.append("lorem ipsum dolor sit amet ");
+		}
+		longBody.append("zebra");
+
+		final MutableMessage merged = newMessageWithProperties(ad);
+		merged.setBody(longBody.toString());
+		dao.mergeMessages(chatId, Arrays.asList(merged));
+		final MutableMessage created = newMessageWithProperties(ad);
+		created.setBody(longBody.toString());
+		dao.create(created);
+
+		for (Message message : Arrays.asList(merged, created)) {
+			assertEquals(MessageBodies.FORMAT_DEFLATE, readBodyFormat(message));
+			assertEquals(longBody.toString(), dao.read(message.getId()).getBody());
+		}
+
+		List<MessageSearchHit> hits = dao.searchMessages("zebra", 10, 0);
+		assertEquals(2, hits.size());
+		final MessageSearchHit.Match match = hits.get(0).getMatches().get(0);
+		assertEquals("zebra", hits.get(0).getMessage().getBody().substring(match.getStart(), match.getEnd()));
+
+		merged.setBody("short text");
+		dao.mergeMessages(chatId, Arrays.asList(merged));
+		assertEquals(MessageBodies.FORMAT_TEXT, readBodyFormat(merged));
+		assertEquals("short text", dao.read(merged.getId()).getBody());
+		assertEquals(1, dao.searchMessages("zebra", 10, 0).size());
+		assertEquals(1, dao.searchMessages("short", 10, 0).size());
+
+		created.setBody(longBody.toString().replace("zebra", "giraffe"));
+		dao.update(created);
+		assertEquals(created.getBody(), dao.read(created.getId()).getBody());
+		assertTrue(dao.searchMessages("zebra", 10, 0).isEmpty());
+		assertEquals(1, dao.searchMessages("giraffe", 10, 0).size());
+	}
+
+	private int readBodyFormat(@Nonnull Message message) {
+		final Cursor cursor = sqliteOpenHelper.getReadableDatabase().rawQuery("select body_format from messages where id = ?", new String[]{message.getId()});
+		try {
+			assertTrue(cursor.moveToFirst());
+			return cursor.getInt(0);
+		} finally {
+			cursor.close();
+		}
+	}
+
 	@Test
 	public void testShouldSaveProperties() throws Exception {
 		final AccountData ad = getAccountData1();
@@ -146,6 +355,218 @@ public class MessageDaoTest extends DefaultDaoTest<Message> {
 		assertNull(dao.readSameMessage(expected.getBody(), expected.getSendDate().plus(MILLIS_IN_MINUTE), expected.getAuthor(), expected.getRecipient()));
 	}
 
+	@Test
+	public void testShouldReturnMergedMessagesInBatch() throws Exception {
+		final AccountData ad = getAccountData1();
+		final Message stored = ad.getChats().get(0).getMessages().get(0);
+
+		final MutableMessage sameMessage = copyOf(ad, stored, stored.getBody(), stored.getSendDate().plus(MILLIS_IN_MINUTE - 1));
+		final MutableMessage lateMessage = copyOf(ad, stored, stored.getBody(), stored.getSendDate().plus(MILLIS_IN_MINUTE));
+		final MutableMessage otherMessage = copyOf(ad, stored, stored.getBody() + "!", stored.getSendDate());
+
+		final List<MutableMessage> merged = dao.readMergedMessages(Arrays.asList(lateMessage, sameMessage, otherMessage));
+		assertEquals(1, merged.size());
+		assertSame(sameMessage, merged.get(0));
+	}
+
+	@Test
+	public void testShouldIterateOverAllRowsInWindows() throws Exception {
+		final List<String> ids = new ArrayList<String>();
+		for (String id : new TableIterable<String>(sqliteOpenHelper, "messages", "id", StringIdMapper.getInstance(), 3)) {
+			ids.add(id);
+		}
+
+		assertTrue(ids.size() > 3);
+		assertEquals(dao.readAllIds().size(), ids.size());
+		assertEquals(new HashSet<String>(dao.readAllIds()), new HashSet<String>(ids));
+	}
+
+	@Test
+	public void testShouldReadArchivedMessagesPageByPage() throws Exception {
+		final AccountData ad = getAccountData1();
+		final Chat chat = chatService.getOrCreatePrivateChat(ad.getAccount().getUser().getEntity(), ad.getContacts().get(1).getEntity());
+		final DateTime now = DateTime.now();
+
+		final List<Message> messages = new ArrayList<Message>();
+		for (int i = 0; i < 3 * MessageArchive.BLOCK_SIZE; i++) {
+			messages.add(newReadMessage(ad, chat, now.minusMinutes(i)));
+		}
+		dao.mergeMessages(chat.getId(), messages);
+
+		final Set<String> expected = new HashSet<String>(dao.readMessageIds(chat.getId()));
+		final DateTime lastMessageDate = dao.readLastMessage(chat.getId()).getSendDate();
+
+		final int archived = dao.archiveMessages(chat.getId(), newRetentionPolicy(0, 0));
+		assertTrue(archived > 0);
+		assertEquals(archived, dao.getArchivedMessagesCount(chat.getId()));
+		assertEquals(expected.size() - archived, dao.readMessageIds(chat.getId()).size());
+		assertTrue(dao.readMessageIds(chat.getId()).size() >= MIN_MESSAGES_PER_CHAT);
+		assertEquals(lastMessageDate, dao.readLastMessage(chat.getId()).getSendDate());
+
+		final Set<String> actual = new HashSet<String>();
+		DateTime previousSendDate = null;
+		List<Message> page = dao.readMessagesBefore(chat.getId(), null, 7);
+		while (!page.isEmpty()) {
+			for (int i = page.size() - 1; i >= 0; i--) {
+				final Message message = page.get(i);
+				assertTrue(actual.add(message.getId()));
+				if (previousSendDate != null) {
+					assertFalse(message.getSendDate().isAfter(previousSendDate));
+				}
+				previousSendDate = message.getSendDate();
+			}
+			page = dao.readMessagesBefore(chat.getId(), page.get(0).getSendDate(), 7);
+		}
+		assertEquals(expected, actual);
+
+		actual.clear();
+		page = dao.readMessagesAfter(chat.getId(), previousSendDate.minusMillis(1), 7);
+		while (!page.isEmpty()) {
+			for (Message message : page) {
+				assertTrue(actual.add(message.getId()));
+			}
+			page = dao.readMessagesAfter(chat.getId(), page.get(page.size() - 1).getSendDate(), 7);
+		}
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testShouldNotArchiveUnreadMessages() throws Exception {
+		final AccountData ad = getAccountData1();
+		final Chat chat = chatService.getOrCreatePrivateChat(ad.getAccount().getUser().getEntity(), ad.getContacts().get(1).getEntity());
+		final DateTime now = DateTime.now();
+
+		final List<Message> messages = new ArrayList<Message>();
+		for (int i = 0; i < 2 * MessageArchive.BLOCK_SIZE; i++) {
+			messages.add(newReadMessage(ad, chat, now.minusMinutes(i)));
+		}
+		final MutableMessage unread = newReadMessage(ad, chat, now.minusMinutes(MessageArchive.BLOCK_SIZE).plusSeconds(1));
+		unread.setRead(false);
+		messages.add(unread);
+		dao.mergeMessages(chat.getId(), messages);
+
+		final int archived = dao.archiveMessages(chat.getId(), newRetentionPolicy(0, 0));
+		assertTrue(archived > 0);
+		final List<String> messageIds = dao.readMessageIds(chat.getId());
+		assertTrue(messageIds.contains(unread.getId()));
+		for (Message message : dao.readMessagesBefore(chat.getId(), unread.getSendDate(), Integer.MAX_VALUE)) {
+			assertFalse(messageIds.contains(message.getId()));
+			// archived messages are still found by id
+			assertNotNull(dao.read(message.getId()));
+		}
+		for (Message message : dao.readMessagesAfter(chat.getId(), unread.getSendDate(), Integer.MAX_VALUE)) {
+			// messages sent after the unread message must stay in the messages table
+			assertTrue(messageIds.contains(message.getId()));
+		}
+
+		// nothing more to archive
+		assertEquals(0, dao.archiveMessages(chat.getId(), newRetentionPolicy(0, 0)));
+	}
+
+	@Test
+	public void testShouldSearchArchivedMessages() throws Exception {
+		final AccountData ad = getAccountData1();
+		final Chat chat = chatService.getOrCreatePrivateChat(ad.getAccount().getUser().getEntity(), ad.getContacts().get(1).getEntity());
+		final DateTime now = DateTime.now();
+
+		final List<MutableMessage> messages = new ArrayList<MutableMessage>();
+		for (int i = 0; i < 2 * MessageArchive.BLOCK_SIZE; i++) {
+			messages.add(newReadMessage(ad, chat, now.minusMinutes(i)));
+		}
+		final MutableMessage recent = messages.get(0);
+		recent.setBody("recent zebra");
+		final MutableMessage old = messages.get(messages.size() - 1);
+		old.setBody("old zebra");
+		final MutableMessage removedOld = messages.get(messages.size() - 2);
+		removedOld.setBody("removed zebra");
+		removedOld.setState(MessageState.removed);
+		dao.mergeMessages(chat.getId(), messages);
+
+		assertTrue(dao.archiveMessages(chat.getId(), newRetentionPolicy(0, 0)) > 0);
+		assertFalse(dao.readMessageIds(chat.getId()).contains(old.getId()));
+
+		final List<MessageSearchHit> hits = dao.searchMessages("zebra", 10, 0);
+		assertEquals(2, hits.size());
+		assertEquals(recent.getId(), hits.get(0).getMessage().getId());
+		final MessageSearchHit archivedHit = hits.get(1);
+		assertEquals(old.getId(), archivedHit.getMessage().getId());
+		assertEquals(chat.getEntity(), archivedHit.getMessage().getChat());
+		assertEquals("test", archivedHit.getMessage().getProperties().getPropertyValue("property_1"));
+		assertEquals(1, archivedHit.getMatches().size());
+		assertEquals("zebra", old.getBody().substring(archivedHit.getMatches().get(0).getStart(), archivedHit.getMatches().get(0).getEnd()));
+
+		assertEquals(1, dao.searchMessages("zebra", 10, 1).size());
+		assertEquals(old.getId(), dao.searchMessages("old", 10, 0).get(0).getMessage().getId());
+		assertNotNull(dao.read(old.getId()));
+		assertNull(dao.read(removedOld.getId()));
+
+		// archive is removed with the chat => its messages must be removed from the index
+		chatService.removeChat(chat.getEntity());
+		assertTrue(dao.searchMessages("zebra", 10, 0).isEmpty());
+		assertNull(dao.read(old.getId()));
+	}
+
+	@Test
+	public void testArchivedMessagesShouldNotBeMergedAgain() throws Exception {
+		final AccountData ad = getAccountData1();
+		final Chat chat = chatService.getOrCreatePrivateChat(ad.getAccount().getUser().getEntity(), ad.getContacts().get(1).getEntity());
+		final DateTime now = DateTime.now();
+
+		final List<MutableMessage> messages = new ArrayList<MutableMessage>();
+		for (int i = 0; i < 2 * MessageArchive.BLOCK_SIZE; i++) {
+			messages.add(newReadMessage(ad, chat, now.minusMinutes(i)));
+		}
+		final MutableMessage old = messages.get(messages.size() - 1);
+		old.setBody("old");
+		dao.mergeMessages(chat.getId(), messages);
+		assertTrue(dao.archiveMessages(chat.getId(), newRetentionPolicy(0, 0)) > 0);
+		assertFalse(dao.readMessageIds(chat.getId()).contains(old.getId()));
+
+		// messages are synced again
+		final MessagesMergeDaoResult result = dao.mergeMessages(chat.getId(), messages);
+		assertTrue(result.getAddedObjects().isEmpty());
+		assertFalse(dao.readMessageIds(chat.getId()).contains(old.getId()));
+
+		final List<Message> allMessages = dao.readMessagesBefore(chat.getId(), null, Integer.MAX_VALUE);
+		final Set<String> allMessageIds = new HashSet<String>();
+		for (Message message : allMessages) {
+			assertTrue(allMessageIds.add(message.getId()));
+		}
+		assertEquals(messages.size(), allMessageIds.size());
+		assertEquals(0, dao.archiveMessages(chat.getId(), newRetentionPolicy(0, 0)));
+
+		// same messages are found in archive
+		final Message same = dao.readSameMessage(old.getBody(), old.getSendDate().plusSeconds(1), old.getAuthor(), old.getRecipient());
+		assertNotNull(same);
+		assertEquals(old.getId(), same.getId());
+		final MutableMessage copy = copyOf(ad, old, old.getBody(), old.getSendDate().minusSeconds(1));
+		assertEquals(Arrays.asList(copy), dao.readMergedMessages(Arrays.asList(copy)));
+		assertTrue(dao.readMergedMessages(Arrays.asList(copyOf(ad, old, "new", old.getSendDate()))).isEmpty());
+	}
+
+	@Nonnull
+	private static MutableMessage newReadMessage(@Nonnull AccountData ad, @Nonnull Chat chat, @Nonnull DateTime sendDate) {
+		final MutableMessage result = Messages.newMessage(ad.getAccount().newMessageEntity(MessagesMock.getMessageId()));
+		result.setAuthor(ad.getAccount().getUser().getEntity());
+		result.setRecipient(ad.getContacts().get(1).getEntity());
+		result.setChat(chat.getEntity());
+		result.setBody("body");
+		result.setSendDate(sendDate);
+		result.setRead(true);
+		result.getProperties().setProperty("property_1", "test");
+		return result;
+	}
+
+	@Nonnull
+	private static MutableMessage copyOf(@Nonnull AccountData ad, @Nonnull Message message, @Nonnull String body, @Nonnull DateTime sendDate) {
+		final MutableMessage result = Messages.newMessage(ad.getAccount().newMessageEntity(MessagesMock.getMessageId()));
+		result.setAuthor(message.getAuthor());
+		result.setRecipient(message.getRecipient());
+		result.setChat(message.getChat());
+		result.setBody(body);
+		result.setSendDate(sendDate);
+		return result;
+	}
 
 	private MutableMessage newMessageWithProperties(AccountData ad) {
 		final MutableMessage expected = Messages.newMessage(ad.getAccount().newMessageEntity(MessagesMock.getMessageId()));
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.users;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+public class PersistenceLockTest {
+
+	private static final int READERS = 4;
+
+	@Test
+	public void testReadersShouldNotBlockEachOther() throws Exception {
+		final PersistenceLock lock = new PersistenceLock();
+		lock.readLock().lock();
+		try {
+			final AtomicBoolean acquired = new AtomicBoolean();
+			final Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (lock.readLock().tryLock(1, SECONDS)) {
+							acquired.set(true);
+							lock.readLock().unlock();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			reader.start();
+			reader.join();
+			assertTrue(acquired.get());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Test
+	public void testWriterShouldBeAbleToRead() throws Exception {
+		final PersistenceLock lock = new PersistenceLock();
+		lock.writeLock().lock();
+		try {
+			lock.readLock().lock();
+			lock.readLock().unlock();
+			// write lock is reentrant
+			lock.writeLock().lock();
+			lock.writeLock().unlock();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Test
+	public void testReadLockShouldNotBeUpgraded() throws Exception {
+		final PersistenceLock lock = new PersistenceLock();
+		lock.readLock().lock();
+		try {
+			lock.writeLock().lock();
+			fail();
+		} catch (IllegalStateException e) {
+			// ok
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * All readers must be able to hold the lock at the same time: each reader waits inside the lock until all the others
+	 * have acquired it (with exclusive lock no reader would get through)
+	 */
+	@Test
+	public void testAllReadersShouldHoldLockConcurrently() throws Exception {
+		final PersistenceLock lock = new PersistenceLock();
+
+		final CountDownLatch allInside = new CountDownLatch(READERS);
+		final AtomicInteger concurrentReaders = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		final List<Thread> readers = new ArrayList<Thread>(READERS);
+		for (int i = 0; i < READERS; i++) {
+			readers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (lock.readLock().tryLock(5, SECONDS)) {
+							try {
+								allInside.countDown();
+								if (allInside.await(5, SECONDS)) {
+									concurrentReaders.incrementAndGet();
+								}
+							} finally {
+								lock.readLock().unlock();
+							}
+						}
+					} catch (InterruptedException e) {
+						error.set(e);
+					}
+				}
+			}));
+		}
+
+		for (Thread reader : readers) {
+			reader.start();
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		assertNull(error.get());
+		assertEquals(READERS, concurrentReaders.get());
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.users;
+
+import com.google.inject.Inject;
+import org.junit.Test;
+import org.solovyev.android.messenger.DefaultMessengerTest;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PresenceRegistryTest extends DefaultMessengerTest {
+
+	@Inject
+	@Nonnull
+	private UserDao userDao;
+
+	@Inject
+	@Nonnull
+	private PersistenceLock lock;
+
+	@Inject
+	@Nonnull
+	private PresenceRegistry presences;
+
+	@Inject
+	@Nonnull
+	private UserService userService;
+
+	@Test
+	public void testPresenceShouldBeSavedOnlyWithSnapshot() throws Exception {
+		// no automatic snapshot during the test
+		final PresenceRegistry presences = new PresenceRegistry(userDao, lock, 60 * 60 * 1000L);
+
+		final User contact = getAccountData1().getContacts().get(0);
+		final boolean online = !contact.isOnline();
+
+		presences.update(contact.cloneWithNewStatus(!online));
+		presences.update(contact.cloneWithNewStatus(online));
+		assertEquals(online, presences.isOnline(contact));
+		assertEquals(online, presences.apply(contact).isOnline());
+		assertEquals(!online, readUser(contact).isOnline());
+
+		presences.saveSnapshot();
+		assertEquals(online, readUser(contact).isOnline());
+	}
+
+	@Test
+	public void testUnknownPresenceShouldNotChangeUser() throws Exception {
+		final PresenceRegistry presences = new PresenceRegistry(userDao, lock, 60 * 60 * 1000L);
+
+		final User contact = getAccountData1().getContacts().get(0);
+		assertSame(contact, presences.apply(contact));
+		assertEquals(contact.isOnline(), presences.isOnline(contact));
+
+		presences.update(contact.cloneWithNewStatus(!contact.isOnline()));
+		assertNotSame(contact, presences.apply(contact));
+
+		// status is up to date
+		presences.update(contact);
+		assertSame(contact, presences.apply(contact));
+	}
+
+	@Test
+	public void testPresenceShouldBeAppliedToCachedUsers() throws Exception {
+		final User contact = getAccountData1().getContacts().get(0);
+		// user is cached
+		assertEquals(contact.isOnline(), userService.getUserById(contact.getEntity()).isOnline());
+
+		presences.update(contact.cloneWithNewStatus(!contact.isOnline()));
+		assertEquals(!contact.isOnline(), userService.getUserById(contact.getEntity()).isOnline());
+	}
+
+	@Test
+	public void testSnapshotShouldIgnoreRemovedUsers() throws Exception {
+		final PresenceRegistry presences = new PresenceRegistry(userDao, lock, 60 * 60 * 1000L);
+
+		final User removedContact = getAccountData1().getContacts().get(0);
+		final User contact = getAccountData1().getContacts().get(1);
+		presences.update(removedContact.cloneWithNewStatus(!removedContact.isOnline()));
+		presences.update(contact.cloneWithNewStatus(!contact.isOnline()));
+		userDao.deleteById(removedContact.getId());
+
+		presences.saveSnapshot();
+		assertEquals(!contact.isOnline(), readUser(contact).isOnline());
+	}
+
+	@Test
+	public void testPresencesOfRemovedUsersShouldBeForgotten() throws Exception {
+		final PresenceRegistry presences = new PresenceRegistry(userDao, lock, 60 * 60 * 1000L);
+
+		final User removedContact = getAccountData1().getContacts().get(0);
+		final User otherAccountContact = getAccountData2().getContacts().get(0);
+		presences.update(removedContact.cloneWithNewStatus(!removedContact.isOnline()));
+		presences.update(otherAccountContact.cloneWithNewStatus(!otherAccountContact.isOnline()));
+
+		presences.remove(removedContact.getId());
+		assertSame(removedContact, presences.apply(removedContact));
+
+		final User accountContact = getAccountData1().getContacts().get(1);
+		presences.update(accountContact.cloneWithNewStatus(!accountContact.isOnline()));
+		presences.removeAccount(getAccount1().getId());
+		assertSame(accountContact, presences.apply(accountContact));
+		assertNotSame(otherAccountContact, presences.apply(otherAccountContact));
+
+		// nothing is left to be saved for the removed account
+		presences.saveSnapshot();
+		assertEquals(accountContact.isOnline(), readUser(accountContact).isOnline());
+	}
+
+	@Nonnull
+	private User readUser(@Nonnull User user) {
+		final User result = userDao.read(user.getId());
+		assertNotNull(result);
+		return result;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.users;
+
+import org.junit.Test;
+import org.solovyev.android.messenger.accounts.AccountException;
+import org.solovyev.android.messenger.entities.Entity;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+import static org.solovyev.android.messenger.entities.Entities.newEntityFromEntityId;
+import static org.solovyev.android.messenger.users.Users.newEmptyUser;
+
+public class UnknownUsersTest {
+
+	@Nonnull
+	private final Entity user = newEntityFromEntityId("test:test");
+
+	@Test
+	public void testShouldNotFetchMissingUserAgain() throws Exception {
+		final UnknownUsers unknownUsers = new UnknownUsers();
+		final CountingFetcher fetcher = new CountingFetcher(null);
+
+		assertNull(unknownUsers.fetch(user, fetcher));
+		assertNull(unknownUsers.fetch(user, fetcher));
+
+		assertEquals(1, fetcher.count.get());
+		assertEquals(1, unknownUsers.getFetchesCount());
+		assertEquals(1, unknownUsers.getSuppressedFetchesCount());
+	}
+
+	@Test
+	public void testShouldFetchMissingUserAfterTtl() throws Exception {
+		final UnknownUsers unknownUsers = new UnknownUsers(1);
+		final CountingFetcher fetcher = new CountingFetcher(null);
+
+		assertNull(unknownUsers.fetch(user, fetcher));
+		Thread.sleep(10);
+		assertNull(unknownUsers.fetch(user, fetcher));
+
+		assertEquals(2, fetcher.count.get());
+	}
+
+	@Test
+	public void testShouldFetchUserAgainAfterUserIsAdded() throws Exception {
+		final UnknownUsers unknownUsers = new UnknownUsers();
+		final User expected = newEmptyUser(user.getEntityId());
+
+		assertNull(unknownUsers.fetch(user, new CountingFetcher(null)));
+		unknownUsers.onEvent(UserEventType.added.newEvent(expected));
+
+		assertSame(expected, unknownUsers.fetch(user, new CountingFetcher(expected)));
+	}
+
+	@Test
+	public void testShouldNotRememberFailedFetch() throws Exception {
+		final UnknownUsers unknownUsers = new UnknownUsers();
+		try {
+			unknownUsers.fetch(user, new Callable<User>() {
+				@Override
+				public User call() throws Exception {
+					throw new AccountException("test");
+				}
+			});
+			fail();
+		} catch (AccountException e) {
+			// ok
+		}
+
+		final CountingFetcher fetcher = new CountingFetcher(null);
+		unknownUsers.fetch(user, fetcher);
+		assertEquals(1, fetcher.count.get());
+	}
+
+	@Test
+	public void testConcurrentFetchesShouldBeCoalesced() throws Exception {
+		final UnknownUsers unknownUsers = new UnknownUsers();
+		final User expected = newEmptyUser(user.getEntityId());
+
+		final CountDownLatch fetchStarted = new CountDownLatch(1);
+		final CountDownLatch fetchAllowed = new CountDownLatch(1);
+		final AtomicInteger count = new AtomicInteger();
+		final Callable<User> fetcher = new Callable<User>() {
+			@Override
+			public User call() throws Exception {
+				count.incrementAndGet();
+				fetchStarted.countDown();
+				fetchAllowed.await();
+				return expected;
+			}
+		};
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<User> first = executor.submit(new FetchTask(unknownUsers, fetcher));
+			assertTrue(fetchStarted.await(5, SECONDS));
+			final Future<User> second = executor.submit(new FetchTask(unknownUsers, fetcher));
+			while (unknownUsers.getSuppressedFetchesCount() == 0) {
+				Thread.sleep(1);
+			}
+			fetchAllowed.countDown();
+
+			assertSame(expected, first.get(5, SECONDS));
+			assertSame(expected, second.get(5, SECONDS));
+			assertEquals(1, count.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private final class FetchTask implements Callable<User> {
+
+		@Nonnull
+		private final UnknownUsers unknownUsers;
+
+		@Nonnull
+		private final Callable<User> fetcher;
+
+		private FetchTask(@Nonnull UnknownUsers unknownUsers, @Nonnull Callable<User> fetcher) {
+			this.unknownUsers = unknownUsers;
+			this.fetcher = fetcher;
+		}
+
+		@Override
+		public User call() throws Exception {
+			return unknownUsers.fetch(user, fetcher);
+		}
+	}
+
+	private static final class CountingFetcher implements Callable<User> {
+
+		private final User user;
+
+		@Nonnull
+		private final AtomicInteger count = new AtomicInteger();
+
+		private CountingFetcher(User user) {
+			this.user = user;
+		}
+
+		@Override
+		public User call() throws Exception {
+			count.incrementAndGet();
+			return user;
+		}
+	}
+}
@@ -16,12 +16,17 @@
 
 package org.solovyev.android.messenger.users;
 
+import com.google.common.cache.CacheStats;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.solovyev.android.messenger.users.Users.newEmptyUser;
 
 public class UserCacheTest {
@@ -63,4 +68,41 @@ public class UserCacheTest {
 		assertSame(expected, cache.get(expected.getEntity()));
 
 	}
+
+	@Test
+	public void testShouldRemoveUserOnContactRemovedEvent() throws Exception {
+		final UserCache cache = new UserCache();
+		final User user = newEmptyUser("test:test");
+		cache.put(user);
+
+		cache.onEvent(UserEventType.contact_removed.newEvent(newEmptyUser("test:account"), user.getId()));
+
+		assertNull(cache.get(user.getEntity()));
+	}
+
+	@Test
+	public void testShouldEvictUsersAboveMaxWeight() throws Exception {
+		final int maxWeight = 10;
+		final UserCache cache = new UserCache(maxWeight);
+
+		final List<User> users = new ArrayList<User>();
+		for (int i = 0; i < 10 * maxWeight; i++) {
+			final User user = newEmptyUser("test:test" + i);
+			users.add(user);
+			cache.put(user);
+		}
+
+		int cached = 0;
+		for (User user : users) {
+			if (cache.get(user.getEntity()) != null) {
+				cached++;
+			}
+		}
+
+		assertTrue(cached <= maxWeight);
+		final CacheStats stats = cache.getStats();
+		assertTrue(stats.evictionCount() >= users.size() - maxWeight);
+		assertEquals(users.size(), stats.hitCount() + stats.missCount());
+		assertEquals(cached, stats.hitCount());
+	}
 }
@@ -163,6 +163,23 @@ public class UserDaoTest extends DefaultDaoTest<User> {
 		}
 	}
 
+	@Test
+	public void testShouldChangeUserStatusesInBatch() throws Exception {
+		final List<User> users = getAccountData1().getUsers();
+		final List<User> changedUsers = new ArrayList<User>(users.size());
+		for (User user : users) {
+			changedUsers.add(user.cloneWithNewStatus(!user.isOnline()));
+		}
+
+		dao.updateOnlineStatuses(changedUsers);
+
+		for (User user : users) {
+			final User userFromDb = dao.read(user.getId());
+			assertNotNull(userFromDb);
+			assertTrue(user.isOnline() != userFromDb.isOnline());
+		}
+	}
+
 	@Nonnull
 	@Override
 	protected Collection<User> populateEntities(@Nonnull Dao<User> dao) {
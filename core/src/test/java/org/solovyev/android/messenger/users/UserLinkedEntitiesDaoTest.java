@@ -22,8 +22,11 @@ import java.util.List;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.junit.Test;
 import org.solovyev.android.messenger.DefaultLinkedEntitiesDaoTest;
 import org.solovyev.android.messenger.LinkedEntitiesDao;
+import org.solovyev.android.messenger.MergeDaoResult;
+import org.solovyev.android.messenger.TestSQLiteOpenHelper;
 import org.solovyev.android.messenger.chats.ChatDao;
 
 import com.google.common.base.Function;
@@ -31,10 +34,17 @@ import com.google.inject.Inject;
 
 import static com.google.common.collect.Iterables.transform;
 import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.solovyev.android.db.AndroidDbUtils.MAX_IN_COUNT;
 import static org.solovyev.android.messenger.users.Users.newEmptyUser;
+import static org.solovyev.android.messenger.users.Users.newUser;
+import static org.solovyev.android.properties.Properties.newProperty;
 
 public class UserLinkedEntitiesDaoTest extends DefaultLinkedEntitiesDaoTest<User> {
 
+	private static final int BIG_ROSTER_SIZE = 5000;
+
 	@Inject
 	@Nonnull
 	private UserDao dao;
@@ -43,10 +53,45 @@ public class UserLinkedEntitiesDaoTest extends DefaultLinkedEntitiesDaoTest<User
 	@Nonnull
 	private ChatDao chatDao;
 
+	@Inject
+	@Nonnull
+	private TestSQLiteOpenHelper sqliteOpenHelper;
+
 	public UserLinkedEntitiesDaoTest() {
 		super(new UserSameEqualizer());
 	}
 
+	@Test
+	public void testMergeOfBigRosterShouldReadContactsInChunks() throws Exception {
+		final AccountData ad = getAccountData1();
+		final List<User> contacts = newArrayList();
+		for (int i = 0; i < BIG_ROSTER_SIZE; i++) {
+			contacts.add(newUser(ad.getAccount().newUserEntity("roster_contact_" + i), newArrayList(newProperty("index", String.valueOf(i)))));
+		}
+
+		int requests = sqliteOpenHelper.getDatabaseRequestsCount();
+		MergeDaoResult<User, String> result = dao.mergeLinkedEntities(getId(), contacts, false, true);
+		final int addRequests = sqliteOpenHelper.getDatabaseRequestsCount() - requests;
+		assertEquals(BIG_ROSTER_SIZE, result.getAddedObjects().size());
+		assertTrue(result.getUpdatedObjects().isEmpty());
+
+		requests = sqliteOpenHelper.getDatabaseRequestsCount();
+		result = dao.mergeLinkedEntities(getId(), contacts, false, true);
+		final int updateRequests = sqliteOpenHelper.getDatabaseRequestsCount() - requests;
+		assertTrue(result.getAddedObjects().isEmpty());
+		assertEquals(BIG_ROSTER_SIZE, result.getUpdatedObjects().size());
+		for (User contact : result.getUpdatedObjects()) {
+			// properties must be loaded together with contacts
+			assertEquals(contact.getEntity().getAccountEntityId().substring("roster_contact_".length()), contact.getPropertyValueByName("index"));
+		}
+
+		// before contacts were read one by one: 2 queries (row + properties) per contact. Now number of requests
+		// depends only on the number of chunks
+		final int maxRequests = 4 * (BIG_ROSTER_SIZE / MAX_IN_COUNT + 1) + 2;
+		assertTrue(addRequests <= maxRequests);
+		assertTrue(updateRequests <= maxRequests);
+	}
+
 	@Nonnull
 	@Override
 	protected LinkedEntitiesDao<User> getDao() {
@@ -0,0 +1,3 @@
+CREATE INDEX messages_chat_id_send_time_index ON messages (chat_id, send_time, state);
+CREATE INDEX messages_read_state_chat_id_index ON messages (read, state, chat_id);
+CREATE INDEX user_chats_chat_id_index ON user_chats (chat_id);
@@ -0,0 +1,4 @@
+CREATE TABLE chat_summary (chat_id text PRIMARY KEY, last_message_id text, last_send_time integer, unread_count integer NOT NULL, message_count integer NOT NULL, FOREIGN KEY (chat_id) REFERENCES chats (id) ON DELETE CASCADE);
+CREATE INDEX chat_summary_last_send_time_index ON chat_summary (last_send_time);
+CREATE INDEX chat_summary_unread_count_index ON chat_summary (unread_count);
+INSERT INTO chat_summary (chat_id, last_message_id, last_send_time, unread_count, message_count) SELECT c.id, (SELECT m.id FROM messages m WHERE m.chat_id = c.id AND m.state <> 'removed' ORDER BY m.send_time DESC LIMIT 1), (SELECT max(m.send_time) FROM messages m WHERE m.chat_id = c.id AND m.state <> 'removed'), (SELECT count(*) FROM messages m WHERE m.chat_id = c.id AND m.read = 0 AND m.state = 'received'), (SELECT count(*) FROM messages m WHERE m.chat_id = c.id AND m.state <> 'removed') FROM chats c;
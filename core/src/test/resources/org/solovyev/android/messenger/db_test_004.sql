@@ -0,0 +1,5 @@
+CREATE VIRTUAL TABLE messages_fts USING fts3 (body);
+INSERT INTO messages_fts (docid, body) SELECT rowid, body FROM messages;
+CREATE TRIGGER messages_fts_after_insert AFTER INSERT ON messages BEGIN INSERT INTO messages_fts (docid, body) VALUES (new.rowid, new.body); END;
+CREATE TRIGGER messages_fts_after_update AFTER UPDATE OF body ON messages BEGIN UPDATE messages_fts SET body = new.body WHERE docid = new.rowid; END;
+CREATE TRIGGER messages_fts_after_delete AFTER DELETE ON messages BEGIN DELETE FROM messages_fts WHERE docid = old.rowid; END;
@@ -0,0 +1,2 @@
+ALTER TABLE messages ADD COLUMN dedup_key integer;
+CREATE INDEX messages_dedup_key_index ON messages (dedup_key);
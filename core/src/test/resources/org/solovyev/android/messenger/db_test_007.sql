@@ -0,0 +1,3 @@
+CREATE TABLE messages_archive (id integer PRIMARY KEY AUTOINCREMENT, chat_id integer NOT NULL, min_send_time integer NOT NULL, max_send_time integer NOT NULL, count integer NOT NULL, data blob NOT NULL);
+CREATE INDEX messages_archive_chat_id_max_send_time_index ON messages_archive (chat_id, max_send_time);
+CREATE TRIGGER chats_after_delete_archive AFTER DELETE ON chats BEGIN DELETE FROM messages_archive WHERE chat_id = (SELECT e.id FROM entities e WHERE e.entity_id = old.id); END;
@@ -0,0 +1,8 @@
+CREATE TABLE account_databases (account_id text PRIMARY KEY, name text NOT NULL);
+CREATE TABLE chat_summary_new (chat_id text PRIMARY KEY, last_message_id text, last_send_time integer, unread_count integer NOT NULL, message_count integer NOT NULL);
+INSERT INTO chat_summary_new (chat_id, last_message_id, last_send_time, unread_count, message_count) SELECT chat_id, last_message_id, last_send_time, unread_count, message_count FROM chat_summary;
+DROP TABLE chat_summary;
+ALTER TABLE chat_summary_new RENAME TO chat_summary;
+CREATE INDEX chat_summary_last_send_time_index ON chat_summary (last_send_time);
+CREATE INDEX chat_summary_unread_count_index ON chat_summary (unread_count);
+CREATE TRIGGER chats_after_delete_summary AFTER DELETE ON chats BEGIN DELETE FROM chat_summary WHERE chat_id = old.id; END;
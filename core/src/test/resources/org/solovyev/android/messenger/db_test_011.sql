@@ -0,0 +1 @@
+DELETE FROM user_properties WHERE property_name = 'avatar_base64';
@@ -0,0 +1,15 @@
+CREATE TABLE entities (id integer PRIMARY KEY AUTOINCREMENT, entity_id text NOT NULL UNIQUE);
+CREATE TABLE messages (id text PRIMARY KEY, account_id integer NOT NULL, account_message_id text NOT NULL, chat_id integer NOT NULL, author_id integer NOT NULL, recipient_id integer, send_date datetime NOT NULL, send_time integer NOT NULL, title text NOT NULL, body text NOT NULL, read integer NOT NULL, state text NOT NULL, dedup_key integer, body_format integer NOT NULL DEFAULT 0, body_data blob);
+CREATE INDEX messages_chat_id_send_time_index ON messages (chat_id, send_time, state);
+CREATE INDEX messages_read_state_chat_id_index ON messages (read, state, chat_id);
+CREATE INDEX messages_dedup_key_index ON messages (dedup_key);
+CREATE TABLE message_properties (message_id text NOT NULL, property_name text NOT NULL, property_value text, FOREIGN KEY (message_id) REFERENCES messages (id) ON DELETE CASCADE, UNIQUE (message_id, property_name));
+CREATE VIRTUAL TABLE messages_fts USING fts3 (body);
+CREATE TRIGGER messages_fts_after_insert AFTER INSERT ON messages WHEN new.body_format = 0 BEGIN INSERT INTO messages_fts (docid, body) VALUES (new.rowid, new.body); END;
+CREATE TRIGGER messages_fts_after_update AFTER UPDATE OF body ON messages WHEN new.body_format = 0 BEGIN UPDATE messages_fts SET body = new.body WHERE docid = new.rowid; END;
+CREATE TRIGGER messages_fts_after_delete AFTER DELETE ON messages BEGIN DELETE FROM messages_fts WHERE docid = old.rowid; END;
+CREATE TABLE messages_archive (id integer PRIMARY KEY AUTOINCREMENT, chat_id integer NOT NULL, min_send_time integer NOT NULL, max_send_time integer NOT NULL, count integer NOT NULL, data blob NOT NULL);
+CREATE INDEX messages_archive_chat_id_max_send_time_index ON messages_archive (chat_id, max_send_time);
+CREATE TABLE chat_summary (chat_id text PRIMARY KEY, last_message_id text, last_send_time integer, unread_count integer NOT NULL, message_count integer NOT NULL);
+CREATE INDEX chat_summary_last_send_time_index ON chat_summary (last_send_time);
+CREATE INDEX chat_summary_unread_count_index ON chat_summary (unread_count);
@@ -0,0 +1,10 @@
+CREATE TABLE messages_new (id text PRIMARY KEY, account_id integer NOT NULL, account_message_id text NOT NULL, chat_id integer NOT NULL, author_id integer NOT NULL, recipient_id integer, send_time integer NOT NULL, title text NOT NULL, body text NOT NULL, read integer NOT NULL, state text NOT NULL, dedup_key integer, body_format integer NOT NULL DEFAULT 0, body_data blob);
+INSERT INTO messages_new (rowid, id, account_id, account_message_id, chat_id, author_id, recipient_id, send_time, title, body, read, state, dedup_key, body_format, body_data) SELECT rowid, id, account_id, account_message_id, chat_id, author_id, recipient_id, send_time, title, body, read, state, dedup_key, body_format, body_data FROM messages;
+DROP TABLE messages;
+ALTER TABLE messages_new RENAME TO messages;
+CREATE INDEX messages_chat_id_send_time_index ON messages (chat_id, send_time, state);
+CREATE INDEX messages_read_state_chat_id_index ON messages (read, state, chat_id);
+CREATE INDEX messages_dedup_key_index ON messages (dedup_key);
+CREATE TRIGGER messages_fts_after_insert AFTER INSERT ON messages WHEN new.body_format = 0 BEGIN INSERT INTO messages_fts (docid, body) VALUES (new.rowid, new.body); END;
+CREATE TRIGGER messages_fts_after_update AFTER UPDATE OF body ON messages WHEN new.body_format = 0 BEGIN UPDATE messages_fts SET body = new.body WHERE docid = new.rowid; END;
+CREATE TRIGGER messages_fts_after_delete AFTER DELETE ON messages BEGIN DELETE FROM messages_fts WHERE docid = old.rowid; END;
@@ -0,0 +1,3 @@
+CREATE TABLE messages_archive_index (id integer PRIMARY KEY AUTOINCREMENT, message_id text NOT NULL UNIQUE, archive_id integer NOT NULL, send_time integer NOT NULL);
+CREATE INDEX messages_archive_index_archive_id_index ON messages_archive_index (archive_id);
+CREATE TRIGGER messages_archive_after_delete AFTER DELETE ON messages_archive BEGIN DELETE FROM messages_fts WHERE docid IN (SELECT -id FROM messages_archive_index WHERE archive_id = old.id); DELETE FROM messages_archive_index WHERE archive_id = old.id; END;
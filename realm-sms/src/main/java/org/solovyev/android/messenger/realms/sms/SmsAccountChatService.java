@@ -37,10 +37,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static android.app.PendingIntent.FLAG_ONE_SHOT;
 import static android.app.PendingIntent.getBroadcast;
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newIdentityHashSet;
 import static java.util.Collections.emptyList;
 import static org.solovyev.android.messenger.App.getApplication;
 import static org.solovyev.android.messenger.App.getMessageService;
@@ -136,7 +138,27 @@ final class SmsAccountChatService implements AccountChatService {
 
 		Log.d(TAG, "Messages read");
 
-		return messages;
+		return removeMergedMessages(messages);
+	}
+
+	@Nonnull
+	private List<MutableMessage> removeMergedMessages(@Nonnull List<MutableMessage> messages) {
+		// we cannot rely on message ids in SMS realm => need to use some heuristics to determine if message has already been merged
+		final Set<MutableMessage> mergedMessages = newIdentityHashSet();
+		mergedMessages.addAll(getMessageService().getMergedMessages(messages));
+		if (mergedMessages.isEmpty()) {
+			return messages;
+		}
+
+		final List<MutableMessage> result = new ArrayList<MutableMessage>(messages.size() - mergedMessages.size());
+		for (MutableMessage message : messages) {
+			if (mergedMessages.contains(message)) {
+				Log.i(TAG, "Message already merged: body: " + message.getBody() + ", send date: " + message.getSendDate() + ", author: " + message.getAuthor() + ", recipient: " + message.getRecipient());
+			} else {
+				result.add(message);
+			}
+		}
+		return result;
 	}
 
 	@Nullable
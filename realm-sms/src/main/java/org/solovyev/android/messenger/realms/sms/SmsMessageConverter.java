@@ -92,13 +92,7 @@ class SmsMessageConverter implements Converter<Cursor, MutableMessage> {
 
 		message.setChat(getChatService().getPrivateChatId(user, participant));
 
-		final Message sameMessage = messageService.getSameMessage(message.getBody(), message.getSendDate(), message.getAuthor(), message.getRecipient());
-		if (sameMessage != null) {
-			// we cannot rely on message ids in SMS realm => need to use some heuristics to determine if message has already been merged
-			Log.i(TAG, "Message already merged: body: " + message.getBody() + ", send date: " + message.getSendDate() + ", author: " + message.getAuthor() + ", recipient: " + message.getRecipient());
-			throw new IllegalArgumentException("Already merged");
-		}
-
+		// NOTE: same message might be already merged with another id, such messages are filtered out by the caller in one batch
 		return message;
 	}
 
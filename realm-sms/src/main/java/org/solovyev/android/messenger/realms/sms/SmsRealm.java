@@ -21,6 +21,7 @@ import android.content.Context;
 import android.telephony.TelephonyManager;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import org.solovyev.android.http.ImageLoader;
 import org.solovyev.android.messenger.App;
 import org.solovyev.android.messenger.accounts.Account;
 import org.solovyev.android.messenger.accounts.AccountBuilder;
@@ -72,10 +73,14 @@ public final class SmsRealm extends AbstractRealm<SmsAccountConfiguration> {
 	@Nonnull
 	private final Context context;
 
+	@Nonnull
+	private final ImageLoader imageLoader;
+
 	@Inject
-	public SmsRealm(@Nonnull Application context) {
+	public SmsRealm(@Nonnull Application context, @Nonnull ImageLoader imageLoader) {
 		super(REALM_ID, R.string.mpp_sms_name, R.drawable.mpp_sms_icon, SmsAccountConfigurationFragment.class, SmsAccountConfiguration.class, true, SmsEditUserFragment.class, false);
 		this.context = context;
+		this.imageLoader = imageLoader;
 	}
 
 	@Nonnull
@@ -99,7 +104,7 @@ public final class SmsRealm extends AbstractRealm<SmsAccountConfiguration> {
 	@Nonnull
 	@Override
 	public RealmIconService getRealmIconService() {
-		return new SmsRealmIconService(context);
+		return new SmsRealmIconService(context, imageLoader);
 	}
 
 	@Nullable
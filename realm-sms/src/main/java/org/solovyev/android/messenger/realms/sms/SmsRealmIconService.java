@@ -16,13 +16,17 @@
 
 package org.solovyev.android.messenger.realms.sms;
 
+import android.content.ContentUris;
 import android.content.Context;
+import android.provider.ContactsContract;
+import android.util.Log;
 import android.widget.ImageView;
-import org.solovyev.android.messenger.App;
+import org.solovyev.android.http.ImageLoader;
 import org.solovyev.android.messenger.icons.RealmIconService;
 import org.solovyev.android.messenger.users.User;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.List;
 
 import static org.solovyev.android.messenger.App.getIconGenerator;
@@ -32,11 +36,12 @@ final class SmsRealmIconService implements RealmIconService {
 	@Nonnull
 	private final Context context;
 
-	// todo serso: make proper singleton
-	private static SmsIconLoader iconLoader;
+	@Nonnull
+	private final ImageLoader imageLoader;
 
-	SmsRealmIconService(@Nonnull Context context) {
+	SmsRealmIconService(@Nonnull Context context, @Nonnull ImageLoader imageLoader) {
 		this.context = context;
+		this.imageLoader = imageLoader;
 	}
 
 	@Override
@@ -51,7 +56,12 @@ final class SmsRealmIconService implements RealmIconService {
 
 	@Override
 	public void fetchUsersIcons(@Nonnull List<User> users) {
-
+		for (User user : users) {
+			final String photoUri = getContactPhotoUri(user);
+			if (photoUri != null) {
+				imageLoader.loadImage(photoUri);
+			}
+		}
 	}
 
 	@Override
@@ -60,15 +70,27 @@ final class SmsRealmIconService implements RealmIconService {
 	}
 
 	private void loadContactPhoto(@Nonnull User user, @Nonnull ImageView imageView) {
+		final String photoUri = getContactPhotoUri(user);
+		if (photoUri != null) {
+			imageLoader.loadImage(photoUri, imageView, getIconGenerator().getIconResId(user));
+		} else {
+			imageView.setImageDrawable(getIconGenerator().getIcon(user));
+		}
+	}
+
+	@Nullable
+	private static String getContactPhotoUri(@Nonnull User user) {
 		final String accountEntityId = user.getEntity().getAccountEntityId();
 
 		if (user.getEntity().isAccountEntityIdSet() && !SmsRealm.USER_ID.equals(accountEntityId)) {
-			if (iconLoader == null) {
-				iconLoader = new SmsIconLoader(context, "messenger-sms", App.getUiHandler());
+			try {
+				final long contactId = Long.valueOf(accountEntityId);
+				return ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId).toString();
+			} catch (NumberFormatException e) {
+				Log.e(SmsRealm.TAG, e.getMessage(), e);
 			}
-			iconLoader.loadImage(accountEntityId, imageView, getIconGenerator().getIconResId(user));
-		} else {
-			imageView.setImageDrawable(getIconGenerator().getIcon(user));
 		}
+
+		return null;
 	}
 }
@@ -28,7 +28,6 @@ import org.solovyev.android.messenger.accounts.AccountConnectionException;
 import org.solovyev.android.messenger.entities.Entity;
 import org.solovyev.android.messenger.users.*;
 import org.solovyev.android.properties.AProperty;
-import org.solovyev.android.security.base64.ABase64StringEncoder;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -145,7 +144,7 @@ class XmppAccountUserService extends AbstractXmppAccountService implements Accou
 
 			if (account.isAccountUser(accountUserId)) {
 				// realm user cannot be found in roster ->  information should be loaded separately
-				result = toAccountUser(account.getId(), accountUserId, null, connection);
+				result = toAccountUser(account.getId(), accountUserId, null, connection, getAvatars(account));
 			} else {
 				// try to find user contacts in roster
 				final RosterEntry entry = connection.getRoster().getEntry(accountUserId);
@@ -163,16 +162,16 @@ class XmppAccountUserService extends AbstractXmppAccountService implements Accou
 	@Nonnull
 	public static User toUser(@Nonnull String accountId, @Nonnull String accountUserId, @Nullable String name, @Nonnull Connection connection, @Nonnull Account account) throws XMPPException {
 		final Entity entity = newEntity(accountId, accountUserId);
-		final List<AProperty> properties = loadUserProperties(true, accountUserId, connection, name);
+		final List<AProperty> properties = loadUserProperties(true, accountUserId, connection, name, getAvatars(account));
 		final MutableUser user = newUser(entity, properties);
 		user.setOnline(isUserOnline(account, connection.getRoster(), entity));
 		return user;
 	}
 
 	@Nonnull
-	public static MutableUser toAccountUser(@Nonnull String accountId, @Nonnull String accountUserId, @Nullable String name, @Nonnull Connection connection) throws XMPPException {
+	public static MutableUser toAccountUser(@Nonnull String accountId, @Nonnull String accountUserId, @Nullable String name, @Nonnull Connection connection, @Nonnull XmppAvatars avatars) throws XMPPException {
 		final Entity entity = newEntity(accountId, accountUserId);
-		final List<AProperty> properties = loadUserProperties(true, accountUserId, connection, name);
+		final List<AProperty> properties = loadUserProperties(true, accountUserId, connection, name, avatars);
 		final MutableUser user = newUser(entity, properties);
 		user.setOnline(true);
 		return user;
@@ -182,7 +181,8 @@ class XmppAccountUserService extends AbstractXmppAccountService implements Accou
 	private static List<AProperty> loadUserProperties(boolean loadVCard,
 													  @Nonnull String accountUserId,
 													  @Nonnull Connection connection,
-													  @Nullable String name) throws XMPPException {
+													  @Nullable String name,
+													  @Nonnull XmppAvatars avatars) throws XMPPException {
 		final List<AProperty> result = new ArrayList<AProperty>();
 
 		if (loadVCard) {
@@ -197,11 +197,12 @@ class XmppAccountUserService extends AbstractXmppAccountService implements Accou
 				result.add(newProperty(User.PROPERTY_NICKNAME, userCard.getNickName()));
 				result.add(newProperty(User.PROPERTY_EMAIL, userCard.getEmailHome()));
 				result.add(newProperty(User.PROPERTY_PHONE, userCard.getPhoneHome("VOICE")));
-				result.add(newProperty(XmppRealm.USER_PROPERTY_AVATAR_HASH, userCard.getAvatarHash()));
 
+				// avatar itself is stored on disk, only its hash is saved in user properties
 				final byte[] avatar = userCard.getAvatar();
-				if (avatar != null) {
-					result.add(newProperty(XmppRealm.USER_PROPERTY_AVATAR_BASE64, ABase64StringEncoder.getInstance().convert(avatar)));
+				final String avatarHash = userCard.getAvatarHash();
+				if (avatar != null && avatarHash != null && avatars.saveAvatar(avatarHash, avatar)) {
+					result.add(newProperty(XmppRealm.USER_PROPERTY_AVATAR_HASH, avatarHash));
 				}
 
 				// full name
@@ -223,6 +224,11 @@ class XmppAccountUserService extends AbstractXmppAccountService implements Accou
 		return result;
 	}
 
+	@Nonnull
+	private static XmppAvatars getAvatars(@Nonnull Account account) {
+		return ((XmppRealm) account.getRealm()).getAvatars();
+	}
+
 	private static class UserContactsLoader implements XmppConnectedCallable<List<User>> {
 
 		@Nonnull
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013 serso aka se.solovyev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.solovyev.android.messenger.realms.xmpp;
+
+import android.app.Application;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.widget.ImageView;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.solovyev.android.messenger.App;
+import org.solovyev.android.messenger.Background;
+import org.solovyev.android.messenger.users.User;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Storage of XMPP avatars. Avatars are kept in two tiers:
+ * <ol>
+ * <li>disk: avatar from vCard is down-sampled to the size of the biggest user icon and saved to the file named after
+ * the avatar's hash while users are synced (see {@link #saveAvatar(String, byte[])})</li>
+ * <li>memory: LRU cache of the bitmaps decoded from the disk tier, key: user id + avatar hash. Size of the cache is
+ * limited by the number of bytes used by bitmaps</li>
+ * </ol>
+ * Nothing is decoded on the UI thread: if bitmap is not in memory it is loaded in background and set to the view
+ * later (if view still shows the same user).
+ */
+@Singleton
+@ThreadSafe
+public class XmppAvatars {
+
+	private static final String DIR_NAME = "xmpp_avatars";
+
+	// part of the max heap which might be used by decoded avatars
+	private static final int MEMORY_PART = 16;
+
+	@Nonnull
+	private final File dir;
+
+	@Nonnull
+	private final Executor executor;
+
+	private final int size;
+
+	@Nonnull
+	private final Cache<String, Bitmap> bitmaps;
+
+	/**
+	 * Last request for each view, bitmap loaded in background is set only if the view still waits for it
+	 */
+	@Nonnull
+	private final Map<ImageView, String> requests = Collections.synchronizedMap(new WeakHashMap<ImageView, String>());
+
+	@Inject
+	public XmppAvatars(@Nonnull Application application, @Nonnull Background background) {
+		this(new File(application.getFilesDir(), DIR_NAME),
+				background.getHighPriorityExecutor(),
+				application.getResources().getDimensionPixelSize(R.dimen.mpp_fragment_icon_size),
+				Runtime.getRuntime().maxMemory() / MEMORY_PART);
+	}
+
+	XmppAvatars(@Nonnull File dir, @Nonnull Executor executor, int size, long maxBytes) {
+		this.dir = dir;
+		this.executor = executor;
+		this.size = size;
+		this.bitmaps = CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher(new BitmapWeigher())
+				.build();
+	}
+
+	/**
+	 * Method down-samples and saves avatar to the disk. As file is named after the hash of the avatar nothing is done
+	 * if avatar has been already saved. Must be called from background thread.
+	 *
+	 * @param hash   hash of the avatar from vCard
+	 * @param avatar avatar from vCard
+	 * @return true if avatar is on disk
+	 */
+	public boolean saveAvatar(@Nonnull String hash, @Nonnull byte[] avatar) {
+		final File file = getFile(hash);
+		if (file.exists()) {
+			return true;
+		}
+
+		final Bitmap bitmap = decodeScaled(avatar);
+		if (bitmap == null) {
+			Log.w(XmppRealm.TAG, "Unable to decode avatar " + hash);
+			return false;
+		}
+
+		if (!dir.exists() && !dir.mkdirs()) {
+			Log.w(XmppRealm.TAG, "Unable to create " + dir);
+			return false;
+		}
+
+		// avatar is written to temporary file first => readers never see partially written file
+		final File tmpFile = new File(dir, hash + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(tmpFile);
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+			out.close();
+			out = null;
+			return tmpFile.renameTo(file);
+		} catch (IOException e) {
+			Log.e(XmppRealm.TAG, e.getMessage(), e);
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+			bitmap.recycle();
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Method sets avatar of the <var>user</var> to the <var>imageView</var> if it is in memory. Otherwise
+	 * <var>imageView</var> keeps its current image and avatar is loaded in background.
+	 *
+	 * @return true if avatar has been set to the view
+	 */
+	public boolean setAvatar(@Nonnull User user, @Nonnull final ImageView imageView) {
+		final String hash = getHash(user);
+		if (hash == null) {
+			requests.remove(imageView);
+			return false;
+		}
+
+		final String key = newKey(user, hash);
+		final Bitmap bitmap = bitmaps.getIfPresent(key);
+		if (bitmap != null) {
+			requests.remove(imageView);
+			imageView.setImageBitmap(bitmap);
+			return true;
+		}
+
+		requests.put(imageView, key);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!key.equals(requests.get(imageView))) {
+					// view has been reused for another user
+					return;
+				}
+
+				final Bitmap bitmap = load(key, hash);
+				if (bitmap != null) {
+					App.getUiHandler().post(new Runnable() {
+						@Override
+						public void run() {
+							synchronized (requests) {
+								if (key.equals(requests.get(imageView))) {
+									requests.remove(imageView);
+									imageView.setImageBitmap(bitmap);
+								}
+							}
+						}
+					});
+				}
+			}
+		});
+		return false;
+	}
+
+	/**
+	 * Method loads avatars of the <var>users</var> to memory in background
+	 */
+	public void preload(@Nonnull List<User> users) {
+		for (final User user : users) {
+			final String hash = getHash(user);
+			if (hash != null) {
+				final String key = newKey(user, hash);
+				if (bitmaps.getIfPresent(key) == null) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							load(key, hash);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	@Nullable
+	private Bitmap load(@Nonnull String key, @Nonnull String hash) {
+		Bitmap result = bitmaps.getIfPresent(key);
+		if (result == null) {
+			final File file = getFile(hash);
+			if (file.exists()) {
+				result = BitmapFactory.decodeFile(file.getPath());
+				if (result != null) {
+					bitmaps.put(key, result);
+				}
+			}
+		}
+		return result;
+	}
+
+	@Nullable
+	private Bitmap decodeScaled(@Nonnull byte[] avatar) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(avatar, 0, avatar.length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		// power of 2 is the fastest for decoder, the rest is done by scaling
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= size && options.outHeight / (sampleSize * 2) >= size) {
+			sampleSize *= 2;
+		}
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		final Bitmap bitmap = BitmapFactory.decodeByteArray(avatar, 0, avatar.length, options);
+		if (bitmap == null) {
+			return null;
+		}
+
+		final int width = bitmap.getWidth();
+		final int height = bitmap.getHeight();
+		if (width <= size && height <= size) {
+			return bitmap;
+		}
+
+		final float scale = Math.min((float) size / width, (float) size / height);
+		final Bitmap result = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+		if (result != bitmap) {
+			bitmap.recycle();
+		}
+		return result;
+	}
+
+	@Nonnull
+	private File getFile(@Nonnull String hash) {
+		return new File(dir, hash + ".png");
+	}
+
+	@Nullable
+	private static String getHash(@Nonnull User user) {
+		return user.getPropertyValueByName(XmppRealm.USER_PROPERTY_AVATAR_HASH);
+	}
+
+	@Nonnull
+	private static String newKey(@Nonnull User user, @Nonnull String hash) {
+		return user.getId() + "/" + hash;
+	}
+
+	private static final class BitmapWeigher implements Weigher<String, Bitmap> {
+		@Override
+		public int weigh(String key, Bitmap bitmap) {
+			// Bitmap#getByteCount is not available before API 12
+			return bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	}
+}
@@ -52,7 +52,8 @@ final class XmppMessageListener implements ChatStateListener {
 		Log.i("M++/Xmpp", "Message created: " + message.getBody());
 		final List<MutableMessage> messages = toMessages(account, asList(message));
 		if (!messages.isEmpty()) {
-			getChatService().saveMessages(this.chat, messages);
+			// messages might come in bursts (e.g. offline messages after login)
+			getChatService().queueMessages(this.chat, messages, false);
 		} else {
 			/**
 			 * Some special messages sent by another client like 'Composing' and 'Pausing'.
@@ -51,7 +51,6 @@ public class XmppRealm extends AbstractRealm<XmppAccountConfiguration> {
     */
 
 	public static final String USER_PROPERTY_AVATAR_HASH = "avatar_hash";
-	public static final String USER_PROPERTY_AVATAR_BASE64 = "avatar_base64";
 
 	public static final String TAG = newTag("XMPP");
 
@@ -67,6 +66,10 @@ public class XmppRealm extends AbstractRealm<XmppAccountConfiguration> {
 	@Nonnull
 	private Application context;
 
+	@Inject
+	@Nonnull
+	private XmppAvatars avatars;
+
 	protected XmppRealm(@Nonnull String realmId, int nameResId, int iconResId, @Nonnull Class<? extends XmppAccountConfigurationFragment> configurationFragmentClass) {
 		super(realmId, nameResId, iconResId, configurationFragmentClass, XmppAccountConfiguration.class, false, null, true);
 	}
@@ -98,7 +101,12 @@ public class XmppRealm extends AbstractRealm<XmppAccountConfiguration> {
 	@Nonnull
 	@Override
 	public RealmIconService getRealmIconService() {
-		return new XmppRealmIconService(context);
+		return new XmppRealmIconService(context, avatars);
+	}
+
+	@Nonnull
+	public XmppAvatars getAvatars() {
+		return avatars;
 	}
 
 	@Nullable
@@ -17,18 +17,13 @@
 package org.solovyev.android.messenger.realms.xmpp;
 
 import android.content.Context;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.util.Log;
 import android.widget.ImageView;
 import org.solovyev.android.messenger.App;
 import org.solovyev.android.messenger.icons.RealmIconService;
 import org.solovyev.android.messenger.users.User;
 import org.solovyev.android.messenger.view.IconGenerator;
-import org.solovyev.android.security.base64.ABase64StringDecoder;
 
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 import java.util.List;
 
 public class XmppRealmIconService implements RealmIconService {
@@ -39,17 +34,19 @@ public class XmppRealmIconService implements RealmIconService {
 	@Nonnull
 	private final IconGenerator iconGenerator;
 
-	public XmppRealmIconService(@Nonnull Context context) {
+	@Nonnull
+	private final XmppAvatars avatars;
+
+	public XmppRealmIconService(@Nonnull Context context, @Nonnull XmppAvatars avatars) {
 		this.context = context;
+		this.avatars = avatars;
 		this.iconGenerator = App.getIconGenerator();
 	}
 
 	@Override
 	public void setUserIcon(@Nonnull User user, @Nonnull ImageView imageView) {
-		final BitmapDrawable drawable = getUserIcon(user);
-		if (drawable != null) {
-			imageView.setImageDrawable(drawable);
-		} else {
+		if (!avatars.setAvatar(user, imageView)) {
+			// generated icon is shown until avatar is loaded
 			imageView.setImageDrawable(iconGenerator.getIcon(user));
 		}
 	}
@@ -61,28 +58,12 @@ public class XmppRealmIconService implements RealmIconService {
 
 	@Override
 	public void fetchUsersIcons(@Nonnull List<User> users) {
-		// everything is already fetched
+		// everything is already fetched, just load to memory
+		avatars.preload(users);
 	}
 
 	@Override
 	public void setUsersIcon(@Nonnull List<User> users, @Nonnull ImageView imageView) {
 		imageView.setImageDrawable(context.getResources().getDrawable(R.drawable.mpp_icon_users_red));
 	}
-
-	@Nullable
-	private BitmapDrawable getUserIcon(@Nonnull User user) {
-		BitmapDrawable result = null;
-
-		final String userIconBase64 = user.getPropertyValueByName(XmppRealm.USER_PROPERTY_AVATAR_BASE64);
-		if (userIconBase64 != null) {
-			try {
-				final byte[] userIconBytes = ABase64StringDecoder.getInstance().convert(userIconBase64);
-				result = new BitmapDrawable(BitmapFactory.decodeByteArray(userIconBytes, 0, userIconBytes.length));
-			} catch (IllegalArgumentException e) {
-				Log.e("XmppRealm", e.getMessage(), e);
-			}
-		}
-
-		return result;
-	}
 }